@@ -0,0 +1,48 @@
+package org.core.backend.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks.
+ * Takes the usual jmh arguments. Unless told otherwise the allocations are
+ * measured with the gc profiler and the results written as json to
+ * target/jmh-result.json, for the build to compare with the last deploy.
+ */
+public final class BenchmarkRunner {
+
+    /**
+     * The default result file.
+     */
+    public static final String RESULT_FILE = "target/jmh-result.json";
+
+    /**
+     * Hidden constructor.
+     */
+    private BenchmarkRunner() {
+    }
+
+    /**
+     * Runs the benchmarks.
+     * @param args The jmh arguments, e.g a benchmark name pattern.
+     * @throws Exception if the arguments are invalid or a run fails.
+     */
+    public static void main(final String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+        if (!cli.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cli.getResult().hasValue()) {
+            options.result(RESULT_FILE);
+        }
+        if (cli.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,98 @@
+package org.core.backend.benchmarks;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.time.DayOfWeek;
+import java.util.concurrent.TimeUnit;
+import org.core.backend.utils.BookingReceipt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the pricing of a booking, see BookingReceipt.
+ * The stays are priced on a saturday, so the weekend discounts are picked
+ * too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1,
+    jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class BookingBenchmark {
+
+    /**
+     * The booking.
+     */
+    private JsonObject booking;
+
+    /**
+     * The booking request body.
+     */
+    private JsonObject body;
+
+    /**
+     * The listing.
+     */
+    private JsonObject listing;
+
+    /**
+     * The statutory premiums.
+     */
+    private JsonArray taxes;
+
+    /**
+     * The discounts.
+     */
+    private JsonArray discounts;
+
+    /**
+     * Creates the fixtures.
+     */
+    @Setup
+    public void setUp() {
+        this.booking = Fixtures.booking();
+        this.body = Fixtures.bookingBody();
+        this.listing = Fixtures.listing(7);
+        this.taxes = Fixtures.statutoryPremiums();
+        this.discounts = Fixtures.discounts();
+    }
+
+    /**
+     * Creates the receipt of a week long stay.
+     * @return the receipt.
+     */
+    @Benchmark
+    public JsonObject createReceipt() {
+        return BookingReceipt.create(this.booking, this.listing, this.body,
+            DayOfWeek.SATURDAY);
+    }
+
+    /**
+     * Totals the statutory premiums of a week long stay.
+     * @return the total.
+     */
+    @Benchmark
+    public double calculateTaxes() {
+        return BookingReceipt.calculateTaxes(this.taxes, 8500.0, 7);
+    }
+
+    /**
+     * Picks the discounts a week long stay gets.
+     * @return the discounts.
+     */
+    @Benchmark
+    public JsonArray applicableDiscounts() {
+        return BookingReceipt.applicableDiscounts(this.discounts,
+            this.booking, DayOfWeek.SATURDAY);
+    }
+}
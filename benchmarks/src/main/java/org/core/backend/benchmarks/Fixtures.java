@@ -0,0 +1,211 @@
+package org.core.backend.benchmarks;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Payloads shaped like the production ones.
+ * A listing carries a handful of amenities, discounts, loadings and
+ * statutory premiums, a few images and a description of a few paragraphs,
+ * a booking a week long stay with its receipt.
+ */
+public final class Fixtures {
+
+    /**
+     * The number of listings in a page.
+     */
+    public static final int PAGE_SIZE = 20;
+
+    /**
+     * The listing description.
+     */
+    private static final String DESCRIPTION = "A bright two bedroom "
+        + "apartment a short walk from the beach, with a fully equipped "
+        + "kitchen, fast wifi and a balcony looking over the ocean. The "
+        + "building has a pool, a gym and round the clock security, and "
+        + "the host lives nearby. Check in is from 2pm and check out by "
+        + "10am, late check out can be arranged on request. Pets are not "
+        + "allowed, smoking is only allowed on the balcony.";
+
+    /**
+     * Hidden constructor.
+     */
+    private Fixtures() {
+    }
+
+    /**
+     * Creates a premium entry.
+     * @param name The name.
+     * @param isAmount Whether the amount is fixed, else a percentage.
+     * @param amount The amount or percentage.
+     * @param isPaidDaily Whether it is paid per night.
+     * @return the entry.
+     */
+    private static JsonObject premium(final String name,
+        final boolean isAmount, final double amount,
+        final boolean isPaidDaily) {
+        return new JsonObject()
+            .put("_id", "prm-" + name.toLowerCase().replace(' ', '-'))
+            .put("name", name)
+            .put("isAmount", isAmount)
+            .put("amount", amount)
+            .put("isPaidDaily", isPaidDaily);
+    }
+
+    /**
+     * Creates the amenities of a listing.
+     * @return the amenities.
+     */
+    public static JsonArray amenities() {
+        return new JsonArray()
+            .add(premium("Airport transfer", true, 2500, false))
+            .add(premium("Breakfast", true, 800, true))
+            .add(premium("Parking", true, 300, true))
+            .add(premium("Laundry", true, 500, false))
+            .add(premium("Cleaning", false, 5, false));
+    }
+
+    /**
+     * Creates the statutory premiums of a listing.
+     * @return the statutory premiums.
+     */
+    public static JsonArray statutoryPremiums() {
+        return new JsonArray()
+            .add(premium("VAT", false, 16, false))
+            .add(premium("Tourism levy", false, 2, false))
+            .add(premium("Catering levy", false, 2, false));
+    }
+
+    /**
+     * Creates the loadings of a listing.
+     * @return the loadings.
+     */
+    public static JsonArray loadings() {
+        return new JsonArray()
+            .add(premium("Peak season", false, 15, true))
+            .add(premium("Service charge", true, 1000, false));
+    }
+
+    /**
+     * Creates the discounts of a listing.
+     * @return the discounts.
+     */
+    public static JsonArray discounts() {
+        return new JsonArray()
+            .add(premium("Weekly stay", false, 10, false)
+                .put("isWeekendOnly", false).put("days", 7))
+            .add(premium("Long weekend", false, 5, false)
+                .put("isWeekendOnly", true).put("days", 3))
+            .add(premium("Monthly stay", false, 25, false)
+                .put("isWeekendOnly", false).put("days", 28))
+            .add(premium("Returning guest", true, 1500, false)
+                .put("isWeekendOnly", false));
+    }
+
+    /**
+     * Creates a listing.
+     * @param i The listing number.
+     * @return the listing.
+     */
+    public static JsonObject listing(final int i) {
+        JsonArray images = new JsonArray();
+        for (int j = 0; j < 6; j++) {
+            images.add("https://cdn.mouv.africa/listings/" + i + "/" + j
+                + ".jpg");
+        }
+
+        return new JsonObject()
+            .put("_id", String.format("lst-%08d", i))
+            .put("name", "Ocean view apartment " + i)
+            .put("description", DESCRIPTION)
+            .put("listingType", "lt-apartment")
+            .put("organisationId", "org-" + (i % 50))
+            .put("status", "active")
+            .put("longitude", 39.6682 + i * 0.0001)
+            .put("latitude", -4.0435 - i * 0.0001)
+            .put("location", new JsonObject()
+                .put("type", "Point")
+                .put("coordinates", new JsonArray()
+                    .add(39.6682 + i * 0.0001).add(-4.0435 - i * 0.0001)))
+            .put("images", images)
+            .put("amenities", amenities())
+            .put("discounts", discounts())
+            .put("premium", new JsonObject()
+                .put("basicPremium", 8500.0)
+                .put("statutoryPremiums", statutoryPremiums())
+                .put("loadings", loadings()))
+            .put("views", 1200 + i)
+            .put("createdAt", "2025-03-14T09:26:53Z");
+    }
+
+    /**
+     * Creates a page of listings.
+     * @return the listings.
+     */
+    public static JsonArray listings() {
+        JsonArray listings = new JsonArray();
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            listings.add(listing(i));
+        }
+        return listings;
+    }
+
+    /**
+     * Creates a booking of a week long stay.
+     * @return the booking.
+     */
+    public static JsonObject booking() {
+        return new JsonObject()
+            .put("_id", "bkg-00000042")
+            .put("listingId", "lst-00000007")
+            .put("organisationId", "org-7")
+            .put("clientId", "usr-00001234")
+            .put("feduid", "fed-00001234")
+            .put("status", "PENDING")
+            .put("startDate", "2025-04-18")
+            .put("endDate", "2025-04-25")
+            .put("numberOfDays", 7)
+            .put("guests", 3)
+            .put("amenities", new JsonArray()
+                .add(amenities().getJsonObject(0))
+                .add(amenities().getJsonObject(1)));
+    }
+
+    /**
+     * Creates the body of a booking request.
+     * @return the body.
+     */
+    public static JsonObject bookingBody() {
+        JsonObject booking = booking();
+        return new JsonObject()
+            .put("listingId", booking.getString("listingId"))
+            .put("startDate", booking.getString("startDate"))
+            .put("endDate", booking.getString("endDate"))
+            .put("numberOfDays", booking.getInteger("numberOfDays"))
+            .put("amenities", booking.getJsonArray("amenities"));
+    }
+
+    /**
+     * Creates a user.
+     * @return the user.
+     */
+    public static JsonObject user() {
+        return new JsonObject()
+            .put("_id", "usr-00001234")
+            .put("feduid", "fed-00001234")
+            .put("username", "wanjiku")
+            .put("email", "wanjiku@example.com")
+            .put("roles", new JsonArray().add("client"));
+    }
+
+    /**
+     * Creates a list listings request body.
+     * @return the body.
+     */
+    public static JsonObject listListingsBody() {
+        return new JsonObject()
+            .put("status", "active")
+            .put("listingType", "lt-apartment")
+            .put("organisationId", "org-7");
+    }
+}
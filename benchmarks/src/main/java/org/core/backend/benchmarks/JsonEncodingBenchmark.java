@@ -0,0 +1,95 @@
+package org.core.backend.benchmarks;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the encoding and decoding of the listing and booking
+ * responses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonEncodingBenchmark {
+
+    /**
+     * A page of listings.
+     */
+    private JsonObject listings;
+
+    /**
+     * A booking with its listing.
+     */
+    private JsonObject booking;
+
+    /**
+     * The encoded page of listings.
+     */
+    private String encodedListings;
+
+    /**
+     * Creates the payloads.
+     */
+    @Setup
+    public void setUp() {
+        this.listings = new JsonObject()
+            .put("results", Fixtures.listings())
+            .put("limit", Fixtures.PAGE_SIZE)
+            .put("nextPageToken", "eyJzIjpbIl9pZCJdLCJ2IjpbImxzdCJdfQ");
+        this.booking = Fixtures.booking()
+            .put("listing", Fixtures.listing(7))
+            .put("client", Fixtures.user());
+        this.encodedListings = this.listings.encode();
+    }
+
+    /**
+     * Encodes a page of listings.
+     * @return the json.
+     */
+    @Benchmark
+    public String encodeListings() {
+        return this.listings.encode();
+    }
+
+    /**
+     * Encodes a page of listings to a buffer, as written to the response.
+     * @return the buffer.
+     */
+    @Benchmark
+    public Buffer encodeListingsToBuffer() {
+        return this.listings.toBuffer();
+    }
+
+    /**
+     * Encodes a booking.
+     * @return the json.
+     */
+    @Benchmark
+    public String encodeBooking() {
+        return this.booking.encode();
+    }
+
+    /**
+     * Decodes a page of listings.
+     * @return the listings.
+     */
+    @Benchmark
+    public JsonArray decodeListings() {
+        return new JsonObject(this.encodedListings).getJsonArray("results");
+    }
+}
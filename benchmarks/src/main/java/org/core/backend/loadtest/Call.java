@@ -0,0 +1,226 @@
+package org.core.backend.loadtest;
+
+import io.vertx.core.json.JsonObject;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.core.backend.views.BaseService;
+
+/**
+ * The calls the scenarios are made of.
+ * Each one builds its body from the listings of the DataPool.
+ */
+enum Call {
+
+    /**
+     * The anonymous browse, the first or a deeper page of the listings.
+     */
+    LIST_LISTINGS("listListings", "/listListings", "listListings",
+        Role.ANONYMOUS) {
+        @Override
+        JsonObject body(final DataPool pool) {
+            return new JsonObject()
+                .put("limit", PAGE_SIZE)
+                .put("pageToken", pool.pageToken());
+        }
+    },
+
+    /**
+     * A single listing. There is no getListing route in v2, the listing
+     * is read through /listListings by id, as the FE does.
+     */
+    GET_LISTING("getListing", "/listListings", "listListings",
+        Role.ANONYMOUS) {
+        @Override
+        JsonObject body(final DataPool pool) {
+            return new JsonObject()
+                .put("_id", pool.id())
+                .put("limit", 1)
+                .put("pageToken", "");
+        }
+    },
+
+    /**
+     * The listings near a point.
+     */
+    SEARCH_NEARBY("searchListingsNearby", "/searchListingsNearby",
+        "searchListingsNearby", Role.ANONYMOUS) {
+        @Override
+        JsonObject body(final DataPool pool) {
+            double[] point = pool.point();
+            return new JsonObject()
+                .put("longitude", point[0])
+                .put("latitude", point[1])
+                .put("radius", SEARCH_RADIUS)
+                .put("limit", PAGE_SIZE);
+        }
+    },
+
+    /**
+     * The effective prices of a page of listings.
+     */
+    EFFECTIVE_PRICES("getListingsEffectivePrices",
+        "/getListingsEffectivePrices", "getListingsEffectivePrices",
+        Role.ANONYMOUS) {
+        @Override
+        JsonObject body(final DataPool pool) {
+            return new JsonObject().put("listingIds", pool.ids(PAGE_SIZE));
+        }
+    },
+
+    /**
+     * The details of the signed in client.
+     */
+    USER_DETAILS("getuserdetails", "/getuserdetails", "getUserDetails",
+        Role.CLIENT) {
+        @Override
+        JsonObject body(final DataPool pool) {
+            return new JsonObject();
+        }
+    },
+
+    /**
+     * A booking of a few nights, a few months ahead so that most of
+     * them do not overlap.
+     */
+    MAKE_BOOKING("makeABooking", "/makeABooking", "makeABooking",
+        Role.CLIENT) {
+        @Override
+        JsonObject body(final DataPool pool) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int nights = random.nextInt(1, 8);
+            long start = System.currentTimeMillis()
+                + TimeUnit.DAYS.toMillis(random.nextInt(30, 365));
+            return new JsonObject()
+                .put("listingId", pool.id())
+                .put("startDate", start)
+                .put("endDate", start + TimeUnit.DAYS.toMillis(nights))
+                .put("numberOfDays", nights);
+        }
+    },
+
+    /**
+     * The admin list of the bookings.
+     */
+    LIST_BOOKINGS("listBookings", "/listBookings", "listBookings",
+        Role.ADMIN) {
+        @Override
+        JsonObject body(final DataPool pool) {
+            return new JsonObject()
+                .put("limit", PAGE_SIZE)
+                .put("pageToken", "");
+        }
+    },
+
+    /**
+     * The admin list of the organisations.
+     */
+    LIST_ORGANISATIONS("listorganisations", "/listorganisations",
+        "listOrganisations", Role.ADMIN) {
+        @Override
+        JsonObject body(final DataPool pool) {
+            return new JsonObject();
+        }
+    };
+
+    /**
+     * Who makes a call.
+     */
+    enum Role {
+        /**
+         * No token.
+         */
+        ANONYMOUS,
+        /**
+         * A client token.
+         */
+        CLIENT,
+        /**
+         * An admin token.
+         */
+        ADMIN
+    }
+
+    /**
+     * The page size.
+     */
+    private static final int PAGE_SIZE = 20;
+
+    /**
+     * The search radius in meters.
+     */
+    private static final double SEARCH_RADIUS = 5000;
+
+    /**
+     * The name the latencies are reported under.
+     */
+    private final String label;
+
+    /**
+     * The route.
+     */
+    private final String path;
+
+    /**
+     * The task, without the module.
+     */
+    private final String task;
+
+    /**
+     * Who makes the call.
+     */
+    private final Role role;
+
+    /**
+     * Creates a call.
+     * @param label The name the latencies are reported under.
+     * @param path The route.
+     * @param task The task, without the module.
+     * @param role Who makes the call.
+     */
+    Call(final String label, final String path, final String task,
+        final Role role) {
+        this.label = label;
+        this.path = path;
+        this.task = task;
+        this.role = role;
+    }
+
+    /**
+     * Builds the request body.
+     * @param pool The listings.
+     * @return the body.
+     */
+    abstract JsonObject body(DataPool pool);
+
+    /**
+     * Gets the name the latencies are reported under.
+     * @return the label.
+     */
+    String getLabel() {
+        return this.label;
+    }
+
+    /**
+     * Gets the route.
+     * @return the path.
+     */
+    String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Gets the task the rbac tasks grant.
+     * @return the task name.
+     */
+    String getTask() {
+        return BaseService.MODULE + this.task;
+    }
+
+    /**
+     * Gets who makes the call.
+     * @return the role.
+     */
+    Role getRole() {
+        return this.role;
+    }
+}
@@ -0,0 +1,256 @@
+package org.core.backend.loadtest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.BulkWriteOptions;
+import io.vertx.ext.mongo.MongoClient;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import org.core.backend.models.Collections;
+
+/**
+ * Seeds a database with a SyntheticData dataset.
+ * The documents are generated on a pool of threads and written with
+ * unordered bulk inserts, a batch per task. The same seed, sizes and
+ * epoch give the same dataset. Inserting into a seeded collection fails
+ * on the duplicate ids, pass --drop to start over.
+ *
+ * Options, as for the LoadTest: mongo-url and db, seed, epoch, the
+ * sizes organisations, users, listings, bookings, reviews and favourites,
+ * tenant-skew and listing-skew, the zipf exponents, batch, threads and
+ * drop. The load test users are added and granted the tasks of the
+ * scenarios in the rbac tasks.
+ */
+public final class DataGenerator {
+
+    /**
+     * The default options.
+     */
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put("mongo-url", "mongodb://localhost:27017");
+        DEFAULTS.put("db", "mouv");
+        DEFAULTS.put("seed", "42");
+        DEFAULTS.put("organisations", "1000");
+        DEFAULTS.put("users", "100000");
+        DEFAULTS.put("listings", "1000000");
+        DEFAULTS.put("bookings", "2000000");
+        DEFAULTS.put("reviews", "500000");
+        DEFAULTS.put("favourites", "1000000");
+        DEFAULTS.put("tenant-skew", "1.2");
+        DEFAULTS.put("listing-skew", "1.0");
+        DEFAULTS.put("batch", "1000");
+        DEFAULTS.put("threads",
+            String.valueOf(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * The share of the documents between two progress lines.
+     */
+    private static final int PROGRESS_STEPS = 10;
+
+    /**
+     * The options.
+     */
+    private final Options options;
+
+    /**
+     * The client.
+     */
+    private final MongoClient client;
+
+    /**
+     * Creates the generator.
+     * @param options The options.
+     * @param client The client.
+     */
+    private DataGenerator(final Options options, final MongoClient client) {
+        this.options = options;
+        this.client = client;
+    }
+
+    /**
+     * Seeds the database.
+     * @param args The options.
+     * @throws Exception if a write fails.
+     */
+    public static void main(final String[] args) throws Exception {
+        Options options = Options.parse(args, DEFAULTS);
+        Vertx vertx = Vertx.vertx();
+        MongoClient client = MongoClient.create(vertx, new JsonObject()
+            .put("connection_string", options.get("mongo-url"))
+            .put("db_name", options.get("db"))
+            .put("maxPoolSize", options.getInt("threads") * 2));
+        try {
+            new DataGenerator(options, client).run();
+        } finally {
+            client.close();
+            vertx.close();
+        }
+    }
+
+    /**
+     * Writes the dataset.
+     * @throws Exception if a write fails.
+     */
+    private void run() throws Exception {
+        LocalDate epoch = this.options.has("epoch")
+            ? LocalDate.parse(this.options.get("epoch"))
+            : LocalDate.now(ZoneOffset.UTC);
+        final SyntheticData data = new SyntheticData(
+            this.options.getLong("seed"),
+            this.options.getInt("organisations"),
+            this.options.getInt("users"),
+            this.options.getInt("listings"),
+            this.options.getDouble("tenant-skew"),
+            this.options.getDouble("listing-skew"),
+            epoch.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli());
+        System.out.println("Seeding " + this.options.get("db") + " with seed "
+            + this.options.get("seed") + " as of " + epoch);
+
+        this.upsert(Collections.LISTING_TYPES.toString(),
+            SyntheticData.listingTypes());
+        this.upsert(Collections.AMENITIES.toString(),
+            SyntheticData.amenities());
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+            this.options.getInt("threads"));
+        try {
+            this.insert(pool, Collections.ORGANISATION.toString(),
+                "organisations", i -> data.organisation((int) i));
+            this.insert(pool, Collections.USERS.toString(), "users",
+                i -> data.user((int) i));
+            this.insert(pool, Collections.LISTINGS.toString(), "listings",
+                i -> data.listing((int) i));
+            this.insert(pool, Collections.BOOKINGS.toString(), "bookings",
+                data::booking);
+            this.insert(pool, Collections.REVIEWS.toString(), "reviews",
+                data::review);
+            this.insert(pool, Collections.FAVOURITES.toString(),
+                "favourites", data::favourite);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        this.upsert(Collections.USERS.toString(), new JsonArray()
+            .add(LocalServer.user(LocalServer.CLIENT_ID, "client"))
+            .add(LocalServer.user(LocalServer.ADMIN_ID, "admin")));
+        this.grantScenarioTasks();
+        System.out.println("Done");
+    }
+
+    /**
+     * Inserts the documents of a collection, a batch per task.
+     * @param pool The pool generating the batches.
+     * @param collection The collection.
+     * @param size The option holding the number of documents.
+     * @param factory Creates a document from its index.
+     * @throws Exception if a write fails.
+     */
+    private void insert(final ExecutorService pool, final String collection,
+        final String size, final LongFunction<JsonObject> factory)
+        throws Exception {
+        if (this.options.getBoolean("drop")) {
+            LoadTest.await(this.client.dropCollection(collection)
+                .recover(e -> Future.succeededFuture()));
+        }
+
+        final long count = this.options.getLong(size);
+        final int batch = this.options.getInt("batch");
+        final long started = System.nanoTime();
+        final AtomicLong written = new AtomicLong();
+        final long step = Math.max(batch, count / PROGRESS_STEPS);
+        List<java.util.concurrent.Future<?>> tasks = new ArrayList<>();
+        for (long from = 0; from < count; from += batch) {
+            final long start = from;
+            final long end = Math.min(count, from + batch);
+            tasks.add(pool.submit(() -> {
+                List<BulkOperation> operations = new ArrayList<>();
+                for (long i = start; i < end; i++) {
+                    operations.add(BulkOperation.createInsert(
+                        factory.apply(i)));
+                }
+                LoadTest.await(this.client.bulkWriteWithOptions(collection,
+                    operations, new BulkWriteOptions(false)));
+                long total = written.addAndGet(end - start);
+                if (total / step != (total - (end - start)) / step) {
+                    System.out.println(String.format("%s %d/%d",
+                        collection, total, count));
+                }
+                return null;
+            }));
+        }
+        for (java.util.concurrent.Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (final ExecutionException e) {
+                throw new IllegalStateException("Failed to seed "
+                    + collection + ", is it seeded already? Pass --drop "
+                    + "to start over", e.getCause());
+            }
+        }
+
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.println(String.format("%s: %d in %.1fs, %.0f/s",
+            collection, count, seconds, count / Math.max(seconds, 1e-9)));
+    }
+
+    /**
+     * Writes documents over the ones with the same ids.
+     * @param collection The collection.
+     * @param documents The documents.
+     * @throws Exception if the write fails.
+     */
+    private void upsert(final String collection, final JsonArray documents)
+        throws Exception {
+        List<BulkOperation> operations = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            JsonObject document = documents.getJsonObject(i);
+            operations.add(BulkOperation.createReplace(
+                new JsonObject().put("_id", document.getValue("_id")),
+                document, true));
+        }
+        LoadTest.await(this.client.bulkWriteWithOptions(collection, operations,
+            new BulkWriteOptions(false)));
+    }
+
+    /**
+     * Grants the roles of the load test users the tasks of the
+     * scenarios, in the global rbac tasks the RbacMatrix compiles.
+     * @throws Exception if the write fails.
+     */
+    private void grantScenarioTasks() throws Exception {
+        List<BulkOperation> operations = new ArrayList<>();
+        for (Call call : Call.values()) {
+            if (call.getRole() == Call.Role.ANONYMOUS) {
+                continue;
+            }
+            String role = call.getRole() == Call.Role.CLIENT
+                ? "client" : "admin";
+            operations.add(BulkOperation.createUpdate(
+                new JsonObject()
+                    .put("task", call.getTask())
+                    .put("organisationId", new JsonObject()
+                        .put("$exists", false)),
+                new JsonObject().put("$addToSet", new JsonObject()
+                    .put("roles", new JsonObject().put(role, true))),
+                true, false));
+        }
+        LoadTest.await(this.client.bulkWriteWithOptions(
+            org.utils.backend.models.Collections.RBAC_TASKS.toString(),
+            operations, new BulkWriteOptions(false)));
+    }
+}
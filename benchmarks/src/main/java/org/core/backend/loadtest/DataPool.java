@@ -0,0 +1,209 @@
+package org.core.backend.loadtest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The listings the scenarios pick from.
+ * Read once before the run by paging through /listListings, so the ids,
+ * coordinates and page tokens are those of the seeded data.
+ */
+final class DataPool {
+
+    /**
+     * The page size used to read the listings.
+     */
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * Where the search falls back to when no listing has coordinates,
+     * Mombasa.
+     */
+    private static final double[] DEFAULT_POINT = {39.6682, -4.0435};
+
+    /**
+     * The listing ids.
+     */
+    private final List<String> ids = new ArrayList<>();
+
+    /**
+     * The listing coordinates, longitude then latitude.
+     */
+    private final List<double[]> points = new ArrayList<>();
+
+    /**
+     * The next page tokens seen while reading.
+     */
+    private final List<String> pageTokens = new ArrayList<>();
+
+    /**
+     * Hidden constructor.
+     */
+    private DataPool() {
+    }
+
+    /**
+     * Reads the listings.
+     * @param client The client.
+     * @param pages The number of pages to read at most.
+     * @return the pool, failed if there are no listings.
+     */
+    static Future<DataPool> load(final WebClient client, final int pages) {
+        DataPool pool = new DataPool();
+        Promise<DataPool> promise = Promise.promise();
+        pool.read(client, null, pages, promise);
+        return promise.future();
+    }
+
+    /**
+     * Reads a page of listings, then the next one.
+     * @param client The client.
+     * @param pageToken The page token, null for the first page.
+     * @param pages The number of pages left.
+     * @param promise Completed once done.
+     */
+    private void read(final WebClient client, final String pageToken,
+        final int pages, final Promise<DataPool> promise) {
+        JsonObject body = new JsonObject()
+            .put("limit", PAGE_SIZE)
+            .put("pageToken", pageToken == null ? "" : pageToken);
+        client.post("/listListings").sendJsonObject(body)
+            .onFailure(promise::fail)
+            .onSuccess(res -> {
+                JsonObject page = res.statusCode() == 200
+                    ? find(res.bodyAsJsonObject(), "results") : null;
+                if (page != null) {
+                    this.add(page.getJsonArray("results"));
+                }
+
+                String next = page == null
+                    ? null : page.getString("nextPageToken");
+                if (next != null && pages > 1) {
+                    this.pageTokens.add(next);
+                    this.read(client, next, pages - 1, promise);
+                } else if (this.ids.isEmpty()) {
+                    promise.fail("No listings, seed the database first, "
+                        + "status " + res.statusCode() + " "
+                        + res.bodyAsString());
+                } else {
+                    promise.complete(this);
+                }
+            });
+    }
+
+    /**
+     * Adds a page of listings.
+     * @param listings The listings.
+     */
+    private void add(final JsonArray listings) {
+        for (int i = 0; i < listings.size(); i++) {
+            JsonObject listing = listings.getJsonObject(i);
+            Object id = listing.getValue("_id");
+            if (id instanceof JsonObject) {
+                id = ((JsonObject) id).getValue("$oid");
+            }
+            if (id != null) {
+                this.ids.add(id.toString());
+            }
+
+            JsonObject location = listing.getJsonObject("location");
+            JsonArray coordinates = location == null
+                ? null : location.getJsonArray("coordinates");
+            if (coordinates != null && coordinates.size() == 2) {
+                this.points.add(new double[] {
+                    coordinates.getDouble(0), coordinates.getDouble(1)});
+            }
+        }
+    }
+
+    /**
+     * Finds the object holding a field, the response envelope is not
+     * assumed.
+     * @param json The json.
+     * @param field The field.
+     * @return the object, null if not found.
+     */
+    private static JsonObject find(final Object json, final String field) {
+        if (json instanceof JsonObject) {
+            JsonObject object = (JsonObject) json;
+            if (object.getValue(field) instanceof JsonArray) {
+                return object;
+            }
+            for (String key : object.fieldNames()) {
+                JsonObject found = find(object.getValue(key), field);
+                if (found != null) {
+                    return found;
+                }
+            }
+        } else if (json instanceof JsonArray) {
+            for (Object value : (JsonArray) json) {
+                JsonObject found = find(value, field);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the number of listings.
+     * @return the size.
+     */
+    int size() {
+        return this.ids.size();
+    }
+
+    /**
+     * Picks a listing id.
+     * @return the id.
+     */
+    String id() {
+        return this.ids.get(
+            ThreadLocalRandom.current().nextInt(this.ids.size()));
+    }
+
+    /**
+     * Picks listing ids.
+     * @param count The number of ids.
+     * @return the ids, possibly repeated.
+     */
+    JsonArray ids(final int count) {
+        JsonArray result = new JsonArray();
+        for (int i = 0; i < count; i++) {
+            result.add(this.id());
+        }
+        return result;
+    }
+
+    /**
+     * Picks a point next to a listing.
+     * @return the longitude and latitude.
+     */
+    double[] point() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double[] point = this.points.isEmpty() ? DEFAULT_POINT
+            : this.points.get(random.nextInt(this.points.size()));
+        return new double[] {
+            point[0] + random.nextDouble(-0.01, 0.01),
+            point[1] + random.nextDouble(-0.01, 0.01)};
+    }
+
+    /**
+     * Picks a page token, a deeper page of the listings.
+     * @return the token, empty to read the first page.
+     */
+    String pageToken() {
+        if (this.pageTokens.isEmpty()) {
+            return "";
+        }
+        return this.pageTokens.get(ThreadLocalRandom.current()
+            .nextInt(this.pageTokens.size()));
+    }
+}
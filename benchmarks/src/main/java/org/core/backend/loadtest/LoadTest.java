@@ -0,0 +1,348 @@
+package org.core.backend.loadtest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.core.backend.ServerLauncher;
+
+/**
+ * Replays a scenario against the service at increasing arrival rates.
+ * Every step prints its response time percentiles and writes them to
+ * the output directory: the full distribution of each step as .hgrm, the
+ * raw histograms as .hlog and one csv row per step and call, the
+ * throughput against latency curve replicas are sized from. The sweep
+ * stops at the first rate the service can not keep up with.
+ *
+ * Options are passed as --name=value or read from LOADTEST_NAME:
+ * - url, the service, http://localhost:$PORT by default.
+ * - in-process, deploys the service in this process with stubbed token
+ *   verification, see LocalServer.
+ * - scenario, browse, search, book, admin or mixed.
+ * - rates, the arrival rates per second, comma separated.
+ * - duration and warmup, the seconds of each step and of the warmup.
+ * - arrivals, poisson or uniform.
+ * - client-token and admin-token, the tokens of a remote service.
+ * - connections, max-in-flight, timeout, pages and out.
+ */
+public final class LoadTest {
+
+    /**
+     * The default options.
+     */
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put("in-process", "false");
+        DEFAULTS.put("scenario", "mixed");
+        DEFAULTS.put("rates", "50,100,200,400,800");
+        DEFAULTS.put("duration", "60");
+        DEFAULTS.put("warmup", "15");
+        DEFAULTS.put("arrivals", "poisson");
+        DEFAULTS.put("connections", "256");
+        DEFAULTS.put("max-in-flight", "10000");
+        DEFAULTS.put("timeout", "30000");
+        DEFAULTS.put("pages", "10");
+        DEFAULTS.put("out", "target/loadtest");
+        DEFAULTS.put("max-error-rate", "0.01");
+    }
+
+    /**
+     * The share of the target rate a step has to achieve before the next
+     * one is run.
+     */
+    private static final double SATURATION = 0.9;
+
+    /**
+     * The microseconds in a millisecond, the unit of the reports.
+     */
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    /**
+     * The csv header.
+     */
+    private static final String CSV_HEADER = "scenario,call,rate,"
+        + "throughput,count,errors,dropped,p50_ms,p90_ms,p99_ms,p999_ms,"
+        + "max_ms,service_p99_ms";
+
+    /**
+     * The options.
+     */
+    private final Options options;
+
+    /**
+     * Creates the load test.
+     * @param options The options.
+     */
+    private LoadTest(final Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Runs the load test.
+     * @param args The options.
+     * @throws Exception if the service can not be reached or a report can
+     *     not be written.
+     */
+    public static void main(final String[] args) throws Exception {
+        new LoadTest(Options.parse(args, DEFAULTS)).run();
+        System.exit(0);
+    }
+
+    /**
+     * Runs the warmup and the steps.
+     * @throws Exception if the service can not be reached or a report can
+     *     not be written.
+     */
+    private void run() throws Exception {
+        boolean inProcess = this.options.getBoolean("in-process");
+        Scenario scenario = Scenario.valueOf(
+            this.get("scenario").toUpperCase(Locale.ROOT));
+        Vertx vertx = Vertx.vertx(inProcess
+            ? ServerLauncher.createVertxOptions() : new VertxOptions());
+        WebClient client = this.createClient(vertx);
+
+        Map<Call.Role, String> tokens = new EnumMap<>(Call.Role.class);
+        if (inProcess) {
+            tokens.put(Call.Role.CLIENT, "loadtest-" + UUID.randomUUID());
+            tokens.put(Call.Role.ADMIN, "loadtest-" + UUID.randomUUID());
+            LocalServer.stubTokens(vertx, tokens.get(Call.Role.CLIENT),
+                tokens.get(Call.Role.ADMIN));
+            await(LocalServer.start(vertx, client));
+        } else {
+            this.putToken(tokens, Call.Role.CLIENT, "client-token", scenario);
+            this.putToken(tokens, Call.Role.ADMIN, "admin-token", scenario);
+        }
+
+        DataPool pool = await(DataPool.load(client,
+            this.options.getInt("pages")));
+        System.out.println("Read " + pool.size() + " listings, running "
+            + scenario + " against " + this.url());
+
+        OpenModelRun run = new OpenModelRun(client, scenario, pool, tokens,
+            this.options.getInt("max-in-flight"),
+            this.options.getLong("timeout"),
+            !"uniform".equalsIgnoreCase(this.get("arrivals")));
+        String[] rates = this.get("rates").split(",");
+        run.run(Double.parseDouble(rates[0].trim()),
+            TimeUnit.SECONDS.toMillis(this.options.getLong("warmup")));
+
+        File out = new File(this.get("out"));
+        if (!out.isDirectory() && !out.mkdirs()) {
+            throw new FileNotFoundException(out.getPath());
+        }
+        String name = scenario.name().toLowerCase(Locale.ROOT);
+        double maxErrorRate = this.options.getDouble("max-error-rate");
+        long duration = TimeUnit.SECONDS.toMillis(
+            this.options.getLong("duration"));
+        try (PrintStream csv = open(new File(out, name + "-curve.csv"))) {
+            csv.println(CSV_HEADER);
+            System.out.println(String.format(Locale.ROOT,
+                "%8s %10s %9s %9s %9s %9s %9s %8s %8s", "rate", "tput",
+                "p50", "p90", "p99", "p99.9", "max", "errors", "dropped"));
+            for (String value : rates) {
+                StepResult step = run.run(Double.parseDouble(value.trim()),
+                    duration);
+                this.report(name, step, out, csv);
+                if (step.getErrorRate() > maxErrorRate
+                    || step.getThroughput() < step.getRate() * SATURATION) {
+                    System.out.println("Saturated at " + value.trim()
+                        + "/s, stopping");
+                    break;
+                }
+            }
+        }
+        vertx.close();
+    }
+
+    /**
+     * Creates the client of the service.
+     * @param vertx The vertx instance.
+     * @return the client.
+     */
+    private WebClient createClient(final Vertx vertx) {
+        URI url = URI.create(this.url());
+        boolean ssl = "https".equalsIgnoreCase(url.getScheme());
+        int port = url.getPort() > 0 ? url.getPort() : ssl ? 443 : 80;
+        return WebClient.create(vertx, new WebClientOptions()
+            .setDefaultHost(url.getHost())
+            .setDefaultPort(port)
+            .setSsl(ssl)
+            .setKeepAlive(true)
+            .setMaxPoolSize(this.options.getInt("connections"))
+            .setMaxWaitQueueSize(-1)
+            .setUserAgent("loadtest"));
+    }
+
+    /**
+     * Adds the token of a role a remote scenario needs.
+     * @param tokens The tokens by role.
+     * @param role The role.
+     * @param option The option holding the token.
+     * @param scenario The scenario.
+     */
+    private void putToken(final Map<Call.Role, String> tokens,
+        final Call.Role role, final String option, final Scenario scenario) {
+        String token = this.options.get(option);
+        if (token != null) {
+            tokens.put(role, token);
+        } else if (scenario.uses(role)) {
+            throw new IllegalArgumentException(scenario + " needs --"
+                + option + " unless run --in-process");
+        }
+    }
+
+    /**
+     * Prints a step and writes its reports.
+     * @param name The scenario name.
+     * @param step The step.
+     * @param out The output directory.
+     * @param csv The curve.
+     * @throws FileNotFoundException if a report can not be written.
+     */
+    private void report(final String name, final StepResult step,
+        final File out, final PrintStream csv)
+        throws FileNotFoundException {
+        Histogram total = step.getResponseTimes();
+        System.out.println(String.format(Locale.ROOT,
+            "%8.0f %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %8d %8d",
+            step.getRate(), step.getThroughput(), millis(total, 50),
+            millis(total, 90), millis(total, 99), millis(total, 99.9),
+            total.getMaxValue() / MICROS_PER_MILLI, step.getErrors(),
+            step.getDropped()));
+
+        csv.println(row(name, "all", step, total, step.getServiceTimes()));
+        for (Map.Entry<String, Histogram> call : step.getCalls().entrySet()) {
+            csv.println(row(name, call.getKey(), step, call.getValue(),
+                null));
+        }
+        csv.flush();
+
+        String file = String.format(Locale.ROOT, "%s-%.0f", name,
+            step.getRate());
+        try (PrintStream hgrm = open(new File(out, file + ".hgrm"))) {
+            total.outputPercentileDistribution(hgrm, MICROS_PER_MILLI);
+        }
+        try (PrintStream hlog = open(new File(out, file + ".hlog"))) {
+            HistogramLogWriter writer = new HistogramLogWriter(hlog);
+            writer.outputComment("Response times in microseconds");
+            writer.outputLogFormatVersion();
+            writer.outputLegend();
+            total.setTag("all");
+            writer.outputIntervalHistogram(total);
+            step.getServiceTimes().setTag("service");
+            writer.outputIntervalHistogram(step.getServiceTimes());
+            for (Map.Entry<String, Histogram> call
+                : step.getCalls().entrySet()) {
+                call.getValue().setTag(call.getKey());
+                writer.outputIntervalHistogram(call.getValue());
+            }
+        }
+    }
+
+    /**
+     * Formats a csv row.
+     * @param name The scenario name.
+     * @param call The call label.
+     * @param step The step.
+     * @param histogram The response times.
+     * @param service The service times, null if not known.
+     * @return the row.
+     */
+    private static String row(final String name, final String call,
+        final StepResult step, final Histogram histogram,
+        final Histogram service) {
+        return String.format(Locale.ROOT,
+            "%s,%s,%.0f,%.1f,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%s", name,
+            call, step.getRate(),
+            histogram.getTotalCount() * step.getThroughput()
+                / Math.max(1, step.getResponseTimes().getTotalCount()),
+            histogram.getTotalCount(),
+            "all".equals(call) ? step.getErrors() : 0,
+            "all".equals(call) ? step.getDropped() : 0,
+            millis(histogram, 50), millis(histogram, 90),
+            millis(histogram, 99), millis(histogram, 99.9),
+            histogram.getMaxValue() / MICROS_PER_MILLI,
+            service == null ? ""
+                : String.format(Locale.ROOT, "%.3f", millis(service, 99)));
+    }
+
+    /**
+     * Gets a percentile in milliseconds.
+     * @param histogram The histogram in microseconds.
+     * @param percentile The percentile.
+     * @return the value.
+     */
+    private static double millis(final Histogram histogram,
+        final double percentile) {
+        return histogram.getValueAtPercentile(percentile) / MICROS_PER_MILLI;
+    }
+
+    /**
+     * Opens a report.
+     * @param file The file.
+     * @return the stream.
+     * @throws FileNotFoundException if it can not be written.
+     */
+    private static PrintStream open(final File file)
+        throws FileNotFoundException {
+        try {
+            return new PrintStream(new FileOutputStream(file), false,
+                StandardCharsets.UTF_8.name());
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets an option.
+     * @param name The option name.
+     * @return the value.
+     */
+    private String get(final String name) {
+        return this.options.get(name);
+    }
+
+    /**
+     * Gets the url of the service, the local PORT unless set.
+     * @return the url.
+     */
+    private String url() {
+        String port = System.getenv("PORT");
+        return this.options.get("url",
+            "http://localhost:" + (port == null ? "8080" : port));
+    }
+
+    /**
+     * Waits for a future.
+     * @param future The future.
+     * @param <T> The result type.
+     * @return the result.
+     * @throws Exception the failure of the future.
+     */
+    static <T> T await(final Future<T> future) throws Exception {
+        try {
+            return future.toCompletionStage().toCompletableFuture().get();
+        } catch (final ExecutionException e) {
+            throw e.getCause() instanceof Exception
+                ? (Exception) e.getCause() : e;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.core.backend.loadtest;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import org.core.backend.ServerLauncher;
+import org.core.backend.utils.TaskRegistry;
+import org.core.backend.utils.TokenCache;
+import org.core.backend.views.MainService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the service in the load test process.
+ * The service is configured from the usual env vars, PORT, the mongo
+ * settings etc. Token verification is stubbed by seeding the TokenCache
+ * with the load test users for every task, a seeded token never reaches
+ * the auth service. The RbacMatrix still applies, the roles of the users
+ * have to be granted the tasks the scenario calls.
+ */
+final class LocalServer {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        LocalServer.class.getName());
+
+    /**
+     * The id of the load test client.
+     */
+    static final String CLIENT_ID = "loadtest-client";
+
+    /**
+     * The id of the load test admin.
+     */
+    static final String ADMIN_ID = "loadtest-admin";
+
+    /**
+     * How often the tokens are seeded again, well within the default
+     * TOKEN_CACHE_TTL.
+     */
+    private static final long RESEED_INTERVAL = 5000;
+
+    /**
+     * How often the startup probe is polled.
+     */
+    private static final long STARTUP_POLL_INTERVAL = 500;
+
+    /**
+     * How long the service gets to start.
+     */
+    private static final long STARTUP_TIMEOUT = 120000;
+
+    /**
+     * Hidden constructor.
+     */
+    private LocalServer() {
+    }
+
+    /**
+     * Creates a load test user.
+     * @param id The user id.
+     * @param role The role.
+     * @return the user.
+     */
+    static JsonObject user(final String id, final String role) {
+        return new JsonObject()
+            .put("_id", id)
+            .put("feduid", id)
+            .put("username", id)
+            .put("email", id + "@loadtest.local")
+            .put("firstName", "Load")
+            .put("lastName", "Test")
+            .put("roles", new JsonArray().add(role));
+    }
+
+    /**
+     * Deploys the service, as the ServerLauncher does, and waits for the
+     * startup probe.
+     * @param vertx The vertx instance.
+     * @param client The client of the service.
+     * @return completed once the service is started.
+     */
+    static Future<Void> start(final Vertx vertx, final WebClient client) {
+        DeploymentOptions options = new DeploymentOptions()
+            .setInstances(ServerLauncher.getInstances());
+        return vertx.deployVerticle(MainService.class.getName(), options)
+            .compose(id -> {
+                new ServerLauncher().afterStartingVertx(vertx);
+                LOGGER.info("Deployed " + options.getInstances()
+                    + " service instances, waiting for /startup");
+                Promise<Void> started = Promise.promise();
+                awaitStartup(vertx, client,
+                    System.currentTimeMillis() + STARTUP_TIMEOUT, started);
+                return started.future();
+            });
+    }
+
+    /**
+     * Polls the startup probe until it passes.
+     * @param vertx The vertx instance.
+     * @param client The client of the service.
+     * @param deadline When to give up.
+     * @param started Completed once the probe passes.
+     */
+    private static void awaitStartup(final Vertx vertx,
+        final WebClient client, final long deadline,
+        final Promise<Void> started) {
+        client.get("/startup").send().onComplete(ar -> {
+            if (ar.succeeded() && ar.result().statusCode() == 200) {
+                started.complete();
+            } else if (System.currentTimeMillis() > deadline) {
+                started.fail("The service did not start in "
+                    + STARTUP_TIMEOUT + "ms");
+            } else {
+                vertx.setTimer(STARTUP_POLL_INTERVAL,
+                    t -> awaitStartup(vertx, client, deadline, started));
+            }
+        });
+    }
+
+    /**
+     * Seeds the tokens of the load test users, and keeps seeding them.
+     * @param vertx The vertx instance.
+     * @param clientToken The client token.
+     * @param adminToken The admin token.
+     */
+    static void stubTokens(final Vertx vertx, final String clientToken,
+        final String adminToken) {
+        if (!TokenCache.getInstance().isEnabled()) {
+            throw new IllegalStateException("Token verification can not be "
+                + "stubbed with " + TokenCache.TTL_ENV + "=0");
+        }
+
+        final JsonObject client = user(CLIENT_ID, "client");
+        final JsonObject admin = user(ADMIN_ID, "admin");
+        final JsonArray tasks = TaskRegistry.of(MainService.class)
+            .getNames();
+        seed(tasks, clientToken, client, adminToken, admin);
+        vertx.setPeriodic(RESEED_INTERVAL,
+            id -> seed(tasks, clientToken, client, adminToken, admin));
+    }
+
+    /**
+     * Seeds the tokens for every task.
+     * @param tasks The task names.
+     * @param clientToken The client token.
+     * @param client The client.
+     * @param adminToken The admin token.
+     * @param admin The admin.
+     */
+    private static void seed(final JsonArray tasks, final String clientToken,
+        final JsonObject client, final String adminToken,
+        final JsonObject admin) {
+        TokenCache cache = TokenCache.getInstance();
+        for (int i = 0; i < tasks.size(); i++) {
+            String task = tasks.getString(i);
+            cache.putUser(TokenCache.key(clientToken, task), clientToken,
+                client);
+            cache.putUser(TokenCache.key(adminToken, task), adminToken,
+                admin);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.core.backend.loadtest;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.core.backend.utils.CachedAuthUtils;
+
+/**
+ * Sends the calls of a scenario at a fixed arrival rate.
+ * The arrivals are scheduled up front, an open model, so a slow service
+ * gets more calls in flight rather than fewer calls. A call that could
+ * not be sent on time is sent as soon as possible and its response time
+ * still counts from when it was due, which is what corrects for the
+ * coordinated omission of a closed loop. An arrival dropped as too many
+ * calls are in flight counts as a failed call that took the whole call
+ * timeout. Every response is recorded in the step that sent its call, a
+ * call still unanswered when its step is reported counts as failed too.
+ */
+final class OpenModelRun {
+
+    /**
+     * The significant digits of the histograms.
+     */
+    private static final int DIGITS = 3;
+
+    /**
+     * The nanoseconds in a microsecond.
+     */
+    private static final long NANOS_PER_MICRO = 1000;
+
+    /**
+     * The milliseconds in a second.
+     */
+    private static final double MILLIS_PER_SECOND = 1000;
+
+    /**
+     * The fields the service puts its error code in, the http status is
+     * 200 for handled errors.
+     */
+    private static final String[] CODE_FIELDS = {"code", "status",
+        "statusCode"};
+
+    /**
+     * The lowest error code.
+     */
+    private static final int ERROR_CODE = 400;
+
+    /**
+     * The client.
+     */
+    private final WebClient client;
+
+    /**
+     * The scenario.
+     */
+    private final Scenario scenario;
+
+    /**
+     * The listings.
+     */
+    private final DataPool pool;
+
+    /**
+     * The tokens by role.
+     */
+    private final Map<Call.Role, String> tokens;
+
+    /**
+     * The most calls in flight, further arrivals are dropped.
+     */
+    private final int maxInFlight;
+
+    /**
+     * The call timeout in milliseconds.
+     */
+    private final long timeout;
+
+    /**
+     * Whether the arrivals are a poisson process, else evenly spaced.
+     */
+    private final boolean poisson;
+
+    /**
+     * The calls in flight, of every step.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * The latencies of one step.
+     */
+    private static final class Step {
+
+        /**
+         * The calls of the step in flight.
+         */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        /**
+         * The response times of all the calls.
+         */
+        private final Recorder responseTimes = new Recorder(DIGITS);
+
+        /**
+         * The service times of all the calls.
+         */
+        private final Recorder serviceTimes = new Recorder(DIGITS);
+
+        /**
+         * The response times by call.
+         */
+        private final Map<String, Recorder> calls =
+            new ConcurrentHashMap<>();
+
+        /**
+         * The failed calls, the dropped ones included.
+         */
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * The dropped calls.
+         */
+        private final LongAdder dropped = new LongAdder();
+
+        /**
+         * Records the response time of a call.
+         * @param call The call.
+         * @param micros The response time in microseconds.
+         */
+        private void record(final Call call, final long micros) {
+            this.responseTimes.recordValue(micros);
+            this.calls.computeIfAbsent(call.getLabel(),
+                l -> new Recorder(DIGITS)).recordValue(micros);
+        }
+    }
+
+    /**
+     * Creates the run.
+     * @param client The client.
+     * @param scenario The scenario.
+     * @param pool The listings.
+     * @param tokens The tokens by role.
+     * @param maxInFlight The most calls in flight.
+     * @param timeout The call timeout in milliseconds.
+     * @param poisson Whether the arrivals are a poisson process.
+     */
+    OpenModelRun(final WebClient client, final Scenario scenario,
+        final DataPool pool, final Map<Call.Role, String> tokens,
+        final int maxInFlight, final long timeout, final boolean poisson) {
+        this.client = client;
+        this.scenario = scenario;
+        this.pool = pool;
+        this.tokens = new EnumMap<>(tokens);
+        this.maxInFlight = maxInFlight;
+        this.timeout = timeout;
+        this.poisson = poisson;
+    }
+
+    /**
+     * Sends the calls at a rate, then waits for the calls in flight.
+     * @param rate The arrival rate per second.
+     * @param duration The length of the step in milliseconds.
+     * @return the latencies.
+     */
+    StepResult run(final double rate, final long duration) {
+        Step step = new Step();
+        double interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+        long due = start;
+        while (due < end) {
+            long now = System.nanoTime();
+            if (now < due) {
+                LockSupport.parkNanos(due - now);
+                continue;
+            }
+
+            this.send(step, due);
+            due += this.poisson
+                ? (long) (-Math.log(1 - ThreadLocalRandom.current()
+                    .nextDouble()) * interval)
+                : (long) interval;
+        }
+
+        long drained = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(this.timeout * 2);
+        while (step.inFlight.get() > 0 && System.nanoTime() < drained) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        step.errors.add(step.inFlight.get());
+
+        Map<String, Histogram> byCall = new HashMap<>();
+        step.calls.forEach((label, recorder) ->
+            byCall.put(label, recorder.getIntervalHistogram()));
+        return new StepResult(rate, duration / MILLIS_PER_SECOND,
+            step.errors.sum(), step.dropped.sum(),
+            step.responseTimes.getIntervalHistogram(),
+            step.serviceTimes.getIntervalHistogram(), byCall);
+    }
+
+    /**
+     * Sends the next call of the scenario.
+     * @param step The step sending the call.
+     * @param due When the call was due, in nanoseconds.
+     */
+    private void send(final Step step, final long due) {
+        final Call call = this.scenario.next();
+        if (this.inFlight.incrementAndGet() > this.maxInFlight) {
+            this.inFlight.decrementAndGet();
+            step.dropped.increment();
+            step.errors.increment();
+            step.record(call, TimeUnit.MILLISECONDS.toMicros(this.timeout));
+            return;
+        }
+
+        step.inFlight.incrementAndGet();
+        HttpRequest<Buffer> request = this.client.post(call.getPath())
+            .timeout(this.timeout);
+        String token = this.tokens.get(call.getRole());
+        if (token != null) {
+            request.putHeader(CachedAuthUtils.AUTH_HEADER, token);
+        }
+
+        final long sent = System.nanoTime();
+        request.sendJsonObject(call.body(this.pool))
+            .onComplete(ar -> this.record(step, call, due, sent, ar));
+    }
+
+    /**
+     * Records a completed call.
+     * @param step The step that sent the call.
+     * @param call The call.
+     * @param due When the call was due, in nanoseconds.
+     * @param sent When the call was sent, in nanoseconds.
+     * @param ar The response.
+     */
+    private void record(final Step step, final Call call, final long due,
+        final long sent, final AsyncResult<HttpResponse<Buffer>> ar) {
+        long done = System.nanoTime();
+        this.inFlight.decrementAndGet();
+        step.record(call, (done - due) / NANOS_PER_MICRO);
+        step.serviceTimes.recordValue((done - sent) / NANOS_PER_MICRO);
+        if (ar.failed() || isError(ar.result())) {
+            step.errors.increment();
+        }
+        step.inFlight.decrementAndGet();
+    }
+
+    /**
+     * Checks if a response is an error, either by its http status or by
+     * the error code in the body.
+     * @param response The response.
+     * @return true if it is.
+     */
+    private static boolean isError(final HttpResponse<Buffer> response) {
+        if (response.statusCode() >= ERROR_CODE) {
+            return true;
+        }
+
+        JsonObject body;
+        try {
+            Buffer buffer = response.body();
+            if (buffer == null || buffer.length() == 0
+                || buffer.getByte(0) != '{') {
+                return false;
+            }
+            body = buffer.toJsonObject();
+        } catch (final DecodeException e) {
+            return false;
+        }
+
+        for (String field : CODE_FIELDS) {
+            Object code = body.getValue(field);
+            if (code instanceof String) {
+                try {
+                    code = Integer.parseInt((String) code);
+                } catch (final NumberFormatException e) {
+                    continue;
+                }
+            }
+            if (code instanceof Number
+                && ((Number) code).intValue() >= ERROR_CODE) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,137 @@
+package org.core.backend.loadtest;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The options of the load test tools.
+ * Passed as --name=value, or read from LOADTEST_NAME, else defaulted.
+ */
+final class Options {
+
+    /**
+     * The prefix of the env vars.
+     */
+    private static final String ENV_PREFIX = "LOADTEST_";
+
+    /**
+     * The options.
+     */
+    private final Map<String, String> values;
+
+    /**
+     * Creates the options.
+     * @param values The options.
+     */
+    private Options(final Map<String, String> values) {
+        this.values = values;
+    }
+
+    /**
+     * Parses the options, falling back to the env vars and the defaults.
+     * @param args The command line arguments.
+     * @param defaults The defaults.
+     * @return the options.
+     */
+    static Options parse(final String[] args,
+        final Map<String, String> defaults) {
+        Map<String, String> result = new HashMap<>(defaults);
+        for (Map.Entry<String, String> env : System.getenv().entrySet()) {
+            if (env.getKey().startsWith(ENV_PREFIX)) {
+                result.put(env.getKey().substring(ENV_PREFIX.length())
+                    .toLowerCase(Locale.ROOT).replace('_', '-'),
+                    env.getValue());
+            }
+        }
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected " + arg);
+            }
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                result.put(arg.substring(2), "true");
+            } else {
+                result.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+        return new Options(result);
+    }
+
+    /**
+     * Checks if an option is set.
+     * @param name The option name.
+     * @return true if set.
+     */
+    boolean has(final String name) {
+        return this.values.get(name) != null;
+    }
+
+    /**
+     * Gets an option.
+     * @param name The option name.
+     * @return the value, null if not set.
+     */
+    String get(final String name) {
+        return this.values.get(name);
+    }
+
+    /**
+     * Gets an option, setting it if missing.
+     * @param name The option name.
+     * @param value The value when not set.
+     * @return the value.
+     */
+    String get(final String name, final String value) {
+        return this.values.computeIfAbsent(name, n -> value);
+    }
+
+    /**
+     * Gets an int option.
+     * @param name The option name.
+     * @return the value.
+     */
+    int getInt(final String name) {
+        return Integer.parseInt(this.required(name));
+    }
+
+    /**
+     * Gets a long option.
+     * @param name The option name.
+     * @return the value.
+     */
+    long getLong(final String name) {
+        return Long.parseLong(this.required(name));
+    }
+
+    /**
+     * Gets a double option.
+     * @param name The option name.
+     * @return the value.
+     */
+    double getDouble(final String name) {
+        return Double.parseDouble(this.required(name));
+    }
+
+    /**
+     * Gets a boolean option.
+     * @param name The option name.
+     * @return the value, false if not set.
+     */
+    boolean getBoolean(final String name) {
+        return Boolean.parseBoolean(this.values.get(name));
+    }
+
+    /**
+     * Gets an option that has to be set.
+     * @param name The option name.
+     * @return the value.
+     */
+    private String required(final String name) {
+        String value = this.values.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing --" + name);
+        }
+        return value.trim();
+    }
+}
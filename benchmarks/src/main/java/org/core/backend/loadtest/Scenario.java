@@ -0,0 +1,96 @@
+package org.core.backend.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The traffic mixes.
+ * The weights are the share of the arrivals each call gets.
+ */
+enum Scenario {
+
+    /**
+     * Anonymous visitors paging through the listings.
+     */
+    BROWSE(new Call[] {Call.LIST_LISTINGS, Call.GET_LISTING,
+        Call.EFFECTIVE_PRICES}, new int[] {60, 30, 10}),
+
+    /**
+     * Anonymous visitors searching around a point.
+     */
+    SEARCH(new Call[] {Call.SEARCH_NEARBY, Call.GET_LISTING},
+        new int[] {75, 25}),
+
+    /**
+     * Signed in clients booking.
+     */
+    BOOK(new Call[] {Call.GET_LISTING, Call.USER_DETAILS,
+        Call.MAKE_BOOKING}, new int[] {50, 30, 20}),
+
+    /**
+     * Admins going through the back office lists.
+     */
+    ADMIN(new Call[] {Call.LIST_BOOKINGS, Call.LIST_ORGANISATIONS,
+        Call.LIST_LISTINGS}, new int[] {50, 20, 30}),
+
+    /**
+     * All of the above.
+     */
+    MIXED(new Call[] {Call.LIST_LISTINGS, Call.GET_LISTING,
+        Call.SEARCH_NEARBY, Call.EFFECTIVE_PRICES, Call.USER_DETAILS,
+        Call.MAKE_BOOKING, Call.LIST_BOOKINGS, Call.LIST_ORGANISATIONS},
+        new int[] {35, 20, 20, 5, 8, 4, 5, 3});
+
+    /**
+     * The calls.
+     */
+    private final Call[] calls;
+
+    /**
+     * The running totals of the weights.
+     */
+    private final int[] totals;
+
+    /**
+     * Creates a scenario.
+     * @param calls The calls.
+     * @param weights The weight of each call.
+     */
+    Scenario(final Call[] calls, final int[] weights) {
+        this.calls = calls;
+        this.totals = new int[weights.length];
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            this.totals[i] = total;
+        }
+    }
+
+    /**
+     * Picks the next call.
+     * @return the call.
+     */
+    Call next() {
+        int pick = ThreadLocalRandom.current()
+            .nextInt(this.totals[this.totals.length - 1]);
+        for (int i = 0; i < this.totals.length; i++) {
+            if (pick < this.totals[i]) {
+                return this.calls[i];
+            }
+        }
+        return this.calls[this.calls.length - 1];
+    }
+
+    /**
+     * Checks if a role makes any of the calls.
+     * @param role The role.
+     * @return true if it does.
+     */
+    boolean uses(final Call.Role role) {
+        for (Call call : this.calls) {
+            if (call.getRole() == role) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
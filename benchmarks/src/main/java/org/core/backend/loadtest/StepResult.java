@@ -0,0 +1,138 @@
+package org.core.backend.loadtest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import org.HdrHistogram.Histogram;
+
+/**
+ * The latencies of one arrival rate, in microseconds.
+ * The response times are measured from when a request was meant to be
+ * sent, so the queueing a slow service causes is included, the service
+ * times from when it was actually sent. The dropped calls are failed calls
+ * with the call timeout as response time.
+ */
+final class StepResult {
+
+    /**
+     * The target arrival rate per second.
+     */
+    private final double rate;
+
+    /**
+     * The length of the step in seconds.
+     */
+    private final double seconds;
+
+    /**
+     * The number of failed calls, the dropped ones included.
+     */
+    private final long errors;
+
+    /**
+     * The number of calls not sent as too many were in flight.
+     */
+    private final long dropped;
+
+    /**
+     * The response times of all the calls.
+     */
+    private final Histogram responseTimes;
+
+    /**
+     * The service times of all the calls.
+     */
+    private final Histogram serviceTimes;
+
+    /**
+     * The response times by call.
+     */
+    private final Map<String, Histogram> calls;
+
+    /**
+     * Creates the result.
+     * @param rate The target arrival rate per second.
+     * @param seconds The length of the step in seconds.
+     * @param errors The number of failed calls, the dropped ones included.
+     * @param dropped The number of calls not sent.
+     * @param responseTimes The response times of all the calls.
+     * @param serviceTimes The service times of all the calls.
+     * @param calls The response times by call.
+     */
+    StepResult(final double rate, final double seconds, final long errors,
+        final long dropped, final Histogram responseTimes,
+        final Histogram serviceTimes, final Map<String, Histogram> calls) {
+        this.rate = rate;
+        this.seconds = seconds;
+        this.errors = errors;
+        this.dropped = dropped;
+        this.responseTimes = responseTimes;
+        this.serviceTimes = serviceTimes;
+        this.calls = new TreeMap<>(calls);
+    }
+
+    /**
+     * Gets the target arrival rate.
+     * @return the rate per second.
+     */
+    double getRate() {
+        return this.rate;
+    }
+
+    /**
+     * Gets the achieved throughput, the failed calls excluded.
+     * @return the calls per second.
+     */
+    double getThroughput() {
+        return (this.responseTimes.getTotalCount() - this.errors)
+            / this.seconds;
+    }
+
+    /**
+     * Gets the share of the arrivals that failed or were dropped.
+     * @return the error rate.
+     */
+    double getErrorRate() {
+        long arrivals = this.responseTimes.getTotalCount();
+        return arrivals == 0 ? 0 : (double) this.errors / arrivals;
+    }
+
+    /**
+     * Gets the number of failed calls, the dropped ones included.
+     * @return the errors.
+     */
+    long getErrors() {
+        return this.errors;
+    }
+
+    /**
+     * Gets the number of calls not sent.
+     * @return the dropped calls.
+     */
+    long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Gets the response times of all the calls.
+     * @return the histogram.
+     */
+    Histogram getResponseTimes() {
+        return this.responseTimes;
+    }
+
+    /**
+     * Gets the service times of all the calls.
+     * @return the histogram.
+     */
+    Histogram getServiceTimes() {
+        return this.serviceTimes;
+    }
+
+    /**
+     * Gets the response times by call.
+     * @return the histograms by call label.
+     */
+    Map<String, Histogram> getCalls() {
+        return this.calls;
+    }
+}
@@ -0,0 +1,734 @@
+package org.core.backend.loadtest;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.core.backend.models.Status;
+import org.core.backend.utils.BookingReceipt;
+
+/**
+ * The synthetic organisations, users, listings, bookings, reviews and
+ * favourites.
+ * Every document is a function of the seed, the sizes and its index
+ * only, so a dataset is the same whatever order or thread it is
+ * generated on, and a booking can rebuild the listing it is for instead
+ * of reading it back. Organisations own listings by a zipf law, a few
+ * big tenants and a long tail, and bookings, reviews and favourites go
+ * to listings by another, a few hot listings get most of them.
+ */
+final class SyntheticData {
+
+    /**
+     * One user in this many works for an organisation, the others are
+     * clients.
+     */
+    static final int STAFF_EVERY = 20;
+
+    /**
+     * The listing types, id, name and base price a night.
+     */
+    private static final Object[][] LISTING_TYPES = {
+        {"lt-apartment", "Apartment", 6500.0},
+        {"lt-studio", "Studio", 3500.0},
+        {"lt-villa", "Villa", 25000.0},
+        {"lt-cottage", "Cottage", 9000.0},
+        {"lt-hotel-room", "Hotel room", 8000.0},
+        {"lt-bnb", "Bed and breakfast", 4500.0}};
+
+    /**
+     * The cities, name, longitude, latitude and share of the listings.
+     */
+    private static final Object[][] CITIES = {
+        {"Nairobi", 36.8219, -1.2921, 40},
+        {"Mombasa", 39.6682, -4.0435, 25},
+        {"Diani", 39.5720, -4.2797, 10},
+        {"Kisumu", 34.7680, -0.0917, 10},
+        {"Nakuru", 36.0800, -0.3031, 8},
+        {"Naivasha", 36.4330, -0.7170, 7}};
+
+    /**
+     * The amenities, name, whether the amount is fixed, the amount and
+     * whether it is paid per night.
+     */
+    private static final Object[][] AMENITIES = {
+        {"Airport transfer", true, 2500.0, false},
+        {"Breakfast", true, 800.0, true},
+        {"Parking", true, 300.0, true},
+        {"Laundry", true, 500.0, false},
+        {"Cleaning", false, 5.0, false},
+        {"Pool access", true, 1000.0, true},
+        {"Gym access", true, 400.0, true},
+        {"Late check out", true, 1500.0, false}};
+
+    /**
+     * The ratings by share, five stars first.
+     */
+    private static final int[] RATINGS = {50, 30, 12, 5, 3};
+
+    /**
+     * The review comments.
+     */
+    private static final String[] COMMENTS = {
+        "Lovely stay, the host was very helpful.",
+        "Clean, quiet and close to everything.",
+        "Great value for money, would book again.",
+        "The wifi was slow but the view made up for it.",
+        "Not as pictured, the kitchen needs work.",
+        "Perfect for a long weekend with the family."};
+
+    /**
+     * The first names.
+     */
+    private static final String[] FIRST_NAMES = {"Wanjiku", "Otieno",
+        "Achieng", "Kamau", "Njeri", "Mwangi", "Chebet", "Kiptoo", "Amina",
+        "Baraka", "Zawadi", "Juma"};
+
+    /**
+     * The last names.
+     */
+    private static final String[] LAST_NAMES = {"Mwangi", "Odhiambo",
+        "Wambui", "Kariuki", "Mutua", "Njoroge", "Ochieng", "Kiprono",
+        "Hassan", "Wekesa"};
+
+    /**
+     * The listing description.
+     */
+    private static final String DESCRIPTION = "A bright place a short walk "
+        + "from the shops and restaurants, with a fully equipped kitchen, "
+        + "fast wifi and a balcony. The building has round the clock "
+        + "security and the host lives nearby. Check in is from 2pm and "
+        + "check out by 10am.";
+
+    /**
+     * The kinds of document, each gets its own random stream.
+     */
+    private enum Kind {
+        /**
+         * An organisation.
+         */
+        ORGANISATION,
+        /**
+         * A user.
+         */
+        USER,
+        /**
+         * A listing.
+         */
+        LISTING,
+        /**
+         * A booking.
+         */
+        BOOKING,
+        /**
+         * A review.
+         */
+        REVIEW,
+        /**
+         * A favourite.
+         */
+        FAVOURITE
+    }
+
+    /**
+     * The seed.
+     */
+    private final long seed;
+
+    /**
+     * The number of organisations.
+     */
+    private final int organisations;
+
+    /**
+     * The number of users.
+     */
+    private final int users;
+
+    /**
+     * The time the dates are relative to, in epoch millis.
+     */
+    private final long now;
+
+    /**
+     * Picks the organisation of a listing or a member of staff.
+     */
+    private final Zipf tenants;
+
+    /**
+     * Picks the listing of a booking, review or favourite.
+     */
+    private final Zipf hotListings;
+
+    /**
+     * Creates the dataset.
+     * @param seed The seed.
+     * @param organisations The number of organisations.
+     * @param users The number of users.
+     * @param listings The number of listings.
+     * @param tenantSkew The zipf exponent of the listings by organisation.
+     * @param listingSkew The zipf exponent of the bookings by listing.
+     * @param now The time the dates are relative to, in epoch millis.
+     */
+    SyntheticData(final long seed, final int organisations, final int users,
+        final int listings, final double tenantSkew,
+        final double listingSkew, final long now) {
+        if (organisations < 1 || users < STAFF_EVERY || listings < 1) {
+            throw new IllegalArgumentException("Expected an organisation, "
+                + STAFF_EVERY + " users and a listing at least");
+        }
+        this.seed = seed;
+        this.organisations = organisations;
+        this.users = users;
+        this.now = now;
+        this.tenants = new Zipf(organisations, tenantSkew, seed);
+        this.hotListings = new Zipf(listings, listingSkew, seed);
+    }
+
+    /**
+     * Creates the random stream of a document.
+     * @param kind The kind of document.
+     * @param index The document index.
+     * @return the random.
+     */
+    private Random random(final Kind kind, final long index) {
+        return new Random(mix(this.seed * 31 + kind.ordinal()) ^ mix(index));
+    }
+
+    /**
+     * Scrambles a number, the splitmix64 finaliser.
+     * @param value The number.
+     * @return the scrambled number.
+     */
+    private static long mix(final long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Creates the id of an organisation.
+     * @param i The index.
+     * @return the id.
+     */
+    static String organisationId(final int i) {
+        return String.format("org-%06d", i);
+    }
+
+    /**
+     * Creates the id of a user.
+     * @param i The index.
+     * @return the id.
+     */
+    static String userId(final int i) {
+        return String.format("usr-%08d", i);
+    }
+
+    /**
+     * Creates the id of a listing.
+     * @param i The index.
+     * @return the id.
+     */
+    static String listingId(final int i) {
+        return String.format("lst-%08d", i);
+    }
+
+    /**
+     * Formats a time the way the services do.
+     * @param millis The epoch millis.
+     * @return the date.
+     */
+    private static String date(final long millis) {
+        return Instant.ofEpochMilli(millis).toString();
+    }
+
+    /**
+     * Picks a time in the past.
+     * @param random The random.
+     * @param days How far back at most.
+     * @return the epoch millis.
+     */
+    private long past(final Random random, final int days) {
+        return this.now - (long) (random.nextDouble()
+            * TimeUnit.DAYS.toMillis(days));
+    }
+
+    /**
+     * Gets the listing types.
+     * @return the listing types.
+     */
+    static JsonArray listingTypes() {
+        JsonArray result = new JsonArray();
+        for (Object[] type : LISTING_TYPES) {
+            result.add(new JsonObject()
+                .put("_id", type[0])
+                .put("name", type[1])
+                .put("icon", "https://cdn.mouv.africa/icons/" + type[0]
+                    + ".svg")
+                .put("isActive", true));
+        }
+        return result;
+    }
+
+    /**
+     * Gets the amenities.
+     * @return the amenities.
+     */
+    static JsonArray amenities() {
+        JsonArray result = new JsonArray();
+        for (int i = 0; i < AMENITIES.length; i++) {
+            result.add(amenity(i).put("status", Status.ACTIVE.name()));
+        }
+        return result;
+    }
+
+    /**
+     * Creates an amenity.
+     * @param i The amenity index.
+     * @return the amenity.
+     */
+    private static JsonObject amenity(final int i) {
+        Object[] amenity = AMENITIES[i];
+        return new JsonObject()
+            .put("_id", String.format("amn-%02d", i))
+            .put("name", amenity[0])
+            .put("isAmount", amenity[1])
+            .put("amount", amenity[2])
+            .put("isPaidDaily", amenity[3]);
+    }
+
+    /**
+     * Creates an organisation, founded by the first member of its staff.
+     * @param i The index.
+     * @return the organisation.
+     */
+    JsonObject organisation(final int i) {
+        Random random = this.random(Kind.ORGANISATION, i);
+        String id = organisationId(i);
+        JsonObject result = new JsonObject()
+            .put("_id", id)
+            .put("organisationId", id)
+            .put("name", LAST_NAMES[random.nextInt(LAST_NAMES.length)]
+                + " Homes " + i)
+            .put("accountType", random.nextInt(4) == 0 ? "agency" : "host")
+            .put("isActive", true)
+            .put("status", random.nextInt(20) == 0
+                ? Status.PENDING.name() : Status.ACTIVE.name())
+            .put("createdAt", date(this.past(random, 3 * 365)));
+
+        int founder = i * STAFF_EVERY;
+        if (founder < this.users) {
+            JsonObject user = this.user(founder);
+            result.put("founder", new JsonObject()
+                .put("_id", user.getValue("_id"))
+                .put("username", user.getValue("username"))
+                .put("email", user.getValue("email")));
+        }
+        return result;
+    }
+
+    /**
+     * Creates a user. One in STAFF_EVERY works for an organisation, the
+     * first ones found them, the others are clients.
+     * @param i The index.
+     * @return the user.
+     */
+    JsonObject user(final int i) {
+        Random random = this.random(Kind.USER, i);
+        String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+        String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        String username = (first + "." + last).toLowerCase() + i;
+        JsonObject result = new JsonObject()
+            .put("_id", userId(i))
+            .put("feduid", String.format("fed-%08d", i))
+            .put("username", username)
+            .put("email", username + "@example.com")
+            .put("firstName", first)
+            .put("lastName", last)
+            .put("isActive", true)
+            .put("createdAt", date(this.past(random, 3 * 365)));
+
+        if (i % STAFF_EVERY == 0) {
+            int staff = i / STAFF_EVERY;
+            int organisation = staff < this.organisations
+                ? staff : this.tenants.sample(random);
+            result.put("organisationId", organisationId(organisation))
+                .put("roles", new JsonArray().add("admin"));
+        } else {
+            result.put("roles", new JsonArray().add("client"));
+        }
+        return result;
+    }
+
+    /**
+     * Picks a client.
+     * @param random The random.
+     * @return the user index.
+     */
+    private int client(final Random random) {
+        int i = random.nextInt(this.users);
+        if (i % STAFF_EVERY != 0) {
+            return i;
+        }
+        return i + 1 < this.users ? i + 1 : i - 1;
+    }
+
+    /**
+     * Creates a listing, its premiums in the shape createListings saves.
+     * @param i The index.
+     * @return the listing.
+     */
+    JsonObject listing(final int i) {
+        Random random = this.random(Kind.LISTING, i);
+        Object[] type = LISTING_TYPES[random.nextInt(LISTING_TYPES.length)];
+        Object[] city = city(random);
+        double longitude = (Double) city[1] + random.nextGaussian() * 0.04;
+        double latitude = (Double) city[2] + random.nextGaussian() * 0.04;
+        double basicPremium = Math.round((Double) type[2]
+            * Math.exp(random.nextGaussian() * 0.35) / 50) * 50.0;
+
+        JsonArray amenities = new JsonArray();
+        for (int a = 0; a < AMENITIES.length; a++) {
+            if (random.nextInt(2) == 0) {
+                amenities.add(amenity(a));
+            }
+        }
+        JsonArray discounts = discounts(random);
+        JsonArray loadings = loadings(random);
+        JsonArray statutoryPremiums = new JsonArray()
+            .add(premium("VAT", false, 16, false))
+            .add(premium("Tourism levy", false, 2, false));
+        if (random.nextInt(3) == 0) {
+            statutoryPremiums.add(premium("Catering levy", false, 2, false));
+        }
+        JsonArray images = new JsonArray();
+        for (int j = 4 + random.nextInt(7); j > 0; j--) {
+            images.add("https://cdn.mouv.africa/listings/" + i + "/" + j
+                + ".jpg");
+        }
+
+        int rank = this.hotListings.rank(i);
+        return new JsonObject()
+            .put("_id", listingId(i))
+            .put("name", type[1] + " in " + city[0] + " " + i)
+            .put("description", DESCRIPTION)
+            .put("listingType", type[0])
+            .put("organisationId", organisationId(
+                this.tenants.sample(random)))
+            .put("status", listingStatus(random))
+            .put("longitude", longitude)
+            .put("latitude", latitude)
+            .put("location", new JsonObject()
+                .put("type", "Point")
+                .put("coordinates", new JsonArray()
+                    .add(longitude).add(latitude)))
+            .put("images", images)
+            .put("amenities", amenities)
+            .put("discounts", discounts)
+            .put("loadings", loadings)
+            .put("statutoryPremiums", statutoryPremiums)
+            .put("premium", new JsonObject()
+                .put("basicPremium", basicPremium)
+                .put("amenities", amenities)
+                .put("discounts", discounts)
+                .put("loadings", loadings)
+                .put("statutoryPremiums", statutoryPremiums))
+            .put("views", (long) (200000 / Math.pow(rank + 1, 0.8))
+                + random.nextInt(100))
+            .put("createdAt", date(this.past(random, 3 * 365)));
+    }
+
+    /**
+     * Picks a city by its share of the listings.
+     * @param random The random.
+     * @return the city.
+     */
+    private static Object[] city(final Random random) {
+        int pick = random.nextInt(100);
+        for (Object[] city : CITIES) {
+            pick -= (Integer) city[3];
+            if (pick < 0) {
+                return city;
+            }
+        }
+        return CITIES[0];
+    }
+
+    /**
+     * Picks the status of a listing, most are active.
+     * @param random The random.
+     * @return the status.
+     */
+    private static String listingStatus(final Random random) {
+        int pick = random.nextInt(100);
+        if (pick < 90) {
+            return Status.ACTIVE.name();
+        } else if (pick < 95) {
+            return Status.PENDING.name();
+        } else if (pick < 98) {
+            return Status.DISABLED.name();
+        }
+        return Status.SUSPENDED.name();
+    }
+
+    /**
+     * Creates a premium entry.
+     * @param name The name.
+     * @param isAmount Whether the amount is fixed, else a percentage.
+     * @param amount The amount or percentage.
+     * @param isPaidDaily Whether it is paid per night.
+     * @return the entry.
+     */
+    private static JsonObject premium(final String name,
+        final boolean isAmount, final double amount,
+        final boolean isPaidDaily) {
+        return new JsonObject()
+            .put("name", name)
+            .put("isAmount", isAmount)
+            .put("amount", amount)
+            .put("isPaidDaily", isPaidDaily);
+    }
+
+    /**
+     * Picks the discounts of a listing, up to three.
+     * @param random The random.
+     * @return the discounts.
+     */
+    private static JsonArray discounts(final Random random) {
+        JsonArray result = new JsonArray();
+        if (random.nextInt(2) == 0) {
+            result.add(premium("Weekly stay", false, 5 + random.nextInt(11),
+                false).put("type", "consecutive").put("days", 7)
+                .put("isWeekendOnly", false));
+        }
+        if (random.nextInt(3) == 0) {
+            result.add(premium("Monthly stay", false,
+                15 + random.nextInt(16), false).put("type", "consecutive")
+                .put("days", 28).put("isWeekendOnly", false));
+        }
+        if (random.nextInt(4) == 0) {
+            result.add(premium("Weekend", false, 5 + random.nextInt(6),
+                false).put("type", "weekend").put("days", 2)
+                .put("isWeekendOnly", true));
+        }
+        return result;
+    }
+
+    /**
+     * Picks the loadings of a listing, up to two.
+     * @param random The random.
+     * @return the loadings.
+     */
+    private static JsonArray loadings(final Random random) {
+        JsonArray result = new JsonArray();
+        if (random.nextInt(3) == 0) {
+            result.add(premium("Peak season", false, 10 + random.nextInt(21),
+                true));
+        }
+        if (random.nextInt(4) == 0) {
+            result.add(premium("Service charge", true,
+                500 + 250 * random.nextInt(5), false));
+        }
+        return result;
+    }
+
+    /**
+     * Creates a booking, priced as makeABooking does. Past stays are
+     * checked out or cancelled, current ones checked in and future ones
+     * pending, active or booked.
+     * @param i The index.
+     * @return the booking.
+     */
+    JsonObject booking(final long i) {
+        Random random = this.random(Kind.BOOKING, i);
+        int listing = this.hotListings.sample(random);
+        JsonObject user = this.user(this.client(random));
+        JsonObject stay = this.listing(listing);
+
+        int nights = 1 + (int) Math.min(27,
+            -Math.log(1 - random.nextDouble()) * 3);
+        long start = this.now - TimeUnit.DAYS.toMillis(365)
+            + (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(545));
+        long end = start + TimeUnit.DAYS.toMillis(nights);
+
+        JsonArray amenities = new JsonArray();
+        JsonArray offered = stay.getJsonArray("amenities");
+        for (int a = 0; a < offered.size(); a++) {
+            if (random.nextInt(3) == 0) {
+                amenities.add(offered.getJsonObject(a));
+            }
+        }
+
+        JsonObject booking = new JsonObject()
+            .put("_id", String.format("bkg-%010d", i))
+            .put("listingId", stay.getValue("_id"))
+            .put("organisationId", stay.getValue("organisationId"))
+            .put("clientId", user.getValue("_id"))
+            .put("feduid", user.getValue("feduid"))
+            .put("status", bookingStatus(random, start, end, this.now))
+            .put("startDate", start)
+            .put("endDate", end)
+            .put("numberOfDays", nights)
+            .put("amenities", amenities)
+            .put("createdAt", date(start - (long) (random.nextDouble()
+                * TimeUnit.DAYS.toMillis(60))));
+        // A weekend discount applies when the stay starts on a weekend
+        // rather than when the data is generated, so a dataset does not
+        // depend on the day it is generated.
+        booking.put("receipt", BookingReceipt.create(booking, stay,
+            new JsonObject().put("amenities", amenities.copy()),
+            Instant.ofEpochMilli(start).atZone(ZoneOffset.UTC)
+                .getDayOfWeek()));
+        return booking;
+    }
+
+    /**
+     * Picks the status of a booking from its dates.
+     * @param random The random.
+     * @param start The start of the stay.
+     * @param end The end of the stay.
+     * @param now The time the dates are relative to.
+     * @return the status.
+     */
+    private static String bookingStatus(final Random random,
+        final long start, final long end, final long now) {
+        int pick = random.nextInt(100);
+        if (end < now) {
+            return pick < 85 ? Status.CHECKED_OUT.name()
+                : Status.DISABLED.name();
+        } else if (start <= now) {
+            return Status.CHECKED_IN.name();
+        } else if (pick < 40) {
+            return Status.PENDING.name();
+        } else if (pick < 80) {
+            return Status.BOOKED.name();
+        }
+        return Status.ACTIVE.name();
+    }
+
+    /**
+     * Creates a review, most of them good.
+     * @param i The index.
+     * @return the review.
+     */
+    JsonObject review(final long i) {
+        Random random = this.random(Kind.REVIEW, i);
+        int listing = this.hotListings.sample(random);
+        JsonObject user = this.user(this.client(random));
+        int pick = random.nextInt(100);
+        int rating = 5;
+        for (int share : RATINGS) {
+            pick -= share;
+            if (pick < 0) {
+                break;
+            }
+            rating--;
+        }
+        return new JsonObject()
+            .put("_id", String.format("rvw-%010d", i))
+            .put("listingId", listingId(listing))
+            .put("clientId", user.getValue("_id"))
+            .put("feduid", user.getValue("feduid"))
+            .put("rating", Math.max(1, rating))
+            .put("comment", COMMENTS[random.nextInt(COMMENTS.length)])
+            .put("createdAt", date(this.past(random, 2 * 365)));
+    }
+
+    /**
+     * Creates a favourite.
+     * @param i The index.
+     * @return the favourite.
+     */
+    JsonObject favourite(final long i) {
+        Random random = this.random(Kind.FAVOURITE, i);
+        int listing = this.hotListings.sample(random);
+        JsonObject user = this.user(this.client(random));
+        return new JsonObject()
+            .put("_id", String.format("fav-%010d", i))
+            .put("listingId", listingId(listing))
+            .put("clientId", user.getValue("_id"))
+            .put("feduid", user.getValue("feduid"))
+            .put("createdAt", date(this.past(random, 2 * 365)));
+    }
+
+    /**
+     * Draws indexes by a zipf law, approximated by its continuous bounded
+     * power law. The ranks are scattered over the indexes, the most
+     * popular listing is not the first one inserted.
+     */
+    static final class Zipf {
+
+        /**
+         * The multiplier scattering the ranks, a prime.
+         */
+        private static final long SCATTER = 2654435761L;
+
+        /**
+         * The number of indexes.
+         */
+        private final int n;
+
+        /**
+         * The exponent.
+         */
+        private final double s;
+
+        /**
+         * The offset scattering the ranks.
+         */
+        private final long offset;
+
+        /**
+         * The inverse of the multiplier modulo n.
+         */
+        private final long inverse;
+
+        /**
+         * Creates the law.
+         * @param n The number of indexes.
+         * @param s The exponent, 0 for uniform.
+         * @param seed The seed.
+         */
+        Zipf(final int n, final double s, final long seed) {
+            this.n = n;
+            this.s = s;
+            this.offset = Math.floorMod(seed, (long) n);
+            this.inverse = n == 1 ? 0 : BigInteger.valueOf(SCATTER)
+                .modInverse(BigInteger.valueOf(n)).longValue();
+        }
+
+        /**
+         * Draws an index.
+         * @param random The random.
+         * @return the index.
+         */
+        int sample(final Random random) {
+            double u = random.nextDouble();
+            double x;
+            if (Math.abs(this.s - 1) < 1e-9) {
+                x = Math.pow(this.n, u);
+            } else {
+                double a = 1 - this.s;
+                x = Math.pow((Math.pow(this.n, a) - 1) * u + 1, 1 / a);
+            }
+            long rank = Math.min(this.n - 1, Math.max(0, (long) x - 1));
+            return (int) ((rank * SCATTER + this.offset) % this.n);
+        }
+
+        /**
+         * Gets the popularity rank of an index.
+         * @param index The index.
+         * @return the rank, 0 for the most popular.
+         */
+        int rank(final int index) {
+            long shifted = Math.floorMod(index - this.offset, (long) this.n);
+            return (int) BigInteger.valueOf(shifted)
+                .multiply(BigInteger.valueOf(this.inverse))
+                .mod(BigInteger.valueOf(this.n)).longValue();
+        }
+    }
+}
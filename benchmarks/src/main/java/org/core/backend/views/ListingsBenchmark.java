@@ -0,0 +1,109 @@
+package org.core.backend.views;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.util.concurrent.TimeUnit;
+import org.core.backend.benchmarks.Fixtures;
+import org.core.backend.utils.KeysetPage;
+import org.core.backend.utils.ListingQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the request preparation of the listing routes.
+ * The bodies are copied on every call, the methods fill them in place.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1,
+    jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ListingsBenchmark {
+
+    /**
+     * The service.
+     */
+    private ListingsServiceV2 service;
+
+    /**
+     * The create listing body.
+     */
+    private JsonObject listing;
+
+    /**
+     * The list listings body.
+     */
+    private JsonObject query;
+
+    /**
+     * The list listings keyset page request.
+     */
+    private JsonObject pageRequest;
+
+    /**
+     * Creates the service, the most derived one that needs no ports, and
+     * the fixtures.
+     */
+    @Setup
+    public void setUp() {
+        this.service = new AuthService();
+        this.service.setSharedUtils();
+        this.listing = Fixtures.listing(7);
+        this.query = Fixtures.listListingsBody();
+        this.pageRequest = new JsonObject().put("limit", Fixtures.PAGE_SIZE);
+        this.service.listTasks();
+    }
+
+    /**
+     * Validates the premium arrays of a new listing, as createListings
+     * does.
+     * @return the listing.
+     */
+    @Benchmark
+    public JsonObject validatePremiumArrays() {
+        JsonObject body = this.listing.copy();
+        this.service.validatePremiumArrays(body,
+            body.getJsonArray("amenities"), "amenities", null);
+        this.service.validatePremiumArrays(body,
+            body.getJsonArray("discounts"), "discounts", null);
+        this.service.validatePremiumArrays(body,
+            body.getJsonObject("premium").getJsonArray("loadings"),
+            "loadings", null);
+        this.service.validatePremiumArrays(body,
+            body.getJsonObject("premium").getJsonArray("statutoryPremiums"),
+            "statutoryPremiums", null);
+        return body;
+    }
+
+    /**
+     * Compiles the list listings body and builds the pipeline of the first
+     * page.
+     * @return the pipeline.
+     */
+    @Benchmark
+    public JsonArray listListingsPipeline() {
+        KeysetPage page = KeysetPage.create(this.pageRequest.copy(),
+            new JsonObject().put("_id", -1), Fixtures.PAGE_SIZE);
+        return ListingQuery.pipeline(
+            ListingQuery.FILTERS.compile(this.query), page);
+    }
+
+    /**
+     * Lists the tasks.
+     * @return the task names.
+     */
+    @Benchmark
+    public JsonArray listTasks() {
+        return this.service.listTasks();
+    }
+}
@@ -0,0 +1,94 @@
+package org.core.backend;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.core.backend.utils.IndexCatalogue;
+import org.utils.backend.utils.DBUtils;
+
+/**
+ * Runs the IndexCatalogue from the command line, against the database the
+ * service env vars point to. Meant to build the indexes before deploying
+ * a service started with INDEXES_STRICT=true.
+ *
+ * Commands:
+ * - drift, the default, prints the drift report.
+ * - ensure creates the missing indexes, then prints the report.
+ * - verify exits with 1 if a required index is missing or differs.
+ */
+public final class IndexTool {
+
+    /**
+     * Hidden constructor.
+     */
+    private IndexTool() {
+    }
+
+    /**
+     * The main method.
+     * @param args The command, drift, ensure or verify.
+     */
+    public static void main(final String[] args) {
+        String command = args.length > 0 ? args[0] : "drift";
+        MongoClient client = new DBUtils().getDBClient();
+        int status = 0;
+        try {
+            switch (command) {
+                case "drift":
+                    print(await(IndexCatalogue.drift(client)));
+                    break;
+                case "ensure":
+                    await(IndexCatalogue.ensure(client));
+                    print(await(IndexCatalogue.drift(client)));
+                    break;
+                case "verify":
+                    await(IndexCatalogue.verify(client));
+                    System.out.println("The required indexes exist");
+                    break;
+                default:
+                    System.err.println("Unknown command " + command
+                        + ", expected drift, ensure or verify");
+                    status = 2;
+                    break;
+            }
+        } catch (final ExecutionException e) {
+            System.err.println(e.getCause().getMessage());
+            status = 1;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+    /**
+     * Prints a drift report.
+     * @param report The report.
+     */
+    private static void print(final JsonObject report) {
+        System.out.println(report.encodePrettily());
+    }
+
+    /**
+     * Waits for a future.
+     * @param future The future.
+     * @param <T> The result type.
+     * @return the result.
+     * @throws ExecutionException if the future failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static <T> T await(final Future<T> future)
+        throws ExecutionException, InterruptedException {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.onComplete(res -> {
+            if (res.succeeded()) {
+                result.complete(res.result());
+            } else {
+                result.completeExceptionally(res.cause());
+            }
+        });
+        return result.get();
+    }
+}
@@ -0,0 +1,194 @@
+package org.core.backend;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Launcher;
+import io.vertx.core.ThreadingModel;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.micrometer.MicrometerMetricsOptions;
+import io.vertx.micrometer.VertxPrometheusOptions;
+import org.core.backend.models.Domain;
+import org.core.backend.views.DomainRegistry;
+import org.core.backend.views.DomainVerticle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The server launcher.
+ * Deploys several instances of the main verticle so that every event loop
+ * serves requests. The instances share the http and web socket ports.
+ */
+public class ServerLauncher extends Launcher {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        ServerLauncher.class.getName());
+
+    /**
+     * The env var holding the number of verticle instances to deploy.
+     */
+    public static final String INSTANCES_ENV = "VERTICLE_INSTANCES";
+
+    /**
+     * The local port of the first domain, the others follow in the order
+     * of Domain unless set by their env var.
+     */
+    public static final int DOMAIN_BASE_PORT = 9100;
+
+    /**
+     * The env var that switches the handlers to virtual threads.
+     */
+    public static final String VIRTUAL_THREADS_ENV = "VIRTUAL_THREADS";
+
+    /**
+     * The first java version with virtual threads.
+     */
+    private static final int VIRTUAL_THREADS_JAVA_VERSION = 21;
+
+    /**
+     * The main method.
+     * @param args The command line arguments.
+     */
+    public static void main(final String[] args) {
+        new ServerLauncher().dispatch(args);
+    }
+
+    /**
+     * Creates the vertx options used by the server.
+     * @return The vertx options with prometheus metrics enabled.
+     */
+    public static VertxOptions createVertxOptions() {
+        return configure(new VertxOptions());
+    }
+
+    /**
+     * Adds the metrics options to the vertx options.
+     * @param options The vertx options.
+     * @return The vertx options.
+     */
+    private static VertxOptions configure(final VertxOptions options) {
+        return options
+            .setMetricsOptions(new MicrometerMetricsOptions()
+                .setPrometheusOptions(new VertxPrometheusOptions()
+                    .setEnabled(true))
+                .setEnabled(true));
+    }
+
+    /**
+     * Gets the number of verticle instances to deploy.
+     * Defaults to one instance per available core.
+     * @return The number of instances.
+     */
+    public static int getInstances() {
+        return getPositiveInt(INSTANCES_ENV,
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Reads a positive integer from an env var.
+     * @param env The env var name.
+     * @param defaultValue The value used when the env var is missing.
+     * @return The integer value.
+     */
+    private static int getPositiveInt(final String env,
+        final int defaultValue) {
+        String value = System.getenv(env);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            int result = Integer.parseInt(value.trim());
+            return result > 0 ? result : defaultValue;
+        } catch (final NumberFormatException e) {
+            LOGGER.error("Invalid " + env + " value "
+                + value + ", defaulting to " + defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Checks if the verticles should be deployed on virtual threads.
+     * @return true if enabled and supported by the running jvm.
+     */
+    public static boolean isVirtualThreadsEnabled() {
+        if (!Boolean.parseBoolean(System.getenv(VIRTUAL_THREADS_ENV))) {
+            return false;
+        }
+
+        if (Runtime.version().feature() < VIRTUAL_THREADS_JAVA_VERSION) {
+            LOGGER.warn(VIRTUAL_THREADS_ENV + " is set but java "
+                + Runtime.version().feature()
+                + " has no virtual threads, using event loops");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets the metrics options before vertx starts.
+     * @param options The vertx options.
+     */
+    @Override
+    public void beforeStartingVertx(final VertxOptions options) {
+        configure(options);
+    }
+
+    /**
+     * Deploys the domain verticles when they are enabled.
+     * @param vertx The vertx instance.
+     */
+    @Override
+    public void afterStartingVertx(final Vertx vertx) {
+        if (!DomainRegistry.isEnabled()) {
+            return;
+        }
+
+        for (Domain domain : Domain.values()) {
+            DeploymentOptions options = new DeploymentOptions()
+                .setConfig(new JsonObject().put("domain", domain.name())
+                    .put("port", getPositiveInt(domain.portEnv(),
+                        DOMAIN_BASE_PORT + domain.ordinal())))
+                .setInstances(getPositiveInt(domain.instancesEnv(),
+                    getInstances()))
+                .setWorkerPoolName(domain.workerPoolName())
+                .setWorkerPoolSize(getPositiveInt(domain.workerPoolSizeEnv(),
+                    VertxOptions.DEFAULT_WORKER_POOL_SIZE));
+            if (isVirtualThreadsEnabled()) {
+                options.setThreadingModel(ThreadingModel.VIRTUAL_THREAD);
+            }
+
+            vertx.deployVerticle(DomainVerticle.class.getName(), options)
+                .onSuccess(id -> LOGGER.info("Deployed " + domain
+                    + " domain with " + options.getInstances()
+                    + " instances"))
+                .onFailure(e -> LOGGER.error("Failed to deploy " + domain
+                    + " domain", e));
+        }
+    }
+
+    /**
+     * Sets the number of instances before the verticle is deployed.
+     * An explicit -instances flag on the command line wins.
+     * @param deploymentOptions The deployment options.
+     */
+    @Override
+    public void beforeDeployingVerticle(
+        final DeploymentOptions deploymentOptions) {
+        if (deploymentOptions.getInstances()
+            == DeploymentOptions.DEFAULT_INSTANCES) {
+            deploymentOptions.setInstances(getInstances());
+        }
+
+        if (isVirtualThreadsEnabled()) {
+            deploymentOptions.setThreadingModel(
+                ThreadingModel.VIRTUAL_THREAD);
+        }
+        LOGGER.info("Deploying " + deploymentOptions.getInstances()
+            + " verticle instances on "
+            + deploymentOptions.getThreadingModel());
+    }
+}
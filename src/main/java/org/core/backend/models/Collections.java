@@ -201,5 +201,27 @@ public enum Collections {
         public String toString() {
             return "favourites";
         }
+    },
+
+    /** the emails waiting to be sent. */
+    EMAIL_OUTBOX {
+        /**
+         * Gets the String version.
+         * @return the string ersion
+         */
+        public String toString() {
+            return "email_outbox";
+        }
+    },
+
+    /** the tasks of the services, without grants. */
+    SYSTEM_TASKS {
+        /**
+         * Gets the String version.
+         * @return the string ersion
+         */
+        public String toString() {
+            return "system_task";
+        }
     }
 }
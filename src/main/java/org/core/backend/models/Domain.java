@@ -0,0 +1,69 @@
+package org.core.backend.models;
+
+/**
+ * The service domains that can be deployed as separate verticles.
+ */
+public enum Domain {
+
+    /**
+     * The users and invites domain.
+     */
+    AUTH,
+
+    /**
+     * The bookings domain.
+     */
+    BOOKINGS,
+
+    /**
+     * The listings, amenities and reviews domain.
+     */
+    LISTINGS,
+
+    /**
+     * The organisation and admin domain.
+     */
+    ORGANISATION,
+
+    /**
+     * The rbac tasks domain.
+     */
+    RBAC,
+
+    /**
+     * The payments domain.
+     */
+    PAYMENTS;
+
+    /**
+     * Gets the env var holding the number of instances of the domain.
+     * @return the env var name e.g BOOKINGS_INSTANCES.
+     */
+    public String instancesEnv() {
+        return this.name() + "_INSTANCES";
+    }
+
+    /**
+     * Gets the env var holding the local port of the domain.
+     * @return the env var name e.g BOOKINGS_PORT.
+     */
+    public String portEnv() {
+        return this.name() + "_PORT";
+    }
+
+    /**
+     * Gets the env var holding the worker pool size of the domain.
+     * @return the env var name e.g BOOKINGS_WORKER_POOL_SIZE.
+     */
+    public String workerPoolSizeEnv() {
+        return this.name() + "_WORKER_POOL_SIZE";
+    }
+
+    /**
+     * Gets the name of the worker pool of the domain.
+     * @return the worker pool name.
+     */
+    public String workerPoolName() {
+        return this.name().toLowerCase() + "-worker-pool";
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * The package info.
+ */
+package org.core.backend;
@@ -0,0 +1,175 @@
+package org.core.backend.utils;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Batches the lookups of documents by _id, in the manner of a DataLoader.
+ * The ids asked for during one run of the event loop are deduplicated and
+ * fetched with a single $in query when the loop gets back to the context,
+ * so the concurrent requests of a verticle share their round trips.
+ * A loader is confined to the context it was created on, and only called
+ * from it. The results are memoised per request by a Scope, and the
+ * documents of the cached collections taken from the EntityCache.
+ * Only the lookups by a plain _id are batched, the conditions on other
+ * fields are left to the caller.
+ */
+public final class BatchLoader {
+
+    /**
+     * The most ids fetched by one query, more are split in several.
+     */
+    public static final int MAX_BATCH = 100;
+
+    /**
+     * The context the batches are dispatched on.
+     */
+    private final Context context;
+
+    /**
+     * The mongo client.
+     */
+    private final MongoClient client;
+
+    /**
+     * The collection the documents are loaded from.
+     */
+    private final String collection;
+
+    /**
+     * The ids asked for since the last dispatch, in order.
+     */
+    private Map<String, Promise<JsonObject>> pending = new LinkedHashMap<>();
+
+    /**
+     * Constructor.
+     * @param context The context of the verticle using the loader.
+     * @param client The mongo client.
+     * @param collection The collection name.
+     */
+    public BatchLoader(final Context context, final MongoClient client,
+        final String collection) {
+        this.context = context;
+        this.client = client;
+        this.collection = collection;
+    }
+
+    /**
+     * Loads a document, with the next batch.
+     * @param id The _id of the document.
+     * @return the document, null if there is none.
+     */
+    public Future<JsonObject> load(final String id) {
+        JsonObject cached = EntityCache.getInstance().get(
+            this.collection, id);
+        if (cached != null) {
+            return Future.succeededFuture(cached);
+        }
+        Promise<JsonObject> promise = this.pending.get(id);
+        if (promise == null) {
+            if (this.pending.isEmpty()) {
+                this.context.runOnContext(v -> this.dispatch());
+            }
+            promise = Promise.promise();
+            this.pending.put(id, promise);
+        }
+        return promise.future();
+    }
+
+    /**
+     * Fetches the pending ids, MAX_BATCH at a time.
+     */
+    private void dispatch() {
+        List<String> ids = new ArrayList<>(this.pending.keySet());
+        Map<String, Promise<JsonObject>> batch = this.pending;
+        this.pending = new LinkedHashMap<>();
+        for (int i = 0; i < ids.size(); i += MAX_BATCH) {
+            this.fetch(ids.subList(i, Math.min(ids.size(), i + MAX_BATCH)),
+                batch);
+        }
+    }
+
+    /**
+     * Fetches some ids and completes their promises.
+     * @param ids The ids.
+     * @param batch The promises of the batch, by id.
+     */
+    private void fetch(final List<String> ids,
+        final Map<String, Promise<JsonObject>> batch) {
+        EntityCache cache = EntityCache.getInstance();
+        long stamp = cache.stamp(this.collection);
+        JsonObject query = new JsonObject().put("_id", ids.size() == 1
+            ? ids.get(0)
+            : new JsonObject().put("$in", new JsonArray(ids)));
+        QueryStats.getInstance().track("find", this.collection, query,
+            this.client.find(this.collection, query))
+            .onComplete(res -> {
+                Map<String, JsonObject> found = new HashMap<>();
+                if (res.succeeded()) {
+                    for (JsonObject doc : res.result()) {
+                        found.put(String.valueOf(doc.getValue("_id")), doc);
+                        cache.put(this.collection, doc, stamp);
+                    }
+                }
+                for (String id : ids) {
+                    if (res.succeeded()) {
+                        batch.get(id).complete(found.get(id));
+                    } else {
+                        batch.get(id).fail(res.cause());
+                    }
+                }
+            });
+    }
+
+    /**
+     * The lookups of one request.
+     * Every document is fetched once per request whatever the times it is
+     * asked for, and handed out as a copy the caller may change.
+     */
+    public static final class Scope {
+
+        /**
+         * Gets the loader of a collection.
+         */
+        private final Function<String, BatchLoader> loaders;
+
+        /**
+         * The documents loaded, by collection and id.
+         */
+        private final Map<String, Future<JsonObject>> memo = new HashMap<>();
+
+        /**
+         * Constructor.
+         * @param loaders Gets the loader of a collection.
+         */
+        public Scope(final Function<String, BatchLoader> loaders) {
+            this.loaders = loaders;
+        }
+
+        /**
+         * Loads a document by _id.
+         * @param collection The collection name.
+         * @param id The _id of the document.
+         * @return a copy of the document, null if there is none.
+         */
+        public Future<JsonObject> load(final String collection,
+            final String id) {
+            if (id == null) {
+                return Future.succeededFuture();
+            }
+            return this.memo.computeIfAbsent(collection + "/" + id,
+                key -> this.loaders.apply(collection).load(id))
+                .map(doc -> doc == null ? null : doc.copy());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.core.backend.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import java.util.List;
+import org.utils.backend.utils.DBUtils;
+
+/**
+ * Blocking style access to the database.
+ * The blocking methods park the calling virtual thread until the result is
+ * ready, so they must only be called from a virtual thread context. The
+ * async methods can be used to fan out independent lookups before awaiting.
+ */
+public class BlockingDB {
+
+    /**
+     * The db utils instance.
+     */
+    private final DBUtils dbUtils;
+
+    /**
+     * Creates the blocking db.
+     * @param dbUtils The db utils instance.
+     */
+    public BlockingDB(final DBUtils dbUtils) {
+        this.dbUtils = dbUtils;
+    }
+
+    /**
+     * Gets the mongo client.
+     * @return the mongo client.
+     */
+    private MongoClient client() {
+        return this.dbUtils.getDBClient();
+    }
+
+    /**
+     * Finds one document.
+     * @param collection The collection name.
+     * @param query The query.
+     * @return the future document, null when missing.
+     */
+    public Future<JsonObject> findOneAsync(final String collection,
+        final JsonObject query) {
+        return QueryStats.getInstance().track("findOne", collection, query,
+            this.client().findOne(collection, query, null));
+    }
+
+    /**
+     * Finds the documents matching the query.
+     * @param collection The collection name.
+     * @param query The query.
+     * @return the future list of documents.
+     */
+    public Future<List<JsonObject>> findAsync(final String collection,
+        final JsonObject query) {
+        return QueryStats.getInstance().track("find", collection, query,
+            this.client().find(collection, query));
+    }
+
+    /**
+     * Finds one document and waits for it.
+     * @param collection The collection name.
+     * @param query The query.
+     * @return the document, null when missing.
+     */
+    public JsonObject findOne(final String collection,
+        final JsonObject query) {
+        return await(this.findOneAsync(collection, query));
+    }
+
+    /**
+     * Finds the documents matching the query and waits for them.
+     * @param collection The collection name.
+     * @param query The query.
+     * @return the list of documents.
+     */
+    public List<JsonObject> find(final String collection,
+        final JsonObject query) {
+        return await(this.findAsync(collection, query));
+    }
+
+    /**
+     * Saves a document and waits for it.
+     * The cached copies are dropped as by the db utils, see CachedDBUtils.
+     * @param collection The collection name.
+     * @param document The document.
+     * @return the _id of an inserted document, null on replace.
+     */
+    public String save(final String collection, final JsonObject document) {
+        JsonObject key = CachedDBUtils.keyOf(document);
+        CachedDBUtils.invalidate(collection, key);
+        return await(QueryStats.getInstance().track("save", collection, null,
+            this.client().save(collection, document))
+            .onComplete(res -> CachedDBUtils.invalidate(collection, key)));
+    }
+
+    /**
+     * Waits for the future on the current virtual thread.
+     * @param <T> The result type.
+     * @param future The future.
+     * @return the result.
+     */
+    public static <T> T await(final Future<T> future) {
+        return Future.await(future);
+    }
+}
@@ -0,0 +1,142 @@
+package org.core.backend.utils;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.time.DayOfWeek;
+
+/**
+ * Prices a booking into the receipt saved with it.
+ * The charges of the listing, its statutory premiums, loadings, discounts
+ * and the amenities booked, are a fixed amount or a percentage of the
+ * basic premium, paid once or per night. Each charge is given its value.
+ * The day a weekend discount is checked against is passed in, so the same
+ * booking is always priced the same way.
+ */
+public final class BookingReceipt {
+
+    /**
+     * The percentage base.
+     */
+    private static final double HUNDRED = 100.0;
+
+    /**
+     * Hidden constructor.
+     */
+    private BookingReceipt() {
+    }
+
+    /**
+     * Creates the receipt of a booking.
+     * @param booking The booking.
+     * @param listing The listing booked.
+     * @param body The body from the FE, holding the amenities booked.
+     * @param day The day the weekend discounts are checked against.
+     * @return the receipt.
+     */
+    public static JsonObject create(final JsonObject booking,
+        final JsonObject listing, final JsonObject body,
+        final DayOfWeek day) {
+        JsonArray appliedDiscounts = applicableDiscounts(
+            listing.getJsonArray("discounts", new JsonArray()), booking, day);
+        JsonArray appliedAmenities
+            = body.getJsonArray("amenities", new JsonArray());
+        JsonObject premium = listing.getJsonObject(
+            "premium", new JsonObject());
+        int numberOfDays = booking.getInteger("numberOfDays");
+
+        JsonArray statPremiums = premium.getJsonArray("statutoryPremiums");
+        JsonArray loadingAmounts = premium.getJsonArray("loadings");
+        double basicPremium = premium.getDouble("basicPremium", 0.0);
+
+        double totalStatutoryPremiums = calculateTaxes(
+            statPremiums, basicPremium, numberOfDays);
+        double totalLoadingAmounts = calculateTaxes(
+            loadingAmounts, basicPremium, numberOfDays);
+        double totalDiscountsAmounts = calculateTaxes(
+            appliedDiscounts, basicPremium, numberOfDays);
+        double totalAmenitiesAmounts = calculateTaxes(
+            appliedAmenities, basicPremium, numberOfDays);
+
+        double amount = basicPremium
+            + totalStatutoryPremiums
+            + totalLoadingAmounts
+            - totalDiscountsAmounts;
+
+        return new JsonObject()
+            .put("basicPremium", basicPremium * numberOfDays)
+            .put("totalStatutoryPremiums", totalStatutoryPremiums)
+            .put("totalLoadingAmounts", totalLoadingAmounts)
+            .put("totalDiscountsAmounts", totalDiscountsAmounts)
+            .put("appliedAmenities", appliedAmenities)
+            .put("discounts", appliedDiscounts)
+            .put("loadingAmounts", loadingAmounts)
+            .put("statutoryPremiums", totalStatutoryPremiums)
+            .put("totalAmenitiesAmounts", totalAmenitiesAmounts)
+            .put("amount", amount);
+    }
+
+    /**
+     * Picks the discounts a booking gets, the weekend ones on a weekend
+     * day and those of a stay long enough.
+     * @param discounts The discounts of the listing.
+     * @param booking The booking.
+     * @param day The day the weekend discounts are checked against.
+     * @return the discounts applied.
+     */
+    public static JsonArray applicableDiscounts(final JsonArray discounts,
+        final JsonObject booking, final DayOfWeek day) {
+        JsonArray results = new JsonArray();
+        if (discounts == null) {
+            return results;
+        }
+
+        boolean weekend = day == DayOfWeek.SATURDAY
+            || day == DayOfWeek.SUNDAY;
+        int numberOfDays = booking.getInteger("numberOfDays", 0);
+        for (int i = 0; i < discounts.size(); i++) {
+            JsonObject discount = discounts.getJsonObject(i);
+            if (discount == null || discount.isEmpty()) {
+                continue;
+            }
+            if (discount.getBoolean("isWeekendOnly") && weekend) {
+                results.add(discount);
+            }
+            Integer days = discount.getInteger("days");
+            if (days != null && days <= numberOfDays) {
+                results.add(discount);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Puts the value of each charge.
+     * @param taxes The charges.
+     * @param basicPremium The basic premium.
+     * @param numberOfDays The number of days.
+     * @return the total, 0 as the receipts saved so far: the values are
+     *     put but not summed.
+     */
+    public static double calculateTaxes(final JsonArray taxes,
+        final double basicPremium, final double numberOfDays) {
+        if (taxes == null) {
+            return 0.0;
+        }
+
+        for (int i = 0; i < taxes.size(); i++) {
+            JsonObject tax = taxes.getJsonObject(i);
+            if (tax == null || tax.isEmpty()) {
+                continue;
+            }
+
+            double amount = tax.getDouble("amount", 0.0);
+            double value = tax.getBoolean("isAmount")
+                ? amount : amount * basicPremium / HUNDRED;
+            if (tax.getBoolean("isPaidDaily", false)) {
+                value = numberOfDays * value;
+            }
+            tax.put("value", value);
+        }
+        return 0.0;
+    }
+}
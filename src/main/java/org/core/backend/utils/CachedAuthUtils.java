@@ -0,0 +1,153 @@
+package org.core.backend.utils;
+
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.utils.backend.utils.IDBSuccess;
+import org.utils.backend.utils.IExec;
+import org.utils.backend.utils.Utils;
+
+/**
+ * The utils with cached token verification.
+ * The first call of a session is verified by Utils as before, and the user
+ * it resolved to is cached for that task, see TokenCache. Later calls of
+ * the same task with the same token run the handler straight away, as long
+ * as the RbacMatrix still allows it, so the rbac tasks are not read again.
+ * Any other call, a new task or one the matrix does not allow, goes
+ * through the full verification.
+ * Every task call is also measured, see RouteMetrics.
+ */
+public class CachedAuthUtils extends Utils {
+
+    /**
+     * The header holding the token.
+     */
+    public static final String AUTH_HEADER = "Authorization";
+
+    /**
+     * The token cache.
+     */
+    private final TokenCache tokens = TokenCache.getInstance();
+
+    /**
+     * The permission matrix.
+     */
+    private final RbacMatrix rbac = RbacMatrix.getInstance();
+
+    /**
+     * Creates the utils.
+     * @param onReady Called once the utils are initialised.
+     */
+    public CachedAuthUtils(final IDBSuccess onReady) {
+        super(onReady);
+    }
+
+    /**
+     * Runs a task for a verified user.
+     * @param task The task name.
+     * @param rc The routing context.
+     * @param exec The task.
+     * @param fields The required body fields.
+     */
+    @Override
+    public void execute2(final String task, final RoutingContext rc,
+        final IExec exec, final String... fields) {
+        final RouteMetrics metrics = RouteMetrics.begin(task, rc, false);
+        final IExec timed = (xusr, body, params, headers, res) -> {
+            metrics.authorised();
+            exec.run(xusr, body, params, headers, res);
+        };
+        this.authorise(task, rc, timed, fields);
+    }
+
+    /**
+     * Verifies the user, from the cache if possible, then runs the task.
+     * @param task The task name.
+     * @param rc The routing context.
+     * @param exec The task.
+     * @param fields The required body fields.
+     */
+    private void authorise(final String task, final RoutingContext rc,
+        final IExec exec, final String... fields) {
+        String token = rc.request().getHeader(AUTH_HEADER);
+        if (!this.tokens.isEnabled() || token == null || token.isEmpty()) {
+            super.execute2(task, rc, exec, fields);
+            return;
+        }
+
+        final String key = TokenCache.key(token, task);
+        final String sessionKey = TokenCache.key(token);
+        HttpServerResponse resp = rc.response();
+        JsonObject user = this.tokens.getUser(key);
+        if (user != null && this.rbac.isAllowed(user, task)) {
+            this.runCached(task, user, rc, exec, fields);
+            return;
+        }
+        if (this.tokens.isRejected(sessionKey)) {
+            resp.end(this.getResponse(
+                ERR_502, "Invalid or expired token").encode());
+            return;
+        }
+
+        // Only a token invalid by itself is remembered, a denied task or
+        // a failed lookup is verified again on the next call.
+        final AtomicBoolean verified = new AtomicBoolean();
+        rc.addEndHandler(ar -> {
+            if (!verified.get() && TokenCache.isInvalid(token)) {
+                this.tokens.reject(sessionKey);
+            }
+        });
+
+        super.execute2(task, rc, (xusr, body, params, headers, res) -> {
+            verified.set(true);
+            this.tokens.putUser(key, token, xusr);
+            exec.run(xusr, body, params, headers, res);
+        }, fields);
+    }
+
+    /**
+     * Runs a task that needs no verified user.
+     * @param task The task name.
+     * @param rc The routing context.
+     * @param exec The task.
+     * @param fields The required body fields.
+     */
+    @Override
+    public void execute3(final String task, final RoutingContext rc,
+        final IExec exec, final String... fields) {
+        final RouteMetrics metrics = RouteMetrics.begin(task, rc, true);
+        super.execute3(task, rc, (xusr, body, params, headers, res) -> {
+            metrics.authorised();
+            exec.run(xusr, body, params, headers, res);
+        }, fields);
+    }
+
+    /**
+     * Creates an error response, counting the error code.
+     * @param code The error code.
+     * @param message The error message.
+     * @return the response.
+     */
+    @Override
+    public JsonObject getResponse(final int code, final String message) {
+        RouteMetrics.error(code);
+        return super.getResponse(code, message);
+    }
+
+    /**
+     * Runs the task for a cached user.
+     * The body is read and checked by the Utils path of the tasks that
+     * need no user, only the token and rbac lookups are skipped.
+     * @param task The task name.
+     * @param user The cached user.
+     * @param rc The routing context.
+     * @param exec The task.
+     * @param fields The required body fields.
+     */
+    private void runCached(final String task, final JsonObject user,
+        final RoutingContext rc, final IExec exec, final String... fields) {
+        super.execute3(task, rc, (xusr, body, params, headers, res) ->
+            exec.run(user, body, params, headers, res), fields);
+    }
+}
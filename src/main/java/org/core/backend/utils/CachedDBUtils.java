@@ -0,0 +1,268 @@
+package org.core.backend.utils;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import org.utils.backend.utils.IDBFail;
+import org.utils.backend.utils.IDBJsonObject;
+import org.utils.backend.utils.IDBSuccess;
+
+/**
+ * The db utils, answering the findOne by _id of the cached collections
+ * from the EntityCache, and moving the generation of a collection in the
+ * ResultCache on every write to it.
+ * A document missed is cached once read. Every write drops the documents
+ * it may change, by _id when the write names one, else the whole
+ * collection, both when sent and when answered. A read overlapping a
+ * write is therefore not cached. A document saved without an _id is new
+ * and drops no cached document. The findOne writing the response itself is not
+ * cached, nor is the fire and forget save waited for.
+ */
+public class CachedDBUtils extends MeasuredDBUtils {
+
+    /**
+     * The cache.
+     */
+    private final EntityCache cache = EntityCache.getInstance();
+
+    /**
+     * The cached results.
+     */
+    private final ResultCache results = ResultCache.getInstance();
+
+    @Override
+    public void findOne(final String collection, final JsonObject query,
+        final IDBJsonObject success, final HttpServerResponse resp) {
+        String id = this.cachedId(collection, query);
+        if (id == null) {
+            super.findOne(collection, query, success, resp);
+        } else if (!this.fromCache(collection, id, success)) {
+            super.findOne(collection, query,
+                this.caching(collection, success), resp);
+        }
+    }
+
+    @Override
+    public void findOne(final String collection, final JsonObject query,
+        final IDBJsonObject success, final IDBFail fail) {
+        String id = this.cachedId(collection, query);
+        if (id == null) {
+            super.findOne(collection, query, success, fail);
+        } else if (!this.fromCache(collection, id, success)) {
+            super.findOne(collection, query,
+                this.caching(collection, success), fail);
+        }
+    }
+
+    @Override
+    public void save(final String collection, final JsonObject document,
+        final MultiMap headers) {
+        JsonObject key = keyOf(document);
+        invalidate(collection, key);
+        super.save(collection, document, headers);
+    }
+
+    @Override
+    public void save(final String collection, final JsonObject document,
+        final MultiMap headers, final HttpServerResponse resp) {
+        JsonObject key = keyOf(document);
+        invalidate(collection, key);
+        super.save(collection, document, headers,
+            this.invalidating(collection, key, resp));
+    }
+
+    @Override
+    public void save(final String collection, final JsonObject document,
+        final MultiMap headers, final IDBSuccess success,
+        final HttpServerResponse resp) {
+        JsonObject key = keyOf(document);
+        invalidate(collection, key);
+        super.save(collection, document, headers,
+            this.invalidating(collection, key, success),
+            this.invalidating(collection, key, resp));
+    }
+
+    @Override
+    public void save(final String collection, final JsonObject document,
+        final MultiMap headers, final IDBSuccess success,
+        final IDBFail fail) {
+        JsonObject key = keyOf(document);
+        invalidate(collection, key);
+        super.save(collection, document, headers,
+            this.invalidating(collection, key, success), fail);
+    }
+
+    @Override
+    public void update(final String collection, final JsonObject query,
+        final JsonObject update, final HttpServerResponse resp) {
+        invalidate(collection, query);
+        super.update(collection, query, update,
+            this.invalidating(collection, query, resp));
+    }
+
+    @Override
+    public void update(final String collection, final JsonObject query,
+        final JsonObject update, final IDBSuccess success,
+        final HttpServerResponse resp) {
+        invalidate(collection, query);
+        super.update(collection, query, update,
+            this.invalidating(collection, query, success),
+            this.invalidating(collection, query, resp));
+    }
+
+    @Override
+    public void update(final String collection, final JsonObject query,
+        final JsonObject update, final IDBSuccess success,
+        final IDBFail fail) {
+        invalidate(collection, query);
+        super.update(collection, query, update,
+            this.invalidating(collection, query, success), fail);
+    }
+
+    @Override
+    public void findOneAndUpdate(final String collection,
+        final JsonObject query, final JsonObject update,
+        final HttpServerResponse resp) {
+        invalidate(collection, query);
+        super.findOneAndUpdate(collection, query, update,
+            this.invalidating(collection, query, resp));
+    }
+
+    @Override
+    public void findOneAndUpdate(final String collection,
+        final JsonObject query, final JsonObject update,
+        final IDBJsonObject success, final IDBFail fail) {
+        invalidate(collection, query);
+        super.findOneAndUpdate(collection, query, update, res -> {
+            invalidate(collection, query);
+            success.run(res);
+        }, fail);
+    }
+
+    @Override
+    public void remove(final String collection, final JsonObject query,
+        final HttpServerResponse resp) {
+        invalidate(collection, query);
+        super.remove(collection, query,
+            this.invalidating(collection, query, resp));
+    }
+
+    /**
+     * Gets the filter of the document a save replaces.
+     * @param document The document saved.
+     * @return the filter on its _id, null for a new document.
+     */
+    static JsonObject keyOf(final JsonObject document) {
+        Object id = document == null ? null : document.getValue("_id");
+        return id == null ? null : new JsonObject().put("_id", id);
+    }
+
+    /**
+     * Drops the documents a write may change, and the results read from
+     * the collection. The writes made straight through the mongo client
+     * call it too, when sent and when answered.
+     * @param collection The collection name.
+     * @param query The filter of the write, null if it changes no cached
+     *     document.
+     */
+    public static void invalidate(final String collection,
+        final JsonObject query) {
+        ResultCache.getInstance().bump(collection);
+        if (query != null) {
+            EntityCache.getInstance().invalidate(collection, query);
+        }
+    }
+
+    /**
+     * Gets the _id a findOne can be answered from the cache for.
+     * @param collection The collection name.
+     * @param query The filter.
+     * @return the _id, null if the lookup is not cached.
+     */
+    private String cachedId(final String collection, final JsonObject query) {
+        return this.cache.isCached(collection) ? EntityCache.idOf(query)
+            : null;
+    }
+
+    /**
+     * Answers a findOne from the cache.
+     * @param collection The collection name.
+     * @param id The _id looked up.
+     * @param success The callback.
+     * @return false if the document is not cached.
+     */
+    private boolean fromCache(final String collection, final String id,
+        final IDBJsonObject success) {
+        JsonObject doc = this.cache.get(collection, id);
+        if (doc == null) {
+            return false;
+        }
+        success.run(doc);
+        return true;
+    }
+
+    /**
+     * Caches the document a findOne returns.
+     * @param collection The collection name.
+     * @param success The callback.
+     * @return the caching callback.
+     */
+    private IDBJsonObject caching(final String collection,
+        final IDBJsonObject success) {
+        long stamp = this.cache.stamp(collection);
+        return res -> {
+            if (res != null && !res.isEmpty()) {
+                this.cache.put(collection, res, stamp);
+            }
+            success.run(res);
+        };
+    }
+
+    /**
+     * Drops the documents a write changed once it succeeds.
+     * @param collection The collection name.
+     * @param query The filter of the write, null if it changes no cached
+     *     document.
+     * @param success The callback.
+     * @return the invalidating callback.
+     */
+    private IDBSuccess invalidating(final String collection,
+        final JsonObject query, final IDBSuccess success) {
+        return () -> {
+            invalidate(collection, query);
+            success.run();
+        };
+    }
+
+    /**
+     * Drops the documents a write changed once it ends the response.
+     * @param collection The collection name.
+     * @param query The filter of the write, null if it changes no cached
+     *     document.
+     * @param resp The response the write ends.
+     * @return the wrapped response.
+     */
+    private HttpServerResponse invalidating(final String collection,
+        final JsonObject query, final HttpServerResponse resp) {
+        if (resp == null || (!this.cache.isCached(collection)
+            && !this.results.isEnabled())) {
+            return resp;
+        }
+        return (HttpServerResponse) Proxy.newProxyInstance(
+            HttpServerResponse.class.getClassLoader(),
+            new Class<?>[] {HttpServerResponse.class},
+            (proxy, method, args) -> {
+                if ("end".equals(method.getName())) {
+                    invalidate(collection, query);
+                }
+                try {
+                    Object result = method.invoke(resp, args);
+                    return result == resp ? proxy : result;
+                } catch (final InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+    }
+}
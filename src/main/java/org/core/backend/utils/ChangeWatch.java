@@ -0,0 +1,150 @@
+package org.core.backend.utils;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A change stream of a collection, kept open for the caches.
+ * A stream that fails or ends is opened again after a delay, doubled
+ * while it keeps failing before any change arrives. The changes in between
+ * are lost, so the owner is told whenever the stream closes and again when
+ * it reopens, e.g to clear what it cached from the collection.
+ */
+final class ChangeWatch {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        ChangeWatch.class.getName());
+
+    /**
+     * The first delay before watching a collection again, in milliseconds.
+     */
+    private static final long MIN_RETRY = 1000;
+
+    /**
+     * The longest delay before watching a collection again.
+     */
+    private static final long MAX_RETRY = 60000;
+
+    /**
+     * The vertx instance.
+     */
+    private final Vertx vertx;
+
+    /**
+     * The mongo client.
+     */
+    private final MongoClient client;
+
+    /**
+     * The collection.
+     */
+    private final String collection;
+
+    /**
+     * The change stream pipeline.
+     */
+    private final JsonArray pipeline;
+
+    /**
+     * Called with every change.
+     */
+    private final Handler<ChangeStreamDocument<JsonObject>> onChange;
+
+    /**
+     * Called when changes may have been lost.
+     */
+    private final Runnable onGap;
+
+    /**
+     * Creates the watch.
+     * @param vertx The vertx instance.
+     * @param client The mongo client.
+     * @param collection The collection.
+     * @param pipeline The change stream pipeline.
+     * @param onChange Called with every change.
+     * @param onGap Called when changes may have been lost.
+     */
+    private ChangeWatch(final Vertx vertx, final MongoClient client,
+        final String collection, final JsonArray pipeline,
+        final Handler<ChangeStreamDocument<JsonObject>> onChange,
+        final Runnable onGap) {
+        this.vertx = vertx;
+        this.client = client;
+        this.collection = collection;
+        this.pipeline = pipeline;
+        this.onChange = onChange;
+        this.onGap = onGap;
+    }
+
+    /**
+     * Watches a collection until vertx closes.
+     * @param vertx The vertx instance.
+     * @param client The mongo client.
+     * @param collection The collection.
+     * @param pipeline The change stream pipeline.
+     * @param onChange Called with every change.
+     * @param onGap Called when changes may have been lost.
+     */
+    static void start(final Vertx vertx, final MongoClient client,
+        final String collection, final JsonArray pipeline,
+        final Handler<ChangeStreamDocument<JsonObject>> onChange,
+        final Runnable onGap) {
+        new ChangeWatch(vertx, client, collection, pipeline, onChange, onGap)
+            .watch(MIN_RETRY);
+    }
+
+    /**
+     * Opens the stream.
+     * @param delay The delay before watching again if the stream fails
+     *     before any change arrives.
+     */
+    private void watch(final long delay) {
+        AtomicBoolean received = new AtomicBoolean();
+        AtomicBoolean closed = new AtomicBoolean();
+        try {
+            this.client.watch(this.collection, this.pipeline, false, 1)
+                .exceptionHandler(e -> this.rewatch(
+                    received.get() ? MIN_RETRY : delay, closed,
+                    e.getMessage()))
+                .endHandler(v -> this.rewatch(
+                    received.get() ? MIN_RETRY : delay, closed,
+                    "the stream ended"))
+                .handler(change -> {
+                    received.set(true);
+                    this.onChange.handle(change);
+                });
+        } catch (final RuntimeException e) {
+            this.rewatch(delay, closed, e.getMessage());
+        }
+    }
+
+    /**
+     * Reports the gap of a closed stream and opens it again later.
+     * @param delay The delay before watching again.
+     * @param closed Whether the stream was already handled as closed.
+     * @param reason Why the stream closed.
+     */
+    private void rewatch(final long delay, final AtomicBoolean closed,
+        final String reason) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        this.onGap.run();
+        LOGGER.info("Not watching " + this.collection + " for " + delay
+            + "ms: " + reason);
+        this.vertx.setTimer(delay, id -> {
+            this.onGap.run();
+            this.watch(Math.min(delay * 2, MAX_RETRY));
+        });
+    }
+}
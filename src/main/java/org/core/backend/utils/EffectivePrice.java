@@ -0,0 +1,201 @@
+package org.core.backend.utils;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.core.backend.models.Collections;
+
+/**
+ * Builds the effective price aggregation.
+ * The active discounts and promotions of each listing are joined and
+ * applied inside mongo, so any number of listings is priced in one round
+ * trip. Percentage rules compound on the base amount, then the fixed
+ * amount rules are taken off, never going below zero.
+ * The rule windows are compared as dates, not as strings, so offsets and
+ * fractions of a second in the stored ISO dates are taken into account.
+ * A window that is not a date never applies.
+ */
+public final class EffectivePrice {
+
+    /**
+     * The rule type that takes a percentage off, any other type takes off
+     * a fixed amount.
+     */
+    public static final String PERCENTAGE = "percentage";
+
+    /**
+     * The largest percentage a rule can take off.
+     */
+    private static final int MAX_PERCENTAGE = 100;
+
+    /**
+     * The time a rule with an unreadable start date starts, never.
+     */
+    private static final long NEVER = 253402300799000L;
+
+    /**
+     * Hidden constructor.
+     */
+    private EffectivePrice() {
+    }
+
+    /**
+     * Creates the pipeline, run on the listings collection.
+     * @param match The listings to price.
+     * @return the pipeline, one result per listing, with a null
+     *     effectivePrice if the listing has no amount.
+     */
+    public static JsonArray pipeline(final JsonObject match) {
+        JsonObject live = new JsonObject()
+            .put("status", "active")
+            .put("$expr", new JsonObject().put("$and", new JsonArray()
+                .add(new JsonObject().put("$lte", new JsonArray()
+                    .add(toDate("startDate", NEVER)).add("$$NOW")))
+                .add(new JsonObject().put("$gte", new JsonArray()
+                    .add(toDate("endDate", 0L)).add("$$NOW")))));
+
+        JsonObject base = new JsonObject().put("$ifNull", new JsonArray()
+            .add("$amount")
+            .add(new JsonObject().put("$ifNull", new JsonArray()
+                .add("$premium.basicPremium").addNull())));
+        JsonObject rules = new JsonObject().put("$concatArrays",
+            new JsonArray().add("$discounts").add("$promotions"));
+
+        return new JsonArray()
+            .add(new JsonObject().put("$match", match))
+            .add(lookupRules(Collections.LISTING_DISCOUNTS,
+                Collections.DISCOUNTS, "discountId", live, "discounts"))
+            .add(lookupRules(Collections.LISTING_PROMOTIONS,
+                Collections.PROMOTIONS, "promotionId", live, "promotions"))
+            .add(new JsonObject().put("$project", new JsonObject()
+                .put("_id", 0)
+                .put("listingId", "$_id")
+                .put("baseAmount", base)
+                .put("discountsApplied",
+                    new JsonObject().put("$size", "$discounts"))
+                .put("promotionsApplied",
+                    new JsonObject().put("$size", "$promotions"))
+                .put("factor", percentageFactor(rules))
+                .put("fixed", fixedTotal(rules))))
+            .add(new JsonObject().put("$addFields", new JsonObject()
+                .put("effectivePrice", new JsonObject().put("$cond",
+                    new JsonArray()
+                        .add(new JsonObject().put("$eq", new JsonArray()
+                            .add("$baseAmount").addNull()))
+                        .addNull()
+                        .add(new JsonObject().put("$max", new JsonArray()
+                            .add(0)
+                            .add(new JsonObject().put("$subtract",
+                                new JsonArray()
+                                    .add(new JsonObject().put("$multiply",
+                                        new JsonArray().add("$baseAmount")
+                                            .add("$factor")))
+                                    .add("$fixed")))))))))
+            .add(new JsonObject().put("$addFields", new JsonObject()
+                .put("savings", new JsonObject().put("$subtract",
+                    new JsonArray().add("$baseAmount")
+                        .add("$effectivePrice")))))
+            .add(new JsonObject().put("$project", new JsonObject()
+                .put("factor", 0).put("fixed", 0)));
+    }
+
+    /**
+     * Converts a window field to a date, a missing field being now.
+     * @param field The field, an ISO date, a date or epoch milliseconds.
+     * @param onError The epoch milliseconds used if it is not a date.
+     * @return the date expression.
+     */
+    private static JsonObject toDate(final String field, final long onError) {
+        return new JsonObject().put("$convert", new JsonObject()
+            .put("input", "$" + field)
+            .put("to", "date")
+            .put("onNull", "$$NOW")
+            .put("onError", new JsonObject().put("$toDate", onError)));
+    }
+
+    /**
+     * Creates the $lookup of the live rules linked to a listing.
+     * @param links The collection linking listings to rules.
+     * @param rules The rules collection.
+     * @param ruleId The rule id field of the links.
+     * @param live The query matching live links and rules.
+     * @param as The output field.
+     * @return the $lookup stage.
+     */
+    private static JsonObject lookupRules(final Collections links,
+        final Collections rules, final String ruleId, final JsonObject live,
+        final String as) {
+        JsonArray pipeline = new JsonArray()
+            .add(new JsonObject().put("$match", new JsonObject()
+                .put("$expr", new JsonObject().put("$eq", new JsonArray()
+                    .add("$listingId").add("$$listingId")))
+                .put("status", "active")))
+            .add(new JsonObject().put("$lookup", new JsonObject()
+                .put("from", rules.toString())
+                .put("localField", ruleId)
+                .put("foreignField", "_id")
+                .put("as", "rule")))
+            .add(new JsonObject().put("$unwind", "$rule"))
+            .add(new JsonObject().put("$replaceRoot",
+                new JsonObject().put("newRoot", "$rule")))
+            .add(new JsonObject().put("$match", live.copy()))
+            .add(new JsonObject().put("$project", new JsonObject()
+                .put("type", 1).put("value", 1)));
+
+        return new JsonObject().put("$lookup", new JsonObject()
+            .put("from", links.toString())
+            .put("let", new JsonObject().put("listingId", "$_id"))
+            .put("pipeline", pipeline)
+            .put("as", as));
+    }
+
+    /**
+     * Creates the product of the percentage rules, e.g 0.9 for 10% off.
+     * @param rules The rules expression.
+     * @return the factor expression.
+     */
+    private static JsonObject percentageFactor(final JsonObject rules) {
+        JsonObject off = new JsonObject().put("$divide", new JsonArray()
+            .add(new JsonObject().put("$min", new JsonArray()
+                .add(MAX_PERCENTAGE)
+                .add(new JsonObject().put("$ifNull", new JsonArray()
+                    .add("$$this.value").add(0)))))
+            .add(MAX_PERCENTAGE));
+
+        return new JsonObject().put("$reduce", new JsonObject()
+            .put("input", filterRules(rules, "$eq"))
+            .put("initialValue", 1)
+            .put("in", new JsonObject().put("$multiply", new JsonArray()
+                .add("$$value")
+                .add(new JsonObject().put("$subtract",
+                    new JsonArray().add(1).add(off))))));
+    }
+
+    /**
+     * Creates the sum of the fixed amount rules.
+     * @param rules The rules expression.
+     * @return the total expression.
+     */
+    private static JsonObject fixedTotal(final JsonObject rules) {
+        return new JsonObject().put("$reduce", new JsonObject()
+            .put("input", filterRules(rules, "$ne"))
+            .put("initialValue", 0)
+            .put("in", new JsonObject().put("$add", new JsonArray()
+                .add("$$value")
+                .add(new JsonObject().put("$ifNull", new JsonArray()
+                    .add("$$this.value").add(0))))));
+    }
+
+    /**
+     * Filters the rules on their type.
+     * @param rules The rules expression.
+     * @param op $eq for the percentage rules, $ne for the others.
+     * @return the filter expression.
+     */
+    private static JsonObject filterRules(final JsonObject rules,
+        final String op) {
+        return new JsonObject().put("$filter", new JsonObject()
+            .put("input", rules)
+            .put("cond", new JsonObject().put(op, new JsonArray()
+                .add("$$this.type").add(PERCENTAGE))));
+    }
+}
@@ -0,0 +1,622 @@
+package org.core.backend.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.UpdateOptions;
+import io.vertx.micrometer.backends.BackendRegistries;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.utils.backend.utils.Utils;
+
+/**
+ * The outbox of the emails sent by the services.
+ * A handler only inserts the email, a worker then claims the due emails in
+ * batches and sends them, a few at a time and no faster than the provider
+ * rate limit. A failed send is retried with an exponential backoff, and an
+ * email that can never be sent, or failed too many times, is dead lettered
+ * with status dead. Emails claimed by a worker that went away are claimed
+ * again once their lease runs out.
+ */
+public final class EmailOutbox {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        EmailOutbox.class.getName());
+
+    /**
+     * The env var holding the number of emails claimed at once.
+     */
+    public static final String BATCH_ENV = "EMAIL_OUTBOX_BATCH";
+
+    /**
+     * The env var holding the number of emails sent at the same time.
+     */
+    public static final String WORKERS_ENV = "EMAIL_OUTBOX_WORKERS";
+
+    /**
+     * The env var holding the most emails sent per second.
+     */
+    public static final String RATE_ENV = "EMAIL_RATE_LIMIT";
+
+    /**
+     * An email waiting to be sent.
+     */
+    public static final String PENDING = "pending";
+
+    /**
+     * An email claimed by a worker.
+     */
+    public static final String SENDING = "sending";
+
+    /**
+     * A sent email.
+     */
+    public static final String SENT = "sent";
+
+    /**
+     * An email that will not be sent.
+     */
+    public static final String DEAD = "dead";
+
+    /**
+     * The default number of emails claimed at once.
+     */
+    private static final int DEFAULT_BATCH = 50;
+
+    /**
+     * The default number of emails sent at the same time.
+     */
+    private static final int DEFAULT_WORKERS = 4;
+
+    /**
+     * The default most emails sent per second.
+     */
+    private static final int DEFAULT_RATE = 10;
+
+    /**
+     * The sends an email gets before it is dead lettered.
+     */
+    private static final int MAX_ATTEMPTS = 8;
+
+    /**
+     * The time between two claims in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    /**
+     * The time in milliseconds after which a claimed email that was
+     * neither sent nor released can be claimed again.
+     */
+    private static final long LEASE = 300000;
+
+    /**
+     * The wait before the first retry in milliseconds, doubled on each
+     * further retry.
+     */
+    private static final long BASE_BACKOFF = 2000;
+
+    /**
+     * The longest wait before a retry in milliseconds.
+     */
+    private static final long MAX_BACKOFF = 3600000;
+
+    /**
+     * The pause after the provider asked to slow down, in milliseconds.
+     */
+    private static final long THROTTLE_PAUSE = 1000;
+
+    /**
+     * The http status of a rate limited request.
+     */
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The lowest http status of a server error.
+     */
+    private static final int SERVER_ERROR = 500;
+
+    /**
+     * The lowest http status of a client error.
+     */
+    private static final int CLIENT_ERROR = 400;
+
+    /**
+     * The lowest http status of a success.
+     */
+    private static final int OK = 200;
+
+    /**
+     * Microseconds per second.
+     */
+    private static final long MICROS = 1000000;
+
+    /**
+     * Microseconds per millisecond, and nanoseconds per microsecond.
+     */
+    private static final long MICROS_PER_MILLI = 1000;
+
+    /**
+     * The user fields passed to the template of an email sent to a user.
+     */
+    private static final String[] USER_FIELDS = {
+        "_id", "email", "firstName", "lastName", "username"
+    };
+
+    /**
+     * The process wide instance.
+     */
+    private static final EmailOutbox INSTANCE = new EmailOutbox();
+
+    /**
+     * Whether the worker was started.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Whether a claim is running.
+     */
+    private final AtomicBoolean claiming = new AtomicBoolean();
+
+    /**
+     * The claimed emails waiting for a worker.
+     */
+    private final Queue<JsonObject> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The emails being sent.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * The time in microseconds of the next free send slot.
+     */
+    private final AtomicLong nextSlot = new AtomicLong();
+
+    /**
+     * The number of emails claimed at once.
+     */
+    private final int batch = readInt(BATCH_ENV, DEFAULT_BATCH);
+
+    /**
+     * The number of emails sent at the same time.
+     */
+    private final int workers = readInt(WORKERS_ENV, DEFAULT_WORKERS);
+
+    /**
+     * The time in microseconds between two sends.
+     */
+    private final long slot = MICROS / readInt(RATE_ENV, DEFAULT_RATE);
+
+    /**
+     * The vertx instance.
+     */
+    private Vertx vertx;
+
+    /**
+     * The mongo client.
+     */
+    private MongoClient client;
+
+    /**
+     * The outbox collection.
+     */
+    private String collection;
+
+    /**
+     * The mailgun client, null if mailgun is not configured.
+     */
+    private MailgunClient mailgun;
+
+    /**
+     * The utils sending the emails when mailgun is not configured.
+     */
+    private Utils utils;
+
+    /**
+     * The sent counter, null when metrics are disabled.
+     */
+    private Counter sent;
+
+    /**
+     * The retried counter, null when metrics are disabled.
+     */
+    private Counter retried;
+
+    /**
+     * The dead letter counter, null when metrics are disabled.
+     */
+    private Counter dead;
+
+    /**
+     * Hidden constructor.
+     */
+    private EmailOutbox() {
+    }
+
+    /**
+     * Gets the process wide instance.
+     * @return the outbox.
+     */
+    public static EmailOutbox getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reads a positive int from an env var.
+     * @param env The env var name.
+     * @param defaultValue The value used when the env var is missing.
+     * @return the value.
+     */
+    private static int readInt(final String env, final int defaultValue) {
+        String value = System.getenv(env);
+        try {
+            int result = value == null
+                ? defaultValue : Integer.parseInt(value.trim());
+            return result > 0 ? result : defaultValue;
+        } catch (final NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Creates an email.
+     * @param to The recipient.
+     * @param subject The subject.
+     * @param message The body.
+     * @param html Whether the body is html.
+     * @param from The sender, the default one if empty.
+     * @return the email.
+     */
+    public static JsonObject text(final String to, final String subject,
+        final String message, final boolean html, final String from) {
+        return new JsonObject()
+            .put("to", to)
+            .put("subject", subject)
+            .put("message", message)
+            .put("html", html)
+            .put("from", from);
+    }
+
+    /**
+     * Creates a templated email to a user.
+     * The fields naming the user become template variables for Mailgun,
+     * the utils fallback is passed the whole user and the params as given,
+     * like a direct Utils.sendEmailToUser call.
+     * @param user The user.
+     * @param subject The subject.
+     * @param template The template name.
+     * @param params The template variables.
+     * @return the email.
+     */
+    public static JsonObject template(final JsonObject user,
+        final String subject, final String template,
+        final JsonObject params) {
+        JsonObject recipient = new JsonObject();
+        for (String field : USER_FIELDS) {
+            if (user.getValue(field) != null) {
+                recipient.put(field, user.getValue(field));
+            }
+        }
+        JsonObject variables = recipient.copy();
+        variables.remove("_id");
+        if (params != null) {
+            variables.mergeIn(params);
+        }
+
+        return new JsonObject()
+            .put("to", recipient.getString("email"))
+            .put("subject", subject)
+            .put("template", template)
+            .put("variables", variables)
+            .put("params", params == null ? new JsonObject() : params.copy())
+            .put("user", user.copy());
+    }
+
+    /**
+     * Adds an email to the outbox.
+     * @param mongo The mongo client.
+     * @param email The email, see text and template.
+     * @return a future completed with the email id.
+     */
+    public Future<String> enqueue(final MongoClient mongo,
+        final JsonObject email) {
+        long now = System.currentTimeMillis();
+        JsonObject doc = email.copy()
+            .put("status", PENDING)
+            .put("attempts", 0)
+            .put("createdAt", now)
+            .put("nextAttemptAt", now);
+        return mongo.insert(
+                org.core.backend.models.Collections.EMAIL_OUTBOX.toString(),
+                doc)
+            .onFailure(e -> LOGGER.error("Failed to queue the email "
+                + email.getString("subject"), e));
+    }
+
+    /**
+     * Starts the worker of this process.
+     * Only the first call does anything. The indexes the worker polls and
+     * claims with are in the IndexCatalogue.
+     * @param vertx The vertx instance.
+     * @param mongo The mongo client.
+     * @param fallback The utils sending the emails when mailgun is not
+     *     configured.
+     */
+    public void start(final Vertx vertx, final MongoClient mongo,
+        final Utils fallback) {
+        if (!this.started.compareAndSet(false, true)) {
+            return;
+        }
+
+        this.vertx = vertx;
+        this.client = mongo;
+        this.collection =
+            org.core.backend.models.Collections.EMAIL_OUTBOX.toString();
+        this.utils = fallback;
+        if (MailgunClient.isConfigured()) {
+            this.mailgun = new MailgunClient(vertx);
+        } else {
+            LOGGER.info("Mailgun is not configured, sending the outbox "
+                + "emails through the utils");
+        }
+
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        if (registry != null) {
+            this.sent = counter(registry, SENT);
+            this.retried = counter(registry, "retried");
+            this.dead = counter(registry, DEAD);
+        }
+
+        this.vertx.setPeriodic(POLL_INTERVAL, id -> this.poll());
+    }
+
+    /**
+     * Creates an outcome counter.
+     * @param registry The meter registry.
+     * @param result The outcome tag.
+     * @return the counter.
+     */
+    private static Counter counter(final MeterRegistry registry,
+        final String result) {
+        return Counter.builder("emails.outbox")
+            .tag("result", result)
+            .description("Outbox emails by outcome")
+            .register(registry);
+    }
+
+    /**
+     * Claims the next batch once the previous one is done.
+     */
+    private void poll() {
+        if (this.queue.isEmpty() && this.inFlight.get() == 0
+            && this.claiming.compareAndSet(false, true)) {
+            this.claim().onComplete(res -> {
+                this.claiming.set(false);
+                if (res.succeeded()) {
+                    this.queue.addAll(res.result());
+                    this.pump();
+                }
+            });
+        }
+    }
+
+    /**
+     * Claims the due emails, and the ones whose lease ran out.
+     * Another worker may claim some of the same emails at the same time,
+     * only the ones carrying this claim id are returned.
+     * @return a future completed with the claimed emails.
+     */
+    private Future<List<JsonObject>> claim() {
+        long now = System.currentTimeMillis();
+        JsonObject due = new JsonObject().put("$or", new JsonArray()
+            .add(new JsonObject()
+                .put("status", PENDING)
+                .put("nextAttemptAt", new JsonObject().put("$lte", now)))
+            .add(new JsonObject()
+                .put("status", SENDING)
+                .put("claimedAt",
+                    new JsonObject().put("$lte", now - LEASE))));
+        FindOptions options = new FindOptions()
+            .setFields(new JsonObject().put("_id", 1))
+            .setSort(new JsonObject().put("nextAttemptAt", 1))
+            .setLimit(this.batch);
+
+        return this.client.findWithOptions(this.collection, due, options)
+            .compose(docs -> {
+                if (docs.isEmpty()) {
+                    return Future.succeededFuture(
+                        Collections.<JsonObject>emptyList());
+                }
+
+                JsonArray ids = new JsonArray();
+                docs.forEach(doc -> ids.add(doc.getValue("_id")));
+                String claimId = UUID.randomUUID().toString();
+                JsonObject query = due.copy().put("_id",
+                    new JsonObject().put("$in", ids));
+                JsonObject update = new JsonObject().put("$set",
+                    new JsonObject()
+                        .put("status", SENDING)
+                        .put("claimId", claimId)
+                        .put("claimedAt", now));
+                return this.client.updateCollectionWithOptions(
+                        this.collection, query, update,
+                        new UpdateOptions().setMulti(true))
+                    .compose(res -> this.client.find(this.collection,
+                        new JsonObject().put("claimId", claimId)));
+            })
+            .onFailure(e -> LOGGER.error("Failed to claim emails", e));
+    }
+
+    /**
+     * Hands the queued emails to the free workers.
+     */
+    private void pump() {
+        while (this.inFlight.get() < this.workers) {
+            JsonObject email = this.queue.poll();
+            if (email == null) {
+                break;
+            }
+
+            this.inFlight.incrementAndGet();
+            long delay = this.reserveSlot();
+            if (delay > 0) {
+                this.vertx.setTimer(delay, id -> this.dispatch(email));
+            } else {
+                this.dispatch(email);
+            }
+        }
+    }
+
+    /**
+     * Reserves the next send slot of the rate limit.
+     * @return the wait before the slot in milliseconds.
+     */
+    private long reserveSlot() {
+        long now = nowMicros();
+        long start = this.nextSlot.getAndUpdate(
+            prev -> Math.max(prev, now) + this.slot);
+        return (Math.max(start, now) - now) / MICROS_PER_MILLI;
+    }
+
+    /**
+     * Reads the monotonic clock.
+     * @return the time in microseconds.
+     */
+    private static long nowMicros() {
+        return System.nanoTime() / MICROS_PER_MILLI;
+    }
+
+    /**
+     * Sends an email and records the outcome.
+     * Frees the worker, and claims the next batch once the queue is empty.
+     * @param email The claimed email.
+     */
+    private void dispatch(final JsonObject email) {
+        this.send(email)
+            .transform(res -> this.record(email, res))
+            .onComplete(res -> {
+                this.inFlight.decrementAndGet();
+                this.pump();
+                this.poll();
+            });
+    }
+
+    /**
+     * Sends an email.
+     * @param email The email.
+     * @return a future completed with the http status code.
+     */
+    private Future<Integer> send(final JsonObject email) {
+        if (this.mailgun != null) {
+            return this.mailgun.send(email);
+        }
+
+        // The utils do not report failures, the email counts as sent.
+        if (email.getString("template") != null) {
+            this.utils.sendEmailToUser(
+                email.getJsonObject("user", new JsonObject()),
+                email.getString("subject"), email.getString("template"),
+                email.getJsonObject("params", new JsonObject()));
+        } else {
+            this.utils.emailByMailgun(email.getString("to"),
+                email.getString("subject"), email.getString("message"),
+                email.getBoolean("html", false),
+                email.getString("from", ""));
+        }
+        return Future.succeededFuture(OK);
+    }
+
+    /**
+     * Records the outcome of a send.
+     * Unreachable provider, rate limited and server errors are retried,
+     * other client errors are final.
+     * @param email The email.
+     * @param res The send result.
+     * @return a future completed once recorded.
+     */
+    private Future<Void> record(final JsonObject email,
+        final AsyncResult<Integer> res) {
+        int status = res.succeeded() ? res.result() : 0;
+        long now = System.currentTimeMillis();
+        JsonObject set = new JsonObject();
+
+        if (status >= OK && status < CLIENT_ERROR) {
+            set.put("status", SENT).put("sentAt", now);
+            increment(this.sent);
+        } else {
+            String error = res.succeeded()
+                ? "HTTP " + status : res.cause().getMessage();
+            int attempts = email.getInteger("attempts", 0) + 1;
+            boolean retry = res.failed() || status == TOO_MANY_REQUESTS
+                || status >= SERVER_ERROR;
+            if (status == TOO_MANY_REQUESTS) {
+                this.nextSlot.accumulateAndGet(nowMicros()
+                    + THROTTLE_PAUSE * MICROS_PER_MILLI, Math::max);
+            }
+
+            set.put("attempts", attempts).put("lastError", error);
+            if (retry && attempts < MAX_ATTEMPTS) {
+                set.put("status", PENDING)
+                    .put("nextAttemptAt", now + backoff(attempts));
+                increment(this.retried);
+            } else {
+                set.put("status", DEAD).put("deadAt", now);
+                increment(this.dead);
+                LOGGER.warn("Dead lettered email " + email.getValue("_id")
+                    + " after " + attempts + " attempts: " + error);
+            }
+        }
+
+        JsonObject query = new JsonObject()
+            .put("_id", email.getValue("_id"))
+            .put("claimId", email.getString("claimId"));
+        JsonObject update = new JsonObject()
+            .put("$set", set)
+            .put("$unset", new JsonObject()
+                .put("claimId", "").put("claimedAt", ""));
+        return this.client.updateCollection(this.collection, query, update)
+            .<Void>mapEmpty()
+            .onFailure(e -> LOGGER.error("Failed to record email "
+                + email.getValue("_id"), e));
+    }
+
+    /**
+     * Computes the wait before a retry, doubled on each attempt, with up
+     * to a quarter of jitter so retries of a burst spread out.
+     * @param attempts The failed attempts so far.
+     * @return the wait in milliseconds.
+     */
+    private static long backoff(final int attempts) {
+        long wait = Math.min(MAX_BACKOFF,
+            BASE_BACKOFF << Math.min(attempts - 1, Long.SIZE / 2));
+        return wait + ThreadLocalRandom.current().nextLong(wait / 4 + 1);
+    }
+
+    /**
+     * Increments a counter if metrics are enabled.
+     * @param counter The counter.
+     */
+    private static void increment(final Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+}
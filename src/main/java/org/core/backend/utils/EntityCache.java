@@ -0,0 +1,786 @@
+package org.core.backend.utils;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.micrometer.backends.BackendRegistries;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * A cache of the documents read by _id, for the collections read far more
+ * often than written: listings, organisations, users and listing types.
+ * Every collection has a region bounded in size and time, evicting with
+ * W-TinyLFU: a new document enters a small LRU window, and only replaces a
+ * document of the main space if it was asked for more often, as counted by
+ * a frequency sketch. One off reads therefore do not flush the documents
+ * read again and again.
+ * A collection may be kept encoded in an OffHeapStore instead, only its
+ * index and the eviction policy staying on the heap, e.g the listings of a
+ * whole catalogue. It is opt in, the direct memory coming on top of the
+ * heap. Every hit copies the bytes out, outside of the lock of the region,
+ * and decodes them on the first read of a field, see LazyDocument. The
+ * stores are compacted in the background, never by a lookup.
+ * A document is dropped on every write through the db utils of this
+ * process, and on the writes of the other replicas through a change stream
+ * of its collection. A stream that fails or ends is opened again, see
+ * ChangeWatch, the collection being cleared as its changes in between are
+ * lost. Without change streams, e.g a
+ * standalone mongo, the other replicas' writes show once the entry
+ * expires.
+ */
+public final class EntityCache {
+
+    /**
+     * The env var turning the cache off when false.
+     */
+    public static final String ENABLED_ENV = "ENTITY_CACHE";
+
+    /**
+     * The prefix of the env vars configuring a collection, followed by its
+     * name in upper case, e.g ENTITY_CACHE_LISTINGS=250000,30000,offheap
+     * for the capacity, the time to live in milliseconds and where the
+     * documents are kept, heap, the default, or offheap. A capacity of 0
+     * turns the collection off.
+     */
+    public static final String COLLECTION_ENV = "ENTITY_CACHE_";
+
+    /**
+     * The env var holding the largest size of the off heap documents of
+     * all the collections together, in bytes.
+     */
+    public static final String OFFHEAP_BYTES_ENV = "ENTITY_CACHE_OFFHEAP_BYTES";
+
+    /**
+     * The default largest size of the off heap documents, as a share of
+     * the largest heap, 1/4: 512MB with a 2GB heap.
+     */
+    private static final int OFFHEAP_HEAP_SHIFT = 2;
+
+    /**
+     * The period the off heap stores are compacted at, in milliseconds.
+     */
+    private static final long COMPACT_PERIOD = 10000;
+
+    /**
+     * The collections cached by default, with their capacity, time to
+     * live in milliseconds, and whether kept off heap.
+     */
+    private static final Object[][] DEFAULTS = {
+        {"listings", 20000, 30000L, false},
+        {"organisation", 2000, 300000L, false},
+        {"users", 10000, 60000L, false},
+        {"listing_types", 1000, 300000L, false},
+    };
+
+    /**
+     * The share of a region given to its window, in percent.
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * The share of the main space of a region protected from eviction by a
+     * second hit, in percent.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * Percent.
+     */
+    private static final int PERCENT = 100;
+
+    /**
+     * The process wide instance.
+     */
+    private static final EntityCache INSTANCE = new EntityCache();
+
+    /**
+     * Whether the cache is on.
+     */
+    private final boolean enabled;
+
+    /**
+     * The regions by collection.
+     */
+    private final Map<String, Region> regions;
+
+    /**
+     * Whether the change streams were started.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Creates the cache from the env vars.
+     */
+    private EntityCache() {
+        this.enabled = !"false".equalsIgnoreCase(System.getenv(ENABLED_ENV));
+        Map<String, Region> result = new HashMap<>();
+        long offHeapBytes = Runtime.getRuntime().maxMemory()
+            >> OFFHEAP_HEAP_SHIFT;
+        String bytes = System.getenv(OFFHEAP_BYTES_ENV);
+        if (bytes != null && bytes.trim().matches("[0-9]+")) {
+            offHeapBytes = Long.parseLong(bytes.trim());
+        }
+        AtomicLong budget = new AtomicLong(offHeapBytes);
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        for (Object[] config : DEFAULTS) {
+            String collection = (String) config[0];
+            int capacity = (Integer) config[1];
+            long ttl = (Long) config[2];
+            boolean offHeap = (Boolean) config[3];
+            String value = System.getenv(COLLECTION_ENV
+                + collection.toUpperCase());
+            if (value != null && value.trim()
+                .matches("[0-9]+(,[0-9]+(,(heap|offheap))?)?")) {
+                String[] parts = value.trim().split(",");
+                capacity = Integer.parseInt(parts[0]);
+                ttl = parts.length > 1 ? Long.parseLong(parts[1]) : ttl;
+                offHeap = parts.length > 2 ? "offheap".equals(parts[2])
+                    : offHeap;
+            }
+            if (this.enabled && capacity > 0 && ttl > 0) {
+                result.put(collection, new Region(collection, capacity, ttl,
+                    offHeap ? new OffHeapStore(budget) : null,
+                    registry));
+            }
+        }
+        this.regions = Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Gets the process wide instance.
+     * @return the entity cache.
+     */
+    public static EntityCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks if any collection is cached.
+     * @return false if turned off.
+     */
+    public boolean isEnabled() {
+        return !this.regions.isEmpty();
+    }
+
+    /**
+     * Checks if a collection is cached.
+     * @param collection The collection name.
+     * @return true if its documents are cached.
+     */
+    public boolean isCached(final String collection) {
+        return this.regions.containsKey(collection);
+    }
+
+    /**
+     * Watches the cached collections for the writes of the other replicas,
+     * and compacts the off heap stores on a worker thread.
+     * Only the first call does anything.
+     * @param vertx The vertx instance.
+     * @param client The mongo client.
+     */
+    public void start(final Vertx vertx, final MongoClient client) {
+        if (!this.isEnabled() || !this.started.compareAndSet(false, true)) {
+            return;
+        }
+        JsonArray pipeline = new JsonArray().add(new JsonObject()
+            .put("$project", new JsonObject()
+                .put("documentKey", 1).put("operationType", 1)));
+        for (Region region : this.regions.values()) {
+            ChangeWatch.start(vertx, client, region.collection, pipeline,
+                change -> this.onChange(region, change), region::clear);
+            if (region.store != null) {
+                vertx.setPeriodic(COMPACT_PERIOD, id -> vertx.executeBlocking(
+                    f -> {
+                        region.store.compact();
+                        f.complete();
+                    }, false, res -> { }));
+            }
+        }
+    }
+
+    /**
+     * Drops the document a change is about.
+     * @param region The region of the changed collection.
+     * @param change The change event.
+     */
+    private void onChange(final Region region,
+        final ChangeStreamDocument<JsonObject> change) {
+        BsonDocument key = change.getDocumentKey();
+        BsonValue id = key == null ? null : key.get("_id");
+        if (id != null && id.isString()) {
+            region.invalidate(id.asString().getValue());
+        } else {
+            region.clear();
+        }
+    }
+
+    /**
+     * Gets a document.
+     * @param collection The collection name.
+     * @param id The _id of the document.
+     * @return a copy of the document, null if not cached.
+     */
+    public JsonObject get(final String collection, final String id) {
+        Region region = this.regions.get(collection);
+        if (region == null || id == null) {
+            return null;
+        }
+        return region.get(id);
+    }
+
+    /**
+     * Gets the stamp of a collection, to be taken before reading the
+     * documents later passed to put.
+     * @param collection The collection name.
+     * @return the stamp, changed by every invalidation.
+     */
+    public long stamp(final String collection) {
+        Region region = this.regions.get(collection);
+        return region == null ? 0 : region.stamp();
+    }
+
+    /**
+     * Caches a document read from the database.
+     * Left out if the collection was written to since the stamp was taken,
+     * the document read may then be older than the write.
+     * @param collection The collection name.
+     * @param doc The document.
+     * @param stamp The stamp of the collection taken before reading.
+     */
+    public void put(final String collection, final JsonObject doc,
+        final long stamp) {
+        Region region = this.regions.get(collection);
+        if (region != null && doc != null && doc.getValue("_id") != null) {
+            region.put(String.valueOf(doc.getValue("_id")), doc, stamp);
+        }
+    }
+
+    /**
+     * Drops the documents a write may change.
+     * @param collection The collection name.
+     * @param query The filter of the write, or the document saved.
+     */
+    public void invalidate(final String collection, final JsonObject query) {
+        Region region = this.regions.get(collection);
+        if (region == null) {
+            return;
+        }
+        Object id = query == null ? null : query.getValue("_id");
+        if (id instanceof String || id instanceof Number) {
+            region.invalidate(String.valueOf(id));
+        } else {
+            region.clear();
+        }
+    }
+
+    /**
+     * Gets the _id a findOne looks up, if it can be served from the cache,
+     * i.e by a plain _id and nothing else.
+     * @param query The filter.
+     * @return the _id, null if the query is not by _id only.
+     */
+    public static String idOf(final JsonObject query) {
+        if (query == null || query.size() != 1) {
+            return null;
+        }
+        Object id = query.getValue("_id");
+        return id instanceof String || id instanceof Number
+            ? String.valueOf(id) : null;
+    }
+
+    /**
+     * The cached documents of a collection.
+     * The window, probation and protected spaces are lru ordered maps,
+     * the first entry is the next to go, their nodes holding the documents
+     * or, when the documents are kept in a store, their expiry only.
+     * A document is read into the window, then admitted to probation if it
+     * is used more than the document it would replace, and protected once
+     * hit again there.
+     */
+    private static final class Region {
+
+        /**
+         * The collection name.
+         */
+        private final String collection;
+
+        /**
+         * The time to live of the documents, in milliseconds.
+         */
+        private final long ttl;
+
+        /**
+         * The largest size of the window.
+         */
+        private final int windowMax;
+
+        /**
+         * The largest size of the probation and protected spaces together.
+         */
+        private final int mainMax;
+
+        /**
+         * The largest size of the protected space.
+         */
+        private final int protectedMax;
+
+        /**
+         * The recently read documents.
+         */
+        private final LinkedHashMap<String, Node> window = lru();
+
+        /**
+         * The documents admitted to the main space, not hit there yet.
+         */
+        private final LinkedHashMap<String, Node> probation = lru();
+
+        /**
+         * The documents hit in the main space.
+         */
+        private final LinkedHashMap<String, Node> kept = lru();
+
+        /**
+         * The documents kept off heap, null if kept in the nodes.
+         */
+        private final OffHeapStore store;
+
+        /**
+         * The use counts of the documents, cached or not.
+         */
+        private final Sketch sketch;
+
+        /**
+         * The number of invalidations.
+         */
+        private long stamp;
+
+        /**
+         * The hit counter, null when metrics are disabled.
+         */
+        private final Counter hits;
+
+        /**
+         * The miss counter, null when metrics are disabled.
+         */
+        private final Counter misses;
+
+        /**
+         * The eviction counter, null when metrics are disabled.
+         */
+        private final Counter evictions;
+
+        /**
+         * Creates a region.
+         * @param collection The collection name.
+         * @param capacity The largest number of documents.
+         * @param ttl The time to live of the documents, in milliseconds.
+         * @param store The store of the documents, null to keep them in
+         *     the heap.
+         * @param registry The meter registry, null if disabled.
+         */
+        private Region(final String collection, final int capacity,
+            final long ttl, final OffHeapStore store,
+            final MeterRegistry registry) {
+            this.collection = collection;
+            this.ttl = ttl;
+            this.store = store;
+            this.windowMax = Math.max(1, capacity * WINDOW_PERCENT / PERCENT);
+            this.mainMax = Math.max(0, capacity - this.windowMax);
+            this.protectedMax = this.mainMax * PROTECTED_PERCENT / PERCENT;
+            this.sketch = new Sketch(capacity);
+            if (registry == null) {
+                this.hits = null;
+                this.misses = null;
+                this.evictions = null;
+            } else {
+                this.hits = counter(registry, "entity.cache", "hit");
+                this.misses = counter(registry, "entity.cache", "miss");
+                this.evictions = counter(registry,
+                    "entity.cache.evictions", null);
+                Gauge.builder("entity.cache.size", this, Region::size)
+                    .tag("collection", collection)
+                    .description("Documents in the entity cache")
+                    .register(registry);
+                if (store != null) {
+                    Gauge.builder("entity.cache.offheap.bytes", store,
+                            OffHeapStore::allocated)
+                        .tag("collection", collection)
+                        .description("Bytes allocated out of the heap")
+                        .register(registry);
+                }
+            }
+        }
+
+        /**
+         * Creates a counter of the region.
+         * @param registry The meter registry.
+         * @param name The meter name.
+         * @param result The lookup result tag, null for none.
+         * @return the counter.
+         */
+        private Counter counter(final MeterRegistry registry,
+            final String name, final String result) {
+            Counter.Builder builder = Counter.builder(name)
+                .tag("collection", this.collection)
+                .description("Entity cache " + (result == null
+                    ? "evictions" : "lookups"));
+            if (result != null) {
+                builder.tag("result", result);
+            }
+            return builder.register(registry);
+        }
+
+        /**
+         * Creates an lru ordered map.
+         * @return the map.
+         */
+        private static LinkedHashMap<String, Node> lru() {
+            return new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        /**
+         * Gets a document.
+         * The bytes of a stored document are read once the region is
+         * unlocked, a document the store dropped being a miss.
+         * @param id The _id.
+         * @return a copy of the document, null if missing or expired.
+         */
+        private JsonObject get(final String id) {
+            Node node = this.lookup(id);
+            if (node == null) {
+                increment(this.misses);
+                return null;
+            }
+            if (this.store == null) {
+                increment(this.hits);
+                return node.doc.copy();
+            }
+            JsonObject doc = LazyDocument.wrap(this.store.get(id));
+            if (doc == null) {
+                this.drop(id);
+                increment(this.misses);
+                return null;
+            }
+            increment(this.hits);
+            return doc;
+        }
+
+        /**
+         * Looks a document up, promoting it on a hit.
+         * @param id The _id.
+         * @return the node of the document, null if missing or expired.
+         */
+        private synchronized Node lookup(final String id) {
+            this.sketch.increment(id);
+            boolean probing = false;
+            Node node = this.window.get(id);
+            if (node == null) {
+                node = this.kept.get(id);
+            }
+            if (node == null) {
+                node = this.probation.get(id);
+                probing = node != null;
+            }
+            if (node == null) {
+                return null;
+            }
+            if (node.expiresAt <= System.currentTimeMillis()) {
+                this.remove(id);
+                return null;
+            }
+            if (probing) {
+                this.probation.remove(id);
+                this.kept.put(id, node);
+                if (this.kept.size() > this.protectedMax) {
+                    Map.Entry<String, Node> eldest = eldest(this.kept);
+                    this.kept.remove(eldest.getKey());
+                    this.probation.put(eldest.getKey(), eldest.getValue());
+                }
+            }
+            return node;
+        }
+
+        /**
+         * Drops a document the store no longer holds.
+         * @param id The _id.
+         */
+        private synchronized void drop(final String id) {
+            this.remove(id);
+        }
+
+        /**
+         * Caches a document.
+         * @param id The _id.
+         * @param doc The document.
+         * @param readStamp The stamp taken before reading the document.
+         */
+        private synchronized void put(final String id, final JsonObject doc,
+            final long readStamp) {
+            if (readStamp != this.stamp) {
+                return;
+            }
+            if (this.store != null && !this.store.put(id, doc.toBuffer())) {
+                this.remove(id);
+                return;
+            }
+            Node node = new Node(this.store == null ? doc.copy() : null,
+                System.currentTimeMillis() + this.ttl);
+            if (this.window.containsKey(id)) {
+                this.window.put(id, node);
+            } else if (this.probation.containsKey(id)) {
+                this.probation.put(id, node);
+            } else if (this.kept.containsKey(id)) {
+                this.kept.put(id, node);
+            } else {
+                this.window.put(id, node);
+                if (this.window.size() > this.windowMax) {
+                    Map.Entry<String, Node> candidate = eldest(this.window);
+                    this.window.remove(candidate.getKey());
+                    this.admit(candidate.getKey(), candidate.getValue());
+                }
+            }
+        }
+
+        /**
+         * Moves a document out of the window into the main space, if it is
+         * used more than the document it replaces.
+         * @param id The _id of the document leaving the window.
+         * @param node The document.
+         */
+        private void admit(final String id, final Node node) {
+            if (this.probation.size() + this.kept.size() < this.mainMax) {
+                this.probation.put(id, node);
+                return;
+            }
+            Map.Entry<String, Node> victim = eldest(
+                this.probation.isEmpty() ? this.kept : this.probation);
+            increment(this.evictions);
+            if (victim != null && this.sketch.frequency(id)
+                > this.sketch.frequency(victim.getKey())) {
+                this.remove(victim.getKey());
+                this.probation.put(id, node);
+            } else if (this.store != null) {
+                this.store.remove(id);
+            }
+        }
+
+        /**
+         * Drops a document.
+         * @param id The _id.
+         */
+        private synchronized void invalidate(final String id) {
+            this.stamp++;
+            this.remove(id);
+        }
+
+        /**
+         * Drops every document.
+         */
+        private synchronized void clear() {
+            this.stamp++;
+            this.window.clear();
+            this.probation.clear();
+            this.kept.clear();
+            if (this.store != null) {
+                this.store.clear();
+            }
+        }
+
+        /**
+         * Gets the stamp.
+         * @return the number of invalidations.
+         */
+        private synchronized long stamp() {
+            return this.stamp;
+        }
+
+        /**
+         * Gets the number of documents.
+         * @return the size.
+         */
+        private synchronized int size() {
+            return this.window.size() + this.probation.size()
+                + this.kept.size();
+        }
+
+        /**
+         * Removes a document from every space.
+         * @param id The _id.
+         */
+        private void remove(final String id) {
+            if (this.window.remove(id) == null
+                && this.probation.remove(id) == null) {
+                this.kept.remove(id);
+            }
+            if (this.store != null) {
+                this.store.remove(id);
+            }
+        }
+
+        /**
+         * Gets the next entry to go.
+         * @param map The space.
+         * @return the entry, null if the space is empty.
+         */
+        private static Map.Entry<String, Node> eldest(
+            final Map<String, Node> map) {
+            Iterator<Map.Entry<String, Node>> it = map.entrySet().iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+    }
+
+    /**
+     * A cached document.
+     */
+    private static final class Node {
+
+        /**
+         * The document, null if kept in the store.
+         */
+        private final JsonObject doc;
+
+        /**
+         * The time the document expires at.
+         */
+        private final long expiresAt;
+
+        /**
+         * Creates the node.
+         * @param doc The document, null if kept in the store.
+         * @param expiresAt The time the document expires at.
+         */
+        private Node(final JsonObject doc, final long expiresAt) {
+            this.doc = doc;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A count-min sketch of the use of the documents, with 4 bit counters.
+     * The counts are halved every 10 times the capacity increments, so
+     * documents that stopped being read lose their weight.
+     */
+    private static final class Sketch {
+
+        /**
+         * The number of counters per key.
+         */
+        private static final int DEPTH = 4;
+
+        /**
+         * The largest count.
+         */
+        private static final int MAX_COUNT = 15;
+
+        /**
+         * The increments between two halvings, per unit of capacity.
+         */
+        private static final int SAMPLE_FACTOR = 10;
+
+        /**
+         * The seeds of the hashes of the rows.
+         */
+        private static final int[] SEEDS = {
+            0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        /**
+         * The counters, DEPTH rows of width counters.
+         */
+        private final byte[] counts;
+
+        /**
+         * The width of a row minus 1, the width being a power of 2.
+         */
+        private final int mask;
+
+        /**
+         * The increments before the next halving.
+         */
+        private final int sampleSize;
+
+        /**
+         * The increments since the last halving.
+         */
+        private int additions;
+
+        /**
+         * Creates the sketch.
+         * @param capacity The capacity of the region.
+         */
+        private Sketch(final int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+            this.counts = new byte[DEPTH * width];
+            this.mask = width - 1;
+            this.sampleSize = SAMPLE_FACTOR * Math.max(16, capacity);
+        }
+
+        /**
+         * Counts a use.
+         * @param key The key.
+         */
+        private void increment(final String key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < DEPTH; row++) {
+                int index = this.index(hash, row);
+                if (this.counts[index] < MAX_COUNT) {
+                    this.counts[index]++;
+                }
+            }
+            if (++this.additions >= this.sampleSize) {
+                for (int i = 0; i < this.counts.length; i++) {
+                    this.counts[i] = (byte) (this.counts[i] >> 1);
+                }
+                this.additions /= 2;
+            }
+        }
+
+        /**
+         * Estimates the uses of a key.
+         * @param key The key.
+         * @return the lowest of its counters.
+         */
+        private int frequency(final String key) {
+            int hash = key.hashCode();
+            int result = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                result = Math.min(result, this.counts[this.index(hash, row)]);
+            }
+            return result;
+        }
+
+        /**
+         * Gets the counter of a key in a row.
+         * @param hash The hash of the key.
+         * @param row The row.
+         * @return the index of the counter.
+         */
+        private int index(final int hash, final int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * (this.mask + 1) + (h & this.mask);
+        }
+    }
+
+    /**
+     * Increments a counter if metrics are enabled.
+     * @param counter The counter.
+     */
+    private static void increment(final Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.core.backend.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.IndexOptions;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.UpdateOptions;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.core.backend.models.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Geospatial queries on listings.
+ * A listing keeps its loose longitude and latitude fields for the FE, and
+ * a GeoJSON point in the location field, which is what the 2dsphere index
+ * and the $geoNear stage work on.
+ */
+public final class GeoQuery {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        GeoQuery.class.getName());
+
+    /**
+     * The GeoJSON point field.
+     */
+    public static final String LOCATION = "location";
+
+    /**
+     * The field $geoNear writes the distance in metres to.
+     */
+    public static final String DISTANCE = "distance";
+
+    /**
+     * The 2dsphere index name.
+     */
+    public static final String INDEX_NAME = "location_2dsphere";
+
+    /**
+     * The search radius in metres when none is passed.
+     */
+    public static final double DEFAULT_RADIUS = 5000;
+
+    /**
+     * The largest search radius in metres.
+     */
+    public static final double MAX_RADIUS = 50000;
+
+    /**
+     * The largest longitude.
+     */
+    private static final double MAX_LONGITUDE = 180;
+
+    /**
+     * The largest latitude.
+     */
+    private static final double MAX_LATITUDE = 90;
+
+    /**
+     * The filters a client can add to a nearby search.
+     */
+    private static final QueryCompiler FILTERS = QueryCompiler
+        .of("listings")
+        .field("listingType", QueryCompiler.Type.STRING,
+            QueryCompiler.Op.IN)
+        .build();
+
+    /**
+     * Set once the index was requested by this process.
+     */
+    private static final AtomicBoolean INDEXED = new AtomicBoolean();
+
+    /**
+     * Hidden constructor.
+     */
+    private GeoQuery() {
+    }
+
+    /**
+     * Creates a GeoJSON point.
+     * @param longitude The longitude, a number or a numeric string.
+     * @param latitude The latitude, a number or a numeric string.
+     * @return the point.
+     * @throws IllegalArgumentException if a coordinate is out of range.
+     */
+    public static JsonObject toPoint(final Object longitude,
+        final Object latitude) {
+        double lng = toCoordinate(longitude, MAX_LONGITUDE, "longitude");
+        double lat = toCoordinate(latitude, MAX_LATITUDE, "latitude");
+        return new JsonObject()
+            .put("type", "Point")
+            .put("coordinates", new JsonArray().add(lng).add(lat));
+    }
+
+    /**
+     * Reads a coordinate.
+     * @param value The value from the FE.
+     * @param max The largest absolute value.
+     * @param name The coordinate name used in the error.
+     * @return the coordinate.
+     */
+    private static double toCoordinate(final Object value, final double max,
+        final String name) {
+        double result;
+        try {
+            result = value instanceof Number
+                ? ((Number) value).doubleValue()
+                : Double.parseDouble(String.valueOf(value));
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name, e);
+        }
+
+        if (Double.isNaN(result) || Math.abs(result) > max) {
+            throw new IllegalArgumentException("Invalid " + name);
+        }
+        return result;
+    }
+
+    /**
+     * Creates the 2dsphere index, once per process.
+     * Listings saved before the location field existed are backfilled first,
+     * the ones with invalid coordinates are left out of the index.
+     * @param client The mongo client.
+     * @param collection The listings collection.
+     * @return a future completed when the index exists.
+     */
+    public static Future<Void> ensureIndex(final MongoClient client,
+        final String collection) {
+        if (!INDEXED.compareAndSet(false, true)) {
+            return Future.succeededFuture();
+        }
+
+        JsonObject missing = new JsonObject()
+            .put(LOCATION, new JsonObject().put("$exists", false))
+            .put("longitude", new JsonObject()
+                .put("$gte", -MAX_LONGITUDE).put("$lte", MAX_LONGITUDE))
+            .put("latitude", new JsonObject()
+                .put("$gte", -MAX_LATITUDE).put("$lte", MAX_LATITUDE));
+        JsonArray backfill = new JsonArray().add(new JsonObject()
+            .put("$set", new JsonObject().put(LOCATION, new JsonObject()
+                .put("type", "Point")
+                .put("coordinates", new JsonArray()
+                    .add("$longitude").add("$latitude")))));
+
+        CachedDBUtils.invalidate(collection, missing);
+        return client.updateCollectionWithOptions(collection, missing,
+                backfill, new UpdateOptions().setMulti(true))
+            .onComplete(res -> CachedDBUtils.invalidate(collection, missing))
+            .compose(res -> {
+                LOGGER.info("Backfilled " + res.getDocModified()
+                    + " listing locations");
+                return client.createIndexWithOptions(collection,
+                    new JsonObject().put(LOCATION, "2dsphere"),
+                    new IndexOptions().name(INDEX_NAME));
+            })
+            .onFailure(e -> {
+                INDEXED.set(false);
+                LOGGER.error("Failed to create " + INDEX_NAME, e);
+            });
+    }
+
+    /**
+     * Creates the $geoNear stage of a nearby search.
+     * The body fields used are longitude, latitude, radius in metres,
+     * box as [[west, south], [east, north]], listingType, minPrice and
+     * maxPrice. Only the ACTIVE listings are searched.
+     * @param body The body from the FE.
+     * @param minDistance The distance of the last listing of the previous
+     *     page, null for the first page.
+     * @return the $geoNear stage.
+     * @throws IllegalArgumentException if a coordinate or a filter is
+     *     invalid.
+     */
+    public static JsonObject geoNear(final JsonObject body,
+        final Object minDistance) {
+        double radius = Math.min(MAX_RADIUS, Math.max(0,
+            body.getDouble("radius", DEFAULT_RADIUS)));
+
+        JsonObject near = new JsonObject()
+            .put("near", toPoint(
+                body.getValue("longitude"), body.getValue("latitude")))
+            .put("distanceField", DISTANCE)
+            .put("maxDistance", radius)
+            .put("spherical", true)
+            .put("query", createFilters(body));
+        if (minDistance instanceof Number) {
+            near.put("minDistance", minDistance);
+        }
+        return new JsonObject().put("$geoNear", near);
+    }
+
+    /**
+     * Creates the filters applied inside $geoNear.
+     * The listing type is compiled as any client filter, see QueryCompiler.
+     * @param body The body from the FE.
+     * @return the query.
+     */
+    private static JsonObject createFilters(final JsonObject body) {
+        JsonObject filters = new JsonObject();
+        if (body.getValue("listingType") != null) {
+            filters.put("listingType", body.getValue("listingType"));
+        }
+        JsonObject query = FILTERS.compile(filters).getFilter();
+        query.put("status", Status.ACTIVE.name());
+
+        JsonObject price = new JsonObject();
+        if (body.getValue("minPrice") instanceof Number) {
+            price.put("$gte", body.getValue("minPrice"));
+        }
+        if (body.getValue("maxPrice") instanceof Number) {
+            price.put("$lte", body.getValue("maxPrice"));
+        }
+        if (!price.isEmpty()) {
+            query.put("premium.basicPremium", price);
+        }
+
+        JsonArray box = body.getJsonArray("box");
+        if (box != null) {
+            query.put(LOCATION, new JsonObject().put("$geoWithin",
+                new JsonObject().put("$geometry", toPolygon(box))));
+        }
+        return query;
+    }
+
+    /**
+     * Creates a polygon from a bounding box.
+     * @param box The box as [[west, south], [east, north]].
+     * @return the GeoJSON polygon.
+     */
+    private static JsonObject toPolygon(final JsonArray box) {
+        if (box.size() != 2) {
+            throw new IllegalArgumentException(
+                "Expected box as [[west, south], [east, north]]");
+        }
+        JsonArray sw = toPoint(box.getJsonArray(0).getValue(0),
+            box.getJsonArray(0).getValue(1)).getJsonArray("coordinates");
+        JsonArray ne = toPoint(box.getJsonArray(1).getValue(0),
+            box.getJsonArray(1).getValue(1)).getJsonArray("coordinates");
+
+        JsonArray ring = new JsonArray()
+            .add(sw)
+            .add(new JsonArray().add(ne.getValue(0)).add(sw.getValue(1)))
+            .add(ne)
+            .add(new JsonArray().add(sw.getValue(0)).add(ne.getValue(1)))
+            .add(sw);
+        return new JsonObject()
+            .put("type", "Polygon")
+            .put("coordinates", new JsonArray().add(ring));
+    }
+}
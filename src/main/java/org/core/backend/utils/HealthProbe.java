@@ -0,0 +1,437 @@
+package org.core.backend.utils;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.healthchecks.HealthCheckHandler;
+import io.vertx.ext.healthchecks.Status;
+import io.vertx.ext.mongo.MongoClient;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The health of the process, checked in the background.
+ * Mongo is pinged, the email outbox is checked for emails stuck past their
+ * send time, and the lag of every event loop is measured on a schedule,
+ * the verticle instances are spread over them. The probes only read the
+ * last results, so probing costs mongo nothing.
+ * The health only fails with mongo, the outbox and the lags are reported.
+ * The process has started once mongo answered and every startup check,
+ * e.g the reference caches being loaded, passed. It is ready while it has
+ * started, mongo answers and the slowest event loop keeps up, and live
+ * while every event loop runs at all.
+ */
+public final class HealthProbe {
+
+    /**
+     * The env var holding the time between two checks in milliseconds.
+     */
+    public static final String INTERVAL_ENV = "HEALTH_PROBE_INTERVAL";
+
+    /**
+     * The env var holding the largest event loop lag of a ready process,
+     * in milliseconds.
+     */
+    public static final String MAX_LAG_ENV = "HEALTH_MAX_LOOP_LAG";
+
+    /**
+     * The default time between two checks.
+     */
+    private static final long DEFAULT_INTERVAL = 5000;
+
+    /**
+     * The default largest event loop lag.
+     */
+    private static final long DEFAULT_MAX_LAG = 1000;
+
+    /**
+     * The time between two event loop lag measures.
+     */
+    private static final long LAG_INTERVAL = 500;
+
+    /**
+     * The time without an event loop tick after which the process is not
+     * live, in milliseconds.
+     */
+    private static final long LIVE_TIMEOUT = 30000;
+
+    /**
+     * The age in milliseconds past which a due email counts as stuck.
+     */
+    private static final long STUCK_EMAIL_AGE = 600000;
+
+    /**
+     * The number of missed checks after which a result is stale.
+     */
+    private static final int STALE_CHECKS = 3;
+
+    /**
+     * The process wide instance.
+     */
+    private static final HealthProbe INSTANCE = new HealthProbe();
+
+    /**
+     * Whether the checks were started.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * The startup checks by name.
+     */
+    private final Map<String, BooleanSupplier> startup =
+        new LinkedHashMap<>();
+
+    /**
+     * The time between two checks.
+     */
+    private final long interval = readLong(INTERVAL_ENV, DEFAULT_INTERVAL);
+
+    /**
+     * The largest event loop lag of a ready process.
+     */
+    private final long maxLag = readLong(MAX_LAG_ENV, DEFAULT_MAX_LAG);
+
+    /**
+     * The last mongo check.
+     */
+    private volatile JsonObject mongo = unchecked();
+
+    /**
+     * The last email outbox check.
+     */
+    private volatile JsonObject email = unchecked();
+
+    /**
+     * Whether the process has started, never reset.
+     */
+    private volatile boolean warm;
+
+    /**
+     * The last lag of each event loop in milliseconds.
+     */
+    private volatile AtomicLongArray lags = new AtomicLongArray(0);
+
+    /**
+     * The time of the last tick of each event loop in milliseconds.
+     */
+    private volatile AtomicLongArray ticks = new AtomicLongArray(0);
+
+    /**
+     * The mongo client.
+     */
+    private MongoClient client;
+
+    /**
+     * Hidden constructor.
+     */
+    private HealthProbe() {
+    }
+
+    /**
+     * Gets the process wide instance.
+     * @return the health probe.
+     */
+    public static HealthProbe getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reads a positive long from an env var.
+     * @param env The env var name.
+     * @param defaultValue The value used when the env var is missing.
+     * @return the value.
+     */
+    private static long readLong(final String env, final long defaultValue) {
+        String value = System.getenv(env);
+        if (value != null && value.trim().matches("[0-9]+")
+            && Long.parseLong(value.trim()) > 0) {
+            return Long.parseLong(value.trim());
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Creates the result of a check that did not run yet.
+     * @return the result.
+     */
+    private static JsonObject unchecked() {
+        return new JsonObject().put("ok", false).put("error", "Not checked");
+    }
+
+    /**
+     * Adds a check the process has to pass before it has started.
+     * @param name The check name.
+     * @param check The check, polled until it passes.
+     */
+    public synchronized void awaitStartup(final String name,
+        final BooleanSupplier check) {
+        this.startup.put(name, check);
+    }
+
+    /**
+     * Starts the checks.
+     * Only the first call does anything.
+     * @param vertx The vertx instance.
+     * @param mongo The mongo client.
+     */
+    public void start(final Vertx vertx, final MongoClient mongo) {
+        if (!this.started.compareAndSet(false, true)) {
+            return;
+        }
+
+        this.client = mongo;
+        List<EventExecutor> loops = new ArrayList<>();
+        vertx.nettyEventLoopGroup().forEach(loops::add);
+        AtomicLongArray lastTicks = new AtomicLongArray(loops.size());
+        for (int i = 0; i < loops.size(); i++) {
+            lastTicks.set(i, System.currentTimeMillis());
+        }
+        this.lags = new AtomicLongArray(loops.size());
+        this.ticks = lastTicks;
+        for (int i = 0; i < loops.size(); i++) {
+            this.measure(loops.get(i), i);
+        }
+
+        this.check();
+        vertx.setPeriodic(this.interval, id -> this.check());
+    }
+
+    /**
+     * Measures the lag of an event loop, the time a task scheduled on it
+     * runs past its due time, again and again until the loop shuts down.
+     * @param loop The event loop.
+     * @param index The index of the loop.
+     */
+    private void measure(final EventExecutor loop, final int index) {
+        final long due = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(LAG_INTERVAL);
+        try {
+            loop.schedule(() -> {
+                this.lags.set(index, Math.max(0,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - due)));
+                this.ticks.set(index, System.currentTimeMillis());
+                this.measure(loop, index);
+            }, LAG_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            // The loop shut down with vertx.
+        }
+    }
+
+    /**
+     * Gets the lag of the slowest event loop.
+     * @return the lag in milliseconds.
+     */
+    private long loopLag() {
+        AtomicLongArray current = this.lags;
+        long lag = 0;
+        for (int i = 0; i < current.length(); i++) {
+            lag = Math.max(lag, current.get(i));
+        }
+        return lag;
+    }
+
+    /**
+     * Gets the time of the oldest last tick of the event loops.
+     * @return the time in milliseconds.
+     */
+    private long lastTick() {
+        AtomicLongArray current = this.ticks;
+        long tick = System.currentTimeMillis();
+        for (int i = 0; i < current.length(); i++) {
+            tick = Math.min(tick, current.get(i));
+        }
+        return tick;
+    }
+
+    /**
+     * Runs the checks.
+     */
+    private void check() {
+        long start = System.currentTimeMillis();
+        this.client.runCommand("ping", new JsonObject().put("ping", 1))
+            .onComplete(res -> {
+                this.mongo = result(res.succeeded(), start,
+                    res.failed() ? res.cause().getMessage() : null);
+                this.checkStartup();
+            });
+
+        JsonObject stuck = new JsonObject()
+            .put("status", EmailOutbox.PENDING)
+            .put("nextAttemptAt", new JsonObject()
+                .put("$lte", start - STUCK_EMAIL_AGE));
+        this.client.count(
+                org.core.backend.models.Collections.EMAIL_OUTBOX.toString(),
+                stuck)
+            .onComplete(res -> this.email = res.succeeded()
+                ? result(res.result() == 0, start, res.result() == 0
+                    ? null : res.result() + " emails stuck").put(
+                        "stuck", res.result())
+                : result(false, start, res.cause().getMessage()));
+    }
+
+    /**
+     * Creates the result of a check.
+     * @param ok Whether the check passed.
+     * @param start The time the check started.
+     * @param error The error, null if none.
+     * @return the result.
+     */
+    private static JsonObject result(final boolean ok, final long start,
+        final String error) {
+        long now = System.currentTimeMillis();
+        JsonObject result = new JsonObject()
+            .put("ok", ok)
+            .put("checkedAt", now)
+            .put("latency", now - start);
+        return error == null ? result : result.put("error", error);
+    }
+
+    /**
+     * Marks the process as started once mongo answered and every startup
+     * check passed.
+     */
+    private synchronized void checkStartup() {
+        if (this.warm || !this.isFresh(this.mongo)) {
+            return;
+        }
+        for (BooleanSupplier check : this.startup.values()) {
+            if (!check.getAsBoolean()) {
+                return;
+            }
+        }
+        this.warm = true;
+    }
+
+    /**
+     * Checks if a result passed and is recent.
+     * @param result The check result.
+     * @return true if passed within the last few checks.
+     */
+    private boolean isFresh(final JsonObject result) {
+        return result.getBoolean("ok", false)
+            && System.currentTimeMillis() - result.getLong("checkedAt", 0L)
+                <= this.interval * STALE_CHECKS;
+    }
+
+    /**
+     * Checks if the process has started.
+     * @return true once mongo answered and the startup checks passed.
+     */
+    public boolean isStarted() {
+        return this.warm;
+    }
+
+    /**
+     * Checks if the process can take traffic.
+     * @return true if started, mongo answers and the event loop keeps up.
+     */
+    public boolean isReady() {
+        return this.warm && this.isFresh(this.mongo)
+            && this.loopLag() <= this.maxLag;
+    }
+
+    /**
+     * Checks if the process is alive.
+     * @return true if every event loop ran recently.
+     */
+    public boolean isLive() {
+        return System.currentTimeMillis() - this.lastTick() <= LIVE_TIMEOUT;
+    }
+
+    /**
+     * Registers the cached checks on a health check handler.
+     * Only mongo decides the outcome, the email outbox and the event loops
+     * are reported for information and always pass. A slow event loop
+     * only fails the readiness check.
+     * @param health The health check handler.
+     * @param timeout The procedure timeout in milliseconds.
+     */
+    public void register(final HealthCheckHandler health,
+        final long timeout) {
+        health.register("db", timeout, f -> f.complete(
+            status(this.isFresh(this.mongo), this.mongo)));
+        health.register("email", timeout, f -> f.complete(
+            status(true, this.email)));
+        health.register("eventLoop", timeout, f -> f.complete(
+            status(true, this.loopState())));
+    }
+
+    /**
+     * Registers the readiness check on a health check handler.
+     * @param health The health check handler.
+     * @param timeout The procedure timeout in milliseconds.
+     */
+    public void registerReady(final HealthCheckHandler health,
+        final long timeout) {
+        health.register("ready", timeout, f -> f.complete(status(
+            this.isReady(), new JsonObject()
+                .put("started", this.warm)
+                .put("db", this.mongo.copy())
+                .put("eventLoop", this.loopState()))));
+    }
+
+    /**
+     * Registers the liveness check on a health check handler.
+     * @param health The health check handler.
+     * @param timeout The procedure timeout in milliseconds.
+     */
+    public void registerLive(final HealthCheckHandler health,
+        final long timeout) {
+        health.register("live", timeout, f -> f.complete(
+            status(this.isLive(), this.loopState())));
+    }
+
+    /**
+     * Registers the startup check on a health check handler.
+     * @param health The health check handler.
+     * @param timeout The procedure timeout in milliseconds.
+     */
+    public void registerStartup(final HealthCheckHandler health,
+        final long timeout) {
+        health.register("startup", timeout, f -> {
+            JsonObject checks = new JsonObject()
+                .put("db", this.isFresh(this.mongo));
+            synchronized (this) {
+                this.startup.forEach((name, check) ->
+                    checks.put(name, check.getAsBoolean()));
+            }
+            f.complete(status(this.warm, checks));
+        });
+    }
+
+    /**
+     * Gets the event loop state.
+     * @return the largest lag, the lag of each loop and the time of the
+     *     oldest last tick.
+     */
+    private JsonObject loopState() {
+        AtomicLongArray current = this.lags;
+        JsonArray each = new JsonArray();
+        for (int i = 0; i < current.length(); i++) {
+            each.add(current.get(i));
+        }
+        return new JsonObject()
+            .put("lag", this.loopLag())
+            .put("lags", each)
+            .put("maxLag", this.maxLag)
+            .put("lastTick", this.lastTick());
+    }
+
+    /**
+     * Creates a status.
+     * @param ok Whether the check passed.
+     * @param data The check data.
+     * @return the status.
+     */
+    private static Status status(final boolean ok, final JsonObject data) {
+        return ok ? Status.OK(data.copy()) : Status.KO(data.copy());
+    }
+}
@@ -0,0 +1,499 @@
+package org.core.backend.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.IndexOptions;
+import io.vertx.ext.mongo.MongoClient;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.core.backend.models.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The indexes the queries of the services rely on, declared in one place.
+ * At startup they are created when missing, which is a no-op for the ones
+ * that exist, and the live indexes are compared with the catalogue. With
+ * INDEXES_STRICT=true nothing is built, the service refuses to start if
+ * a required index is missing or differs; the builds are then left to
+ * the IndexTool, run before the deployment.
+ */
+public final class IndexCatalogue {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        IndexCatalogue.class.getName());
+
+    /**
+     * The env var that turns the strict mode on.
+     */
+    public static final String STRICT_ENV = "INDEXES_STRICT";
+
+    /**
+     * The index every collection has.
+     */
+    private static final String ID_INDEX = "_id_";
+
+    /**
+     * The error code of a collection that does not exist.
+     */
+    private static final int NAMESPACE_NOT_FOUND = 26;
+
+    /**
+     * The options compared with the live indexes.
+     */
+    private static final String[] OPTIONS = {
+        "unique", "sparse", "partialFilterExpression"
+    };
+
+    /**
+     * The declared indexes.
+     */
+    private static final List<Index> INDEXES = declare();
+
+    /**
+     * The creation of the indexes, once per process.
+     */
+    private static final AtomicReference<Future<Void>> ENSURED =
+        new AtomicReference<>();
+
+    /**
+     * Hidden constructor.
+     */
+    private IndexCatalogue() {
+    }
+
+    /**
+     * Declares the indexes.
+     * @return the indexes.
+     */
+    private static List<Index> declare() {
+        String listings =
+            org.core.backend.models.Collections.LISTINGS.toString();
+        String bookings =
+            org.core.backend.models.Collections.BOOKINGS.toString();
+        String reviews =
+            org.core.backend.models.Collections.REVIEWS.toString();
+        String outbox =
+            org.core.backend.models.Collections.EMAIL_OUTBOX.toString();
+        JsonObject activeBooking = new JsonObject()
+            .put("status", Status.ACTIVE.name());
+
+        List<Index> indexes = new ArrayList<>();
+        // The nearby search, created by GeoQuery once backfilled.
+        indexes.add(new Index(listings, GeoQuery.INDEX_NAME,
+            new JsonObject().put(GeoQuery.LOCATION, "2dsphere"), true));
+        // The v2 listListings pages, by status, PENDING or ACTIVE, in the
+        // featured then newest keyset order.
+        indexes.add(new Index(listings, "status_featured_createdAt",
+            new JsonObject().put("status", 1).put("featured", -1)
+                .put("createdAt", -1).put("_id", -1), true));
+        indexes.add(new Index(listings,
+            "organisationId_status_featured_createdAt",
+            new JsonObject().put("organisationId", 1).put("status", 1)
+                .put("featured", -1).put("createdAt", -1).put("_id", -1),
+            true));
+        // The overlap check of makeABooking.
+        indexes.add(new Index(bookings, "active_listingId_endDate",
+            new JsonObject().put("listingId", 1).put("endDate", 1), true)
+            .partial(activeBooking));
+        indexes.add(new Index(bookings, "feduid_startDate",
+            new JsonObject().put("feduid", 1).put("startDate", -1)
+                .put("_id", -1), true));
+        indexes.add(new Index(bookings, "organisationId_startDate",
+            new JsonObject().put("organisationId", 1).put("startDate", -1)
+                .put("_id", -1), true));
+        // The $lookup stages of the effective prices.
+        indexes.add(new Index(
+            org.core.backend.models.Collections.LISTING_DISCOUNTS.toString(),
+            "listingId_status",
+            new JsonObject().put("listingId", 1).put("status", 1), true));
+        indexes.add(new Index(
+            org.core.backend.models.Collections.LISTING_PROMOTIONS
+                .toString(), "listingId_status",
+            new JsonObject().put("listingId", 1).put("status", 1), true));
+        indexes.add(new Index(
+            org.core.backend.models.Collections.FAVOURITES.toString(),
+            "feduid", new JsonObject().put("feduid", 1), true));
+        indexes.add(new Index(reviews, "listingId",
+            new JsonObject().put("listingId", 1).put("_id", -1), false));
+        indexes.add(new Index(reviews, "feduid",
+            new JsonObject().put("feduid", 1), false));
+        indexes.add(new Index(
+            org.utils.backend.models.Collections.INVITES.toString(),
+            "inviteId", new JsonObject().put("inviteId", 1), true));
+        indexes.add(new Index(
+            org.utils.backend.models.Collections.USERS.toString(),
+            "feduid", new JsonObject().put("feduid", 1), true));
+        // The polling and claiming of the EmailOutbox.
+        indexes.add(new Index(outbox, "status_nextAttemptAt",
+            new JsonObject().put("status", 1).put("nextAttemptAt", 1),
+            true));
+        indexes.add(new Index(outbox, "claimId",
+            new JsonObject().put("claimId", 1), true).sparse());
+        return Collections.unmodifiableList(indexes);
+    }
+
+    /**
+     * Gets the declared indexes.
+     * @return the indexes.
+     */
+    public static List<Index> getIndexes() {
+        return INDEXES;
+    }
+
+    /**
+     * Checks if the strict mode is on.
+     * @return true if missing indexes stop the service from starting.
+     */
+    public static boolean isStrict() {
+        return Boolean.parseBoolean(System.getenv(STRICT_ENV));
+    }
+
+    /**
+     * Creates the missing indexes, once per process, and logs the drift.
+     * An index that exists with other keys or options is not replaced,
+     * it is reported.
+     * @param client The mongo client.
+     * @return a future completed when the indexes were created.
+     */
+    public static Future<Void> ensure(final MongoClient client) {
+        Promise<Void> promise = Promise.promise();
+        if (!ENSURED.compareAndSet(null, promise.future())) {
+            return ENSURED.get();
+        }
+
+        GeoQuery.ensureIndex(client,
+                org.core.backend.models.Collections.LISTINGS.toString())
+            .recover(e -> Future.succeededFuture())
+            .compose(v -> {
+                List<Future<String>> builds = new ArrayList<>();
+                for (Index index : INDEXES) {
+                    builds.add(client.createIndexWithOptions(
+                            index.getCollection(), index.getKeys(),
+                            index.toIndexOptions())
+                        .map(index.toString())
+                        .onFailure(e -> LOGGER.error("Failed to create "
+                            + index + ": " + e.getMessage())));
+                }
+                return Future.join(builds);
+            })
+            .compose(v -> drift(client), e -> drift(client))
+            .onSuccess(IndexCatalogue::log)
+            .<Void>mapEmpty()
+            .onFailure(e -> {
+                ENSURED.set(null);
+                LOGGER.error("Failed to check the indexes", e);
+            })
+            .onComplete(promise);
+        return promise.future();
+    }
+
+    /**
+     * Checks that the required indexes exist as declared.
+     * @param client The mongo client.
+     * @return a future failed with the drift when one does not.
+     */
+    public static Future<Void> verify(final MongoClient client) {
+        return drift(client).compose(report -> {
+            log(report);
+            JsonArray failing = new JsonArray();
+            for (String field : new String[] {"missing", "changed"}) {
+                JsonArray indexes = report.getJsonArray(field);
+                for (int i = 0; i < indexes.size(); i++) {
+                    JsonObject index = indexes.getJsonObject(i);
+                    if (index.getBoolean("required", false)) {
+                        failing.add(index.getString("collection") + "."
+                            + index.getString("name"));
+                    }
+                }
+            }
+            if (failing.isEmpty()) {
+                return Future.succeededFuture();
+            }
+            return Future.failedFuture(new IllegalStateException(
+                "Required indexes missing or changed: " + failing.encode()
+                + ", run the IndexTool ensure"));
+        });
+    }
+
+    /**
+     * Compares the live indexes with the catalogue.
+     * The report lists the declared indexes that are missing, the ones
+     * whose keys or options differ, and the live ones not declared.
+     * @param client The mongo client.
+     * @return a future with the report.
+     */
+    public static Future<JsonObject> drift(final MongoClient client) {
+        Map<String, List<Index>> byCollection = new LinkedHashMap<>();
+        for (Index index : INDEXES) {
+            byCollection.computeIfAbsent(index.getCollection(),
+                c -> new ArrayList<>()).add(index);
+        }
+
+        JsonArray missing = new JsonArray();
+        JsonArray changed = new JsonArray();
+        JsonArray extra = new JsonArray();
+        List<Future<Void>> checks = new ArrayList<>();
+        for (Map.Entry<String, List<Index>> entry : byCollection.entrySet()) {
+            String collection = entry.getKey();
+            checks.add(listIndexes(client, collection).map(live -> {
+                Map<String, JsonObject> byName = new LinkedHashMap<>();
+                for (int i = 0; i < live.size(); i++) {
+                    JsonObject index = live.getJsonObject(i);
+                    byName.put(index.getString("name"), index);
+                }
+                for (Index index : entry.getValue()) {
+                    JsonObject found = byName.remove(index.getName());
+                    if (found == null) {
+                        missing.add(index.toJson());
+                    } else if (!index.matches(found)) {
+                        changed.add(index.toJson().put("live", found));
+                    }
+                }
+                byName.remove(ID_INDEX);
+                for (JsonObject index : byName.values()) {
+                    extra.add(new JsonObject()
+                        .put("collection", collection)
+                        .put("name", index.getString("name"))
+                        .put("key", index.getJsonObject("key")));
+                }
+                return null;
+            }));
+        }
+
+        return Future.all(checks).map(v -> new JsonObject()
+            .put("missing", missing)
+            .put("changed", changed)
+            .put("extra", extra));
+    }
+
+    /**
+     * Lists the indexes of a collection, none if it does not exist yet.
+     * @param client The mongo client.
+     * @param collection The collection.
+     * @return a future with the indexes.
+     */
+    private static Future<JsonArray> listIndexes(final MongoClient client,
+        final String collection) {
+        return client.listIndexes(collection).recover(e -> {
+            if (e instanceof com.mongodb.MongoCommandException
+                && ((com.mongodb.MongoCommandException) e).getErrorCode()
+                    == NAMESPACE_NOT_FOUND) {
+                return Future.succeededFuture(new JsonArray());
+            }
+            return Future.failedFuture(e);
+        });
+    }
+
+    /**
+     * Logs a drift report, a warning if there is any drift.
+     * @param report The report.
+     */
+    private static void log(final JsonObject report) {
+        if (report.getJsonArray("missing").isEmpty()
+            && report.getJsonArray("changed").isEmpty()) {
+            LOGGER.info("Indexes match the catalogue, "
+                + report.getJsonArray("extra").size() + " undeclared");
+            return;
+        }
+        LOGGER.warn("Index drift: " + report.encode());
+    }
+
+    /**
+     * A declared index.
+     */
+    public static final class Index {
+
+        /**
+         * The collection.
+         */
+        private final String collection;
+
+        /**
+         * The index name, what the live indexes are matched by.
+         */
+        private final String name;
+
+        /**
+         * The keys, in order.
+         */
+        private final JsonObject keys;
+
+        /**
+         * Whether the strict mode needs the index.
+         */
+        private final boolean required;
+
+        /**
+         * The unique, sparse and partialFilterExpression options.
+         */
+        private final JsonObject options = new JsonObject();
+
+        /**
+         * Creates an index.
+         * @param collection The collection.
+         * @param name The index name.
+         * @param keys The keys, in order.
+         * @param required Whether the strict mode needs the index.
+         */
+        Index(final String collection, final String name,
+            final JsonObject keys, final boolean required) {
+            this.collection = collection;
+            this.name = name;
+            this.keys = keys;
+            this.required = required;
+        }
+
+        /**
+         * Only indexes the documents matching a filter.
+         * @param filter The partial filter expression.
+         * @return this index.
+         */
+        Index partial(final JsonObject filter) {
+            this.options.put("partialFilterExpression", filter);
+            return this;
+        }
+
+        /**
+         * Leaves the documents without the keys out of the index.
+         * @return this index.
+         */
+        Index sparse() {
+            this.options.put("sparse", true);
+            return this;
+        }
+
+        /**
+         * Gets the collection.
+         * @return the collection.
+         */
+        public String getCollection() {
+            return this.collection;
+        }
+
+        /**
+         * Gets the index name.
+         * @return the name.
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Gets the keys.
+         * @return the keys, in order.
+         */
+        public JsonObject getKeys() {
+            return this.keys.copy();
+        }
+
+        /**
+         * Checks if the strict mode needs the index.
+         * @return true if required.
+         */
+        public boolean isRequired() {
+            return this.required;
+        }
+
+        /**
+         * Creates the options the index is created with.
+         * @return the index options.
+         */
+        IndexOptions toIndexOptions() {
+            IndexOptions result = new IndexOptions().name(this.name);
+            if (this.options.getBoolean("unique", false)) {
+                result.unique(true);
+            }
+            if (this.options.getBoolean("sparse", false)) {
+                result.sparse(true);
+            }
+            if (this.options.containsKey("partialFilterExpression")) {
+                result.partialFilterExpression(this.options.getJsonObject(
+                    "partialFilterExpression").copy());
+            }
+            return result;
+        }
+
+        /**
+         * Checks a live index against the declared one.
+         * The keys are compared in order, 1 and 1.0 being the same.
+         * @param live The index, as listIndexes returns it.
+         * @return true if the keys and options match.
+         */
+        boolean matches(final JsonObject live) {
+            JsonObject key = live.getJsonObject("key", new JsonObject());
+            Iterator<Map.Entry<String, Object>> declared =
+                this.keys.iterator();
+            Iterator<Map.Entry<String, Object>> found = key.iterator();
+            while (declared.hasNext() && found.hasNext()) {
+                Map.Entry<String, Object> a = declared.next();
+                Map.Entry<String, Object> b = found.next();
+                if (!a.getKey().equals(b.getKey())
+                    || !sameDirection(a.getValue(), b.getValue())) {
+                    return false;
+                }
+            }
+            if (declared.hasNext() || found.hasNext()) {
+                return false;
+            }
+
+            for (String option : OPTIONS) {
+                Object expected = this.options.getValue(option);
+                Object actual = live.getValue(option);
+                if (Boolean.FALSE.equals(expected)) {
+                    expected = null;
+                }
+                if (Boolean.FALSE.equals(actual)) {
+                    actual = null;
+                }
+                if (expected == null ? actual != null
+                    : !expected.equals(actual)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Compares two index directions or types.
+         * @param a The declared one.
+         * @param b The live one.
+         * @return true if the same.
+         */
+        private static boolean sameDirection(final Object a, final Object b) {
+            if (a instanceof Number && b instanceof Number) {
+                return ((Number) a).doubleValue()
+                    == ((Number) b).doubleValue();
+            }
+            return a.equals(b);
+        }
+
+        /**
+         * Describes the index for the drift report.
+         * @return the index as json.
+         */
+        public JsonObject toJson() {
+            return new JsonObject()
+                .put("collection", this.collection)
+                .put("name", this.name)
+                .put("key", this.keys.copy())
+                .put("options", this.options.copy())
+                .put("required", this.required);
+        }
+
+        @Override
+        public String toString() {
+            return this.collection + "." + this.name;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.core.backend.utils;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.FindOptions;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Keyset (cursor) pagination.
+ * Instead of skipping offset documents, a page continues after the sort
+ * key of the last document of the previous page. The sort key is handed to
+ * the client as an opaque page token, so with an index on the sort fields
+ * every page costs the same no matter how deep it is.
+ */
+public final class KeysetPage {
+
+    /**
+     * The body field holding the page token.
+     * Sending the field, even empty, switches an endpoint to keyset paging.
+     */
+    public static final String TOKEN_FIELD = "pageToken";
+
+    /**
+     * The largest page a client can ask for.
+     */
+    public static final int MAX_PAGE_SIZE = 100;
+
+    /**
+     * The sort, the last field must be unique e.g _id.
+     */
+    private final JsonObject sort;
+
+    /**
+     * The page size.
+     */
+    private final int limit;
+
+    /**
+     * The sort key values of the last document of the previous page.
+     */
+    private final JsonArray after;
+
+    /**
+     * Creates the page.
+     * @param sort The sort, the last field must be unique e.g _id.
+     * @param limit The page size.
+     * @param after The sort key values to continue after, null for page one.
+     */
+    private KeysetPage(final JsonObject sort, final int limit,
+        final JsonArray after) {
+        this.sort = sort;
+        this.limit = limit;
+        this.after = after;
+    }
+
+    /**
+     * Checks if the client asked for keyset paging.
+     * @param body The body from the FE.
+     * @return true if the body has a page token field.
+     */
+    public static boolean isRequested(final JsonObject body) {
+        return body != null && body.containsKey(TOKEN_FIELD);
+    }
+
+    /**
+     * Reads the page from the body.
+     * The page token and the DBUtils limit, offset and sort fields are
+     * removed from the body, the page has its own fixed sort.
+     * @param body The body from the FE.
+     * @param sort The sort, the last field must be unique e.g _id.
+     * @param defaultLimit The page size when none is passed.
+     * @return the page.
+     * @throws IllegalArgumentException if the page token is invalid.
+     */
+    public static KeysetPage create(final JsonObject body,
+        final JsonObject sort, final int defaultLimit) {
+        Object token = body.remove(TOKEN_FIELD);
+        Object limit = body.remove("limit");
+        body.remove("offset");
+        body.remove("sort");
+
+        int size = limit instanceof Number
+            ? ((Number) limit).intValue()
+            : defaultLimit;
+        size = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+
+        JsonArray after = null;
+        if (token instanceof String && !((String) token).isEmpty()) {
+            after = decode((String) token, sort);
+        }
+        return new KeysetPage(sort, size, after);
+    }
+
+    /**
+     * Decodes the page token.
+     * @param token The page token.
+     * @param sort The sort the token should have been created with.
+     * @return the sort key values.
+     */
+    private static JsonArray decode(final String token,
+        final JsonObject sort) {
+        try {
+            JsonObject key = new JsonObject(Buffer.buffer(
+                Base64.getUrlDecoder().decode(token)));
+            JsonArray fields = key.getJsonArray("s");
+            JsonArray values = key.getJsonArray("v");
+            if (fields == null || values == null
+                || !fields.equals(new JsonArray(
+                    new ArrayList<>(sort.fieldNames())))
+                || values.size() != fields.size()) {
+                throw new IllegalArgumentException("Invalid page token");
+            }
+            return values;
+        } catch (final DecodeException | IllegalArgumentException
+            | ClassCastException e) {
+            throw new IllegalArgumentException("Invalid page token", e);
+        }
+    }
+
+    /**
+     * Encodes the sort key of a document into a page token.
+     * @param doc The last document of the page.
+     * @return the page token.
+     */
+    private String encode(final JsonObject doc) {
+        JsonArray values = new JsonArray();
+        for (String field : this.sort.fieldNames()) {
+            values.add(doc.getValue(field));
+        }
+        JsonObject key = new JsonObject()
+            .put("s", new JsonArray(new ArrayList<>(this.sort.fieldNames())))
+            .put("v", values);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(
+            key.encode().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets the page size.
+     * @return the page size.
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Gets a sort key value of the last document of the previous page.
+     * @param field The sort field.
+     * @return the value, null on the first page.
+     */
+    public Object getAfter(final String field) {
+        if (this.after == null) {
+            return null;
+        }
+        int i = new ArrayList<>(this.sort.fieldNames()).indexOf(field);
+        return i < 0 ? null : this.after.getValue(i);
+    }
+
+    /**
+     * Adds the keyset condition to the query.
+     * @param query The query.
+     * @return the query limited to documents after the page token.
+     */
+    public JsonObject apply(final JsonObject query) {
+        if (this.after == null) {
+            return query;
+        }
+
+        List<String> fields = new ArrayList<>(this.sort.fieldNames());
+        JsonArray or = new JsonArray();
+        for (int i = 0; i < fields.size(); i++) {
+            JsonObject clause = new JsonObject();
+            for (int j = 0; j < i; j++) {
+                clause.put(fields.get(j), this.after.getValue(j));
+            }
+            String op = this.sort.getInteger(fields.get(i)) < 0
+                ? "$lt"
+                : "$gt";
+            clause.put(fields.get(i), new JsonObject()
+                .put(op, this.after.getValue(i)));
+            or.add(clause);
+        }
+
+        JsonObject keyset = new JsonObject().put("$or", or);
+        if (query == null || query.isEmpty()) {
+            return keyset;
+        }
+        return new JsonObject().put("$and", new JsonArray()
+            .add(query).add(keyset));
+    }
+
+    /**
+     * Gets the find options of the page.
+     * One extra document is fetched to know if there is a next page.
+     * @return the find options.
+     */
+    public FindOptions findOptions() {
+        return new FindOptions()
+            .setSort(this.sort)
+            .setLimit(this.limit + 1);
+    }
+
+    /**
+     * Gets the aggregate stages of the page.
+     * They go right after the $match stage, before any $lookup, so that
+     * only the documents of the page are joined.
+     * @param query The match query.
+     * @return the $match, $sort and $limit stages.
+     */
+    public JsonArray pipeline(final JsonObject query) {
+        return new JsonArray()
+            .add(new JsonObject().put("$match", this.apply(query)))
+            .add(new JsonObject().put("$sort", this.sort))
+            .add(new JsonObject().put("$limit", this.limit + 1));
+    }
+
+    /**
+     * Gets the aggregate stages of a page joined with stages that may drop
+     * documents, e.g the $unwind of a missing reference. The joins go
+     * between the $sort and the $limit, so a dropped document does not cut
+     * the page short and end the paging early.
+     * @param query The match query.
+     * @param joins The join stages.
+     * @return the $match, $sort, join and $limit stages.
+     */
+    public JsonArray pipeline(final JsonObject query, final JsonArray joins) {
+        JsonArray pipeline = new JsonArray()
+            .add(new JsonObject().put("$match", this.apply(query)))
+            .add(new JsonObject().put("$sort", this.sort));
+        for (Object stage : joins) {
+            pipeline.add(stage);
+        }
+        return pipeline.add(new JsonObject().put("$limit", this.limit + 1));
+    }
+
+    /**
+     * Creates the page response.
+     * @param docs The documents fetched with the page options.
+     * @return the results and the token of the next page, null on the
+     *     last page.
+     */
+    public JsonObject createPage(final List<JsonObject> docs) {
+        boolean hasNext = docs.size() > this.limit;
+        List<JsonObject> results = hasNext
+            ? docs.subList(0, this.limit)
+            : docs;
+
+        return new JsonObject()
+            .put("results", new JsonArray(new ArrayList<>(results)))
+            .put("limit", this.limit)
+            .put("nextPageToken", hasNext
+                ? this.encode(results.get(results.size() - 1))
+                : null);
+    }
+}
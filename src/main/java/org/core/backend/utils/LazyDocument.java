@@ -0,0 +1,227 @@
+package org.core.backend.utils;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * The map of a cached document kept encoded, decoded on its first use.
+ * A JsonObject wrapping it costs a hit no parsing until one of its fields
+ * is read, so the lookups that only check a document is there, or drop
+ * it, never decode it. Once decoded it is a plain ordered map.
+ */
+final class LazyDocument extends LinkedHashMap<String, Object> {
+
+    /**
+     * The serial version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The encoded document, null once decoded.
+     */
+    private transient Buffer bytes;
+
+    /**
+     * Creates the map.
+     * @param bytes The encoded document.
+     */
+    private LazyDocument(final Buffer bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Wraps an encoded document.
+     * @param bytes The encoded document, null if missing.
+     * @return the document decoding on its first use, null if missing.
+     */
+    static JsonObject wrap(final Buffer bytes) {
+        return bytes == null ? null : new JsonObject(new LazyDocument(bytes));
+    }
+
+    /**
+     * Decodes the document, the first time only.
+     */
+    private void decode() {
+        Buffer encoded = this.bytes;
+        if (encoded != null) {
+            this.bytes = null;
+            super.putAll(new JsonObject(encoded).getMap());
+        }
+    }
+
+    @Override
+    public int size() {
+        this.decode();
+        return super.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        this.decode();
+        return super.isEmpty();
+    }
+
+    @Override
+    public Object get(final Object key) {
+        this.decode();
+        return super.get(key);
+    }
+
+    @Override
+    public Object getOrDefault(final Object key, final Object value) {
+        this.decode();
+        return super.getOrDefault(key, value);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        this.decode();
+        return super.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        this.decode();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public Object put(final String key, final Object value) {
+        this.decode();
+        return super.put(key, value);
+    }
+
+    @Override
+    public void putAll(final Map<? extends String, ?> map) {
+        this.decode();
+        super.putAll(map);
+    }
+
+    @Override
+    public Object putIfAbsent(final String key, final Object value) {
+        this.decode();
+        return super.putIfAbsent(key, value);
+    }
+
+    @Override
+    public Object remove(final Object key) {
+        this.decode();
+        return super.remove(key);
+    }
+
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        this.decode();
+        return super.remove(key, value);
+    }
+
+    @Override
+    public Object replace(final String key, final Object value) {
+        this.decode();
+        return super.replace(key, value);
+    }
+
+    @Override
+    public boolean replace(final String key, final Object oldValue,
+        final Object newValue) {
+        this.decode();
+        return super.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public void replaceAll(
+        final BiFunction<? super String, ? super Object, ?> function) {
+        this.decode();
+        super.replaceAll(function);
+    }
+
+    @Override
+    public Object computeIfAbsent(final String key,
+        final Function<? super String, ?> function) {
+        this.decode();
+        return super.computeIfAbsent(key, function);
+    }
+
+    @Override
+    public Object computeIfPresent(final String key,
+        final BiFunction<? super String, ? super Object, ?> function) {
+        this.decode();
+        return super.computeIfPresent(key, function);
+    }
+
+    @Override
+    public Object compute(final String key,
+        final BiFunction<? super String, ? super Object, ?> function) {
+        this.decode();
+        return super.compute(key, function);
+    }
+
+    @Override
+    public Object merge(final String key, final Object value,
+        final BiFunction<? super Object, ? super Object, ?> function) {
+        this.decode();
+        return super.merge(key, value, function);
+    }
+
+    @Override
+    public void clear() {
+        this.bytes = null;
+        super.clear();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        this.decode();
+        return super.keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        this.decode();
+        return super.values();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        this.decode();
+        return super.entrySet();
+    }
+
+    @Override
+    public void forEach(final BiConsumer<? super String, ? super Object>
+        action) {
+        this.decode();
+        super.forEach(action);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        this.decode();
+        return super.equals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        this.decode();
+        return super.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        this.decode();
+        return super.toString();
+    }
+
+    @Override
+    public Object clone() {
+        this.decode();
+        return new LinkedHashMap<>(this);
+    }
+}
@@ -0,0 +1,53 @@
+package org.core.backend.utils;
+
+import io.vertx.core.json.JsonArray;
+import org.core.backend.models.Collections;
+import org.core.backend.utils.QueryCompiler.Op;
+import org.core.backend.utils.QueryCompiler.Type;
+
+/**
+ * The listings search, the public browse included.
+ * Holds the filters a client can pass and builds the pipeline of a page,
+ * the listing type is joined in process by the route.
+ */
+public final class ListingQuery {
+
+    /**
+     * The default page size of listings.
+     */
+    public static final int DEFAULT_LIMIT = 10;
+
+    /**
+     * The filters of the listings search.
+     */
+    public static final QueryCompiler FILTERS = QueryCompiler
+        .of(Collections.LISTINGS.toString())
+        .field("_id", Type.STRING, Op.IN)
+        .field("status", Type.STRING, Op.IN)
+        .field("organisationId", Type.STRING)
+        .field("listingType", Type.STRING, Op.IN)
+        .field("featured", Type.BOOLEAN)
+        .field("name", Type.STRING, Op.PREFIX)
+        .sortBy("featured", "createdAt")
+        .limit(DEFAULT_LIMIT, KeysetPage.MAX_PAGE_SIZE)
+        .build();
+
+    /**
+     * Hidden constructor.
+     */
+    private ListingQuery() {
+    }
+
+    /**
+     * Creates the pipeline of a page of listings.
+     * @param query The query compiled from the body by the FE.
+     * @param page The keyset page, null for the page of the query.
+     * @return the pipeline.
+     */
+    public static JsonArray pipeline(final QueryCompiler.Query query,
+        final KeysetPage page) {
+        return page == null
+            ? query.page()
+            : page.pipeline(query.getFilter());
+    }
+}
@@ -0,0 +1,122 @@
+package org.core.backend.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+
+/**
+ * Sends the outbox emails through the Mailgun messages api.
+ * The api url can be pointed at a local stub, see MAILGUN_API_URL.
+ */
+public final class MailgunClient {
+
+    /**
+     * The env var holding the api url.
+     */
+    public static final String API_URL_ENV = "MAILGUN_API_URL";
+
+    /**
+     * The env var holding the sending domain.
+     */
+    public static final String DOMAIN_ENV = "MAILGUN_DOMAIN";
+
+    /**
+     * The env var holding the api key.
+     */
+    public static final String API_KEY_ENV = "MAILGUN_API_KEY";
+
+    /**
+     * The env var holding the default sender.
+     */
+    public static final String FROM_ENV = "MAILGUN_FROM";
+
+    /**
+     * The default api url.
+     */
+    private static final String DEFAULT_API_URL = "https://api.mailgun.net";
+
+    /**
+     * The request timeout in milliseconds.
+     */
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * The web client.
+     */
+    private final WebClient client;
+
+    /**
+     * The messages endpoint.
+     */
+    private final String url;
+
+    /**
+     * The api key.
+     */
+    private final String apiKey;
+
+    /**
+     * The default sender.
+     */
+    private final String from;
+
+    /**
+     * Creates the client.
+     * @param vertx The vertx instance.
+     */
+    public MailgunClient(final Vertx vertx) {
+        String apiUrl = System.getenv(API_URL_ENV);
+        this.client = WebClient.create(vertx);
+        this.url = (apiUrl == null || apiUrl.isEmpty()
+                ? DEFAULT_API_URL : apiUrl.replaceAll("/+$", ""))
+            + "/v3/" + System.getenv(DOMAIN_ENV) + "/messages";
+        this.apiKey = System.getenv(API_KEY_ENV);
+        String sender = System.getenv(FROM_ENV);
+        this.from = sender == null || sender.isEmpty()
+            ? "no-reply@" + System.getenv(DOMAIN_ENV) : sender;
+    }
+
+    /**
+     * Checks if the env holds a domain and an api key.
+     * @return true if configured.
+     */
+    public static boolean isConfigured() {
+        String domain = System.getenv(DOMAIN_ENV);
+        String key = System.getenv(API_KEY_ENV);
+        return domain != null && !domain.isEmpty()
+            && key != null && !key.isEmpty();
+    }
+
+    /**
+     * Sends an email.
+     * @param email The outbox email, see EmailOutbox.
+     * @return a future completed with the http status code, failed if the
+     *     api could not be reached.
+     */
+    public Future<Integer> send(final JsonObject email) {
+        MultiMap form = MultiMap.caseInsensitiveMultiMap()
+            .add("from", email.getString("from") == null
+                || email.getString("from").isEmpty()
+                ? this.from : email.getString("from"))
+            .add("to", email.getString("to"))
+            .add("subject", email.getString("subject", ""));
+
+        if (email.getString("template") != null) {
+            form.add("template", email.getString("template"))
+                .add("h:X-Mailgun-Variables", email.getJsonObject(
+                    "variables", new JsonObject()).encode());
+        } else if (email.getBoolean("html", false)) {
+            form.add("html", email.getString("message", ""));
+        } else {
+            form.add("text", email.getString("message", ""));
+        }
+
+        return this.client.postAbs(this.url)
+            .basicAuthentication("api", this.apiKey)
+            .timeout(TIMEOUT)
+            .sendForm(form)
+            .map(res -> res.statusCode());
+    }
+}
@@ -0,0 +1,383 @@
+package org.core.backend.utils;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.utils.backend.utils.DBUtils;
+import org.utils.backend.utils.IDBArray;
+import org.utils.backend.utils.IDBFail;
+import org.utils.backend.utils.IDBJsonObject;
+import org.utils.backend.utils.IDBList;
+import org.utils.backend.utils.IDBSuccess;
+
+/**
+ * The db utils, recording every call in the QueryStats.
+ * The calls are passed on unchanged. The ones answering through callbacks
+ * are timed until the callback runs, the ones writing the response
+ * themselves until they end it. The saves are counted under an empty
+ * shape, the documents saved are not queries.
+ * Only the call made by the service is recorded: DBUtils may serve one
+ * overload through another, the calls made while one is being passed on
+ * are not recorded again. The callbacks run outside of it, the calls they
+ * make are recorded.
+ */
+public class MeasuredDBUtils extends DBUtils {
+
+    /**
+     * The statistics.
+     */
+    private final QueryStats stats = QueryStats.getInstance();
+
+    /**
+     * The number of calls being passed on by the thread.
+     */
+    private static final ThreadLocal<int[]> DEPTH =
+        ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * Starts recording a call made by the service, and marks the thread
+     * as passing it on until exit.
+     * @param operation The operation, e.g find.
+     * @param collection The collection.
+     * @param query The filter or the pipeline.
+     * @return the call, null if made by DBUtils itself or turned off.
+     */
+    private QueryStats.Call begin(final String operation,
+        final String collection, final Object query) {
+        return DEPTH.get()[0]++ > 0 ? null
+            : this.stats.begin(operation, collection, query);
+    }
+
+    /**
+     * Marks the call begun last as passed on.
+     */
+    private static void exit() {
+        DEPTH.get()[0]--;
+    }
+
+    /**
+     * Runs a callback as the service, its calls are recorded even when
+     * DBUtils answers before returning.
+     * @param callback The callback.
+     */
+    private static void outside(final Runnable callback) {
+        int[] depth = DEPTH.get();
+        int saved = depth[0];
+        depth[0] = 0;
+        try {
+            callback.run();
+        } finally {
+            depth[0] = saved;
+        }
+    }
+
+    @Override
+    public void find(final String collection, final JsonObject query,
+        final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("find", collection, query);
+        try {
+            super.find(collection, query, QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void find(final String collection, final JsonObject query,
+        final IDBList success, final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("find", collection, query);
+        try {
+            super.find(collection, query, list(call, success),
+                QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void find(final String collection, final JsonObject query,
+        final IDBList success, final IDBFail fail) {
+        QueryStats.Call call = this.begin("find", collection, query);
+        try {
+            super.find(collection, query, list(call, success),
+                fail(call, fail));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void findOne(final String collection, final JsonObject query,
+        final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("findOne", collection, query);
+        try {
+            super.findOne(collection, query, QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void findOne(final String collection, final JsonObject query,
+        final IDBJsonObject success, final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("findOne", collection, query);
+        try {
+            super.findOne(collection, query, one(call, success),
+                QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void findOne(final String collection, final JsonObject query,
+        final IDBJsonObject success, final IDBFail fail) {
+        QueryStats.Call call = this.begin("findOne", collection, query);
+        try {
+            super.findOne(collection, query, one(call, success),
+                fail(call, fail));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void save(final String collection, final JsonObject document,
+        final MultiMap headers) {
+        QueryStats.Call call = this.begin("save", collection, null);
+        try {
+            if (call != null) {
+                call.untimed();
+            }
+            super.save(collection, document, headers);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void save(final String collection, final JsonObject document,
+        final MultiMap headers, final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("save", collection, null);
+        try {
+            super.save(collection, document, headers,
+                QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void save(final String collection, final JsonObject document,
+        final MultiMap headers, final IDBSuccess success,
+        final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("save", collection, null);
+        try {
+            super.save(collection, document, headers, done(call, success),
+                QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void save(final String collection, final JsonObject document,
+        final MultiMap headers, final IDBSuccess success,
+        final IDBFail fail) {
+        QueryStats.Call call = this.begin("save", collection, null);
+        try {
+            super.save(collection, document, headers, done(call, success),
+                fail(call, fail));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void update(final String collection, final JsonObject query,
+        final JsonObject update, final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("update", collection, query);
+        try {
+            super.update(collection, query, update,
+                QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void update(final String collection, final JsonObject query,
+        final JsonObject update, final IDBSuccess success,
+        final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("update", collection, query);
+        try {
+            super.update(collection, query, update, done(call, success),
+                QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void update(final String collection, final JsonObject query,
+        final JsonObject update, final IDBSuccess success,
+        final IDBFail fail) {
+        QueryStats.Call call = this.begin("update", collection, query);
+        try {
+            super.update(collection, query, update, done(call, success),
+                fail(call, fail));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void findOneAndUpdate(final String collection,
+        final JsonObject query, final JsonObject update,
+        final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("findOneAndUpdate",
+            collection, query);
+        try {
+            super.findOneAndUpdate(collection, query, update,
+                QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void findOneAndUpdate(final String collection,
+        final JsonObject query, final JsonObject update,
+        final IDBJsonObject success, final IDBFail fail) {
+        QueryStats.Call call = this.begin("findOneAndUpdate",
+            collection, query);
+        try {
+            super.findOneAndUpdate(collection, query, update,
+                one(call, success), fail(call, fail));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void aggregate(final String collection, final JsonArray pipeline,
+        final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("aggregate", collection,
+            pipeline);
+        try {
+            super.aggregate(collection, pipeline, QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void aggregate(final String collection, final JsonArray pipeline,
+        final IDBList success, final IDBFail fail) {
+        QueryStats.Call call = this.begin("aggregate", collection,
+            pipeline);
+        try {
+            super.aggregate(collection, pipeline, list(call, success),
+                fail(call, fail));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void remove(final String collection, final JsonObject query,
+        final HttpServerResponse resp) {
+        QueryStats.Call call = this.begin("remove", collection, query);
+        try {
+            super.remove(collection, query, QueryStats.track(call, resp));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void distinctWithQuery(final String collection,
+        final String field, final String resultClassname,
+        final JsonObject query, final IDBArray success, final IDBFail fail) {
+        QueryStats.Call call = this.begin("distinct", collection,
+            query);
+        try {
+            super.distinctWithQuery(collection, field, resultClassname, query,
+                call == null ? success : res -> {
+                    call.end(res == null ? 0 : res.size(), -1);
+                    outside(() -> success.run(res));
+                }, fail(call, fail));
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Ends a call when its documents are returned.
+     * @param call The call, null if the statistics are off.
+     * @param success The callback.
+     * @return the timed callback.
+     */
+    private static IDBList list(final QueryStats.Call call,
+        final IDBList success) {
+        if (call == null) {
+            return success;
+        }
+        return res -> {
+            call.end(res == null ? 0 : res.size(), -1);
+            outside(() -> success.run(res));
+        };
+    }
+
+    /**
+     * Ends a call when its document is returned.
+     * @param call The call, null if the statistics are off.
+     * @param success The callback.
+     * @return the timed callback.
+     */
+    private static IDBJsonObject one(final QueryStats.Call call,
+        final IDBJsonObject success) {
+        if (call == null) {
+            return success;
+        }
+        return res -> {
+            call.end(res == null ? 0 : 1, -1);
+            outside(() -> success.run(res));
+        };
+    }
+
+    /**
+     * Ends a call when it succeeds.
+     * @param call The call, null if the statistics are off.
+     * @param success The callback.
+     * @return the timed callback.
+     */
+    private static IDBSuccess done(final QueryStats.Call call,
+        final IDBSuccess success) {
+        if (call == null) {
+            return success;
+        }
+        return () -> {
+            call.end(-1, -1);
+            outside(success::run);
+        };
+    }
+
+    /**
+     * Records a failed call.
+     * @param call The call, null if the statistics are off.
+     * @param fail The callback.
+     * @return the timed callback.
+     */
+    private static IDBFail fail(final QueryStats.Call call,
+        final IDBFail fail) {
+        if (call == null) {
+            return fail;
+        }
+        return e -> {
+            call.fail();
+            outside(() -> fail.run(e));
+        };
+    }
+}
@@ -0,0 +1,407 @@
+package org.core.backend.utils;
+
+import io.vertx.core.buffer.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Encoded documents kept out of the heap, in direct buffers.
+ * Only the index of the documents, their _id and where their bytes are,
+ * stays on the heap, so a large catalogue neither grows the heap nor the
+ * gc pauses. The buffers are allocated a segment at a time, out of a budget
+ * of bytes the stores of a process share, and given back to it when freed.
+ * A document is written at the end of the last segment with some room to
+ * grow, and replaced in place while it fits. A write never compacts: once
+ * the budget is spent the document is not stored. The space of the removed
+ * and moved documents is reclaimed by compact, run in the background, which
+ * moves the live documents of the emptiest segments to the end and frees
+ * them, a segment at a time.
+ * Reads copy the bytes out, they are decoded by the caller if need be.
+ */
+public final class OffHeapStore {
+
+    /**
+     * The size of a segment, 8MB, also the largest document stored.
+     */
+    public static final int SEGMENT_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * The share of a document's size kept free after it to grow into,
+     * 1/8.
+     */
+    private static final int SLACK_SHIFT = 3;
+
+    /**
+     * The alignment of the documents.
+     */
+    private static final int ALIGNMENT = 8;
+
+    /**
+     * The bytes the stores sharing the budget may still allocate.
+     */
+    private final AtomicLong budget;
+
+    /**
+     * The segments, the last one being written to.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * The documents by _id.
+     */
+    private final Map<String, Slot> index = new HashMap<>();
+
+    /**
+     * Guards the segments and the index.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The offset of the free space in the last segment.
+     */
+    private int tail;
+
+    /**
+     * A buffer and the documents written to it.
+     */
+    private static final class Segment {
+
+        /**
+         * The bytes.
+         */
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(
+            SEGMENT_BYTES);
+
+        /**
+         * The _ids of the documents written to it, some since moved or
+         * removed.
+         */
+        private final List<String> ids = new ArrayList<>();
+
+        /**
+         * The bytes reserved by its live documents.
+         */
+        private int live;
+    }
+
+    /**
+     * Where the bytes of a document are.
+     */
+    private static final class Slot {
+
+        /**
+         * The segment.
+         */
+        private final Segment segment;
+
+        /**
+         * The offset in the segment.
+         */
+        private final int offset;
+
+        /**
+         * The bytes reserved.
+         */
+        private final int capacity;
+
+        /**
+         * The bytes of the document.
+         */
+        private int length;
+
+        /**
+         * Creates a slot.
+         * @param segment The segment.
+         * @param offset The offset in the segment.
+         * @param capacity The bytes reserved.
+         * @param length The bytes of the document.
+         */
+        private Slot(final Segment segment, final int offset,
+            final int capacity, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.capacity = capacity;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Creates the store, no memory is allocated until written to.
+     * @param budget The bytes the stores sharing it may still allocate,
+     *     taken a segment at a time.
+     */
+    public OffHeapStore(final AtomicLong budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Gets the bytes of a document.
+     * @param id The _id.
+     * @return a copy of the bytes, null if not stored.
+     */
+    public Buffer get(final String id) {
+        this.lock.readLock().lock();
+        try {
+            Slot slot = this.index.get(id);
+            return slot == null ? null : read(slot);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a document, in place of its previous version if it fits.
+     * @param id The _id.
+     * @param bytes The encoded document.
+     * @return false if there is no room left, the document is then not
+     *     stored, nor its previous version kept.
+     */
+    public boolean put(final String id, final Buffer bytes) {
+        int length = bytes.length();
+        this.lock.writeLock().lock();
+        try {
+            Slot slot = this.index.get(id);
+            if (slot != null && length <= slot.capacity) {
+                slot.length = length;
+                write(slot, bytes);
+                return true;
+            }
+            this.release(id);
+
+            int capacity = align(length + (length >> SLACK_SHIFT));
+            if (capacity > SEGMENT_BYTES || !this.reserve(capacity)) {
+                return false;
+            }
+            this.append(id, capacity, bytes);
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a document.
+     * @param id The _id.
+     */
+    public void remove(final String id) {
+        this.lock.writeLock().lock();
+        try {
+            this.release(id);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every document and frees the segments.
+     */
+    public void clear() {
+        this.lock.writeLock().lock();
+        try {
+            this.index.clear();
+            this.free(this.segments.size());
+            this.segments.clear();
+            this.tail = 0;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reclaims the space of the removed and moved documents, freeing the
+     * segments at least half dead one at a time, their live documents
+     * copied out then written again at the end. The lock is given back
+     * between two segments, so the reads and writes wait for one segment
+     * at most. The documents that find no room, the budget being spent,
+     * are dropped. A call frees at most the segments allocated when it
+     * starts. Blocking, meant for a worker thread.
+     * @return the number of segments freed.
+     */
+    public int compact() {
+        long segments = this.allocated() / SEGMENT_BYTES;
+        int freed = 0;
+        while (freed < segments && this.compactOne()) {
+            freed++;
+        }
+        return freed;
+    }
+
+    /**
+     * Gets the size of the segments.
+     * @return the bytes allocated out of the heap.
+     */
+    public long allocated() {
+        this.lock.readLock().lock();
+        try {
+            return (long) this.segments.size() * SEGMENT_BYTES;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of documents.
+     * @return the size.
+     */
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.index.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Frees the emptiest segment, if at least half dead.
+     * @return false if no segment is worth freeing.
+     */
+    private boolean compactOne() {
+        this.lock.writeLock().lock();
+        try {
+            Segment victim = null;
+            for (int i = 0; i < this.segments.size() - 1; i++) {
+                Segment segment = this.segments.get(i);
+                if (segment.live * 2 <= SEGMENT_BYTES
+                    && (victim == null || segment.live < victim.live)) {
+                    victim = segment;
+                }
+            }
+            if (victim == null) {
+                return false;
+            }
+            Map<String, Buffer> moved = new LinkedHashMap<>();
+            for (String id : victim.ids) {
+                Slot slot = this.index.get(id);
+                if (slot != null && slot.segment == victim) {
+                    moved.put(id, read(slot));
+                    this.release(id);
+                }
+            }
+            this.segments.remove(victim);
+            this.free(1);
+            moved.forEach((id, bytes) -> {
+                int length = bytes.length();
+                int capacity = align(length + (length >> SLACK_SHIFT));
+                if (this.reserve(capacity)) {
+                    this.append(id, capacity, bytes);
+                }
+            });
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets a document, its bytes are dead until compacted.
+     * @param id The _id.
+     */
+    private void release(final String id) {
+        Slot slot = this.index.remove(id);
+        if (slot != null) {
+            slot.segment.live -= slot.capacity;
+        }
+    }
+
+    /**
+     * Makes room at the end of the last segment, taking a new segment out
+     * of the budget when it is full.
+     * @param capacity The bytes needed.
+     * @return false if there is no room.
+     */
+    private boolean reserve(final int capacity) {
+        if (!this.segments.isEmpty()
+            && this.tail + capacity <= SEGMENT_BYTES) {
+            return true;
+        }
+        if (!this.take()) {
+            return false;
+        }
+        this.segments.add(new Segment());
+        this.tail = 0;
+        return true;
+    }
+
+    /**
+     * Writes a document at the end of the last segment, reserved first.
+     * @param id The _id.
+     * @param capacity The bytes reserved.
+     * @param bytes The encoded document.
+     * @return the slot of the document.
+     */
+    private Slot append(final String id, final int capacity,
+        final Buffer bytes) {
+        Segment segment = this.segments.get(this.segments.size() - 1);
+        Slot slot = new Slot(segment, this.tail, capacity, bytes.length());
+        this.tail += capacity;
+        segment.live += capacity;
+        segment.ids.add(id);
+        this.index.put(id, slot);
+        write(slot, bytes);
+        return slot;
+    }
+
+    /**
+     * Takes a segment out of the budget.
+     * @return false if the budget has no segment left.
+     */
+    private boolean take() {
+        long left = this.budget.get();
+        while (left >= SEGMENT_BYTES) {
+            if (this.budget.compareAndSet(left, left - SEGMENT_BYTES)) {
+                return true;
+            }
+            left = this.budget.get();
+        }
+        return false;
+    }
+
+    /**
+     * Gives segments back to the budget.
+     * @param count The number of segments freed.
+     */
+    private void free(final int count) {
+        this.budget.addAndGet((long) count * SEGMENT_BYTES);
+    }
+
+    /**
+     * Reads the bytes of a document.
+     * @param slot The slot.
+     * @return a copy of the bytes.
+     */
+    private static Buffer read(final Slot slot) {
+        byte[] bytes = new byte[slot.length];
+        ByteBuffer view = slot.segment.bytes.duplicate();
+        view.position(slot.offset);
+        view.get(bytes);
+        return Buffer.buffer(bytes);
+    }
+
+    /**
+     * Writes the bytes of a document into its slot.
+     * @param slot The slot.
+     * @param bytes The encoded document.
+     */
+    private static void write(final Slot slot, final Buffer bytes) {
+        ByteBuffer view = slot.segment.bytes.duplicate();
+        view.position(slot.offset);
+        view.put(bytes.getBytes());
+    }
+
+    /**
+     * Rounds a size up to the alignment.
+     * @param size The size.
+     * @return the aligned size.
+     */
+    private static int align(final int size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+}
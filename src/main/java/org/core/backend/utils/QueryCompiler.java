@@ -0,0 +1,740 @@
+package org.core.backend.utils;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.AggregateOptions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles the filter a client sends into the query that is run.
+ * Only the fields declared for the collection are accepted, each with its
+ * operators and value type, so a body cannot carry a $where, an $expr or
+ * an unanchored $regex, and the declared fields are the indexed ones. The
+ * compiled query has a bounded limit and offset, an allowed sort, the
+ * default projection unless the client picks allowed fields, and runs
+ * with a maxTimeMS.
+ *
+ * The body keys limit, offset, sort and fields are read as the options of
+ * the query, the other keys are the filter. The server side filters, e.g
+ * the role filters, are added to the compiled filter afterwards.
+ *
+ * The searchTerm of the older clients is kept: it is searched as a prefix
+ * of the fields declared with the PREFIX operator, of those listed in
+ * fieldsToSearchFor if any, and ignored when there are none.
+ */
+public final class QueryCompiler {
+
+    /**
+     * The env var holding the default maxTimeMS of the compiled queries.
+     */
+    public static final String MAX_TIME_ENV = "QUERY_MAX_TIME_MS";
+
+    /**
+     * The default maxTimeMS.
+     */
+    private static final long DEFAULT_MAX_TIME = 2000;
+
+    /**
+     * The largest offset, deeper pages are read with a page token.
+     */
+    private static final int MAX_OFFSET = 1000;
+
+    /**
+     * The largest $in or $nin list.
+     */
+    private static final int MAX_IN = KeysetPage.MAX_PAGE_SIZE;
+
+    /**
+     * The body key of the search term.
+     */
+    private static final String SEARCH_TERM = "searchTerm";
+
+    /**
+     * The body key of the fields the term is searched in.
+     */
+    private static final String SEARCH_FIELDS = "fieldsToSearchFor";
+
+    /**
+     * The body keys that are options of the query rather than filters.
+     */
+    private static final Set<String> OPTIONS = new HashSet<>(Arrays.asList(
+        "limit", "offset", "sort", "fields", SEARCH_TERM, SEARCH_FIELDS));
+
+    /**
+     * The regex pattern characters, escaped in a search term.
+     */
+    private static final Pattern PATTERN_CHARACTERS = Pattern.compile(
+        "[.*+?()\\[\\]{}|\\\\$^]");
+
+    /**
+     * A regex prefix without any pattern character, which can use an index.
+     */
+    private static final Pattern PREFIX = Pattern.compile(
+        "\\^[^.*+?()\\[\\]{}|\\\\$^]+");
+
+    /**
+     * The value types.
+     */
+    public enum Type {
+        /**
+         * A string.
+         */
+        STRING,
+        /**
+         * A number, the dates are epoch milliseconds.
+         */
+        NUMBER,
+        /**
+         * A boolean.
+         */
+        BOOLEAN
+    }
+
+    /**
+     * The operators a field can take, equality is always allowed.
+     */
+    public enum Op {
+        /**
+         * Not equal.
+         */
+        NE("$ne"),
+        /**
+         * One of a list.
+         */
+        IN("$in"),
+        /**
+         * None of a list.
+         */
+        NIN("$nin"),
+        /**
+         * The range operators, $gt, $gte, $lt and $lte.
+         */
+        RANGE("$gt", "$gte", "$lt", "$lte"),
+        /**
+         * Whether the field is set.
+         */
+        EXISTS("$exists"),
+        /**
+         * A regex anchored on a literal prefix, e.g ^abc.
+         */
+        PREFIX("$regex");
+
+        /**
+         * The mongo operators.
+         */
+        private final List<String> operators;
+
+        /**
+         * Creates an operator.
+         * @param operators The mongo operators.
+         */
+        Op(final String... operators) {
+            this.operators = Arrays.asList(operators);
+        }
+    }
+
+    /**
+     * The collection.
+     */
+    private final String collection;
+
+    /**
+     * The fields, by name.
+     */
+    private final Map<String, Set<Op>> fields;
+
+    /**
+     * The field types, by name.
+     */
+    private final Map<String, Type> types;
+
+    /**
+     * The fields one of which the filter must pin, none if empty.
+     */
+    private final List<String> required;
+
+    /**
+     * The fields a client can sort by.
+     */
+    private final Set<String> sorts;
+
+    /**
+     * The projection when the client picks none, null for the documents.
+     */
+    private final JsonObject projection;
+
+    /**
+     * The default page size.
+     */
+    private final int defaultLimit;
+
+    /**
+     * The largest page size.
+     */
+    private final int maxLimit;
+
+    /**
+     * The maxTimeMS.
+     */
+    private final long maxTime;
+
+    /**
+     * Creates a compiler.
+     * @param builder The builder.
+     */
+    private QueryCompiler(final Builder builder) {
+        this.collection = builder.collection;
+        this.fields = builder.fields;
+        this.types = builder.types;
+        this.required = builder.required;
+        this.sorts = builder.sorts;
+        this.projection = builder.projection;
+        this.defaultLimit = builder.defaultLimit;
+        this.maxLimit = builder.maxLimit;
+        this.maxTime = builder.maxTime;
+    }
+
+    /**
+     * Starts the compiler of a collection.
+     * @param collection The collection.
+     * @return the builder.
+     */
+    public static Builder of(final String collection) {
+        return new Builder(collection);
+    }
+
+    /**
+     * Gets the collection.
+     * @return the collection.
+     */
+    public String getCollection() {
+        return this.collection;
+    }
+
+    /**
+     * Compiles a body.
+     * @param body The body from the FE, left unchanged.
+     * @return the query.
+     * @throws IllegalArgumentException if the body asks for a field, an
+     *     operator or a value the collection does not take.
+     */
+    public Query compile(final JsonObject body) {
+        JsonObject filter = new JsonObject();
+        for (Map.Entry<String, Object> entry : body) {
+            String name = entry.getKey();
+            if (OPTIONS.contains(name)) {
+                continue;
+            }
+            Set<Op> ops = this.fields.get(name);
+            if (ops == null) {
+                throw new IllegalArgumentException("Cannot filter "
+                    + this.collection + " by " + name);
+            }
+            filter.put(name, this.compileField(name, ops, entry.getValue()));
+        }
+        this.compileSearch(body, filter);
+
+        if (!this.required.isEmpty()) {
+            boolean pinned = false;
+            for (String name : this.required) {
+                pinned |= filter.containsKey(name);
+            }
+            if (!pinned) {
+                throw new IllegalArgumentException("Expected a filter on "
+                    + String.join(" or ", this.required));
+            }
+        }
+
+        int limit = this.readInt(body, "limit", this.defaultLimit,
+            Integer.MAX_VALUE);
+        return new Query(filter, this.compileSort(body.getValue("sort")),
+            this.readInt(body, "offset", 0, MAX_OFFSET),
+            limit == 0 ? this.defaultLimit : Math.min(limit, this.maxLimit),
+            this.compileProjection(body.getValue("fields")),
+            new AggregateOptions().setMaxTime(this.maxTime));
+    }
+
+    /**
+     * Adds the search term to the filter, as a prefix of any of the fields
+     * it is searched in.
+     * @param body The body from the FE.
+     * @param filter The compiled filter.
+     */
+    private void compileSearch(final JsonObject body,
+        final JsonObject filter) {
+        Object term = body.getValue(SEARCH_TERM);
+        if (!(term instanceof String) || ((String) term).trim().isEmpty()) {
+            return;
+        }
+        Object listed = body.getValue(SEARCH_FIELDS);
+
+        String prefix = "^" + PATTERN_CHARACTERS
+            .matcher(((String) term).trim()).replaceAll("\\\\$0");
+        JsonArray or = new JsonArray();
+        for (Map.Entry<String, Set<Op>> field : this.fields.entrySet()) {
+            if (field.getValue().contains(Op.PREFIX)
+                && (!(listed instanceof JsonArray)
+                    || ((JsonArray) listed).contains(field.getKey()))) {
+                or.add(new JsonObject().put(field.getKey(),
+                    new JsonObject().put("$regex", prefix)));
+            }
+        }
+        if (!or.isEmpty()) {
+            filter.put("$or", or);
+        }
+    }
+
+    /**
+     * Compiles the filter of a field.
+     * @param name The field.
+     * @param ops The operators it takes.
+     * @param value The value sent.
+     * @return the filter.
+     */
+    private Object compileField(final String name, final Set<Op> ops,
+        final Object value) {
+        Type type = this.types.get(name);
+        if (!(value instanceof JsonObject)) {
+            return this.checkValue(name, type, value);
+        }
+
+        JsonObject result = new JsonObject();
+        for (Map.Entry<String, Object> entry : (JsonObject) value) {
+            String operator = entry.getKey();
+            Op op = find(ops, operator);
+            if (op == null) {
+                throw new IllegalArgumentException("Cannot filter " + name
+                    + " with " + operator);
+            }
+            Object operand = entry.getValue();
+            switch (op) {
+                case IN:
+                case NIN:
+                    if (!(operand instanceof JsonArray)
+                        || ((JsonArray) operand).size() > MAX_IN) {
+                        throw new IllegalArgumentException("Expected at most "
+                            + MAX_IN + " values for " + name + " " + operator);
+                    }
+                    JsonArray values = new JsonArray();
+                    for (Object item : (JsonArray) operand) {
+                        values.add(this.checkValue(name, type, item));
+                    }
+                    result.put(operator, values);
+                    break;
+                case EXISTS:
+                    result.put(operator,
+                        this.checkValue(name, Type.BOOLEAN, operand));
+                    break;
+                case PREFIX:
+                    if (!(operand instanceof String)
+                        || !PREFIX.matcher((String) operand).matches()) {
+                        throw new IllegalArgumentException("Expected a ^prefix"
+                            + " without pattern characters for " + name);
+                    }
+                    result.put(operator, operand);
+                    break;
+                default:
+                    result.put(operator, this.checkValue(name, type, operand));
+                    break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the operator a mongo operator belongs to.
+     * @param ops The operators of the field.
+     * @param operator The mongo operator.
+     * @return the operator, null if the field does not take it.
+     */
+    private static Op find(final Set<Op> ops, final String operator) {
+        for (Op op : ops) {
+            if (op.operators.contains(operator)) {
+                return op;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the type of a value.
+     * @param name The field.
+     * @param type The expected type.
+     * @param value The value.
+     * @return the value.
+     */
+    private Object checkValue(final String name, final Type type,
+        final Object value) {
+        boolean valid;
+        switch (type) {
+            case NUMBER:
+                valid = value instanceof Number;
+                break;
+            case BOOLEAN:
+                valid = value instanceof Boolean;
+                break;
+            default:
+                valid = value instanceof String;
+                break;
+        }
+        if (!valid) {
+            throw new IllegalArgumentException("Expected a "
+                + type.name().toLowerCase() + " for " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Compiles the sort.
+     * @param value The sort sent, e.g {"startDate": -1}.
+     * @return the sort, null if none.
+     */
+    private JsonObject compileSort(final Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof JsonObject)) {
+            throw new IllegalArgumentException("Expected an object sort");
+        }
+        JsonObject result = new JsonObject();
+        for (Map.Entry<String, Object> entry : (JsonObject) value) {
+            Object direction = entry.getValue();
+            if (!this.sorts.contains(entry.getKey())
+                || !(direction instanceof Number)
+                || Math.abs(((Number) direction).intValue()) != 1) {
+                throw new IllegalArgumentException("Cannot sort "
+                    + this.collection + " by " + entry.getKey());
+            }
+            result.put(entry.getKey(), ((Number) direction).intValue());
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Compiles the projection.
+     * @param value The fields sent, a list of field names.
+     * @return the projection, null for the whole documents.
+     */
+    private JsonObject compileProjection(final Object value) {
+        if (value == null) {
+            return this.projection == null ? null : this.projection.copy();
+        }
+        if (!(value instanceof JsonArray)) {
+            throw new IllegalArgumentException("Expected a list of fields");
+        }
+        JsonObject result = new JsonObject();
+        for (Object field : (JsonArray) value) {
+            if (!(field instanceof String) || (this.projection != null
+                && !this.projection.containsKey((String) field))) {
+                throw new IllegalArgumentException("Cannot return " + field
+                    + " of " + this.collection);
+            }
+            result.put((String) field, 1);
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Reads a bounded int option.
+     * @param body The body.
+     * @param name The option.
+     * @param defaultValue The value when not sent.
+     * @param max The largest value.
+     * @return the value.
+     */
+    private int readInt(final JsonObject body, final String name,
+        final int defaultValue, final int max) {
+        Object value = body.getValue(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!(value instanceof Number) || ((Number) value).intValue() < 0
+            || ((Number) value).intValue() > max) {
+            throw new IllegalArgumentException("Expected a " + name
+                + " between 0 and " + max);
+        }
+        return ((Number) value).intValue();
+    }
+
+    /**
+     * Reads the default maxTimeMS from the env.
+     * @return the maxTimeMS.
+     */
+    private static long readMaxTime() {
+        String value = System.getenv(MAX_TIME_ENV);
+        if (value != null && value.trim().matches("[0-9]+")
+            && Long.parseLong(value.trim()) > 0) {
+            return Long.parseLong(value.trim());
+        }
+        return DEFAULT_MAX_TIME;
+    }
+
+    /**
+     * A compiled query.
+     */
+    public static final class Query {
+
+        /**
+         * The filter.
+         */
+        private final JsonObject filter;
+
+        /**
+         * The sort, null if none.
+         */
+        private final JsonObject sort;
+
+        /**
+         * The documents skipped.
+         */
+        private final int offset;
+
+        /**
+         * The page size.
+         */
+        private final int limit;
+
+        /**
+         * The projection, null for the whole documents.
+         */
+        private final JsonObject projection;
+
+        /**
+         * The options, with the maxTimeMS.
+         */
+        private final AggregateOptions options;
+
+        /**
+         * Creates a query.
+         * @param filter The filter.
+         * @param sort The sort, null if none.
+         * @param offset The documents skipped.
+         * @param limit The page size.
+         * @param projection The projection, null for the documents.
+         * @param options The options.
+         */
+        Query(final JsonObject filter, final JsonObject sort,
+            final int offset, final int limit, final JsonObject projection,
+            final AggregateOptions options) {
+            this.filter = filter;
+            this.sort = sort;
+            this.offset = offset;
+            this.limit = limit;
+            this.projection = projection;
+            this.options = options;
+        }
+
+        /**
+         * Gets the filter, the server side filters are added to it.
+         * @return the filter.
+         */
+        public JsonObject getFilter() {
+            return this.filter;
+        }
+
+        /**
+         * Gets the options of the aggregation.
+         * @return the options, with the maxTimeMS.
+         */
+        public AggregateOptions getOptions() {
+            return this.options;
+        }
+
+        /**
+         * Creates the stages selecting the page, before any $lookup.
+         * @return the $match, $sort, $skip and $limit stages.
+         */
+        public JsonArray page() {
+            JsonArray pipeline = new JsonArray()
+                .add(new JsonObject().put("$match", this.filter));
+            if (this.sort != null) {
+                pipeline.add(new JsonObject().put("$sort", this.sort));
+            }
+            if (this.offset > 0) {
+                pipeline.add(new JsonObject().put("$skip", this.offset));
+            }
+            return pipeline.add(new JsonObject().put("$limit", this.limit));
+        }
+
+        /**
+         * Creates the stages selecting the page joined with stages that may
+         * drop documents, e.g the $unwind of a missing reference. The joins
+         * go between the $sort and the $skip, so a dropped document does not
+         * cut the page short.
+         * @param joins The join stages.
+         * @return the $match, $sort, join, $skip and $limit stages.
+         */
+        public JsonArray page(final JsonArray joins) {
+            JsonArray pipeline = new JsonArray()
+                .add(new JsonObject().put("$match", this.filter));
+            if (this.sort != null) {
+                pipeline.add(new JsonObject().put("$sort", this.sort));
+            }
+            for (Object stage : joins) {
+                pipeline.add(stage);
+            }
+            if (this.offset > 0) {
+                pipeline.add(new JsonObject().put("$skip", this.offset));
+            }
+            return pipeline.add(new JsonObject().put("$limit", this.limit));
+        }
+
+        /**
+         * Creates the pipeline of a plain find.
+         * @return the page stages and the projection.
+         */
+        public JsonArray pipeline() {
+            return this.project(this.page());
+        }
+
+        /**
+         * Adds the projection to a pipeline.
+         * @param pipeline The pipeline.
+         * @return the pipeline.
+         */
+        public JsonArray project(final JsonArray pipeline) {
+            if (this.projection != null) {
+                pipeline.add(new JsonObject()
+                    .put("$project", this.projection.copy()));
+            }
+            return pipeline;
+        }
+    }
+
+    /**
+     * Builds a compiler.
+     */
+    public static final class Builder {
+
+        /**
+         * The collection.
+         */
+        private final String collection;
+
+        /**
+         * The fields, by name.
+         */
+        private final Map<String, Set<Op>> fields = new LinkedHashMap<>();
+
+        /**
+         * The field types, by name.
+         */
+        private final Map<String, Type> types = new LinkedHashMap<>();
+
+        /**
+         * The fields one of which the filter must pin.
+         */
+        private List<String> required = Collections.emptyList();
+
+        /**
+         * The fields a client can sort by.
+         */
+        private final Set<String> sorts = new HashSet<>();
+
+        /**
+         * The default projection.
+         */
+        private JsonObject projection;
+
+        /**
+         * The default page size.
+         */
+        private int defaultLimit = KeysetPage.MAX_PAGE_SIZE;
+
+        /**
+         * The largest page size.
+         */
+        private int maxLimit = KeysetPage.MAX_PAGE_SIZE;
+
+        /**
+         * The maxTimeMS.
+         */
+        private long maxTime = readMaxTime();
+
+        /**
+         * Creates a builder.
+         * @param collection The collection.
+         */
+        private Builder(final String collection) {
+            this.collection = collection;
+        }
+
+        /**
+         * Accepts a field.
+         * @param name The field.
+         * @param type The value type.
+         * @param ops The operators besides equality.
+         * @return this builder.
+         */
+        public Builder field(final String name, final Type type,
+            final Op... ops) {
+            Set<Op> set = EnumSet.noneOf(Op.class);
+            set.addAll(Arrays.asList(ops));
+            this.fields.put(name, set);
+            this.types.put(name, type);
+            return this;
+        }
+
+        /**
+         * Requires the filter to pin one of the fields, the leading fields
+         * of the indexes.
+         * @param names The fields.
+         * @return this builder.
+         */
+        public Builder requireOneOf(final String... names) {
+            this.required = Arrays.asList(names);
+            return this;
+        }
+
+        /**
+         * Lets the clients sort by the fields.
+         * @param names The fields.
+         * @return this builder.
+         */
+        public Builder sortBy(final String... names) {
+            this.sorts.addAll(Arrays.asList(names));
+            return this;
+        }
+
+        /**
+         * Returns only these fields, unless the client picks some of them.
+         * @param names The fields.
+         * @return this builder.
+         */
+        public Builder project(final String... names) {
+            this.projection = new JsonObject();
+            for (String name : names) {
+                this.projection.put(name, 1);
+            }
+            return this;
+        }
+
+        /**
+         * Sets the page sizes.
+         * @param pageSize The default page size.
+         * @param max The largest page size.
+         * @return this builder.
+         */
+        public Builder limit(final int pageSize, final int max) {
+            this.defaultLimit = pageSize;
+            this.maxLimit = max;
+            return this;
+        }
+
+        /**
+         * Builds the compiler.
+         * @return the compiler.
+         */
+        public QueryCompiler build() {
+            return new QueryCompiler(this);
+        }
+    }
+}
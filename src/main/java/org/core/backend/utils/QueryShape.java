@@ -0,0 +1,101 @@
+package org.core.backend.utils;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The shape of a query, its fields and operators with the values replaced
+ * by "?", so the queries differing only by their values are counted
+ * together by the QueryStats.
+ * The arrays of values only, e.g of an $in, become a single "?" whatever
+ * their length. The field names and variables of the pipeline stages, the
+ * $lookup collection or a "$field" reference, are kept, as are the sort,
+ * projection and group specs.
+ * The fields of an object are put in name order, so the same filter
+ * written in another order has the same shape. The specs keep their order,
+ * a sort depends on it, and so do the pipeline stages.
+ */
+final class QueryShape {
+
+    /**
+     * The value a stripped value is replaced by.
+     */
+    static final String VALUE = "?";
+
+    /**
+     * The fields whose values are names rather than values.
+     */
+    private static final Set<String> NAMES = new HashSet<>(Arrays.asList(
+        "from", "localField", "foreignField", "as", "path",
+        "includeArrayIndex", "distanceField", "key"));
+
+    /**
+     * The stages and options kept as they are.
+     */
+    private static final Set<String> SPECS = new HashSet<>(Arrays.asList(
+        "$sort", "$project", "$group", "$unset", "$count", "sort",
+        "projection", "fields"));
+
+    /**
+     * Hidden constructor.
+     */
+    private QueryShape() {
+    }
+
+    /**
+     * Gets the shape of a filter, or of a pipeline.
+     * @param query The filter or the pipeline, may be null.
+     * @return the shape, as compact json.
+     */
+    static String of(final Object query) {
+        if (query == null) {
+            return "{}";
+        }
+        Object shape = strip(query);
+        return shape instanceof JsonObject
+            ? ((JsonObject) shape).encode()
+            : shape instanceof JsonArray
+                ? ((JsonArray) shape).encode() : VALUE;
+    }
+
+    /**
+     * Strips the values of a part of a query.
+     * @param value The part.
+     * @return the stripped part.
+     */
+    private static Object strip(final Object value) {
+        if (value instanceof JsonObject) {
+            JsonObject object = (JsonObject) value;
+            JsonObject result = new JsonObject();
+            for (String key : new TreeSet<>(object.fieldNames())) {
+                Object field = object.getValue(key);
+                if (SPECS.contains(key)) {
+                    result.put(key, field);
+                } else if (NAMES.contains(key) && field instanceof String) {
+                    result.put(key, field);
+                } else {
+                    result.put(key, strip(field));
+                }
+            }
+            return result;
+        }
+        if (value instanceof JsonArray) {
+            JsonArray result = new JsonArray();
+            boolean values = true;
+            for (Object item : (JsonArray) value) {
+                Object stripped = strip(item);
+                values &= VALUE.equals(stripped);
+                result.add(stripped);
+            }
+            return values ? new JsonArray().add(VALUE) : result;
+        }
+        if (value instanceof String && ((String) value).startsWith("$")) {
+            return value;
+        }
+        return VALUE;
+    }
+}
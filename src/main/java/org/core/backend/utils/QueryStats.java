@@ -0,0 +1,777 @@
+package org.core.backend.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.micrometer.backends.BackendRegistries;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The statistics of the queries, by collection, operation and QueryShape,
+ * in the manner of pg_stat_statements.
+ * Each shape counts its calls and errors, the time spent, with a p99 read
+ * from fixed buckets, and the documents and bytes returned where they are
+ * known: the documents when the results reach the service, the bytes when
+ * DBUtils writes the response itself.
+ * The number of shapes is bounded, the ones past the bound are counted
+ * under the "other" shape of their collection. The calls of anonymous
+ * requests, whose filters come from anyone, may only add a tenth of the
+ * shapes, so they can not crowd out the others. The shapes are only listed
+ * to the admins: the mongo.query.duration and mongo.query.documents metrics
+ * are tagged with the collection and operation alone, so their series stay
+ * bounded by the code, not by the queries sent.
+ * With QUERY_STATS_EXPLAIN set to a number of seconds, the slowest shapes
+ * are explained on that schedule, with the last values seen, and the ones
+ * the planner answers with a collection scan are flagged. The values are
+ * only kept in process for this, they are never reported.
+ */
+public final class QueryStats {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        QueryStats.class.getName());
+
+    /**
+     * The env var that turns the statistics off when false.
+     */
+    public static final String ENABLED_ENV = "QUERY_STATS";
+
+    /**
+     * The env var holding the time between two explains, in seconds.
+     */
+    public static final String EXPLAIN_ENV = "QUERY_STATS_EXPLAIN";
+
+    /**
+     * The largest number of shapes.
+     */
+    private static final int MAX_SHAPES = 1000;
+
+    /**
+     * The largest number of shapes added by anonymous requests.
+     */
+    private static final int MAX_ANONYMOUS_SHAPES = MAX_SHAPES / 10;
+
+    /**
+     * The shape of the queries past the largest number of shapes.
+     */
+    private static final String OTHER = "other";
+
+    /**
+     * The number of slowest shapes explained at a time.
+     */
+    private static final int EXPLAIN_TOP = 3;
+
+    /**
+     * The default number of shapes listed.
+     */
+    private static final int DEFAULT_LIMIT = 50;
+
+    /**
+     * The latency bucket bounds in microseconds, the last one open.
+     */
+    private static final long[] BUCKETS = {
+        100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000,
+        250000, 500000, 1000000, 2500000, 5000000, 10000000, 30000000,
+        Long.MAX_VALUE
+    };
+
+    /**
+     * The metric latency buckets in milliseconds.
+     */
+    private static final long[] METRIC_BUCKETS = {
+        1, 5, 10, 25, 50, 100, 250, 500, 1000, 5000
+    };
+
+    /**
+     * The p99 quantile.
+     */
+    private static final double P99 = 0.99;
+
+    /**
+     * The nanoseconds in a microsecond.
+     */
+    private static final double NANOS_PER_MICRO = 1000;
+
+    /**
+     * The microseconds in a millisecond.
+     */
+    private static final double MICROS_PER_MILLI = 1000;
+
+    /**
+     * The process wide instance.
+     */
+    private static final QueryStats INSTANCE = new QueryStats();
+
+    /**
+     * The metrics by name, collection and operation, shared by the shapes.
+     */
+    private static final Map<String, Object> METERS =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Whether the statistics are on.
+     */
+    private final boolean enabled = !"false".equalsIgnoreCase(
+        System.getenv(ENABLED_ENV));
+
+    /**
+     * The shapes by collection, operation and shape.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The number of shapes added by anonymous requests.
+     */
+    private final AtomicInteger anonymousShapes = new AtomicInteger();
+
+    /**
+     * Whether the explains were started.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * The mongo client the explains run on.
+     */
+    private MongoClient client;
+
+    /**
+     * Hidden constructor.
+     */
+    private QueryStats() {
+    }
+
+    /**
+     * Gets the process wide instance.
+     * @return the statistics.
+     */
+    public static QueryStats getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks if the statistics are on.
+     * @return false if turned off.
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Starts explaining the slowest shapes, if configured.
+     * Only the first call does anything.
+     * @param vertx The vertx instance.
+     * @param mongo The mongo client.
+     */
+    public void start(final Vertx vertx, final MongoClient mongo) {
+        long interval = readSeconds(EXPLAIN_ENV);
+        if (!this.enabled || interval <= 0
+            || !this.started.compareAndSet(false, true)) {
+            return;
+        }
+        this.client = mongo;
+        vertx.setPeriodic(TimeUnit.SECONDS.toMillis(interval),
+            id -> this.explainSlowest());
+    }
+
+    /**
+     * Starts timing a query.
+     * @param operation The operation, e.g find.
+     * @param collection The collection.
+     * @param query The filter or the pipeline, kept for the explains.
+     * @return the call to end once answered, null if turned off.
+     */
+    public Call begin(final String operation, final String collection,
+        final Object query) {
+        if (!this.enabled) {
+            return null;
+        }
+        return new Call(this.entry(operation, collection, query),
+            this.started.get() ? query : null);
+    }
+
+    /**
+     * Times a query answered by a future.
+     * @param operation The operation, e.g find.
+     * @param collection The collection.
+     * @param query The filter or the pipeline.
+     * @param future The query.
+     * @param <T> The result, a list counts its documents.
+     * @return the same future.
+     */
+    public <T> Future<T> track(final String operation,
+        final String collection, final Object query, final Future<T> future) {
+        Call call = this.begin(operation, collection, query);
+        if (call == null) {
+            return future;
+        }
+        return future.onComplete(res -> {
+            if (res.failed()) {
+                call.fail();
+            } else if (res.result() instanceof List) {
+                call.end(((List<?>) res.result()).size(), -1);
+            } else {
+                call.end(res.result() == null ? 0 : 1, -1);
+            }
+        });
+    }
+
+    /**
+     * Times a query until the response it writes to is ended, counting the
+     * bytes written. A response keeps one body end handler: of the calls
+     * in flight on it, only the last one passed can be ended by it, the
+     * others are ended by their callbacks.
+     * @param call The call, null if turned off.
+     * @param resp The response.
+     * @return the same response.
+     */
+    public static HttpServerResponse track(final Call call,
+        final HttpServerResponse resp) {
+        if (call == null || resp == null) {
+            return resp;
+        }
+        resp.bodyEndHandler(v -> call.end(-1, resp.bytesWritten()));
+        return resp;
+    }
+
+    /**
+     * Lists the shapes, the most expensive first.
+     * @param sort The order, total, mean, p99, calls, errors, documents or
+     *     bytes.
+     * @param limit The largest number of shapes.
+     * @return the shapes.
+     */
+    public JsonObject toJson(final String sort, final int limit) {
+        ToDoubleFunction<JsonObject> order = orderBy(sort);
+        List<JsonObject> shapes = new ArrayList<>();
+        for (Entry entry : this.entries.values()) {
+            shapes.add(entry.toJson());
+        }
+        shapes.sort(Comparator.comparingDouble(order).reversed());
+        JsonArray result = new JsonArray();
+        for (int i = 0; i < shapes.size() && i < limit; i++) {
+            result.add(shapes.get(i));
+        }
+        return new JsonObject()
+            .put("enabled", this.enabled)
+            .put("shapes", this.entries.size())
+            .put("results", result);
+    }
+
+    /**
+     * Lists the shapes as asked by an admin.
+     * @param body The body, sort and limit, with reset to start over
+     *     once read.
+     * @return the shapes.
+     */
+    public JsonObject toJson(final JsonObject body) {
+        JsonObject result = this.toJson(body.getString("sort", "total"),
+            Math.max(1, body.getInteger("limit", DEFAULT_LIMIT)));
+        if (body.getBoolean("reset", false)) {
+            this.entries.clear();
+            this.anonymousShapes.set(0);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the field a listing is sorted by.
+     * @param sort The order.
+     * @return the sort key.
+     */
+    private static ToDoubleFunction<JsonObject> orderBy(final String sort) {
+        String field;
+        switch (sort) {
+            case "mean":
+                field = "meanMs";
+                break;
+            case "p99":
+                field = "p99Ms";
+                break;
+            case "calls":
+            case "errors":
+            case "documents":
+            case "bytes":
+                field = sort;
+                break;
+            default:
+                field = "totalMs";
+                break;
+        }
+        return shape -> shape.getDouble(field, 0d);
+    }
+
+    /**
+     * Gets the entry of a query, creating it.
+     * @param operation The operation.
+     * @param collection The collection.
+     * @param query The filter or the pipeline.
+     * @return the entry.
+     */
+    private Entry entry(final String operation, final String collection,
+        final Object query) {
+        String shape = QueryShape.of(query);
+        String key = collection + '|' + operation + '|' + shape;
+        Entry entry = this.entries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        boolean anonymous = RouteMetrics.isAnonymous();
+        if (this.entries.size() >= MAX_SHAPES || anonymous
+            && this.anonymousShapes.get() >= MAX_ANONYMOUS_SHAPES) {
+            shape = OTHER;
+            key = collection + '|' + operation + '|' + OTHER;
+        }
+        final String kept = shape;
+        return this.entries.computeIfAbsent(key, k -> {
+            if (anonymous && !OTHER.equals(kept)) {
+                this.anonymousShapes.incrementAndGet();
+            }
+            return new Entry(operation, collection, kept);
+        });
+    }
+
+    /**
+     * Explains the slowest shapes not explained yet.
+     */
+    private void explainSlowest() {
+        List<Entry> slowest = new ArrayList<>();
+        for (Entry entry : this.entries.values()) {
+            if (entry.plan == null && entry.sample != null
+                && !OTHER.equals(entry.shape)) {
+                slowest.add(entry);
+            }
+        }
+        slowest.sort(Comparator.comparingLong(
+            (Entry entry) -> entry.nanos.sum()).reversed());
+        for (int i = 0; i < slowest.size() && i < EXPLAIN_TOP; i++) {
+            this.explain(slowest.get(i));
+        }
+    }
+
+    /**
+     * Explains a shape with the last values seen.
+     * @param entry The shape.
+     */
+    private void explain(final Entry entry) {
+        JsonObject command;
+        if (entry.sample instanceof JsonArray) {
+            command = new JsonObject()
+                .put("aggregate", entry.collection)
+                .put("pipeline", entry.sample)
+                .put("cursor", new JsonObject());
+        } else {
+            command = new JsonObject()
+                .put("find", entry.collection)
+                .put("filter", entry.sample);
+        }
+        this.client.runCommand("explain", new JsonObject()
+                .put("explain", command)
+                .put("verbosity", "queryPlanner"))
+            .onSuccess(res -> {
+                JsonObject plan = new JsonObject()
+                    .put("collscan", false)
+                    .put("indexes", new JsonArray())
+                    .put("explainedAt", System.currentTimeMillis());
+                readPlan(res, plan);
+                entry.plan = plan;
+                entry.sample = null;
+                if (plan.getBoolean("collscan")) {
+                    LOGGER.warn("Collection scan on " + entry.collection
+                        + " for the " + entry.operation + " " + entry.shape);
+                }
+            })
+            .onFailure(e -> {
+                entry.plan = new JsonObject().put("error", e.getMessage());
+                entry.sample = null;
+            });
+    }
+
+    /**
+     * Reads the stages of an explain, anywhere in its plans.
+     * @param value A part of the explain.
+     * @param plan Set with collscan and the indexes used.
+     */
+    private static void readPlan(final Object value, final JsonObject plan) {
+        if (value instanceof JsonObject) {
+            JsonObject stage = (JsonObject) value;
+            if ("COLLSCAN".equals(stage.getValue("stage"))) {
+                plan.put("collscan", true);
+            }
+            Object index = stage.getValue("indexName");
+            if (index instanceof String
+                && !plan.getJsonArray("indexes").contains(index)) {
+                plan.getJsonArray("indexes").add(index);
+            }
+            for (Map.Entry<String, Object> field : stage) {
+                readPlan(field.getValue(), plan);
+            }
+        } else if (value instanceof JsonArray) {
+            for (Object item : (JsonArray) value) {
+                readPlan(item, plan);
+            }
+        }
+    }
+
+    /**
+     * Reads a number of seconds from the env.
+     * @param env The env var.
+     * @return the seconds, 0 if not set.
+     */
+    private static long readSeconds(final String env) {
+        String value = System.getenv(env);
+        if (value != null && value.trim().matches("[0-9]+")) {
+            return Long.parseLong(value.trim());
+        }
+        return 0;
+    }
+
+    /**
+     * A query being timed.
+     */
+    public static final class Call {
+
+        /**
+         * The shape.
+         */
+        private final Entry entry;
+
+        /**
+         * The time the query started, in nanoseconds.
+         */
+        private final long startedAt = System.nanoTime();
+
+        /**
+         * Whether it was recorded.
+         */
+        private final AtomicBoolean ended = new AtomicBoolean();
+
+        /**
+         * Creates a call.
+         * @param entry The shape.
+         * @param query The query, kept if the shape has no sample, null
+         *     when not explaining.
+         */
+        private Call(final Entry entry, final Object query) {
+            this.entry = entry;
+            if (query != null && entry.sample == null
+                && entry.plan == null) {
+                entry.sample = query instanceof JsonObject
+                    ? ((JsonObject) query).copy()
+                    : query instanceof JsonArray
+                        ? ((JsonArray) query).copy() : null;
+            }
+        }
+
+        /**
+         * Records the answer of the query.
+         * @param documents The documents returned, -1 if unknown.
+         * @param bytes The bytes written, -1 if unknown.
+         */
+        public void end(final long documents, final long bytes) {
+            if (this.ended.compareAndSet(false, true)) {
+                long nanos = System.nanoTime() - this.startedAt;
+                this.entry.record(nanos, documents, bytes, false);
+                RouteMetrics.mongo(nanos);
+            }
+        }
+
+        /**
+         * Records a failed query.
+         */
+        public void fail() {
+            if (this.ended.compareAndSet(false, true)) {
+                long nanos = System.nanoTime() - this.startedAt;
+                this.entry.record(nanos, -1, -1, true);
+                RouteMetrics.mongo(nanos);
+            }
+        }
+
+        /**
+         * Records a query whose answer is never seen, only counted.
+         */
+        public void untimed() {
+            if (this.ended.compareAndSet(false, true)) {
+                this.entry.calls.increment();
+            }
+        }
+    }
+
+    /**
+     * The statistics of a shape.
+     */
+    private static final class Entry {
+
+        /**
+         * The operation.
+         */
+        private final String operation;
+
+        /**
+         * The collection.
+         */
+        private final String collection;
+
+        /**
+         * The shape.
+         */
+        private final String shape;
+
+        /**
+         * The shape id.
+         */
+        private final String id;
+
+        /**
+         * The calls.
+         */
+        private final LongAdder calls = new LongAdder();
+
+        /**
+         * The timed calls.
+         */
+        private final LongAdder timed = new LongAdder();
+
+        /**
+         * The failed calls.
+         */
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * The time spent, in nanoseconds.
+         */
+        private final LongAdder nanos = new LongAdder();
+
+        /**
+         * The slowest call, in nanoseconds.
+         */
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /**
+         * The calls by latency bucket.
+         */
+        private final AtomicLongArray buckets =
+            new AtomicLongArray(BUCKETS.length);
+
+        /**
+         * The documents returned, and the calls they were counted on.
+         */
+        private final LongAdder documents = new LongAdder();
+
+        /**
+         * The calls the documents were counted on.
+         */
+        private final LongAdder documentCalls = new LongAdder();
+
+        /**
+         * The bytes written.
+         */
+        private final LongAdder bytes = new LongAdder();
+
+        /**
+         * The calls the bytes were counted on.
+         */
+        private final LongAdder byteCalls = new LongAdder();
+
+        /**
+         * The latency metric, null if metrics are disabled.
+         */
+        private final Timer timer;
+
+        /**
+         * The documents metric, null if metrics are disabled.
+         */
+        private final Counter documentCounter;
+
+        /**
+         * The last query seen, until explained.
+         */
+        private volatile Object sample;
+
+        /**
+         * The explain summary, null until explained.
+         */
+        private volatile JsonObject plan;
+
+        /**
+         * Creates the statistics of a shape.
+         * @param operation The operation.
+         * @param collection The collection.
+         * @param shape The shape.
+         */
+        Entry(final String operation, final String collection,
+            final String shape) {
+            this.operation = operation;
+            this.collection = collection;
+            this.shape = shape;
+            this.id = String.format("%08x",
+                (collection + '|' + operation + '|' + shape).hashCode());
+
+            MeterRegistry registry = BackendRegistries.getDefaultNow();
+            this.timer = registry == null ? null
+                : timer(registry, collection, operation);
+            this.documentCounter = registry == null ? null
+                : documentCounter(registry, collection, operation);
+        }
+
+        /**
+         * Gets the latency metric of a collection and operation.
+         * @param registry The meter registry.
+         * @param collection The collection.
+         * @param operation The operation.
+         * @return the timer.
+         */
+        private static Timer timer(final MeterRegistry registry,
+            final String collection, final String operation) {
+            return (Timer) METERS.computeIfAbsent(
+                "mongo.query.duration|" + collection + '|' + operation,
+                key -> {
+                    Duration[] slos = new Duration[METRIC_BUCKETS.length];
+                    for (int i = 0; i < slos.length; i++) {
+                        slos[i] = Duration.ofMillis(METRIC_BUCKETS[i]);
+                    }
+                    return Timer.builder("mongo.query.duration")
+                        .description("Mongo query latency by operation")
+                        .tags("collection", collection,
+                            "operation", operation)
+                        .serviceLevelObjectives(slos)
+                        .register(registry);
+                });
+        }
+
+        /**
+         * Gets the documents metric of a collection and operation.
+         * @param registry The meter registry.
+         * @param collection The collection.
+         * @param operation The operation.
+         * @return the counter.
+         */
+        private static Counter documentCounter(final MeterRegistry registry,
+            final String collection, final String operation) {
+            return (Counter) METERS.computeIfAbsent(
+                "mongo.query.documents|" + collection + '|' + operation,
+                key -> Counter.builder("mongo.query.documents")
+                    .description("Documents returned by operation")
+                    .tags("collection", collection, "operation", operation)
+                    .register(registry));
+        }
+
+        /**
+         * Records a call.
+         * @param elapsed The time taken, in nanoseconds.
+         * @param docs The documents returned, -1 if unknown.
+         * @param size The bytes written, -1 if unknown.
+         * @param failed Whether the call failed.
+         */
+        void record(final long elapsed, final long docs, final long size,
+            final boolean failed) {
+            this.calls.increment();
+            this.timed.increment();
+            this.nanos.add(elapsed);
+            this.max.accumulate(elapsed);
+            long micros = elapsed / (long) NANOS_PER_MICRO;
+            int bucket = 0;
+            while (micros > BUCKETS[bucket]) {
+                bucket++;
+            }
+            this.buckets.incrementAndGet(bucket);
+            if (failed) {
+                this.errors.increment();
+            }
+            if (docs >= 0) {
+                this.documents.add(docs);
+                this.documentCalls.increment();
+            }
+            if (size >= 0) {
+                this.bytes.add(size);
+                this.byteCalls.increment();
+            }
+            if (this.timer != null) {
+                this.timer.record(elapsed, TimeUnit.NANOSECONDS);
+                if (docs > 0) {
+                    this.documentCounter.increment(docs);
+                }
+            }
+        }
+
+        /**
+         * Reads the p99 bucket bound, the slowest call if in the last.
+         * @return the p99 in milliseconds.
+         */
+        private double p99() {
+            long total = 0;
+            long[] counts = new long[BUCKETS.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = this.buckets.get(i);
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(total * P99);
+            long seen = 0;
+            double maxMs = this.max.get() / NANOS_PER_MICRO
+                / MICROS_PER_MILLI;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i == counts.length - 1 ? maxMs
+                        : Math.min(maxMs, BUCKETS[i] / MICROS_PER_MILLI);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Describes the statistics.
+         * @return the statistics as json.
+         */
+        JsonObject toJson() {
+            long timedCalls = this.timed.sum();
+            long docCalls = this.documentCalls.sum();
+            long sizeCalls = this.byteCalls.sum();
+            double totalMs = this.nanos.sum() / NANOS_PER_MICRO
+                / MICROS_PER_MILLI;
+            JsonObject result = new JsonObject()
+                .put("id", this.id)
+                .put("collection", this.collection)
+                .put("operation", this.operation)
+                .put("shape", this.shape)
+                .put("calls", this.calls.sum())
+                .put("errors", this.errors.sum())
+                .put("totalMs", totalMs)
+                .put("meanMs", timedCalls == 0 ? 0 : totalMs / timedCalls)
+                .put("p99Ms", this.p99())
+                .put("maxMs", this.max.get() / NANOS_PER_MICRO
+                    / MICROS_PER_MILLI)
+                .put("documents", this.documents.sum())
+                .put("meanDocuments", docCalls == 0 ? 0
+                    : (double) this.documents.sum() / docCalls)
+                .put("bytes", this.bytes.sum())
+                .put("meanBytes", sizeCalls == 0 ? 0
+                    : (double) this.bytes.sum() / sizeCalls);
+            if (this.plan != null) {
+                result.put("plan", this.plan);
+            }
+            return result;
+        }
+    }
+}
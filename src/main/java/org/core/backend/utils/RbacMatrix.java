@@ -0,0 +1,423 @@
+package org.core.backend.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The rbac tasks compiled into a permission matrix.
+ * Every role is given a bit, and every task of an organisation the mask of
+ * the roles allowed to run it, so a check is a map lookup and an and.
+ * The matrix is rebuilt when the rbac_task collection changes, watched with
+ * a change stream, or polled every second where change streams are not
+ * available, e.g a standalone mongo.
+ * Roles are read only in the format Utils.setUserRoles writes them, learnt
+ * from a sample user, anything else grants nothing.
+ */
+public final class RbacMatrix {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        RbacMatrix.class.getName());
+
+    /**
+     * The env var holding the polling interval in milliseconds.
+     */
+    public static final String POLL_INTERVAL_ENV = "RBAC_POLL_INTERVAL";
+
+    /**
+     * The default polling interval in milliseconds.
+     */
+    private static final long DEFAULT_POLL_INTERVAL = 1000;
+
+    /**
+     * The most roles a mask can hold.
+     */
+    private static final int MAX_ROLES = Long.SIZE;
+
+    /**
+     * The organisation id field of a task and of a user.
+     */
+    private static final String ORGANISATION_ID = "organisationId";
+
+    /**
+     * The role the sample user passed to start is given.
+     */
+    public static final String SAMPLE_ROLE = "rbac-matrix-sample";
+
+    /**
+     * The process wide instance.
+     */
+    private static final RbacMatrix INSTANCE = new RbacMatrix();
+
+    /**
+     * The format of the roles, null if the sample was not understood and
+     * nothing is allowed.
+     */
+    private volatile RoleFormat format;
+
+    /**
+     * The bit of each role. A role keeps its bit for the life of the
+     * process, so masks computed before a rebuild stay valid.
+     */
+    private final Map<String, Integer> bits = new ConcurrentHashMap<>();
+
+    /**
+     * The role masks by organisation and task, replaced on every rebuild.
+     */
+    private volatile Map<String, Long> masks = Collections.emptyMap();
+
+    /**
+     * Whether the matrix was built at least once.
+     */
+    private volatile boolean loaded;
+
+    /**
+     * Whether the matrix was started.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Whether a rebuild is running.
+     */
+    private final AtomicBoolean loading = new AtomicBoolean();
+
+    /**
+     * Whether a change arrived while a rebuild was running.
+     */
+    private final AtomicBoolean stale = new AtomicBoolean();
+
+    /**
+     * The vertx instance.
+     */
+    private Vertx vertx;
+
+    /**
+     * The mongo client.
+     */
+    private MongoClient client;
+
+    /**
+     * The rbac tasks collection.
+     */
+    private String collection;
+
+    /**
+     * Hidden constructor.
+     */
+    private RbacMatrix() {
+    }
+
+    /**
+     * Gets the process wide instance.
+     * @return the matrix.
+     */
+    public static RbacMatrix getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Builds the matrix and keeps it up to date.
+     * Only the first call does anything.
+     * @param vertx The vertx instance.
+     * @param client The mongo client.
+     * @param collection The rbac tasks collection.
+     * @param sample A user given SAMPLE_ROLE by Utils.setUserRoles.
+     * @return a future completed once built.
+     */
+    public Future<Void> start(final Vertx vertx, final MongoClient client,
+        final String collection, final JsonObject sample) {
+        if (!this.started.compareAndSet(false, true)) {
+            return Future.succeededFuture();
+        }
+
+        this.format = RoleFormat.of(sample);
+        if (this.format == null) {
+            LOGGER.warn("Unknown roles format " + sample.encode()
+                + ", the matrix allows nothing");
+        }
+        this.vertx = vertx;
+        this.client = client;
+        this.collection = collection;
+        this.watch();
+        return this.refresh();
+    }
+
+    /**
+     * Watches the collection, falling back to polling if change streams
+     * are not supported.
+     */
+    private void watch() {
+        AtomicBoolean polling = new AtomicBoolean();
+        try {
+            this.client.watch(this.collection, new JsonArray(), false, 1)
+                .exceptionHandler(e -> {
+                    if (polling.compareAndSet(false, true)) {
+                        LOGGER.info("Polling " + this.collection
+                            + ", change streams unavailable: "
+                            + e.getMessage());
+                        this.poll();
+                    }
+                })
+                .handler(change -> this.refresh());
+        } catch (final RuntimeException e) {
+            if (polling.compareAndSet(false, true)) {
+                LOGGER.info("Polling " + this.collection
+                    + ", change streams unavailable: " + e.getMessage());
+                this.poll();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the matrix periodically.
+     */
+    private void poll() {
+        long interval = DEFAULT_POLL_INTERVAL;
+        String value = System.getenv(POLL_INTERVAL_ENV);
+        if (value != null && value.trim().matches("[0-9]+")
+            && Long.parseLong(value.trim()) > 0) {
+            interval = Long.parseLong(value.trim());
+        }
+        this.vertx.setPeriodic(interval, id -> this.refresh());
+    }
+
+    /**
+     * Rebuilds the matrix.
+     * A change arriving during a rebuild causes one more rebuild once done,
+     * bursts of changes therefore cost at most two reads.
+     * @return a future completed once rebuilt.
+     */
+    public Future<Void> refresh() {
+        if (this.client == null) {
+            return Future.succeededFuture();
+        }
+        if (!this.loading.compareAndSet(false, true)) {
+            this.stale.set(true);
+            return Future.succeededFuture();
+        }
+
+        this.stale.set(false);
+        return this.client.find(this.collection, new JsonObject())
+            .<Void>map(tasks -> {
+                Map<String, Long> next = new HashMap<>();
+                for (JsonObject task : tasks) {
+                    this.compile(task, next);
+                }
+                this.masks = Collections.unmodifiableMap(next);
+                this.loaded = true;
+                return null;
+            })
+            .onFailure(e -> LOGGER.error("Failed to load "
+                + this.collection, e))
+            .onComplete(res -> {
+                this.loading.set(false);
+                if (this.stale.get()) {
+                    this.refresh();
+                }
+            });
+    }
+
+    /**
+     * Compiles a task into the masks.
+     * A task naming a role past the last bit is left out, its checks are
+     * then left to the full verification.
+     * @param task The rbac task.
+     * @param into The masks.
+     */
+    private void compile(final JsonObject task, final Map<String, Long> into) {
+        String name = task.getString("task");
+        if (name == null || this.format == null) {
+            return;
+        }
+
+        long mask = 0;
+        for (String role : this.format.read(task)) {
+            Integer bit = this.bitOf(role);
+            if (bit == null) {
+                LOGGER.warn("Too many roles, not compiling task " + name);
+                return;
+            }
+            mask |= 1L << bit;
+        }
+        into.merge(key(task.getValue(ORGANISATION_ID), name), mask,
+            (a, b) -> a | b);
+    }
+
+    /**
+     * Gets the bit of a role, assigning the next free one to a new role.
+     * @param role The role.
+     * @return the bit, null if all bits are taken.
+     */
+    private synchronized Integer bitOf(final String role) {
+        Integer bit = this.bits.get(role);
+        if (bit == null && this.bits.size() < MAX_ROLES) {
+            bit = this.bits.size();
+            this.bits.put(role, bit);
+        }
+        return bit;
+    }
+
+    /**
+     * Creates the key of a task.
+     * @param organisationId The organisation id, null for a global task.
+     * @param task The task name.
+     * @return the key.
+     */
+    private static String key(final Object organisationId,
+        final String task) {
+        return (organisationId == null ? "" : organisationId) + "|" + task;
+    }
+
+    /**
+     * Checks if the matrix was built.
+     * @return true once built.
+     */
+    public boolean isLoaded() {
+        return this.loaded;
+    }
+
+    /**
+     * Checks if a user may run a task.
+     * Only the task of the user's organisation is used, the global task
+     * only for a user without an organisation.
+     * @param user The user, its roles and organisationId are read.
+     * @param task The task name.
+     * @return true if allowed, false if not or if the matrix does not know
+     *     the task, the full verification then has to decide.
+     */
+    public boolean isAllowed(final JsonObject user, final String task) {
+        if (!this.loaded || user == null || this.format == null) {
+            return false;
+        }
+
+        Long mask = this.masks.get(
+            key(user.getValue(ORGANISATION_ID), task));
+        return mask != null && (this.maskOf(user) & mask) != 0;
+    }
+
+    /**
+     * Computes the role mask of a user.
+     * Roles no task grants have no bit and add nothing.
+     * @param user The user.
+     * @return the mask.
+     */
+    private long maskOf(final JsonObject user) {
+        long mask = 0;
+        for (String role : this.format.read(user)) {
+            Integer bit = this.bits.get(role);
+            if (bit != null) {
+                mask |= 1L << bit;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * The format of the roles of a user or a task: a field holding a list
+     * of role names, a list of objects naming the role under a key, or an
+     * object flagging each role with true.
+     */
+    private static final class RoleFormat {
+
+        /**
+         * The field holding the roles.
+         */
+        private final String field;
+
+        /**
+         * The key naming the role in a list of objects, null for a list of
+         * names, empty for flags.
+         */
+        private final String key;
+
+        /**
+         * Creates the format.
+         * @param field The field holding the roles.
+         * @param key The key naming the role.
+         */
+        private RoleFormat(final String field, final String key) {
+            this.field = field;
+            this.key = key;
+        }
+
+        /**
+         * Learns the format from a sample.
+         * @param sample A user given SAMPLE_ROLE.
+         * @return the format, null if not understood.
+         */
+        private static RoleFormat of(final JsonObject sample) {
+            for (String field : sample.fieldNames()) {
+                Object value = sample.getValue(field);
+                if (value instanceof JsonObject
+                    && Boolean.TRUE.equals(
+                        ((JsonObject) value).getValue(SAMPLE_ROLE))) {
+                    return new RoleFormat(field, "");
+                }
+                if (!(value instanceof JsonArray)
+                    || ((JsonArray) value).size() != 1) {
+                    continue;
+                }
+                Object item = ((JsonArray) value).getValue(0);
+                if (SAMPLE_ROLE.equals(item)) {
+                    return new RoleFormat(field, null);
+                }
+                if (item instanceof JsonObject) {
+                    for (Map.Entry<String, Object> entry
+                        : (JsonObject) item) {
+                        if (SAMPLE_ROLE.equals(entry.getValue())) {
+                            return new RoleFormat(field, entry.getKey());
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads the role names of a user or a task.
+         * Values not in the format are skipped.
+         * @param owner The user or the task.
+         * @return the role names.
+         */
+        private Set<String> read(final JsonObject owner) {
+            Set<String> result = new HashSet<>();
+            Object value = owner.getValue(this.field);
+            if ("".equals(this.key)) {
+                if (value instanceof JsonObject) {
+                    ((JsonObject) value).forEach(role -> {
+                        if (Boolean.TRUE.equals(role.getValue())) {
+                            result.add(role.getKey());
+                        }
+                    });
+                }
+                return result;
+            }
+            if (!(value instanceof JsonArray)) {
+                return result;
+            }
+            for (Object item : (JsonArray) value) {
+                Object role = this.key == null ? item
+                    : item instanceof JsonObject
+                        ? ((JsonObject) item).getValue(this.key) : null;
+                if (role instanceof String) {
+                    result.add((String) role);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.core.backend.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory copy of a small, rarely changing collection.
+ * Used to join reference documents such as listing types onto results in
+ * process instead of with a $lookup per row. The copy is reloaded
+ * periodically, after a write through the service, and when a lookup
+ * misses, at most once per second.
+ */
+public final class ReferenceCache {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        ReferenceCache.class.getName());
+
+    /**
+     * The env var holding the reload interval in milliseconds.
+     */
+    public static final String REFRESH_INTERVAL_ENV =
+        "REFERENCE_CACHE_REFRESH";
+
+    /**
+     * The default reload interval in milliseconds.
+     */
+    private static final long DEFAULT_REFRESH_INTERVAL = 60000;
+
+    /**
+     * The least time in milliseconds between two reloads caused by misses.
+     */
+    private static final long MISS_REFRESH_INTERVAL = 1000;
+
+    /**
+     * The caches shared by the verticle instances, one per collection.
+     */
+    private static final Map<String, ReferenceCache> CACHES =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The mongo client.
+     */
+    private final MongoClient client;
+
+    /**
+     * The cached collection.
+     */
+    private final String collection;
+
+    /**
+     * The documents by id, replaced as a whole on every reload.
+     */
+    private volatile Map<String, JsonObject> byId = Collections.emptyMap();
+
+    /**
+     * The first load, replaced by its retry when it failed.
+     */
+    private volatile Future<Void> loaded;
+
+    /**
+     * Whether the collection was loaded at least once.
+     */
+    private volatile boolean warm;
+
+    /**
+     * The time of the last reload caused by a miss.
+     */
+    private final AtomicLong lastMissRefresh = new AtomicLong();
+
+    /**
+     * Creates the cache, loads it and schedules its reloads.
+     * @param vertx The vertx instance.
+     * @param client The mongo client.
+     * @param collection The cached collection.
+     */
+    private ReferenceCache(final Vertx vertx, final MongoClient client,
+        final String collection) {
+        this.client = client;
+        this.collection = collection;
+        this.loaded = this.refresh();
+
+        long interval = DEFAULT_REFRESH_INTERVAL;
+        String value = System.getenv(REFRESH_INTERVAL_ENV);
+        if (value != null && value.trim().matches("[0-9]+")
+            && Long.parseLong(value.trim()) > 0) {
+            interval = Long.parseLong(value.trim());
+        }
+        vertx.setPeriodic(interval, id -> this.refresh());
+    }
+
+    /**
+     * Gets the process wide cache of a collection.
+     * @param vertx The vertx instance.
+     * @param client The mongo client.
+     * @param collection The cached collection.
+     * @return the cache.
+     */
+    public static ReferenceCache get(final Vertx vertx,
+        final MongoClient client, final String collection) {
+        return CACHES.computeIfAbsent(collection,
+            key -> new ReferenceCache(vertx, client, collection));
+    }
+
+    /**
+     * Waits for the first load.
+     * A failed first load is retried once by the next caller, the callers
+     * meanwhile wait for that retry.
+     * @return a future completed with the cache once loaded.
+     */
+    public Future<ReferenceCache> ready() {
+        if (this.warm) {
+            return Future.succeededFuture(this);
+        }
+        Future<Void> load = this.loaded;
+        if (load.failed()) {
+            load = this.refresh();
+            this.loaded = load;
+        }
+        return load.map(this);
+    }
+
+    /**
+     * Checks if the collection was loaded.
+     * @return true once loaded, even if a later reload failed.
+     */
+    public boolean isLoaded() {
+        return this.warm;
+    }
+
+    /**
+     * Reloads the collection.
+     * @return a future completed once reloaded.
+     */
+    public Future<Void> refresh() {
+        return this.client.find(this.collection, new JsonObject())
+            .<Void>map(docs -> {
+                Map<String, JsonObject> next = new HashMap<>();
+                for (JsonObject doc : docs) {
+                    if (doc.getValue("_id") != null) {
+                        next.put(String.valueOf(doc.getValue("_id")), doc);
+                    }
+                }
+                this.byId = Collections.unmodifiableMap(next);
+                this.warm = true;
+                return null;
+            })
+            .onFailure(e -> LOGGER.error("Failed to load "
+                + this.collection, e));
+    }
+
+    /**
+     * Gets a document.
+     * @param id The document id.
+     * @return a copy of the document, null if unknown.
+     */
+    public JsonObject get(final Object id) {
+        if (id == null) {
+            return null;
+        }
+
+        JsonObject doc = this.byId.get(String.valueOf(id));
+        if (doc == null) {
+            this.refreshOnMiss();
+            return null;
+        }
+        return doc.copy();
+    }
+
+    /**
+     * Reloads the collection after a miss, at most once per second.
+     * A reference created by another instance shows up this way.
+     */
+    private void refreshOnMiss() {
+        long now = System.currentTimeMillis();
+        long last = this.lastMissRefresh.get();
+        if (now - last > MISS_REFRESH_INTERVAL
+            && this.lastMissRefresh.compareAndSet(last, now)) {
+            this.refresh();
+        }
+    }
+
+    /**
+     * Replaces a reference id in a document with the referenced document.
+     * The id is left in place if the reference is unknown.
+     * @param doc The document.
+     * @param path The dotted path of the id, e.g listing.listingType.
+     * @param as The top level field receiving the referenced document.
+     * @return the document.
+     */
+    public JsonObject join(final JsonObject doc, final String path,
+        final String as) {
+        JsonObject ref = this.get(valueAt(doc, path));
+        if (ref != null) {
+            doc.put(as, ref);
+        }
+        return doc;
+    }
+
+    /**
+     * Completes the embedded copies of references in an array.
+     * Fields missing from an item are taken from the referenced document,
+     * the fields the item has win.
+     * @param items The items, the ones with an _id are completed.
+     */
+    public void fill(final JsonArray items) {
+        if (items == null) {
+            return;
+        }
+
+        for (Object item : items) {
+            if (!(item instanceof JsonObject)) {
+                continue;
+            }
+            JsonObject embedded = (JsonObject) item;
+            JsonObject ref = this.get(embedded.getValue("_id"));
+            if (ref != null) {
+                ref.forEach(field -> embedded.getMap().putIfAbsent(
+                    field.getKey(), field.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Reads the value at a dotted path.
+     * @param doc The document.
+     * @param path The dotted path.
+     * @return the value, null if missing.
+     */
+    private static Object valueAt(final JsonObject doc, final String path) {
+        Object value = doc;
+        for (String key : path.split("\\.")) {
+            if (!(value instanceof JsonObject)) {
+                return null;
+            }
+            value = ((JsonObject) value).getValue(key);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,155 @@
+package org.core.backend.utils;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.FindOptions;
+import java.util.function.UnaryOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams database cursors into chunked http responses.
+ * Documents are written as they arrive from the cursor and the cursor is
+ * paused whenever the response write queue is full, so the memory used per
+ * request is bounded by the batch size, not by the result size. The
+ * cursor is closed as soon as the client disconnects.
+ */
+public final class ResponseStream {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        ResponseStream.class.getName());
+
+    /**
+     * The body field requesting a streamed response.
+     */
+    public static final String FIELD = "stream";
+
+    /**
+     * Streams the documents as a json array.
+     */
+    public static final String JSON = "json";
+
+    /**
+     * Streams the documents as new line delimited json.
+     */
+    public static final String NDJSON = "ndjson";
+
+    /**
+     * The number of documents fetched per cursor batch.
+     */
+    public static final int BATCH_SIZE = 100;
+
+    /**
+     * Hidden constructor.
+     */
+    private ResponseStream() {
+    }
+
+    /**
+     * Removes the stream format from the body.
+     * @param body The body from the FE.
+     * @return the format, null if the response should not be streamed.
+     */
+    public static String takeFormat(final JsonObject body) {
+        Object format = body.remove(FIELD);
+        if (NDJSON.equals(format)) {
+            return NDJSON;
+        }
+        if (JSON.equals(format) || Boolean.TRUE.equals(format)) {
+            return JSON;
+        }
+        return null;
+    }
+
+    /**
+     * Moves the paging fields of a DBUtils query into find options.
+     * @param query The query, limit, offset and sort are removed from it.
+     * @return the find options.
+     */
+    public static FindOptions takeFindOptions(final JsonObject query) {
+        FindOptions options = new FindOptions().setBatchSize(BATCH_SIZE);
+        Object limit = query.remove("limit");
+        Object offset = query.remove("offset");
+        Object sort = query.remove("sort");
+
+        if (limit instanceof Number) {
+            options.setLimit(((Number) limit).intValue());
+        }
+        if (offset instanceof Number) {
+            options.setSkip(((Number) offset).intValue());
+        }
+        if (sort instanceof JsonObject) {
+            options.setSort((JsonObject) sort);
+        }
+        return options;
+    }
+
+    /**
+     * Pipes the documents into the response.
+     * @param docs The document stream.
+     * @param format The stream format, json or ndjson.
+     * @param resp The server response.
+     */
+    public static void pipe(final ReadStream<JsonObject> docs,
+        final String format, final HttpServerResponse resp) {
+        pipe(docs, format, UnaryOperator.identity(), resp);
+    }
+
+    /**
+     * Pipes the documents into the response, mapping each one first.
+     * @param docs The document stream.
+     * @param format The stream format, json or ndjson.
+     * @param mapper Applied to every document before it is written.
+     * @param resp The server response.
+     */
+    public static void pipe(final ReadStream<JsonObject> docs,
+        final String format, final UnaryOperator<JsonObject> mapper,
+        final HttpServerResponse resp) {
+        final boolean ndjson = NDJSON.equals(format);
+        final boolean[] first = {true};
+
+        resp.setChunked(true)
+            .putHeader("Content-Type", ndjson
+                ? "application/x-ndjson"
+                : "application/json");
+        if (!ndjson) {
+            resp.write("[");
+        }
+
+        // A client gone away cancels the stream, which closes the cursor
+        // instead of leaving it open on the server until it times out.
+        resp.closeHandler(v -> docs.endHandler(null).exceptionHandler(null)
+            .handler(null));
+        docs.exceptionHandler(e -> {
+            LOGGER.error(e.getMessage(), e);
+            // The status was already sent, drop the connection so the client
+            // does not mistake a truncated list for a complete one.
+            resp.reset();
+        });
+        docs.endHandler(v -> resp.end(ndjson ? "" : "]"));
+        docs.handler(item -> {
+            JsonObject doc = mapper.apply(item);
+            Buffer chunk = Buffer.buffer();
+            if (ndjson) {
+                chunk.appendBuffer(doc.toBuffer()).appendString("\n");
+            } else {
+                if (!first[0]) {
+                    chunk.appendString(",");
+                }
+                chunk.appendBuffer(doc.toBuffer());
+            }
+            first[0] = false;
+
+            resp.write(chunk);
+            if (resp.writeQueueFull()) {
+                docs.pause();
+                resp.drainHandler(d -> docs.resume());
+            }
+        });
+    }
+}
@@ -0,0 +1,535 @@
+package org.core.backend.utils;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.micrometer.backends.BackendRegistries;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A cache of encoded responses of the public searches, by route and
+ * normalised body, the page token included.
+ * Every collection has a generation, bumped on every write to it through
+ * the db utils of this process, and on the writes of the other replicas
+ * through a change stream. A response remembers the generations of the
+ * collections it was read from and is not served once any moved, so a
+ * write invalidates every page depending on it without tracking them.
+ * The responses also expire after a while, the bound on staleness where
+ * change streams are unavailable. Within the stale while revalidate
+ * window an expired response is still served while one request reloads
+ * it, and concurrent misses of a key share a single load.
+ */
+public final class ResultCache {
+
+    /**
+     * The env var turning the cache off when false.
+     */
+    public static final String ENABLED_ENV = "RESULT_CACHE";
+
+    /**
+     * The env var holding the time a response is fresh, in milliseconds.
+     */
+    public static final String TTL_ENV = "RESULT_CACHE_TTL";
+
+    /**
+     * The env var holding the time an expired response is still served
+     * while reloaded, in milliseconds.
+     */
+    public static final String STALE_ENV = "RESULT_CACHE_STALE";
+
+    /**
+     * The env var holding the largest number of cached responses.
+     */
+    public static final String SIZE_ENV = "RESULT_CACHE_SIZE";
+
+    /**
+     * The env var holding the largest total size of the cached responses,
+     * in bytes.
+     */
+    public static final String BYTES_ENV = "RESULT_CACHE_BYTES";
+
+    /**
+     * The default time a response is fresh.
+     */
+    private static final long DEFAULT_TTL = 30000;
+
+    /**
+     * The default largest number of cached responses.
+     */
+    private static final long DEFAULT_SIZE = 1000;
+
+    /**
+     * The default largest total size, 64MB.
+     */
+    private static final long DEFAULT_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The largest response cached, 1MB, larger ones are not cached.
+     */
+    private static final int MAX_ENTRY_BYTES = 1024 * 1024;
+
+    /**
+     * The fields whose updates alone leave the results unchanged enough,
+     * the view counts written by the ViewCounter every few seconds.
+     */
+    private static final Set<String> IGNORED_FIELDS = new HashSet<>(
+        Arrays.asList("views"));
+
+    /**
+     * The process wide instance.
+     */
+    private static final ResultCache INSTANCE = new ResultCache();
+
+    /**
+     * The generations by collection.
+     */
+    private final Map<String, AtomicLong> generations =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The responses, the least recently used first.
+     */
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The loads running, by key.
+     */
+    private final Map<String, Future<Buffer>> loading =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The collections watched.
+     */
+    private final Set<String> watched = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The time a response is fresh.
+     */
+    private final long ttl;
+
+    /**
+     * The time an expired response is still served.
+     */
+    private final long stale;
+
+    /**
+     * The largest number of responses.
+     */
+    private final long maxSize;
+
+    /**
+     * The largest total size of the responses.
+     */
+    private final long maxBytes;
+
+    /**
+     * The total size of the responses.
+     */
+    private long bytes;
+
+    /**
+     * The hit counter, null when metrics are disabled.
+     */
+    private final Counter hits;
+
+    /**
+     * The stale hit counter, null when metrics are disabled.
+     */
+    private final Counter staleHits;
+
+    /**
+     * The miss counter, null when metrics are disabled.
+     */
+    private final Counter misses;
+
+    /**
+     * A cached response.
+     */
+    private static final class Entry {
+
+        /**
+         * The encoded response.
+         */
+        private final Buffer body;
+
+        /**
+         * The generation of its collections when read.
+         */
+        private final long generation;
+
+        /**
+         * The time it expires at.
+         */
+        private final long expiresAt;
+
+        /**
+         * Creates the entry.
+         * @param body The encoded response.
+         * @param generation The generation of its collections.
+         * @param expiresAt The time it expires at.
+         */
+        private Entry(final Buffer body, final long generation,
+            final long expiresAt) {
+            this.body = body;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Creates the cache from the env vars.
+     */
+    private ResultCache() {
+        this.ttl = "false".equalsIgnoreCase(System.getenv(ENABLED_ENV))
+            ? 0 : readLong(TTL_ENV, DEFAULT_TTL);
+        this.stale = readLong(STALE_ENV, 0);
+        this.maxSize = readLong(SIZE_ENV, DEFAULT_SIZE);
+        this.maxBytes = readLong(BYTES_ENV, DEFAULT_BYTES);
+
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        if (registry == null) {
+            this.hits = null;
+            this.staleHits = null;
+            this.misses = null;
+        } else {
+            this.hits = counter(registry, "hit");
+            this.staleHits = counter(registry, "stale");
+            this.misses = counter(registry, "miss");
+            Gauge.builder("result.cache.bytes", this, ResultCache::size)
+                .description("Bytes of the cached responses")
+                .register(registry);
+        }
+    }
+
+    /**
+     * Gets the process wide instance.
+     * @return the result cache.
+     */
+    public static ResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks if the cache is on.
+     * @return false if turned off.
+     */
+    public boolean isEnabled() {
+        return this.ttl > 0 && this.maxSize > 0 && this.maxBytes > 0;
+    }
+
+    /**
+     * Watches collections for the writes of the other replicas.
+     * A collection is only watched once, and again whenever its stream
+     * fails or ends, see ChangeWatch. Its generation is then bumped, as
+     * the writes in between are not seen.
+     * @param vertx The vertx instance.
+     * @param client The mongo client.
+     * @param collections The collections.
+     */
+    public void start(final Vertx vertx, final MongoClient client,
+        final Collection<String> collections) {
+        if (!this.isEnabled()) {
+            return;
+        }
+        for (String collection : collections) {
+            if (!this.watched.add(collection)) {
+                continue;
+            }
+            ChangeWatch.start(vertx, client, collection, new JsonArray(),
+                change -> {
+                    if (!isIgnored(change)) {
+                        this.bump(collection);
+                    }
+                }, () -> this.bump(collection));
+        }
+    }
+
+    /**
+     * Checks if a change only touches the ignored fields.
+     * @param change The change event.
+     * @return true if the results are left as they are.
+     */
+    private static boolean isIgnored(
+        final ChangeStreamDocument<JsonObject> change) {
+        UpdateDescription update = change.getUpdateDescription();
+        if (change.getOperationType() != OperationType.UPDATE
+            || update == null || update.getUpdatedFields() == null) {
+            return false;
+        }
+        return (update.getRemovedFields() == null
+                || update.getRemovedFields().isEmpty())
+            && IGNORED_FIELDS.containsAll(
+                update.getUpdatedFields().keySet());
+    }
+
+    /**
+     * Moves the generation of a collection, every response read from it
+     * is then reloaded.
+     * @param collection The written collection.
+     */
+    public void bump(final String collection) {
+        if (this.isEnabled()) {
+            this.generations.computeIfAbsent(collection,
+                key -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the generation of collections. Generations only grow, so their
+     * sum moves whenever one of them does.
+     * @param collections The collections.
+     * @return the generation.
+     */
+    private long generation(final Collection<String> collections) {
+        long result = 0;
+        for (String collection : collections) {
+            AtomicLong generation = this.generations.get(collection);
+            result += generation == null ? 0 : generation.get();
+        }
+        return result;
+    }
+
+    /**
+     * Creates the key of a request, the same whatever the order of the
+     * fields of its body.
+     * @param route The route.
+     * @param body The body, before any field is taken from it.
+     * @return the key.
+     */
+    public static String key(final String route, final JsonObject body) {
+        return route + '|' + normalise(body);
+    }
+
+    /**
+     * Sorts the fields of the objects of a value.
+     * @param value The value.
+     * @return the encoded value.
+     */
+    private static String normalise(final Object value) {
+        if (value instanceof JsonObject) {
+            Map<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<String, Object> field : (JsonObject) value) {
+                sorted.put(field.getKey(), field.getValue());
+            }
+            StringBuilder result = new StringBuilder("{");
+            for (Map.Entry<String, Object> field : sorted.entrySet()) {
+                if (result.length() > 1) {
+                    result.append(',');
+                }
+                result.append(encode(field.getKey())).append(':')
+                    .append(normalise(field.getValue()));
+            }
+            return result.append('}').toString();
+        }
+        if (value instanceof JsonArray) {
+            StringBuilder result = new StringBuilder("[");
+            for (Object item : (JsonArray) value) {
+                if (result.length() > 1) {
+                    result.append(',');
+                }
+                result.append(normalise(item));
+            }
+            return result.append(']').toString();
+        }
+        return encode(value);
+    }
+
+    /**
+     * Encodes a plain value.
+     * @param value The value.
+     * @return the json of the value.
+     */
+    private static String encode(final Object value) {
+        String encoded = new JsonArray().add(value).encode();
+        return encoded.substring(1, encoded.length() - 1);
+    }
+
+    /**
+     * Gets a response, loading it if missing, expired or read before a
+     * write to one of its collections.
+     * @param key The key, see key.
+     * @param collections The collections the response is read from.
+     * @param load Loads the encoded response.
+     * @return the encoded response.
+     */
+    public Future<Buffer> get(final String key,
+        final Collection<String> collections,
+        final Supplier<Future<Buffer>> load) {
+        if (!this.isEnabled()) {
+            return load.get();
+        }
+        long generation = this.generation(collections);
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+        if (entry != null && entry.generation == generation) {
+            if (now < entry.expiresAt) {
+                increment(this.hits);
+                return Future.succeededFuture(entry.body);
+            }
+            if (now < entry.expiresAt + this.stale) {
+                increment(this.staleHits);
+                this.load(key, collections, load);
+                return Future.succeededFuture(entry.body);
+            }
+        }
+        increment(this.misses);
+        return this.load(key, collections, load);
+    }
+
+    /**
+     * Loads a response, or joins the load of the same key running.
+     * @param key The key.
+     * @param collections The collections the response is read from.
+     * @param load Loads the encoded response.
+     * @return the encoded response.
+     */
+    private Future<Buffer> load(final String key,
+        final Collection<String> collections,
+        final Supplier<Future<Buffer>> load) {
+        Future<Buffer> running = this.loading.get(key);
+        if (running != null) {
+            return this.onCurrentContext(running);
+        }
+
+        Promise<Buffer> promise = Promise.promise();
+        running = this.loading.putIfAbsent(key, promise.future());
+        if (running != null) {
+            return this.onCurrentContext(running);
+        }
+
+        long generation = this.generation(collections);
+        Future<Buffer> loaded;
+        try {
+            loaded = load.get();
+        } catch (final RuntimeException e) {
+            loaded = Future.failedFuture(e);
+        }
+        loaded.onComplete(res -> {
+            this.loading.remove(key);
+            if (res.succeeded()
+                && generation == this.generation(collections)) {
+                this.put(key, new Entry(res.result(), generation,
+                    System.currentTimeMillis() + this.ttl));
+            }
+            promise.handle(res);
+        });
+        return promise.future();
+    }
+
+    /**
+     * Delivers the result of a load started on another context on the
+     * current one, the response of a request is written from its own
+     * event loop.
+     * @param running The load.
+     * @return the result on the current context.
+     */
+    private Future<Buffer> onCurrentContext(final Future<Buffer> running) {
+        Context context = Vertx.currentContext();
+        if (context == null) {
+            return running;
+        }
+        Promise<Buffer> promise = Promise.promise();
+        running.onComplete(res -> context.runOnContext(v ->
+            promise.handle(res)));
+        return promise.future();
+    }
+
+    /**
+     * Caches a response, evicting the least recently used ones past the
+     * bounds. A response too large is not cached.
+     * @param key The key.
+     * @param entry The response.
+     */
+    private void put(final String key, final Entry entry) {
+        if (entry.body.length() > MAX_ENTRY_BYTES) {
+            return;
+        }
+        synchronized (this.entries) {
+            Entry previous = this.entries.put(key, entry);
+            this.bytes += entry.body.length()
+                - (previous == null ? 0 : previous.body.length());
+            Iterator<Entry> it = this.entries.values().iterator();
+            while (it.hasNext() && (this.entries.size() > this.maxSize
+                || this.bytes > this.maxBytes)) {
+                this.bytes -= it.next().body.length();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the total size of the cached responses.
+     * @return the size in bytes.
+     */
+    public long size() {
+        synchronized (this.entries) {
+            return this.bytes;
+        }
+    }
+
+    /**
+     * Creates a lookup counter.
+     * @param registry The meter registry.
+     * @param result The lookup result tag.
+     * @return the counter.
+     */
+    private static Counter counter(final MeterRegistry registry,
+        final String result) {
+        return Counter.builder("result.cache")
+            .tag("result", result)
+            .description("Result cache lookups")
+            .register(registry);
+    }
+
+    /**
+     * Reads a non negative long from an env var.
+     * @param env The env var name.
+     * @param defaultValue The value used when the env var is missing.
+     * @return the value.
+     */
+    private static long readLong(final String env, final long defaultValue) {
+        String value = System.getenv(env);
+        try {
+            return value == null
+                ? defaultValue
+                : Math.max(0, Long.parseLong(value.trim()));
+        } catch (final NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Increments a counter if metrics are enabled.
+     * @param counter The counter.
+     */
+    private static void increment(final Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+}
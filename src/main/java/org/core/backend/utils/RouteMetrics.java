@@ -0,0 +1,275 @@
+package org.core.backend.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.micrometer.backends.BackendRegistries;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of a request, tagged with its @SystemTasks task.
+ * Records the total latency, the time spent verifying the user, in mongo,
+ * as timed by the QueryStats of every DBUtils call, and from the last mongo
+ * answer to the end of the response, which covers building and encoding
+ * it. Also the response status, the error codes and the response size.
+ * The task tag only takes the registered task names, the others are tagged
+ * other, and the histograms have fixed buckets, so the number of series
+ * stays bounded.
+ * Vertx runs every http request on a duplicate of the event loop context
+ * owning only that request, the mongo callbacks run on it too and find the
+ * request again from its locals. The request is followed that way even with
+ * the metrics disabled, the QueryStats ask whether its caller is anonymous.
+ */
+public final class RouteMetrics {
+
+    /**
+     * The context key of the request metrics.
+     */
+    private static final String KEY = RouteMetrics.class.getName();
+
+    /**
+     * The task tag of unregistered tasks.
+     */
+    private static final String OTHER = "other";
+
+    /**
+     * The latency buckets in milliseconds.
+     */
+    private static final long[] LATENCY_BUCKETS = {
+        5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000
+    };
+
+    /**
+     * The response size buckets in bytes.
+     */
+    private static final double[] SIZE_BUCKETS = {
+        1024, 10240, 102400, 1048576, 10485760
+    };
+
+    /**
+     * The meters by name and tags, so a request does not build them.
+     */
+    private static final Map<String, Object> METERS =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The meter registry, null if metrics are disabled.
+     */
+    private final MeterRegistry registry;
+
+    /**
+     * Whether the task runs without a verified user.
+     */
+    private final boolean anonymous;
+
+    /**
+     * The task tag.
+     */
+    private final String task;
+
+    /**
+     * The time the request reached its task, in nanoseconds.
+     */
+    private final long startedAt = System.nanoTime();
+
+    /**
+     * The time the user was verified, 0 if never.
+     */
+    private volatile long authorisedAt;
+
+    /**
+     * The time spent in mongo, in nanoseconds.
+     */
+    private final AtomicLong mongo = new AtomicLong();
+
+    /**
+     * The time the last mongo call answered, 0 if none did.
+     */
+    private volatile long answeredAt;
+
+    /**
+     * Creates the request metrics.
+     * @param registry The meter registry, null if metrics are disabled.
+     * @param task The task tag.
+     * @param anonymous Whether the task runs without a verified user.
+     */
+    private RouteMetrics(final MeterRegistry registry, final String task,
+        final boolean anonymous) {
+        this.registry = registry;
+        this.task = task;
+        this.anonymous = anonymous;
+    }
+
+    /**
+     * Starts the metrics of a request, recorded once it ends.
+     * @param task The task name.
+     * @param rc The routing context.
+     * @param anonymous Whether the task runs without a verified user.
+     * @return the request metrics.
+     */
+    public static RouteMetrics begin(final String task,
+        final RoutingContext rc, final boolean anonymous) {
+        if (rc.get(KEY) != null) {
+            return rc.get(KEY);
+        }
+
+        TaskRegistry tasks = TaskRegistry.current();
+        RouteMetrics metrics = new RouteMetrics(
+            BackendRegistries.getDefaultNow(),
+            tasks != null && tasks.contains(task) ? task : OTHER, anonymous);
+        Context context = Vertx.currentContext();
+        if (context != null) {
+            context.putLocal(KEY, metrics);
+        }
+        rc.put(KEY, metrics);
+        rc.addEndHandler(res -> metrics.end(rc));
+        return metrics;
+    }
+
+    /**
+     * Gets the metrics of the current request.
+     * @return the metrics, null outside of a request.
+     */
+    private static RouteMetrics current() {
+        Context context = Vertx.currentContext();
+        Object metrics = context == null ? null : context.getLocal(KEY);
+        return metrics instanceof RouteMetrics
+            ? (RouteMetrics) metrics : null;
+    }
+
+    /**
+     * Checks if the current request runs without a verified user.
+     * @return false outside of a request.
+     */
+    public static boolean isAnonymous() {
+        RouteMetrics metrics = current();
+        return metrics != null && metrics.anonymous;
+    }
+
+    /**
+     * Marks the user of the request as verified.
+     */
+    public void authorised() {
+        if (this.authorisedAt == 0) {
+            this.authorisedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Counts an error response of the current request.
+     * @param code The Utils error code.
+     */
+    public static void error(final int code) {
+        RouteMetrics metrics = current();
+        if (metrics != null && metrics.registry != null) {
+            metrics.counter("api.errors", "Error responses by code",
+                "code", String.valueOf(code)).increment();
+        }
+    }
+
+    /**
+     * Adds the time of a mongo call to the current request.
+     * Overlapping calls are all counted, the sum can exceed the latency.
+     * @param nanos The time the call took, in nanoseconds.
+     */
+    public static void mongo(final long nanos) {
+        RouteMetrics metrics = current();
+        if (metrics != null) {
+            metrics.mongo.addAndGet(nanos);
+            metrics.answeredAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records the metrics of the ended request.
+     * @param rc The routing context.
+     */
+    private void end(final RoutingContext rc) {
+        if (this.registry == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long authorised = this.authorisedAt;
+        long answered = this.answeredAt;
+        this.timer("total").record(now - this.startedAt,
+            TimeUnit.NANOSECONDS);
+        if (authorised != 0) {
+            this.timer("auth").record(authorised - this.startedAt,
+                TimeUnit.NANOSECONDS);
+        }
+        if (answered != 0) {
+            this.timer("mongo").record(this.mongo.get(),
+                TimeUnit.NANOSECONDS);
+            this.timer("respond").record(now - answered,
+                TimeUnit.NANOSECONDS);
+        }
+
+        this.counter("api.responses", "Responses by http status", "status",
+            String.valueOf(rc.response().getStatusCode())).increment();
+        this.summary().record(rc.response().bytesWritten());
+    }
+
+    /**
+     * Gets the latency timer of a phase of the task.
+     * @param phase The phase.
+     * @return the timer.
+     */
+    private Timer timer(final String phase) {
+        return (Timer) METERS.computeIfAbsent(
+            "api.task.duration|" + this.task + "|" + phase,
+            key -> {
+                Duration[] buckets = new Duration[LATENCY_BUCKETS.length];
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = Duration.ofMillis(LATENCY_BUCKETS[i]);
+                }
+                return Timer.builder("api.task.duration")
+                    .tag("task", this.task)
+                    .tag("phase", phase)
+                    .description("Task latency by phase")
+                    .serviceLevelObjectives(buckets)
+                    .register(this.registry);
+            });
+    }
+
+    /**
+     * Gets a counter of the task.
+     * @param name The counter name.
+     * @param description The counter description.
+     * @param tag The extra tag.
+     * @param value The extra tag value.
+     * @return the counter.
+     */
+    private Counter counter(final String name, final String description,
+        final String tag, final String value) {
+        return (Counter) METERS.computeIfAbsent(
+            name + "|" + this.task + "|" + value,
+            key -> Counter.builder(name)
+                .tag("task", this.task)
+                .tag(tag, value)
+                .description(description)
+                .register(this.registry));
+    }
+
+    /**
+     * Gets the response size summary of the task.
+     * @return the summary.
+     */
+    private DistributionSummary summary() {
+        return (DistributionSummary) METERS.computeIfAbsent(
+            "api.response.size|" + this.task,
+            key -> DistributionSummary.builder("api.response.size")
+                .tag("task", this.task)
+                .baseUnit("bytes")
+                .description("Response sizes")
+                .serviceLevelObjectives(SIZE_BUCKETS)
+                .register(this.registry));
+    }
+}
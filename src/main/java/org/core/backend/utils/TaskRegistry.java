@@ -0,0 +1,241 @@
+package org.core.backend.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.BulkWriteOptions;
+import io.vertx.ext.mongo.MongoClient;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.utils.backend.utils.SystemTasks;
+
+/**
+ * The tasks of the services, read from their @SystemTasks annotations.
+ * The annotations are scanned once, when the first service starts, and the
+ * resulting registry never changes.
+ * A task only carries its name and handler: @SystemTasks holds nothing else,
+ * so the required fields and whether a route is protected stay with the
+ * execute2 and execute3 calls of each handler, where Utils checks them.
+ * Nor is the registry read by the router or the rbac checks: the routes are
+ * still set by the setRoutes of each service and RbacMatrix still reads the
+ * rbac tasks, the registry only feeds the system tasks catalogue.
+ */
+public final class TaskRegistry {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        TaskRegistry.class.getName());
+
+    /**
+     * The env var turning off the task sync when set to false.
+     */
+    public static final String SYNC_ENV = "SYSTEM_TASK_SYNC";
+
+    /**
+     * The registry, built by the first scan.
+     */
+    private static volatile TaskRegistry instance;
+
+    /**
+     * Whether the tasks were synced.
+     */
+    private static final AtomicBoolean SYNCED = new AtomicBoolean();
+
+    /**
+     * The tasks by name, in declaration order.
+     */
+    private final Map<String, Task> tasks;
+
+    /**
+     * The task names.
+     */
+    private final JsonArray names;
+
+    /**
+     * A task.
+     */
+    public static final class Task {
+
+        /**
+         * The task name.
+         */
+        private final String name;
+
+        /**
+         * The handler method.
+         */
+        private final Method handler;
+
+        /**
+         * Creates the task.
+         * @param name The task name.
+         * @param handler The handler method.
+         */
+        private Task(final String name, final Method handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        /**
+         * Gets the task name.
+         * @return the name.
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Gets the handler method.
+         * @return the handler.
+         */
+        public Method getHandler() {
+            return this.handler;
+        }
+
+        /**
+         * Gets the service declaring the handler.
+         * @return the service class.
+         */
+        public Class<?> getService() {
+            return this.handler.getDeclaringClass();
+        }
+    }
+
+    /**
+     * Creates the registry.
+     * @param tasks The tasks by name.
+     */
+    private TaskRegistry(final Map<String, Task> tasks) {
+        this.tasks = Collections.unmodifiableMap(tasks);
+        JsonArray all = new JsonArray();
+        tasks.keySet().forEach(all::add);
+        this.names = all;
+    }
+
+    /**
+     * Gets the registry, scanning the services the first time.
+     * @param service The most derived service class, it and its super
+     *     classes are scanned.
+     * @return the registry.
+     */
+    public static synchronized TaskRegistry of(final Class<?> service) {
+        if (instance == null) {
+            instance = new TaskRegistry(scan(service));
+            LOGGER.info("Registered " + instance.tasks.size() + " tasks");
+        }
+        return instance;
+    }
+
+    /**
+     * Gets the registry if a service built it already.
+     * @return the registry, null before the first scan.
+     */
+    public static TaskRegistry current() {
+        return instance;
+    }
+
+    /**
+     * Scans a service class and its super classes for tasks.
+     * @param service The service class.
+     * @return the tasks by name.
+     */
+    private static Map<String, Task> scan(final Class<?> service) {
+        Map<String, Task> result = new LinkedHashMap<>();
+        for (Class<?> type = service; type != null && type != Object.class;
+            type = type.getSuperclass()) {
+            for (Method method : type.getDeclaredMethods()) {
+                SystemTasks task = method.getDeclaredAnnotation(
+                    SystemTasks.class);
+                if (task != null && task.task() != null
+                    && !task.task().trim().isEmpty()) {
+                    result.putIfAbsent(task.task(),
+                        new Task(task.task(), method));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets a task.
+     * @param name The task name.
+     * @return the task, null if not registered.
+     */
+    public Task get(final String name) {
+        return this.tasks.get(name);
+    }
+
+    /**
+     * Checks if a task is registered.
+     * @param name The task name.
+     * @return true if registered.
+     */
+    public boolean contains(final String name) {
+        return this.tasks.containsKey(name);
+    }
+
+    /**
+     * Gets the tasks.
+     * @return the tasks, in declaration order.
+     */
+    public Collection<Task> getTasks() {
+        return this.tasks.values();
+    }
+
+    /**
+     * Gets the task names.
+     * @return a copy of the names.
+     */
+    public JsonArray getNames() {
+        return this.names.copy();
+    }
+
+    /**
+     * Records the name, service and handler of every task, in one unordered
+     * bulk upsert. Nothing is granted: the collection holds no roles and is
+     * not the rbac tasks collection, grants are only made by the admins.
+     * Only the first call of the process writes.
+     * @param client The mongo client.
+     * @param collection The task catalogue collection.
+     * @return a future completed once synced.
+     */
+    public Future<Void> sync(final MongoClient client,
+        final String collection) {
+        if ("false".equalsIgnoreCase(System.getenv(SYNC_ENV))
+            || this.tasks.isEmpty()
+            || !SYNCED.compareAndSet(false, true)) {
+            return Future.succeededFuture();
+        }
+
+        List<BulkOperation> operations = new ArrayList<>();
+        for (Task task : this.tasks.values()) {
+            JsonObject metadata = new JsonObject()
+                .put("service", task.getService().getSimpleName())
+                .put("handler", task.getHandler().getName());
+            operations.add(BulkOperation.createUpdate(
+                new JsonObject().put("task", task.getName()),
+                new JsonObject().put("$set", metadata), true, false));
+        }
+
+        return client.bulkWriteWithOptions(collection, operations,
+                new BulkWriteOptions(false))
+            .onSuccess(res -> LOGGER.info("Recorded " + this.tasks.size()
+                + " tasks, " + res.getUpserts().size() + " new"))
+            .onFailure(e -> {
+                SYNCED.set(false);
+                LOGGER.error("Failed to sync the tasks", e);
+            })
+            .mapEmpty();
+    }
+}
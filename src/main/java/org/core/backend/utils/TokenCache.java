@@ -0,0 +1,418 @@
+package org.core.backend.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.json.JsonObject;
+import io.vertx.micrometer.backends.BackendRegistries;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A cache of verified tokens.
+ * Maps the hash of a token and the task it was verified for to the user it
+ * resolved to, so repeated calls from the same session skip verification
+ * and the user lookup. An entry never outlives the token's own exp claim.
+ * Tokens that are invalid by themselves, malformed or past their exp claim,
+ * are remembered for a short while too. A call turned down for any other
+ * reason, a denied task or a failed lookup, is not remembered.
+ * Both maps are concurrent and bounded, once full the least recently used
+ * tenth of the entries is evicted by whichever thread filled it.
+ */
+public final class TokenCache {
+
+    /**
+     * The env var holding the longest time in milliseconds a verified
+     * token is trusted without verifying it again, 0 disables the cache.
+     */
+    public static final String TTL_ENV = "TOKEN_CACHE_TTL";
+
+    /**
+     * The env var holding the largest number of cached tokens.
+     */
+    public static final String SIZE_ENV = "TOKEN_CACHE_SIZE";
+
+    /**
+     * The default time a verified token is trusted, in milliseconds.
+     */
+    private static final long DEFAULT_TTL = 60000;
+
+    /**
+     * The time a rejected token is remembered, in milliseconds.
+     */
+    private static final long REJECTED_TTL = 10000;
+
+    /**
+     * The default largest number of cached tokens.
+     */
+    private static final int DEFAULT_SIZE = 10000;
+
+    /**
+     * Milliseconds per second, the exp claim is in seconds.
+     */
+    private static final long MILLIS = 1000;
+
+    /**
+     * The process wide instance.
+     */
+    private static final TokenCache INSTANCE = new TokenCache();
+
+    /**
+     * The share of the entries kept when a full map is evicted.
+     */
+    private static final double KEEP = 0.9;
+
+    /**
+     * The verified tokens.
+     */
+    private final Map<String, Entry> verified = new ConcurrentHashMap<>();
+
+    /**
+     * The rejected tokens.
+     */
+    private final Map<String, Entry> rejected = new ConcurrentHashMap<>();
+
+    /**
+     * The largest number of entries per map.
+     */
+    private final int capacity;
+
+    /**
+     * Whether a thread is evicting, only one does at a time.
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * The longest time a verified token is trusted.
+     */
+    private final long ttl;
+
+    /**
+     * The hit counter, null when metrics are disabled.
+     */
+    private final Counter hits;
+
+    /**
+     * The miss counter, null when metrics are disabled.
+     */
+    private final Counter misses;
+
+    /**
+     * The rejected hit counter, null when metrics are disabled.
+     */
+    private final Counter rejectedHits;
+
+    /**
+     * A cached token.
+     */
+    private static final class Entry {
+
+        /**
+         * The user, null for a rejected token.
+         */
+        private final JsonObject user;
+
+        /**
+         * The time the entry expires at.
+         */
+        private final long expiresAt;
+
+        /**
+         * The time the entry was last read at.
+         */
+        private volatile long usedAt;
+
+        /**
+         * Creates the entry.
+         * @param user The user, null for a rejected token.
+         * @param expiresAt The time the entry expires at.
+         */
+        private Entry(final JsonObject user, final long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+            this.usedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Creates the cache.
+     */
+    private TokenCache() {
+        this.ttl = readLong(TTL_ENV, DEFAULT_TTL);
+        this.capacity = (int) Math.min(Integer.MAX_VALUE,
+            Math.max(1, readLong(SIZE_ENV, DEFAULT_SIZE)));
+
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        if (registry == null) {
+            this.hits = null;
+            this.misses = null;
+            this.rejectedHits = null;
+        } else {
+            this.hits = counter(registry, "hit");
+            this.misses = counter(registry, "miss");
+            this.rejectedHits = counter(registry, "rejected");
+            Gauge.builder("auth.token.cache.size", this,
+                    TokenCache::size)
+                .description("Verified tokens in the cache")
+                .register(registry);
+        }
+    }
+
+    /**
+     * Gets the process wide instance.
+     * @return the token cache.
+     */
+    public static TokenCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates a lookup counter.
+     * @param registry The meter registry.
+     * @param result The lookup result tag.
+     * @return the counter.
+     */
+    private static Counter counter(final MeterRegistry registry,
+        final String result) {
+        return Counter.builder("auth.token.cache")
+            .tag("result", result)
+            .description("Token cache lookups")
+            .register(registry);
+    }
+
+    /**
+     * Reads a non negative long from an env var.
+     * @param env The env var name.
+     * @param defaultValue The value used when the env var is missing.
+     * @return the value.
+     */
+    private static long readLong(final String env, final long defaultValue) {
+        String value = System.getenv(env);
+        try {
+            return value == null
+                ? defaultValue
+                : Math.max(0, Long.parseLong(value.trim()));
+        } catch (final NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Checks if the cache is enabled.
+     * @return false if the ttl is 0.
+     */
+    public boolean isEnabled() {
+        return this.ttl > 0;
+    }
+
+    /**
+     * Creates the key of a token verified for a task.
+     * Only the hash of the token is kept in memory.
+     * @param token The token.
+     * @param task The task the token was verified for.
+     * @return the key.
+     */
+    public static String key(final String token, final String task) {
+        return key(token) + "|" + task;
+    }
+
+    /**
+     * Creates the key of a token.
+     * @param token The token.
+     * @return the key.
+     */
+    public static String key(final String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(
+                token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the user of a verified token.
+     * @param key The token key.
+     * @return a copy of the user, null if not cached.
+     */
+    public JsonObject getUser(final String key) {
+        Entry entry = this.lookup(this.verified, key);
+        if (entry == null) {
+            increment(this.misses);
+            return null;
+        }
+        increment(this.hits);
+        return entry.user.copy();
+    }
+
+    /**
+     * Checks if a token is invalid by itself, whoever verifies it.
+     * A token is invalid if it is not a jwt or its exp claim is past, the
+     * signature is left to the verification.
+     * @param token The token, with or without the Bearer prefix.
+     * @return true if invalid.
+     */
+    public static boolean isInvalid(final String token) {
+        String[] parts = token.replaceFirst("^Bearer\\s+", "").split("\\.");
+        if (parts.length != 3) {
+            return true;
+        }
+
+        try {
+            JsonObject claims = new JsonObject(new String(
+                Base64.getUrlDecoder().decode(parts[1]),
+                StandardCharsets.UTF_8));
+            Long exp = claims.getLong("exp");
+            return exp != null && exp * MILLIS <= System.currentTimeMillis();
+        } catch (final RuntimeException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Checks if a token was rejected recently.
+     * @param key The token key.
+     * @return true if rejected.
+     */
+    public boolean isRejected(final String key) {
+        boolean result = this.lookup(this.rejected, key) != null;
+        if (result) {
+            increment(this.rejectedHits);
+        }
+        return result;
+    }
+
+    /**
+     * Caches a verified token.
+     * @param key The token key.
+     * @param token The token, its exp claim bounds the entry.
+     * @param user The user the token resolved to.
+     */
+    public void putUser(final String key, final String token,
+        final JsonObject user) {
+        long now = System.currentTimeMillis();
+        long expiresAt = Math.min(now + this.ttl, expiry(token));
+        if (expiresAt > now && user != null) {
+            this.put(this.verified, key, new Entry(user.copy(), expiresAt));
+        }
+    }
+
+    /**
+     * Remembers a token invalid by itself, see isInvalid.
+     * @param key The token key.
+     */
+    public void reject(final String key) {
+        this.put(this.rejected, key, new Entry(null,
+            System.currentTimeMillis() + REJECTED_TTL));
+    }
+
+    /**
+     * Gets the number of verified tokens.
+     * @return the size.
+     */
+    public int size() {
+        return this.verified.size();
+    }
+
+    /**
+     * Adds an entry, evicting if the map is full.
+     * @param map The map.
+     * @param key The token key.
+     * @param entry The entry.
+     */
+    private void put(final Map<String, Entry> map, final String key,
+        final Entry entry) {
+        map.put(key, entry);
+        if (map.size() > this.capacity
+            && this.evicting.compareAndSet(false, true)) {
+            try {
+                this.evict(map);
+            } finally {
+                this.evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Evicts the expired entries, then the least recently used ones until
+     * a tenth of the capacity is free.
+     * @param map The map.
+     */
+    private void evict(final Map<String, Entry> map) {
+        long now = System.currentTimeMillis();
+        map.values().removeIf(entry -> entry.expiresAt <= now);
+        int excess = map.size() - (int) (this.capacity * KEEP);
+        if (excess <= 0) {
+            return;
+        }
+
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(
+            map.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().usedAt));
+        for (int i = 0; i < excess && i < entries.size(); i++) {
+            Map.Entry<String, Entry> eldest = entries.get(i);
+            map.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Gets a live entry, removing it if expired.
+     * @param map The map.
+     * @param key The token key.
+     * @return the entry, null if missing or expired.
+     */
+    private Entry lookup(final Map<String, Entry> map, final String key) {
+        Entry entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (entry.expiresAt <= now) {
+            map.remove(key, entry);
+            return null;
+        }
+        entry.usedAt = now;
+        return entry;
+    }
+
+    /**
+     * Reads the exp claim of a jwt, without verifying it.
+     * @param token The token, with or without the Bearer prefix.
+     * @return the expiry time, Long.MAX_VALUE if unknown.
+     */
+    private static long expiry(final String token) {
+        String[] parts = token.replaceFirst("^Bearer\\s+", "").split("\\.");
+        if (parts.length < 2) {
+            return Long.MAX_VALUE;
+        }
+
+        try {
+            JsonObject claims = new JsonObject(new String(
+                Base64.getUrlDecoder().decode(parts[1]),
+                StandardCharsets.UTF_8));
+            Long exp = claims.getLong("exp");
+            return exp == null ? Long.MAX_VALUE : exp * MILLIS;
+        } catch (final RuntimeException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Increments a counter if metrics are enabled.
+     * @param counter The counter.
+     */
+    private static void increment(final Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.core.backend.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.BulkWriteOptions;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.micrometer.backends.BackendRegistries;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind view counters.
+ * Views are summed in memory per document and written with one unordered
+ * bulk write of $inc updates, either every flush interval or as soon as
+ * the flush threshold is reached. A popular listing costs one write per
+ * flush instead of one write per view.
+ */
+public final class ViewCounter {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        ViewCounter.class.getName());
+
+    /**
+     * The env var holding the flush interval in milliseconds.
+     */
+    public static final String FLUSH_INTERVAL_ENV = "VIEWS_FLUSH_INTERVAL";
+
+    /**
+     * The env var holding the pending views that trigger a flush.
+     */
+    public static final String FLUSH_THRESHOLD_ENV = "VIEWS_FLUSH_THRESHOLD";
+
+    /**
+     * The default flush interval in milliseconds.
+     */
+    private static final long DEFAULT_FLUSH_INTERVAL = 5000;
+
+    /**
+     * The default pending views that trigger a flush.
+     */
+    private static final long DEFAULT_FLUSH_THRESHOLD = 1000;
+
+    /**
+     * The counters shared by the verticle instances, one per collection.
+     */
+    private static final Map<String, ViewCounter> COUNTERS =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The pending views per document id.
+     * The map locks per hash bin, so hot documents do not serialise on one
+     * lock and a flush can take a document's count with a single remove.
+     */
+    private final ConcurrentHashMap<String, Long> pending =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The total of the pending views.
+     */
+    private final AtomicLong pendingTotal = new AtomicLong();
+
+    /**
+     * The bulk write running, null if none, guarded by this.
+     */
+    private Future<Void> inFlight;
+
+    /**
+     * The mongo client.
+     */
+    private final MongoClient client;
+
+    /**
+     * The collection holding the documents.
+     */
+    private final String collection;
+
+    /**
+     * The counted field.
+     */
+    private final String field;
+
+    /**
+     * The pending views that trigger a flush.
+     */
+    private final long threshold;
+
+    /**
+     * The views written, null when metrics are disabled.
+     */
+    private final Counter flushed;
+
+    /**
+     * The bulk writes, null when metrics are disabled.
+     */
+    private final Counter writes;
+
+    /**
+     * Creates the counter and schedules its flushes.
+     * @param vertx The vertx instance.
+     * @param client The mongo client.
+     * @param collection The collection holding the documents.
+     * @param field The counted field.
+     */
+    private ViewCounter(final Vertx vertx, final MongoClient client,
+        final String collection, final String field) {
+        this.client = client;
+        this.collection = collection;
+        this.field = field;
+        this.threshold = getPositiveLong(FLUSH_THRESHOLD_ENV,
+            DEFAULT_FLUSH_THRESHOLD);
+
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        if (registry == null) {
+            this.flushed = null;
+            this.writes = null;
+        } else {
+            Gauge.builder("views.pending", this.pendingTotal,
+                    AtomicLong::get)
+                .tag("collection", collection)
+                .description("Views counted but not written yet")
+                .register(registry);
+            this.flushed = Counter.builder("views.flushed")
+                .tag("collection", collection)
+                .description("Views written to the database")
+                .register(registry);
+            this.writes = Counter.builder("views.bulk.writes")
+                .tag("collection", collection)
+                .description("Bulk writes of view counts")
+                .register(registry);
+        }
+
+        vertx.setPeriodic(getPositiveLong(FLUSH_INTERVAL_ENV,
+            DEFAULT_FLUSH_INTERVAL), id -> this.flush());
+    }
+
+    /**
+     * Gets the process wide counter of a collection field.
+     * @param vertx The vertx instance.
+     * @param client The mongo client.
+     * @param collection The collection holding the documents.
+     * @param field The counted field.
+     * @return the counter.
+     */
+    public static ViewCounter get(final Vertx vertx, final MongoClient client,
+        final String collection, final String field) {
+        return COUNTERS.computeIfAbsent(collection + "." + field,
+            key -> new ViewCounter(vertx, client, collection, field));
+    }
+
+    /**
+     * Flushes the pending views of every counter, e.g on shutdown.
+     * A flush already running is waited for, then the views counted since
+     * are written too.
+     * @return a future completed once the views are written.
+     */
+    public static Future<Void> flushAll() {
+        List<Future<Void>> flushes = new ArrayList<>();
+        for (ViewCounter counter : COUNTERS.values()) {
+            flushes.add(counter.drain());
+        }
+        return Future.all(flushes).mapEmpty();
+    }
+
+    /**
+     * Reads a positive long from an env var.
+     * @param env The env var name.
+     * @param defaultValue The value used when the env var is missing.
+     * @return the value.
+     */
+    private static long getPositiveLong(final String env,
+        final long defaultValue) {
+        String value = System.getenv(env);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            long result = Long.parseLong(value.trim());
+            return result > 0 ? result : defaultValue;
+        } catch (final NumberFormatException e) {
+            LOGGER.error("Invalid " + env + " value "
+                + value + ", defaulting to " + defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Counts a view.
+     * @param id The document id.
+     */
+    public void increment(final String id) {
+        this.add(id, 1);
+        if (this.pendingTotal.incrementAndGet() >= this.threshold) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Adds views to the pending count of a document.
+     * @param id The document id.
+     * @param views The views.
+     */
+    private void add(final String id, final long views) {
+        this.pending.merge(id, views, Long::sum);
+    }
+
+    /**
+     * Writes the pending views with one bulk write, unless one is running.
+     * Views of a failed write are put back and retried on the next flush.
+     * @return a future completed once the views are written.
+     */
+    public Future<Void> flush() {
+        synchronized (this) {
+            if (this.inFlight != null || this.pending.isEmpty()) {
+                return Future.succeededFuture();
+            }
+            Future<Void> write = this.write();
+            // A write completed already has cleared inFlight, one that
+            // completes later clears it once this block is left.
+            this.inFlight = write.isComplete() ? null : write;
+            return write;
+        }
+    }
+
+    /**
+     * Waits for the running bulk write, if any, then flushes.
+     * @return a future completed once the pending views are written.
+     */
+    private Future<Void> drain() {
+        Future<Void> running;
+        synchronized (this) {
+            running = this.inFlight;
+        }
+        return running == null ? this.flush()
+            : running.transform(ar -> this.drain());
+    }
+
+    /**
+     * Takes the pending views and writes them.
+     * @return a future completed once the views are written.
+     */
+    private Future<Void> write() {
+        Map<String, Long> batch = new HashMap<>();
+        List<BulkOperation> operations = new ArrayList<>();
+        for (String id : this.pending.keySet()) {
+            Long views = this.pending.remove(id);
+            if (views == null) {
+                continue;
+            }
+            batch.put(id, views);
+            operations.add(BulkOperation.createUpdate(
+                new JsonObject().put("_id", id),
+                new JsonObject().put("$inc",
+                    new JsonObject().put(this.field, views))));
+        }
+        final long total = batch.values().stream()
+            .mapToLong(Long::longValue).sum();
+        this.pendingTotal.addAndGet(-total);
+
+        // The cached documents are dropped, the cached results keep their
+        // counts, see ResultCache.
+        EntityCache cache = EntityCache.getInstance();
+        batch.keySet().forEach(id -> cache.invalidate(this.collection,
+            new JsonObject().put("_id", id)));
+        return this.client.bulkWriteWithOptions(this.collection, operations,
+                new BulkWriteOptions(false))
+            .<Void>mapEmpty()
+            .onComplete(v -> batch.keySet().forEach(id -> cache.invalidate(
+                this.collection, new JsonObject().put("_id", id))))
+            .onSuccess(v -> {
+                if (this.flushed != null) {
+                    this.flushed.increment(total);
+                    this.writes.increment();
+                }
+            })
+            .onFailure(e -> {
+                LOGGER.error("Failed to write " + total + " views, "
+                    + "retrying on the next flush", e);
+                batch.forEach(this::add);
+                this.pendingTotal.addAndGet(total);
+            })
+            .onComplete(v -> {
+                synchronized (this) {
+                    this.inFlight = null;
+                }
+            });
+    }
+}
@@ -7,6 +7,7 @@ import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import java.util.List;
 import org.core.backend.models.Collections;
+import org.core.backend.utils.QueryStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.utils.backend.utils.SystemTasks;
@@ -29,7 +30,16 @@ public class AdminService extends RbacService {
      */
     protected void setAdminRoutes(final Router router) {
         this.logger.info("set Admin routes -> ()");
+        this.addAdminRoutes(router);
 
+        this.setRbacRoutes(router);
+    }
+
+    /**
+     * Adds the admin routes.
+     * @param router The router used to set paths.
+     */
+    protected void addAdminRoutes(final Router router) {
         router.post("/createDocumentTypes")
             .handler(this::createDocumentTypes);
         router.post("/listDocumentTypes")
@@ -40,8 +50,8 @@ public class AdminService extends RbacService {
             .handler(this::listSideBarServices);
         router.post("/assignOrganisationNewProducts")
             .handler(this::assignOrganisationNewProducts);
-
-        this.setRbacRoutes(router);
+        router.post("/queryStats")
+            .handler(this::queryStats);
     }
 
     /**
@@ -172,4 +182,28 @@ public class AdminService extends RbacService {
                 });
         });
     }
+
+    /**
+     * Lists the query shapes of this process, the most expensive first.
+     * The body takes sort, total, mean, p99, calls, errors, documents or
+     * bytes, limit, and reset to start the statistics over once read.
+     * The shapes span every organisation, only a superadmin reads them.
+     * @param rc The routing context.
+     */
+    @SystemTasks(task = MODULE + "queryStats")
+    private void queryStats(final RoutingContext rc) {
+        this.getUtils().execute2(MODULE + "queryStats", rc,
+            (usr, body, params, headers, resp) -> {
+
+                if (!this.getUtils().isRole("superadmin", usr)) {
+                    resp.end(this.getUtils().getResponse(Utils.ERR_401,
+                        "Only a superadmin can read the query statistics")
+                        .encode());
+                    return;
+                }
+
+                resp.end(this.getUtils().getResponse(
+                    QueryStats.getInstance().toJson(body)).encode());
+        });
+    }
 }
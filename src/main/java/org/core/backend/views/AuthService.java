@@ -6,6 +6,7 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
+import org.core.backend.utils.EmailOutbox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.utils.backend.models.Collections;
@@ -30,6 +31,16 @@ public class AuthService extends BookingService {
      */
     protected void setAuthRoutes(final Router router) {
         this.logger.info("set Auth routes -> ()");
+        this.addAuthRoutes(router);
+
+        this.setBookingServiceRoutes(router);
+    }
+
+    /**
+     * Adds the user and invite routes.
+     * @param router The router used to set paths.
+     */
+    protected void addAuthRoutes(final Router router) {
         router.post("/createuser").handler(this::createUser);
 
         router.post("/listusers")
@@ -50,8 +61,6 @@ public class AuthService extends BookingService {
             .handler(this::sendInvite);
         router.post("/listinvites")
             .handler(this::listInvites);
-
-        this.setBookingServiceRoutes(router);
     }
 
     /**
@@ -83,10 +92,10 @@ public class AuthService extends BookingService {
                                     this.getDbUtils().save(
                                         Collections.USERS.toString(),
                                     res, headers, () -> {
-                                        this.getUtils().sendEmailToUser(res,
-                                            "Welcome To The family",
-                                                "onboarding email",
-                                            new JsonObject());
+                                        this.queueEmail(EmailOutbox.template(
+                                            res, "Welcome To The family",
+                                            "onboarding email",
+                                            new JsonObject()));
 
                                     }, resp);
                             }, resp);
@@ -156,7 +165,7 @@ public class AuthService extends BookingService {
         this.getUtils().execute2(MODULE + "listUsers",
             rc, (xusr, body, params, headers, resp) -> {
             this.getUtils().assignRoleQueryFilters(xusr, body, true);
-            this.getDbUtils().find(Collections.USERS.toString(),
+            this.findOrStream(Collections.USERS.toString(),
                 body, resp);
         });
     }
@@ -318,8 +327,8 @@ public class AuthService extends BookingService {
                     + "{sjdhvjhscv}"
                     + "auth/invites/?inviteID=" + res.getString("inviteId");
 
-                this.getUtils().emailByMailgun(body.getString("email"),
-                    "Hurrah !!! You Have Been Invited.", message, false, "");
+                this.queueEmail(EmailOutbox.text(body.getString("email"),
+                    "Hurrah !!! You Have Been Invited.", message, false, ""));
             }, "opentemplate", fail -> {
                 resp.end(this.getUtils()
                     .getResponse(Utils.ERR_503, fail.getMessage()).encode());
@@ -1,16 +1,41 @@
 package org.core.backend.views;
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.ThreadingModel;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.AggregateOptions;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
-import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import org.core.backend.utils.BatchLoader;
+import org.core.backend.utils.BlockingDB;
+import org.core.backend.utils.CachedDBUtils;
+import org.core.backend.utils.CachedAuthUtils;
+import org.core.backend.utils.EmailOutbox;
+import org.core.backend.utils.EntityCache;
+import org.core.backend.utils.KeysetPage;
+import org.core.backend.utils.MeasuredDBUtils;
+import org.core.backend.utils.QueryCompiler;
+import org.core.backend.utils.QueryStats;
+import org.core.backend.utils.ReferenceCache;
+import org.core.backend.utils.ResponseStream;
+import org.core.backend.utils.ResultCache;
+import org.core.backend.utils.TaskRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.utils.backend.utils.DBUtils;
+import org.utils.backend.utils.IDBJsonObject;
 // import org.utils.backend.utils.KafkaUtils;
 import org.utils.backend.utils.SystemTasks;
 import org.utils.backend.utils.Utils;
@@ -49,6 +74,28 @@ public class BaseService extends AbstractVerticle {
      */
     private Utils utils;
 
+    /**
+     * The db utils instance shared by all the verticle instances.
+     */
+    private static DBUtils sharedDbUtils;
+
+    /**
+     * The utils instance shared by all the verticle instances.
+     */
+    private static Utils sharedUtils;
+
+    /**
+     * The by _id loaders of this verticle, by collection.
+     */
+    private final Map<String, BatchLoader> loaders = new HashMap<>();
+
+    /**
+     * The lookups of the requests in flight, dropped when they end, see
+     * dropLoadersOnEnd.
+     */
+    private final Map<HttpServerResponse, BatchLoader.Scope> scopes =
+        new HashMap<>();
+
     // /** The kafka utility service. */
     // private KafkaUtils kUtils;
 
@@ -62,7 +109,48 @@ public class BaseService extends AbstractVerticle {
      * @param vertx The vertx instance.
      */
     public void setDBUtils(final Vertx vertx) {
-        this.dbUtils = new DBUtils();
+        this.dbUtils = getSharedDbUtils();
+    }
+
+    /**
+     * Gets the db utils shared by all the verticle instances.
+     * The mongo client pool is therefore created once per process, its
+     * calls recorded in the QueryStats, its by _id reads cached in the
+     * EntityCache and its writes versioning the ResultCache, unless turned
+     * off.
+     * @return the shared db utils instance.
+     */
+    private static synchronized DBUtils getSharedDbUtils() {
+        if (sharedDbUtils == null) {
+            if (EntityCache.getInstance().isEnabled()
+                || ResultCache.getInstance().isEnabled()) {
+                sharedDbUtils = new CachedDBUtils();
+            } else {
+                sharedDbUtils = QueryStats.getInstance().isEnabled()
+                    ? new MeasuredDBUtils() : new DBUtils();
+            }
+        }
+        return sharedDbUtils;
+    }
+
+    /**
+     * Sets the utils shared by all the verticle instances.
+     */
+    public void setSharedUtils() {
+        this.utils = getSharedUtils();
+    }
+
+    /**
+     * Gets the utils shared by all the verticle instances.
+     * Token verification is cached across them, see TokenCache.
+     * @return the shared utils instance.
+     */
+    private static synchronized Utils getSharedUtils() {
+        if (sharedUtils == null) {
+            sharedUtils = new CachedAuthUtils(() -> {
+            });
+        }
+        return sharedUtils;
     }
 
     /**
@@ -97,6 +185,32 @@ public class BaseService extends AbstractVerticle {
         return this.dbUtils;
     }
 
+    /**
+     * Gets the blocking style db.
+     * Only usable from a virtual thread, see runOnVirtualThread.
+     * @return the blocking db instance.
+     */
+    public BlockingDB getBlockingDB() {
+        return new BlockingDB(this.dbUtils);
+    }
+
+    /**
+     * Checks if the verticle was deployed on virtual threads.
+     * @return true if handlers can use blocking style awaits.
+     */
+    protected boolean isVirtualThreadMode() {
+        return this.context != null
+            && this.context.threadingModel() == ThreadingModel.VIRTUAL_THREAD;
+    }
+
+    /**
+     * Runs the task on a virtual thread of this verticle.
+     * @param task The task to run.
+     */
+    protected void runOnVirtualThread(final Handler<Void> task) {
+        this.context.runOnContext(task);
+    }
+
     /**
      * Gets the utils instance.
      * @return the utils instance.
@@ -113,6 +227,316 @@ public class BaseService extends AbstractVerticle {
         this.utils = ut;
     }
 
+    /**
+     * Finds the documents matching the body.
+     * The documents are streamed straight from the cursor when the body
+     * has a stream field, see ResponseStream.
+     * @param collection The collection name.
+     * @param body The query in the DBUtils format.
+     * @param resp The server response.
+     */
+    protected void findOrStream(final String collection,
+        final JsonObject body, final HttpServerResponse resp) {
+        String format = ResponseStream.takeFormat(body);
+        if (format == null) {
+            this.getDbUtils().find(collection, body, resp);
+        } else {
+            ResponseStream.pipe(this.getDbUtils().getDBClient()
+                .findBatchWithOptions(collection, body,
+                    ResponseStream.takeFindOptions(body)), format, resp);
+        }
+    }
+
+    /**
+     * Runs the aggregation, streaming the results if a format is passed.
+     * @param collection The collection name.
+     * @param pipeline The aggregate pipeline.
+     * @param format The stream format, null for a normal response.
+     * @param resp The server response.
+     */
+    protected void aggregateOrStream(final String collection,
+        final JsonArray pipeline, final String format,
+        final HttpServerResponse resp) {
+        if (format == null) {
+            this.getDbUtils().aggregate(collection, pipeline, resp);
+        } else {
+            ResponseStream.pipe(this.getDbUtils().getDBClient()
+                .aggregateWithOptions(collection, pipeline,
+                    new AggregateOptions()
+                        .setBatchSize(ResponseStream.BATCH_SIZE)),
+                format, resp);
+        }
+    }
+
+    /**
+     * Runs the aggregation and joins references onto the results in
+     * process, streaming them if a format is passed.
+     * @param collection The collection name.
+     * @param pipeline The aggregate pipeline.
+     * @param format The stream format, null for a normal response.
+     * @param join Applied to every result, see ReferenceCache.
+     * @param resp The server response.
+     */
+    protected void aggregateOrStream(final String collection,
+        final JsonArray pipeline, final String format,
+        final UnaryOperator<JsonObject> join,
+        final HttpServerResponse resp) {
+        this.aggregateOrStream(collection, pipeline, format, join,
+            new AggregateOptions(), resp);
+    }
+
+    /**
+     * Runs the aggregation with options, e.g the maxTimeMS of a compiled
+     * query, and joins references onto the results in process.
+     * @param collection The collection name.
+     * @param pipeline The aggregate pipeline.
+     * @param format The stream format, null for a normal response.
+     * @param join Applied to every result, see ReferenceCache.
+     * @param options The aggregate options.
+     * @param resp The server response.
+     */
+    protected void aggregateOrStream(final String collection,
+        final JsonArray pipeline, final String format,
+        final UnaryOperator<JsonObject> join, final AggregateOptions options,
+        final HttpServerResponse resp) {
+        if (format == null) {
+            this.aggregateEncoded(collection, pipeline, null, join, options)
+                .onSuccess(resp::end)
+                .onFailure(e -> this.failRequest(e, resp));
+        } else {
+            ResponseStream.pipe(this.getDbUtils().getDBClient()
+                .aggregateWithOptions(collection, pipeline,
+                    new AggregateOptions(options)
+                        .setBatchSize(ResponseStream.BATCH_SIZE)),
+                format, join, resp);
+        }
+    }
+
+    /**
+     * Compiles the filter of a request, see QueryCompiler.
+     * @param compiler The compiler of the collection.
+     * @param body The body from the FE.
+     * @param resp The server response, ended if the filter is refused.
+     * @return the query, null if the response was ended.
+     */
+    protected QueryCompiler.Query compileQuery(final QueryCompiler compiler,
+        final JsonObject body, final HttpServerResponse resp) {
+        try {
+            return compiler.compile(body);
+        } catch (final IllegalArgumentException e) {
+            resp.end(this.getUtils().getResponse(
+                Utils.ERR_502, e.getMessage()).encode());
+            return null;
+        }
+    }
+
+    /**
+     * Runs a compiled query, streaming the results if a format is passed.
+     * @param compiler The compiler the query comes from.
+     * @param query The query.
+     * @param format The stream format, null for a normal response.
+     * @param resp The server response.
+     */
+    protected void findCompiled(final QueryCompiler compiler,
+        final QueryCompiler.Query query, final String format,
+        final HttpServerResponse resp) {
+        this.aggregateOrStream(compiler.getCollection(), query.pipeline(),
+            format, UnaryOperator.identity(), query.getOptions(), resp);
+    }
+
+    /**
+     * Gets the by _id lookups of a request.
+     * The lookups of the concurrent requests of this verticle are batched,
+     * those of one request memoised until its response ends, see
+     * BatchLoader. Off the event loop, e.g on a virtual thread, the lookups
+     * are not memoised.
+     * @param resp The server response of the request.
+     * @return the lookups of the request.
+     */
+    protected BatchLoader.Scope getLoader(final HttpServerResponse resp) {
+        BatchLoader.Scope scope = this.scopes.get(resp);
+        if (scope == null) {
+            scope = new BatchLoader.Scope(collection ->
+                this.loaders.computeIfAbsent(collection, name ->
+                    new BatchLoader(this.context,
+                        this.getDbUtils().getDBClient(), name)));
+            if (Context.isOnEventLoopThread()) {
+                this.scopes.put(resp, scope);
+            }
+        }
+        return scope;
+    }
+
+    /**
+     * Drops the lookups of every request of the router once it ends.
+     * @param router The router, before its routes are set.
+     */
+    protected void dropLoadersOnEnd(final Router router) {
+        router.route().handler(rc -> {
+            HttpServerResponse resp = rc.response();
+            rc.addEndHandler(res -> this.scopes.remove(resp));
+            rc.next();
+        });
+    }
+
+    /**
+     * Finds a document by _id through the loader of the request.
+     * @param collection The collection name.
+     * @param id The _id of the document.
+     * @param success Called with the document, null if there is none.
+     * @param resp The server response, ended if the lookup fails.
+     */
+    protected void findById(final String collection, final String id,
+        final IDBJsonObject success, final HttpServerResponse resp) {
+        this.getLoader(resp).load(collection, id)
+            .onSuccess(success::run)
+            .onFailure(e -> this.failRequest(e, resp));
+    }
+
+    /**
+     * Gets the process wide in-memory copy of a reference collection.
+     * @param collection The collection name.
+     * @return the reference cache.
+     */
+    protected ReferenceCache getReferenceCache(final String collection) {
+        return ReferenceCache.get(this.vertx,
+            this.getDbUtils().getDBClient(), collection);
+    }
+
+    /**
+     * Queues an email in the outbox, the request does not wait for the
+     * provider.
+     * @param email The email, see EmailOutbox.text and template.
+     */
+    protected void queueEmail(final JsonObject email) {
+        EmailOutbox.getInstance().enqueue(
+            this.getDbUtils().getDBClient(), email);
+    }
+
+    /**
+     * Reads the keyset page from the body.
+     * @param body The body from the FE.
+     * @param sort The page sort, ending with a unique field.
+     * @param defaultLimit The page size when none is passed.
+     * @param resp The server response, ended if the page token is invalid.
+     * @return the page, null if the response was ended.
+     */
+    protected KeysetPage readPage(final JsonObject body,
+        final JsonObject sort, final int defaultLimit,
+        final HttpServerResponse resp) {
+        try {
+            return KeysetPage.create(body, sort.copy(), defaultLimit);
+        } catch (final IllegalArgumentException e) {
+            resp.end(this.getUtils().getResponse(
+                Utils.ERR_502, e.getMessage()).encode());
+            return null;
+        }
+    }
+
+    /**
+     * Finds one keyset page of documents.
+     * @param collection The collection name.
+     * @param query The mongo query, without paging fields.
+     * @param page The page read from the body.
+     * @param resp The server response.
+     */
+    protected void findPage(final String collection,
+        final JsonObject query, final KeysetPage page,
+        final HttpServerResponse resp) {
+        JsonObject filter = page.apply(query);
+        QueryStats.getInstance().track("find", collection, filter,
+            this.getDbUtils().getDBClient()
+                .findWithOptions(collection, filter, page.findOptions()))
+            .onSuccess(docs -> resp.end(this.getUtils()
+                .getResponse(page.createPage(docs)).encode()))
+            .onFailure(e -> this.failRequest(e, resp));
+    }
+
+    /**
+     * Runs an aggregation built with the keyset page stages.
+     * @param collection The collection name.
+     * @param pipeline The pipeline, starting with KeysetPage.pipeline().
+     * @param page The page read from the body.
+     * @param resp The server response.
+     */
+    protected void aggregatePage(final String collection,
+        final JsonArray pipeline, final KeysetPage page,
+        final HttpServerResponse resp) {
+        this.aggregatePage(collection, pipeline, page,
+            UnaryOperator.identity(), resp);
+    }
+
+    /**
+     * Runs a keyset page aggregation and joins references onto the results
+     * in process.
+     * @param collection The collection name.
+     * @param pipeline The pipeline, starting with KeysetPage.pipeline().
+     * @param page The page read from the body.
+     * @param join Applied to every result, see ReferenceCache.
+     * @param resp The server response.
+     */
+    protected void aggregatePage(final String collection,
+        final JsonArray pipeline, final KeysetPage page,
+        final UnaryOperator<JsonObject> join,
+        final HttpServerResponse resp) {
+        this.aggregatePage(collection, pipeline, page, join,
+            new AggregateOptions(), resp);
+    }
+
+    /**
+     * Runs a keyset page aggregation with options, e.g the maxTimeMS of a
+     * compiled query.
+     * @param collection The collection name.
+     * @param pipeline The pipeline, starting with KeysetPage.pipeline().
+     * @param page The page read from the body.
+     * @param join Applied to every result, see ReferenceCache.
+     * @param options The aggregate options.
+     * @param resp The server response.
+     */
+    protected void aggregatePage(final String collection,
+        final JsonArray pipeline, final KeysetPage page,
+        final UnaryOperator<JsonObject> join, final AggregateOptions options,
+        final HttpServerResponse resp) {
+        this.aggregateEncoded(collection, pipeline, page, join, options)
+            .onSuccess(resp::end)
+            .onFailure(e -> this.failRequest(e, resp));
+    }
+
+    /**
+     * Runs an aggregation and encodes the response, e.g to keep it in the
+     * ResultCache.
+     * @param collection The collection name.
+     * @param pipeline The pipeline.
+     * @param page The keyset page, null to answer every result.
+     * @param join Applied to every result, see ReferenceCache.
+     * @param options The aggregate options.
+     * @return the encoded response.
+     */
+    protected Future<Buffer> aggregateEncoded(final String collection,
+        final JsonArray pipeline, final KeysetPage page,
+        final UnaryOperator<JsonObject> join,
+        final AggregateOptions options) {
+        return QueryStats.getInstance().track("aggregate", collection,
+            pipeline, this.getDbUtils().getDBClient()
+                .aggregateWithOptions(collection, pipeline, options)
+                .collect(Collectors.mapping(join, Collectors.toList())))
+            .map(docs -> Buffer.buffer(this.getUtils().getResponse(
+                page == null ? new JsonArray(docs) : page.createPage(docs))
+                .encode()));
+    }
+
+    /**
+     * Ends the response of a failed query.
+     * @param e The failure.
+     * @param resp The server response.
+     */
+    protected void failRequest(final Throwable e,
+        final HttpServerResponse resp) {
+        this.logger.error(e.getMessage(), e);
+        resp.end(this.getUtils().getResponse(
+            Utils.ERR_502, e.getMessage()).encode());
+    }
+
     /**
      * Sets routes for the http server.
      * @param router The router used to set paths.
@@ -161,40 +585,14 @@ public class BaseService extends AbstractVerticle {
      * @return The json array representing the tasks.
      */
     protected JsonArray listTasks() {
-        JsonArray rst = new JsonArray();
-        this.addRbacTasks(rst,
-            MainService.class.getDeclaredMethods());
-        this.addRbacTasks(rst,
-            AuthService.class.getDeclaredMethods());
-        this.addRbacTasks(rst,
-            ListingsService.class.getDeclaredMethods());
-        this.addRbacTasks(rst,
-            AdminService.class.getDeclaredMethods());
-        this.addRbacTasks(rst,
-            PaymentsService.class.getDeclaredMethods());
-        this.addRbacTasks(rst,
-            BaseService.class.getDeclaredMethods());
-
-        return rst;
-    }
-
-    /**
-     * Adds rbac tasks to the json array.
-     * @param rst The json array result.
-     * @param methods The array of methods.
-     */
-    private void addRbacTasks(final JsonArray rst, final Method[] methods) {
-        if (methods != null && methods.length > Utils.ZERO) {
-            for (Method method : methods) {
-                SystemTasks task = method.getDeclaredAnnotation(
-                        SystemTasks.class);
-                if (task != null) {
-                    if (task.task() != null
-                            && !task.task().trim().isEmpty()) {
-                        rst.add(task.task());
-                    }
-                }
-            }
-        }
+        return this.getTaskRegistry().getNames();
+    }
+
+    /**
+     * Gets the tasks of this service and the ones it extends.
+     * @return the task registry.
+     */
+    protected TaskRegistry getTaskRegistry() {
+        return TaskRegistry.of(this.getClass());
     }
 }
@@ -2,11 +2,19 @@ package  org.core.backend.views;
 
 
 import java.text.SimpleDateFormat;
-import java.time.DayOfWeek;
 import java.time.LocalDate;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.function.UnaryOperator;
 import org.core.backend.models.Collections;
+import org.core.backend.utils.BlockingDB;
+import org.core.backend.utils.BookingReceipt;
+import org.core.backend.utils.KeysetPage;
+import org.core.backend.utils.QueryCompiler;
+import org.core.backend.utils.QueryCompiler.Op;
+import org.core.backend.utils.QueryCompiler.Type;
+import org.core.backend.utils.ResponseStream;
+import io.vertx.core.Future;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
@@ -30,8 +38,44 @@ public class BookingService extends ListingsService {
     private Logger logger = LoggerFactory.getLogger(
         BookingService.class.getName());
 
-    /** the double value 0.0. */
-    private static final double ZERO_DOUBLE = 0.0;
+    /** The default keyset page size of bookings. */
+    private static final int DEFAULT_BOOKINGS_LIMIT = 20;
+
+    /** The keyset page sort of bookings, latest start date first. */
+    private static final JsonObject BOOKINGS_KEYSET_SORT = new JsonObject()
+        .put("startDate", -1)
+        .put("_id", -1);
+
+    /**
+     * The filters of the booking window search, the dates of the bookings
+     * of a listing, without the clients and receipts.
+     */
+    private static final QueryCompiler BOOKING_WINDOW_QUERY = QueryCompiler
+        .of(Collections.BOOKINGS.toString())
+        .field("listingId", Type.STRING, Op.IN)
+        .field("status", Type.STRING, Op.IN, Op.NIN)
+        .field("startDate", Type.NUMBER, Op.RANGE)
+        .field("endDate", Type.NUMBER, Op.RANGE)
+        .requireOneOf("listingId")
+        .sortBy("startDate", "endDate")
+        .project("listingId", "startDate", "endDate", "status",
+            "numberOfDays")
+        .build();
+
+    /** The filters of the bookings list, the role filters come on top. */
+    private static final QueryCompiler BOOKINGS_QUERY = QueryCompiler
+        .of(Collections.BOOKINGS.toString())
+        .field("_id", Type.STRING, Op.IN)
+        .field("listingId", Type.STRING, Op.IN)
+        .field("organisationId", Type.STRING)
+        .field("feduid", Type.STRING)
+        .field("clientId", Type.STRING)
+        .field("status", Type.STRING, Op.IN, Op.NIN)
+        .field("startDate", Type.NUMBER, Op.RANGE)
+        .field("endDate", Type.NUMBER, Op.RANGE)
+        .sortBy("startDate", "endDate", "createdAt")
+        .limit(DEFAULT_BOOKINGS_LIMIT, KeysetPage.MAX_PAGE_SIZE)
+        .build();
 
     /**
      * Sets routes for the http server.
@@ -40,16 +84,22 @@ public class BookingService extends ListingsService {
     protected void setBookingServiceRoutes(final Router router) {
         this.logger.info(
             "setBookingServiceRoutes -> ()");
+        this.addBookingServiceRoutes(router);
 
+        this.setListingsRoutes(router);
+    }
+
+    /**
+     * Adds the booking routes.
+     * @param router The router used to set paths.
+     */
+    protected void addBookingServiceRoutes(final Router router) {
         router.post("/searchForValidBookingWindow")
             .handler(this::searchForValidBookingWindow);
         router.post("/makeABooking")
             .handler(this::makeABooking);
         router.post("/listBookings")
             .handler(this::listBookings);
-
-
-        this.setListingsRoutes(router);
     }
 
     /**
@@ -61,16 +111,18 @@ public class BookingService extends ListingsService {
         this.getUtils().execute2(MODULE + "searchForValidBookingWindow", rc,
             (xusr, body, params, headers, resp) -> {
 
+                String format = ResponseStream.takeFormat(body);
+                QueryCompiler.Query query = this.compileQuery(
+                    BOOKING_WINDOW_QUERY, body, resp);
+                if (query == null) {
+                    return;
+                }
+
                 // Apply role-based query filters
                 this.getUtils().assignRoleQueryFilters(
-                    xusr, body, false);
-
-                // Add search functionality for custom fields
-                this.getUtils().addFieldsToSearchQuery(body);
+                    xusr, query.getFilter(), false);
 
-                this.getDbUtils().find(
-                    Collections.BOOKINGS.toString(),
-                        body, resp);
+                this.findCompiled(BOOKING_WINDOW_QUERY, query, format, resp);
         });
     }
 
@@ -100,6 +152,13 @@ public class BookingService extends ListingsService {
                                 .put("$lte", startDate.getTime()))
                             .put("status", Status.ACTIVE.name());
                         System.out.println(query.encode());
+
+                        if (this.isVirtualThreadMode()) {
+                            this.runOnVirtualThread(v -> this.awaitBooking(
+                                xusr, body, query, resp));
+                            return;
+                        }
+
                         this.getDbUtils().findOne(
                             Collections.BOOKINGS.toString(), query, res -> {
 
@@ -126,6 +185,43 @@ public class BookingService extends ListingsService {
         }, "startDate", "endDate", "listingId");
     }
 
+    /**
+     * Makes a booking with blocking style awaits on a virtual thread.
+     * The existing booking check and the listing lookup run concurrently.
+     * @param xusr The user object
+     * @param body The body from FE
+     * @param bookingQuery The query for an existing booking.
+     * @param resp The server response.
+     */
+    private void awaitBooking(final JsonObject xusr, final JsonObject body,
+        final JsonObject bookingQuery, final HttpServerResponse resp) {
+        try {
+            BlockingDB db = this.getBlockingDB();
+            Future<JsonObject> existing = db.findOneAsync(
+                Collections.BOOKINGS.toString(), bookingQuery);
+            Future<JsonObject> listing = this.getLoader(resp).load(
+                Collections.LISTINGS.toString(), body.getString("listingId"));
+            BlockingDB.await(Future.all(existing, listing));
+
+            if (existing.result() != null && !existing.result().isEmpty()) {
+                resp.end(this.getUtils().getResponse(
+                    Utils.ERR_504, "This unit already has a booking")
+                .encode());
+            } else if (!isActive(listing.result())) {
+                resp.end(this.getUtils().getResponse(
+                    Utils.ERR_505,
+                "Active Unit passed does not exist").encode());
+            } else {
+                this.makeABooking(xusr, this.createBooking(body),
+                    listing.result(), body, resp);
+            }
+        } catch (final Exception e) {
+            this.logger.error(e.getMessage(), e);
+            resp.end(this.getUtils().getResponse(
+                Utils.ERR_502, e.getMessage()).encode());
+        }
+    }
+
     /**
      * Converts the long timestamp to a yyy-MM-dd format.
      * @param timestamp The timestamp
@@ -148,33 +244,7 @@ public class BookingService extends ListingsService {
         final JsonObject body, final HttpServerResponse resp) {
 
             try {
-
-                long startDate = body.getLong("startDate");
-                long endDate = body.getLong("endDate");
-
-                JsonObject booking = new JsonObject()
-                    .put("numberOfDays", this.getUtils()
-                        .diffInDays(this.convertTimestampToDate(startDate),
-                        this.convertTimestampToDate(endDate))
-                        + Utils.M_1)
-                    .put("startDate", startDate).put("endDate", endDate)
-                    .put("listingId", body.getString("listingId"))
-                    .put("status", Status.PENDING.toString())
-                    .put("amenities",
-                        body.getJsonArray("amenities", new JsonArray()));
-
-                    body.fieldNames().forEach(key -> {
-                        if (!key.equalsIgnoreCase("listingId")
-                        && !key.equalsIgnoreCase("organisationId")
-                        && !key.equalsIgnoreCase("feduid")
-                        && !key.equalsIgnoreCase("client")
-                        && !key.equalsIgnoreCase("numberOfDays")
-                        && !key.equalsIgnoreCase("clientId")) {
-                            booking.put(key, body.getValue(key));
-                        }
-                    });
-
-                this.makeABooking(xusr, booking, body, resp);
+                this.makeABooking(xusr, this.createBooking(body), body, resp);
             } catch (final Exception e) {
                 this.logger.error(e.getMessage(), e);
                 resp.end(this.getUtils().getResponse(
@@ -183,85 +253,46 @@ public class BookingService extends ListingsService {
     }
 
     /**
-     * Apply dicounts if they are required.
-     * @param body The body object
-     * @param booking The booking object
-     * @param listing The listing object
-     * @return The list of applicable discounts
-     */
-    private JsonArray applyDiscountsIfNeedBe(final JsonObject body,
-        final JsonObject booking, final JsonObject listing) {
-
-            JsonArray allDiscounts = listing.getJsonArray(
-                    "discounts", new JsonArray());
-
-            JsonArray result = this.applicableDisounts(allDiscounts, booking);
-            return result == null
-                ? new JsonArray()
-                : result;
-    }
-
-    /**
-     * Checks for all applicable discounts possibly there is.
-     * @param discounts The discounts arrays.
-     * @param booking The booking object
-     * @return A list of applicable discounts.
+     * Creates the booking object from the body.
+     * @param body The body from FE
+     * @return the booking object.
      */
-    private JsonArray applicableDisounts(final JsonArray discounts,
-        final JsonObject booking) {
-
-        JsonArray results = new JsonArray();
-        if (discounts != null && !discounts.isEmpty()) {
-
-            for (int i = Utils.ZERO; i < discounts.size(); i++) {
-                JsonObject discount = discounts.getJsonObject(i);
-                if (discount != null && !discount.isEmpty()) {
-                    if (discount.getBoolean("isWeekendOnly")
-                        && this.verifyWeekendDiscount(discount)) {
-                            results.add(discount);
-                    }
-
-                    if (this.verifyConsecutiveDaysDiscount(discount,
-                        booking.getInteger("numberOfDays", Utils.ZERO))) {
-                            results.add(discount);
-                    }
-
-
+    private JsonObject createBooking(final JsonObject body) {
+        long startDate = body.getLong("startDate");
+        long endDate = body.getLong("endDate");
+
+        JsonObject booking = new JsonObject()
+            .put("numberOfDays", this.getUtils()
+                .diffInDays(this.convertTimestampToDate(startDate),
+                this.convertTimestampToDate(endDate))
+                + Utils.M_1)
+            .put("startDate", startDate).put("endDate", endDate)
+            .put("listingId", body.getString("listingId"))
+            .put("status", Status.PENDING.toString())
+            .put("amenities",
+                body.getJsonArray("amenities", new JsonArray()));
+
+            body.fieldNames().forEach(key -> {
+                if (!key.equalsIgnoreCase("listingId")
+                && !key.equalsIgnoreCase("organisationId")
+                && !key.equalsIgnoreCase("feduid")
+                && !key.equalsIgnoreCase("client")
+                && !key.equalsIgnoreCase("numberOfDays")
+                && !key.equalsIgnoreCase("clientId")) {
+                    booking.put(key, body.getValue(key));
                 }
-            }
-        }
-        return results;
-    }
-
-    /**
-     * checks if we are eligible for a weekend price.
-     * @param discount The discount object
-     * @return if the discount is viable or not
-     */
-    private boolean verifyWeekendDiscount(final JsonObject discount) {
-        if (discount != null && !discount.isEmpty()) {
-             DayOfWeek day = LocalDate.now().getDayOfWeek();
-            return day == DayOfWeek.SATURDAY || day == DayOfWeek.SUNDAY;
-        }
-        return false;
+            });
+        return booking;
     }
 
     /**
-     * checks if we are eligible for a weekend price.
-     * @param discount The discount object
-     * @param numberOfDays The number of days passed
-     * @return if the discount is viable or not
+     * Checks if a listing loaded by _id can be booked.
+     * @param listing The listing, null if there is none.
+     * @return true if the listing is active.
      */
-    private boolean verifyConsecutiveDaysDiscount(final JsonObject discount,
-        final int numberOfDays) {
-        if (discount != null && !discount.isEmpty()) {
-            if (discount.containsKey("days")
-                && discount.getInteger("days") != null) {
-                    int expectedDays = discount.getInteger("days");
-                    return expectedDays <= numberOfDays;
-                }
-        }
-        return false;
+    private static boolean isActive(final JsonObject listing) {
+        return listing != null
+            && Status.ACTIVE.name().equals(listing.getValue("status"));
     }
 
     /**
@@ -275,14 +306,10 @@ public class BookingService extends ListingsService {
         final JsonObject body, final HttpServerResponse resp) {
 
             try {
-                JsonObject qry = new JsonObject()
-                    .put("_id", body.getString("listingId"))
-                    .put("status", Status.ACTIVE.name());
-
-                this.getDbUtils().findOne(Collections.LISTINGS.toString(),
-                    qry, res -> {
+                this.findById(Collections.LISTINGS.toString(),
+                    body.getString("listingId"), res -> {
 
-                        if (res == null || res.isEmpty()) {
+                        if (!isActive(res)) {
                             resp.end(this.getUtils().getResponse(
                                 Utils.ERR_505,
                             "Active Unit passed does not exist").encode());
@@ -351,7 +378,7 @@ public class BookingService extends ListingsService {
     }
 
     /**
-     * Creates the object for the receipt.
+     * Creates the object for the receipt, see BookingReceipt.
      * @param xusr the usr object
      * @param booking The booking object
      * @param listing The listing object
@@ -362,88 +389,8 @@ public class BookingService extends ListingsService {
         final JsonObject booking, final JsonObject listing,
         final JsonObject body) {
         this.logger.info("createReceiptForTransaction -> ()");
-        // the basic premium for nights slept
-        // the payable amenities used.
-        // VAT
-        // Loading amount
-
-        JsonArray appliedDiscounts =
-            this.applyDiscountsIfNeedBe(body, booking, listing);
-        JsonArray appliedAmenities
-            = body.getJsonArray("amenities", new JsonArray());
-        JsonObject premium = listing.getJsonObject(
-            "premium", new JsonObject());
-        int numberOfDays = booking.getInteger("numberOfDays");
-
-        JsonArray statPremiums = premium.getJsonArray("statutoryPremiums");
-        JsonArray loadingAmounts = premium.getJsonArray("loadings");
-        double basicPremium = premium.getDouble(
-            "basicPremium", Utils.ZERO_DOUBLE);
-
-        double totalStatutoryPremiums = this.calculateTaxes(
-            statPremiums, basicPremium, numberOfDays);
-        double totalLoadingAmounts = this.calculateTaxes(
-            loadingAmounts, basicPremium, numberOfDays);
-        double totalDiscountsAmounts = this.calculateTaxes(
-            appliedDiscounts, basicPremium, numberOfDays);
-        double totalAmenitiesAmounts = this.calculateTaxes(
-            appliedAmenities, basicPremium, numberOfDays);
-
-        double amount = basicPremium
-            + totalStatutoryPremiums
-            + totalLoadingAmounts
-            - totalDiscountsAmounts;
-
-        return new JsonObject()
-            .put("basicPremium", basicPremium * numberOfDays)
-            .put("totalStatutoryPremiums", totalStatutoryPremiums)
-            .put("totalLoadingAmounts", totalLoadingAmounts)
-            .put("totalDiscountsAmounts", totalDiscountsAmounts)
-            .put("appliedAmenities", appliedAmenities)
-            .put("discounts", appliedDiscounts)
-            .put("loadingAmounts", loadingAmounts)
-            .put("statutoryPremiums", totalStatutoryPremiums)
-            .put("totalAmenitiesAmounts", totalAmenitiesAmounts)
-            .put("amount", amount);
-    }
-
-    /**
-     * Calculates the taxes being imposed.
-     * @param taxes The taxes to calculate.
-     * @param basicPremium The basic premium.
-     * @param numberOfDays The number of days.
-     * @return taxes The result of taxes.
-     */
-    private double calculateTaxes(final JsonArray taxes,
-        final double basicPremium, final double numberOfDays) {
-        if (taxes != null) {
-
-            double result = Utils.ZERO;
-            for (int i = 0; i < taxes.size(); i++) {
-                JsonObject tax = taxes.getJsonObject(i);
-
-                if (tax != null && !tax.isEmpty()) {
-                    boolean isAmount = tax.getBoolean("isAmount");
-                    boolean isPaidDaily
-                        = tax.getBoolean("isPaidDaily", false);
-                    double amount = tax.getDouble("amount", ZERO_DOUBLE);
-                    double resAmount = ZERO_DOUBLE;
-                    if (isAmount) {
-                        resAmount += amount;
-                    } else {
-                        resAmount += ((amount * basicPremium) / HUNDRED);
-                    }
-
-                    if (isPaidDaily) {
-                        resAmount = numberOfDays * resAmount;
-                    }
-
-                    tax.put("value", resAmount);
-                }
-            }
-            return result;
-        }
-        return ZERO_DOUBLE;
+        return BookingReceipt.create(booking, listing, body,
+            LocalDate.now().getDayOfWeek());
     }
 
     /**
@@ -454,8 +401,41 @@ public class BookingService extends ListingsService {
         this.getUtils().execute2(MODULE + "listBookings", rc,
             (xusr, body, params, headers, resp) -> {
 
-                this.getDbUtils().aggregate(Collections.BOOKINGS.toString(),
-                    this.createQueryForListings(xusr, body), resp);
+                KeysetPage page = null;
+                if (KeysetPage.isRequested(body)) {
+                    page = this.readPage(body,
+                        BOOKINGS_KEYSET_SORT, DEFAULT_BOOKINGS_LIMIT, resp);
+                    if (page == null) {
+                        return;
+                    }
+                }
+
+                final QueryCompiler.Query query = this.compileQuery(
+                    BOOKINGS_QUERY, body, resp);
+                if (query == null) {
+                    return;
+                }
+
+                final KeysetPage keysetPage = page;
+                final JsonArray pipeline =
+                    this.createQueryForListings(xusr, query, page);
+                this.getReferenceCache(Collections.LISTING_TYPES.toString())
+                    .ready()
+                    .onSuccess(types -> {
+                        UnaryOperator<JsonObject> join = booking -> types
+                            .join(booking, "listing.listingType",
+                                "listingType");
+                        if (keysetPage != null) {
+                            this.aggregatePage(
+                                Collections.BOOKINGS.toString(), pipeline,
+                                keysetPage, join, query.getOptions(), resp);
+                        } else {
+                            this.aggregateOrStream(
+                                Collections.BOOKINGS.toString(), pipeline,
+                                null, join, query.getOptions(), resp);
+                        }
+                    })
+                    .onFailure(e -> this.failRequest(e, resp));
                 // this.getDbUtils().aggregate(
                 //     Collections.BOOKINGS.toString(),
                 //         body, resp);
@@ -465,12 +445,14 @@ public class BookingService extends ListingsService {
     /**
      * Creates the aggregate query for listing.
      * @param xusr The user object
-     * @param body The body by the FE
+     * @param query The query compiled from the body by the FE
+     * @param page The keyset page, null for the page of the query
      * @return pipeline for the query sent
      */
     private JsonArray createQueryForListings(final JsonObject xusr,
-        final JsonObject body) {
+        final QueryCompiler.Query query, final KeysetPage page) {
         this.logger.info("createQueryForListings -> ()");
+        JsonObject body = query.getFilter();
         // Apply role-based query filters
         this.getUtils().assignRoleQueryFilters(
             xusr, body, false);
@@ -478,8 +460,6 @@ public class BookingService extends ListingsService {
         if (this.getUtils().isRole("client", xusr)) {
             body.put("feduid", xusr.getString("feduid"));
         }
-        // Add search functionality for custom fields
-        this.getUtils().addFieldsToSearchQuery(body);
 
         JsonObject lookup = new JsonObject()
             .put("from", Collections.LISTINGS.toString())
@@ -487,33 +467,28 @@ public class BookingService extends ListingsService {
             .put("foreignField", "_id")
             .put("as", "listing");
 
-        JsonObject listingTypeLookUp = new JsonObject()
-            .put("from", Collections.LISTING_TYPES.toString())
-            .put("localField", "listing.listingType")
-            .put("foreignField", "_id")
-            .put("as", "listingType");
-
         JsonObject clientLookUp = new JsonObject()
             .put("from", Collections.USERS.toString())
             .put("localField", "feduid")
             .put("foreignField", "feduid")
             .put("as", "client");
 
-        return new JsonArray()
-            .add(new JsonObject()
-                .put("$match", body))
+        JsonArray joins = new JsonArray()
             .add(new JsonObject()
                 .put("$lookup", lookup))
             .add(new JsonObject()
                 .put("$unwind", "$listing"))
-            .add(new JsonObject()
-                .put("$lookup", listingTypeLookUp))
-            .add(new JsonObject()
-                .put("$unwind", "$listingType"))
             .add(new JsonObject()
                 .put("$lookup", clientLookUp))
             .add(new JsonObject()
                 .put("$unwind", "$client"));
 
+        // The unwinds drop the bookings of deleted listings and clients, so
+        // a page is only cut once they ran.
+        if (page != null) {
+            return page.pipeline(body, joins);
+        }
+        return query.page(joins);
+
     }
 }
@@ -0,0 +1,180 @@
+package org.core.backend.views;
+
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.Router;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.core.backend.models.Domain;
+
+/**
+ * The registry of the deployed domain verticles.
+ * Maps request paths to their domain, and the domain to the local port its
+ * verticles listen on. The instances of a domain share the port, the
+ * requests forwarded to it are spread over them by the http server.
+ * Each main verticle forwards to a domain over at most DOMAIN_POOL_SIZE
+ * connections, queueing four times as many requests, and fails the ones
+ * the domain leaves without an answer for DOMAIN_TIMEOUT_MS.
+ */
+public final class DomainRegistry {
+
+    /**
+     * The env var that enables the domain verticles.
+     */
+    public static final String DOMAIN_VERTICLES_ENV = "DOMAIN_VERTICLES";
+
+    /**
+     * The host the domain verticles listen on, they are not reachable from
+     * outside the pod.
+     */
+    public static final String HOST = "localhost";
+
+    /**
+     * The env var holding the connections of a main verticle to a domain.
+     */
+    public static final String POOL_SIZE_ENV = "DOMAIN_POOL_SIZE";
+
+    /**
+     * The env var holding the time in milliseconds a domain may leave a
+     * forwarded request without an answer.
+     */
+    public static final String TIMEOUT_ENV = "DOMAIN_TIMEOUT_MS";
+
+    /**
+     * The default connections to a domain.
+     */
+    private static final int DEFAULT_POOL_SIZE = 64;
+
+    /**
+     * The requests queued per connection once they are all busy.
+     */
+    private static final int QUEUED_PER_CONNECTION = 4;
+
+    /**
+     * The default timeout of a forwarded request, in milliseconds.
+     */
+    private static final int DEFAULT_TIMEOUT = 30000;
+
+    /**
+     * The number of deployed instances per domain.
+     */
+    private static final Map<Domain, AtomicInteger> INSTANCES =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The port of each domain.
+     */
+    private static final Map<Domain, Integer> PORTS =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The domain of each registered path.
+     */
+    private static final Map<String, Domain> PATHS =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Hidden constructor.
+     */
+    private DomainRegistry() {
+    }
+
+    /**
+     * Checks if the domains run as separate verticles.
+     * @return true if enabled.
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getenv(DOMAIN_VERTICLES_ENV));
+    }
+
+    /**
+     * Gets the connections of a main verticle to a domain.
+     * @return the pool size.
+     */
+    public static int getPoolSize() {
+        return readPositive(POOL_SIZE_ENV, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Gets the requests queued for a domain once its connections are busy,
+     * the others are refused.
+     * @return the queue size.
+     */
+    public static int getQueueSize() {
+        return getPoolSize() * QUEUED_PER_CONNECTION;
+    }
+
+    /**
+     * Gets the time a domain may leave a forwarded request without an
+     * answer.
+     * @return the timeout in milliseconds.
+     */
+    public static int getTimeout() {
+        return readPositive(TIMEOUT_ENV, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Reads a positive integer from an env var.
+     * @param env The env var name.
+     * @param defaultValue The value when the env var is missing or invalid.
+     * @return the value.
+     */
+    private static int readPositive(final String env,
+        final int defaultValue) {
+        String value = System.getenv(env);
+        if (value != null && value.trim().matches("[0-9]{1,9}")
+            && Integer.parseInt(value.trim()) > 0) {
+            return Integer.parseInt(value.trim());
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Registers a domain verticle instance, once it listens.
+     * @param domain The domain.
+     * @param port The port the instance listens on.
+     * @param router The router holding the domain routes.
+     */
+    public static void register(final Domain domain, final int port,
+        final Router router) {
+        for (Route route : router.getRoutes()) {
+            if (route.getPath() != null) {
+                PATHS.put(route.getPath(), domain);
+            }
+        }
+        PORTS.put(domain, port);
+        INSTANCES.computeIfAbsent(domain, d -> new AtomicInteger())
+            .incrementAndGet();
+    }
+
+    /**
+     * Unregisters a domain verticle instance.
+     * @param domain The domain.
+     */
+    public static void unregister(final Domain domain) {
+        AtomicInteger instances = INSTANCES.get(domain);
+        if (instances != null) {
+            instances.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the domain serving the path.
+     * @param path The request path.
+     * @return the domain, null if the path has no domain.
+     */
+    public static Domain getDomain(final String path) {
+        return path == null ? null : PATHS.get(path);
+    }
+
+    /**
+     * Gets the port of a domain.
+     * @param domain The domain.
+     * @return the port, null if no instance of the domain is deployed.
+     */
+    public static Integer getPort(final Domain domain) {
+        AtomicInteger instances = INSTANCES.get(domain);
+        return instances == null || instances.get() <= 0 ? null
+            : PORTS.get(domain);
+    }
+}
@@ -0,0 +1,99 @@
+package org.core.backend.views;
+
+import io.vertx.core.Promise;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.handler.BodyHandler;
+import org.core.backend.models.Domain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A verticle serving the routes of a single domain.
+ * The domain and its port are read from the "domain" and "port" config
+ * fields. The verticle serves its own http server on that local port, the
+ * main service router forwards the domain requests to it, see
+ * DomainRegistry.
+ */
+public class DomainVerticle extends MainService {
+
+    /**
+     * The logger instance that is used to log.
+     */
+    private Logger logger = LoggerFactory.getLogger(
+        DomainVerticle.class.getName());
+
+    /**
+     * The domain served by this verticle.
+     */
+    private Domain domain;
+
+    /**
+     * Starts the domain verticle, listening on the port of its domain.
+     * @param startPromise The promise completed once listening.
+     */
+    @Override
+    public void start(final Promise<Void> startPromise) {
+        this.domain = Domain.valueOf(this.config().getString("domain"));
+        int port = this.config().getInteger("port");
+        this.logger.info("Start " + this.domain + " domain verticle on "
+            + port + " ->");
+
+        this.setDBUtils(this.vertx);
+        this.setSharedUtils();
+
+        Router router = Router.router(this.vertx);
+        router.route().handler(BodyHandler.create());
+        this.dropLoadersOnEnd(router);
+        this.addDomainRoutes(router);
+        this.vertx.createHttpServer(new HttpServerOptions()
+                .setHost(DomainRegistry.HOST))
+            .requestHandler(router)
+            .listen(port)
+            .onSuccess(server -> {
+                DomainRegistry.register(this.domain, port, router);
+                startPromise.complete();
+            })
+            .onFailure(startPromise::fail);
+    }
+
+    /**
+     * Stops the domain verticle.
+     * @param stopPromise The promise completed once stopped.
+     */
+    @Override
+    public void stop(final Promise<Void> stopPromise) throws Exception {
+        DomainRegistry.unregister(this.domain);
+        super.stop(stopPromise);
+    }
+
+    /**
+     * Adds the routes of the domain.
+     * @param router The router used to set paths.
+     */
+    private void addDomainRoutes(final Router router) {
+        switch (this.domain) {
+            case AUTH:
+                this.addAuthRoutes(router);
+                break;
+            case BOOKINGS:
+                this.addBookingServiceRoutes(router);
+                break;
+            case LISTINGS:
+                this.addListingsV2Routes(router);
+                break;
+            case ORGANISATION:
+                this.addOrganisationRoutes(router);
+                this.addAdminRoutes(router);
+                break;
+            case RBAC:
+                this.addRbacRoutes(router);
+                break;
+            case PAYMENTS:
+                this.addPaymentsRoutes(router);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -9,6 +9,9 @@ import io.vertx.ext.web.RoutingContext;
 import java.time.Instant;
 import java.util.UUID;
 import org.core.backend.models.Collections;
+import org.core.backend.utils.KeysetPage;
+import org.core.backend.utils.ResponseStream;
+import org.core.backend.utils.ViewCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.utils.backend.utils.SystemTasks;
@@ -41,6 +44,15 @@ public class ListingsService extends ListingsServiceV2 {
      */
     private static final int DEFAULT_ORG_LISTINGS_LIMIT = 25;
 
+    /**
+     * The keyset page sort of listings, featured first then newest.
+     * The _id makes the sort key unique so that no listing is skipped.
+     */
+    private static final JsonObject LISTINGS_KEYSET_SORT = new JsonObject()
+        .put("featured", -1)
+        .put("createdAt", -1)
+        .put("_id", -1);
+
     /**
      * The logger instance that is used to log.
      */
@@ -279,6 +291,16 @@ public class ListingsService extends ListingsServiceV2 {
             // Apply role-based query filters
             this.getUtils().assignRoleQueryFilters(xusr, query, false);
 
+            if (KeysetPage.isRequested(body)) {
+                KeysetPage page = this.readPage(
+                    body, LISTINGS_KEYSET_SORT, DEFAULT_PAGE_LIMIT, resp);
+                if (page != null) {
+                    this.findPage(Collections.LISTINGS.toString(),
+                        query, page, resp);
+                }
+                return;
+            }
+
             // Add default sorting if not specified
             if (!query.containsKey("sort")) {
                 query.put("sort", new JsonObject()
@@ -289,8 +311,10 @@ public class ListingsService extends ListingsServiceV2 {
              // Add pagination
             query.put("limit", limit);
             query.put("offset", offset);
+            query.put(ResponseStream.FIELD,
+                body.getValue(ResponseStream.FIELD));
 
-            this.getDbUtils().find(
+            this.findOrStream(
                 Collections.LISTINGS.toString(), query, resp);
         });
     }
@@ -479,7 +503,7 @@ public class ListingsService extends ListingsServiceV2 {
                                 .put("createdAt", -1));
                     }
 
-                    this.getDbUtils().find(Collections.LISTINGS.toString(),
+                    this.findOrStream(Collections.LISTINGS.toString(),
                             body, resp);
                 }, "searchTerm", "fieldsToSearchFor");
     }
@@ -570,7 +594,17 @@ public class ListingsService extends ListingsServiceV2 {
                     this.getDbUtils().findOneAndUpdate(
                             Collections.LISTING_TYPES.toString(),
                             query, new JsonObject().put("$set", updateData),
-                            resp);
+                            res -> {
+                                resp.end(this.getUtils()
+                                    .getResponse(res).encode());
+                                this.reconcileListingType(
+                                    body.getString("_id"));
+                            }, fail -> {
+                                this.logger.error(fail.getMessage(), fail);
+                                resp.end(this.getUtils().getResponse(
+                                    Utils.ERR_502, fail.getMessage())
+                                    .encode());
+                            });
                 }, "_id", "update");
     }
 
@@ -727,6 +761,16 @@ public class ListingsService extends ListingsServiceV2 {
             // Apply role-based query filters
             this.getUtils().assignRoleQueryFilters(xusr, query, false);
 
+            if (KeysetPage.isRequested(body)) {
+                KeysetPage page = this.readPage(body,
+                    LISTINGS_KEYSET_SORT, DEFAULT_ORG_LISTINGS_LIMIT, resp);
+                if (page != null) {
+                    this.findPage(Collections.LISTINGS.toString(),
+                        query, page, resp);
+                }
+                return;
+            }
+
             // Add default sorting
             if (!query.containsKey("sort")) {
                 query.put("sort", new JsonObject()
@@ -749,21 +793,8 @@ public class ListingsService extends ListingsServiceV2 {
      * @param listingId The listing ID to increment views for.
      */
     private void incrementListingViews(final String listingId) {
-        JsonObject query = new JsonObject().put("_id", listingId);
-        JsonObject update = new JsonObject()
-                .put("$inc", new JsonObject().put("views", 1));
-
-        this.getDbUtils().update(Collections.LISTINGS.toString(), query, update,
-                () -> {
-                    // View incremented successfully
-                    this.logger.debug("Incremented views for listing: "
-                            + listingId);
-                },
-                error -> {
-                    // Log error but don't fail the main request
-                    this.logger.error("Failed to increment views for listing: "
-                            + listingId, error);
-                });
+        ViewCounter.get(this.vertx, this.getDbUtils().getDBClient(),
+            Collections.LISTINGS.toString(), "views").increment(listingId);
     }
 
     // ======================================================================
@@ -1267,114 +1298,32 @@ public class ListingsService extends ListingsServiceV2 {
     private void getListingEffectivePrice(final RoutingContext rc) {
         this.getUtils().execute2(MODULE + "getListingEffectivePrice", rc,
                 (xusr, body, params, headers, resp) -> {
-                    try {
-                        String listingId = body.getString("listingId");
-
-                        // Get listing
-                        JsonObject listingQuery = new JsonObject()
-                                .put("_id", listingId);
-                        this.getUtils().assignRoleQueryFilters(
-                                xusr, listingQuery, false);
-
-                        this.getDbUtils().findOne(
-                                Collections.LISTINGS.toString(),
-                                listingQuery, item -> {
-                                    if (item == null || item.isEmpty()) {
-                                        resp.end(this.getUtils().getResponse(
-                                                Utils.ERR_404,
-                                                "Listing not found")
-                                                .encode());
-                                        return;
-                                    }
-
-                        Double baseAmount = item.getDouble("amount");
-                        if (baseAmount == null) {
-                            resp.end(this.getUtils().getResponse(
-                                Utils.ERR_502,
-                                "Listing has no amount set")
-                                .encode());
-                            return;
-                        }
-
-                        // Get active discounts for this listing
-                        JsonObject discountQuery = new JsonObject()
-                            .put("listingId", listingId)
-                            .put("status", "active");
-
-                        this.getDbUtils().find(
-                            Collections.LISTING_DISCOUNTS
-                                .toString(),
-                            discountQuery,
-                            discountResults -> {
-                                try {
-                                    JsonArray items = new JsonArray(
-                                        discountResults);
-                                    Double effectivePrice = baseAmount;
-
-                                // Apply discounts
-                                    for (int i = 0; i < items
-                                            .size(); i++) {
-                                        JsonObject rel = items.getJsonObject(i);
-                                        String itemId = rel.getString(
-                                            "discountId");
-                                        JsonObject query = new JsonObject()
-                                            .put("_id", itemId);
-                                    }
+                    JsonObject listingQuery = new JsonObject()
+                            .put("_id", body.getString("listingId"));
+                    this.getUtils().assignRoleQueryFilters(
+                            xusr, listingQuery, false);
 
-                                // Get active promotions for this listing
-                                    JsonObject promotionQuery = new JsonObject()
-                                        .put("listingId", listingId)
-                                        .put("status", "active");
-
-                                this.getDbUtils().find(
-                                    Collections.LISTING_PROMOTIONS.toString(),
-                                    promotionQuery,
-                                    promotionResults -> {
-                                        try {
-                                            JsonObject result = new JsonObject()
-                                                .put("listingId", listingId)
-                                                .put("baseAmount", baseAmount)
-                                                .put("effectivePrice",
-                                                    effectivePrice)
-                                                .put("discountsApplied",
-                                                    items.size())
-                                                .put("promotionsApplied",
-                                                    promotionResults.size())
-                                            .put("savings",
-                                                baseAmount - effectivePrice);
-
-                                            resp.end(this.getUtils()
-                                                .getResponse(result).encode());
-
-                                            resp.end(this.getUtils()
-                                                .getResponse(result).encode());
-                } catch (Exception e) {
-                    this.logger.error(
-                        e.getMessage(), e);
-                    resp.end(this.getUtils()
-                            .getResponse(
+                    this.findEffectivePrices(listingQuery)
+                        .onSuccess(prices -> {
+                            if (prices.isEmpty()) {
+                                resp.end(this.getUtils().getResponse(
+                                    Utils.ERR_404,
+                                    "Listing not found").encode());
+                            } else if (prices.get(0)
+                                .getValue("baseAmount") == null) {
+                                resp.end(this.getUtils().getResponse(
                                     Utils.ERR_502,
-                                    e.getMessage())
-                            .encode());
-                }
-            },
-            resp);
-
-                } catch (Exception e) {
-                    this.logger.error(e.getMessage(), e);
-                    resp.end(this.getUtils().getResponse(
-                        Utils.ERR_502,
-                        e.getMessage()).encode());
-                    return;
-                }
-            }, resp);
-        }, resp);
-
-                    } catch (final Exception e) {
-                        this.logger.error(e.getMessage(), e);
-                        resp.end(this.getUtils().getResponse(
+                                    "Listing has no amount set").encode());
+                            } else {
+                                resp.end(this.getUtils()
+                                    .getResponse(prices.get(0)).encode());
+                            }
+                        })
+                        .onFailure(e -> {
+                            this.logger.error(e.getMessage(), e);
+                            resp.end(this.getUtils().getResponse(
                                 Utils.ERR_502, e.getMessage()).encode());
-                    }
+                        });
                 }, "listingId");
     }
 
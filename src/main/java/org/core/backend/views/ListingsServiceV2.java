@@ -1,11 +1,25 @@
 package org.core.backend.views;
 
 import io.vertx.ext.web.Router;
+import io.vertx.core.Future;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 import org.core.backend.models.Collections;
 import org.core.backend.models.Status;
+import org.core.backend.utils.BlockingDB;
+import org.core.backend.utils.CachedDBUtils;
+import org.core.backend.utils.EffectivePrice;
+import org.core.backend.utils.GeoQuery;
+import org.core.backend.utils.KeysetPage;
+import org.core.backend.utils.ListingQuery;
+import org.core.backend.utils.QueryCompiler;
+import org.core.backend.utils.QueryCompiler.Op;
+import org.core.backend.utils.QueryCompiler.Type;
+import org.core.backend.utils.QueryStats;
+import org.core.backend.utils.ReferenceCache;
+import org.core.backend.utils.ResponseStream;
+import org.core.backend.utils.ResultCache;
 
 import org.utils.backend.utils.SystemTasks;
 
@@ -16,7 +30,13 @@ import org.utils.backend.utils.Utils;
 
 import io.vertx.core.http.HttpServerResponse;
 
+import io.vertx.ext.mongo.UpdateOptions;
 import io.vertx.ext.web.RoutingContext;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 
 /**
@@ -32,13 +52,113 @@ public class ListingsServiceV2 extends OrganisationService {
     private Logger logger = LoggerFactory.getLogger(
         ListingsService.class.getName());
 
+    /**
+     * The default keyset page size of listings.
+     */
+    private static final int DEFAULT_LISTINGS_LIMIT =
+        ListingQuery.DEFAULT_LIMIT;
+
+    /**
+     * Copy the listing type name and icon into listings when set.
+     */
+    private static final boolean DENORMALISE_LISTING_TYPES =
+        Boolean.parseBoolean(System.getenv("DENORMALISE_LISTING_TYPES"));
+
+    /**
+     * The default keyset page size of reviews.
+     */
+    private static final int DEFAULT_REVIEWS_LIMIT = 20;
+
+    /**
+     * The largest number of listing types listed at once.
+     */
+    private static final int MAX_LISTING_TYPES = 500;
+
+    /**
+     * The filters of the listing types, a small reference collection.
+     */
+    private static final QueryCompiler LISTING_TYPES_QUERY = QueryCompiler
+        .of(Collections.LISTING_TYPES.toString())
+        .field("_id", Type.STRING, Op.IN)
+        .field("name", Type.STRING, Op.IN, Op.PREFIX)
+        .field("status", Type.STRING, Op.IN)
+        .field("isActive", Type.BOOLEAN)
+        .field("organisationId", Type.STRING)
+        .sortBy("name")
+        .limit(MAX_LISTING_TYPES, MAX_LISTING_TYPES)
+        .build();
+
+    /**
+     * The filters of the reviews, of a listing or of a client.
+     */
+    private static final QueryCompiler REVIEWS_QUERY = QueryCompiler
+        .of(Collections.REVIEWS.toString())
+        .field("_id", Type.STRING, Op.IN)
+        .field("listingId", Type.STRING, Op.IN)
+        .field("feduid", Type.STRING)
+        .field("rating", Type.NUMBER, Op.IN, Op.RANGE)
+        .requireOneOf("_id", "listingId", "feduid")
+        .sortBy("createdAt", "rating")
+        .limit(DEFAULT_REVIEWS_LIMIT, KeysetPage.MAX_PAGE_SIZE)
+        .build();
+
+    /**
+     * The keyset page sort of listings, featured first then newest.
+     * Listings saved before featured and createdAt were stamped sort last,
+     * a missing field comparing as null.
+     */
+    private static final JsonObject LISTINGS_KEYSET_SORT = new JsonObject()
+        .put("featured", -1)
+        .put("createdAt", -1)
+        .put("_id", -1);
+
+    /**
+     * The keyset page sort of reviews, newest first.
+     */
+    private static final JsonObject REVIEWS_KEYSET_SORT = new JsonObject()
+        .put("createdAt", -1)
+        .put("_id", -1);
+
+    /**
+     * The collections a listing search reads, the listing types and the
+     * amenities being joined in. A write to any of them moves the cached
+     * searches on, see ResultCache.
+     */
+    protected static final List<String> LISTING_SOURCES = Arrays.asList(
+        Collections.LISTINGS.toString(),
+        Collections.LISTING_TYPES.toString(),
+        Collections.AMENITIES.toString());
+
+    /**
+     * The keyset page sort of nearby listings, closest first.
+     */
+    private static final JsonObject NEARBY_KEYSET_SORT = new JsonObject()
+        .put(GeoQuery.DISTANCE, 1)
+        .put("_id", 1);
+
+    /**
+     * The listings at the distance of the last one of a nearby page read
+     * again for the next page, listings at the very same spot beyond it
+     * are skipped.
+     */
+    private static final int NEARBY_TIES = KeysetPage.MAX_PAGE_SIZE;
+
     /**
      * Sets routes for the HTTP server.
      * @param router The router used to set paths.
      */
     protected void setListingsV2Routes(final Router router) {
         this.logger.info("setListingsV2Routes -> ()");
+        this.addListingsV2Routes(router);
+
+        this.serOrganisationService(router);
+    }
 
+    /**
+     * Adds the listings, amenities and reviews routes.
+     * @param router The router used to set paths.
+     */
+    protected void addListingsV2Routes(final Router router) {
         router.post("/createListingTypes")
             .handler(this::createListingTypes);
         router.post("/listListingTypes")
@@ -46,6 +166,10 @@ public class ListingsServiceV2 extends OrganisationService {
 
         router.post("/listListings")
             .handler(this::listListings);
+        router.post("/searchListingsNearby")
+            .handler(this::searchListingsNearby);
+        router.post("/getListingsEffectivePrices")
+            .handler(this::getListingsEffectivePrices);
         router.post("/createListings")
             .handler(this::createListings);
         router.post("/updateListings")
@@ -64,10 +188,6 @@ public class ListingsServiceV2 extends OrganisationService {
             .handler(this::listReviews);
         router.post("/listFavourites")
             .handler(this::listFavourites);
-
-        // Call parent organization service routes
-        this.serOrganisationService(router);
-
     }
 
     /**
@@ -99,11 +219,16 @@ public class ListingsServiceV2 extends OrganisationService {
         this.getUtils().execute2(MODULE + "createListingTypes", rc,
             (xusr, body, params, headers, resp) -> {
 
+                QueryCompiler.Query query = this.compileQuery(
+                    LISTING_TYPES_QUERY, body, resp);
+                if (query == null) {
+                    return;
+                }
+
                 this.getUtils().assignRoleQueryFilters(
-                    xusr, body, false);
+                    xusr, query.getFilter(), false);
 
-                this.getDbUtils().find(
-                    Collections.LISTING_TYPES.toString(), body, resp);
+                this.findCompiled(LISTING_TYPES_QUERY, query, null, resp);
         });
     }
 
@@ -116,10 +241,46 @@ public class ListingsServiceV2 extends OrganisationService {
         this.getUtils().execute3(MODULE + "listListings", rc,
             (xusr, body, params, headers, resp) -> {
 
+                final String format = ResponseStream.takeFormat(body);
+                final String key = ResultCache.key(
+                    MODULE + "listListings", body);
 
-                this.getDbUtils().aggregate(
-                    Collections.LISTINGS.toString(),
-                        createAggregateQueryListListings(body), resp);
+                KeysetPage page = null;
+                if (KeysetPage.isRequested(body)) {
+                    page = this.readPage(body,
+                        LISTINGS_KEYSET_SORT, DEFAULT_LISTINGS_LIMIT, resp);
+                    if (page == null) {
+                        return;
+                    }
+                }
+
+                final QueryCompiler.Query query = this.compileQuery(
+                    ListingQuery.FILTERS, body, resp);
+                if (query == null) {
+                    return;
+                }
+
+                final KeysetPage keysetPage = page;
+                final JsonArray pipeline =
+                    createAggregateQueryListListings(query, page);
+                if (format != null) {
+                    this.joinListingReferences()
+                        .onSuccess(join -> this.aggregateOrStream(
+                            Collections.LISTINGS.toString(), pipeline,
+                            format, join, query.getOptions(), resp))
+                        .onFailure(e -> this.failRequest(e, resp));
+                    return;
+                }
+
+                // The same searches are answered from the encoded responses
+                // until a listing, listing type or amenity is written.
+                ResultCache.getInstance().get(key, LISTING_SOURCES,
+                    () -> this.joinListingReferences().compose(join ->
+                        this.aggregateEncoded(
+                            Collections.LISTINGS.toString(), pipeline,
+                            keysetPage, join, query.getOptions())))
+                    .onSuccess(resp::end)
+                    .onFailure(e -> this.failRequest(e, resp));
         });
     }
 
@@ -152,6 +313,12 @@ public class ListingsServiceV2 extends OrganisationService {
                     "statutoryPremiums", resp);
 
                     body.put("status", Status.PENDING.name());
+                    body.put("featured", false);
+                    body.put("createdAt", Instant.now().toString());
+                    body.put(GeoQuery.LOCATION, GeoQuery.toPoint(
+                        body.getValue("longitude"),
+                        body.getValue("latitude")));
+                    this.denormaliseListingType(body);
                     this.createPremiumObj(body,
                         body.getDouble("amount", Utils.ZERO_DOUBLE), resp);
                     body.remove("amount");
@@ -307,6 +474,17 @@ public class ListingsServiceV2 extends OrganisationService {
                     updates.getDouble("amount"), resp);
             }
 
+            if (updates.containsKey("longitude")
+                || updates.containsKey("latitude")) {
+                listing.put("longitude", updates.getValue("longitude",
+                    listing.getValue("longitude")));
+                listing.put("latitude", updates.getValue("latitude",
+                    listing.getValue("latitude")));
+                listing.put(GeoQuery.LOCATION, GeoQuery.toPoint(
+                    listing.getValue("longitude"),
+                    listing.getValue("latitude")));
+            }
+
             JsonObject qry = new JsonObject()
                 .put("_id", updates.getString("_id"));
             listing.remove("_id");
@@ -438,6 +616,7 @@ public class ListingsServiceV2 extends OrganisationService {
         this.getUtils().execute2(MODULE + "writeReviews", rc,
             (xusr, body, params, headers, resp) -> {
 
+                body.put("createdAt", Instant.now().toString());
                 this.getDbUtils().save(
                     Collections.REVIEWS.toString(), body, headers, resp);
         });
@@ -467,8 +646,29 @@ public class ListingsServiceV2 extends OrganisationService {
         this.getUtils().execute2(MODULE + "listReviews", rc,
             (xusr, body, params, headers, resp) -> {
 
-                this.getDbUtils().find(
-                    Collections.REVIEWS.toString(), body, resp);
+                String format = ResponseStream.takeFormat(body);
+                KeysetPage page = null;
+                if (KeysetPage.isRequested(body)) {
+                    page = this.readPage(body,
+                        REVIEWS_KEYSET_SORT, DEFAULT_REVIEWS_LIMIT, resp);
+                    if (page == null) {
+                        return;
+                    }
+                }
+
+                QueryCompiler.Query query = this.compileQuery(
+                    REVIEWS_QUERY, body, resp);
+                if (query == null) {
+                    return;
+                }
+
+                if (page != null) {
+                    this.aggregatePage(Collections.REVIEWS.toString(),
+                        page.pipeline(query.getFilter()), page,
+                        UnaryOperator.identity(), query.getOptions(), resp);
+                } else {
+                    this.findCompiled(REVIEWS_QUERY, query, format, resp);
+                }
         });
     }
 
@@ -489,27 +689,211 @@ public class ListingsServiceV2 extends OrganisationService {
 
 
     /**
-     * Creates the aggregate query for listing.
-     * @param body The body by the FE
+     * Searches the listings near a point, closest first.
+     * Pages are keyset pages on the distance, see GeoQuery for the filters.
+     * @param rc The routing context.
+     */
+    @SystemTasks(task = MODULE + "searchListingsNearby")
+    private void searchListingsNearby(final RoutingContext rc) {
+        this.getUtils().execute3(MODULE + "searchListingsNearby", rc,
+            (xusr, body, params, headers, resp) -> {
+                try {
+                    KeysetPage page = this.readPage(body,
+                        NEARBY_KEYSET_SORT, DEFAULT_LISTINGS_LIMIT, resp);
+                    if (page == null) {
+                        return;
+                    }
+
+                    JsonObject geoNear = GeoQuery.geoNear(body,
+                        page.getAfter(GeoQuery.DISTANCE));
+
+                    // $geoNear returns the closest first from the distance
+                    // of the page token, only the page and the listings
+                    // tied with the last one are read. Their order is left
+                    // open, the _id settles it for the keyset condition.
+                    JsonArray pipeline = new JsonArray()
+                        .add(geoNear)
+                        .add(new JsonObject().put("$limit",
+                            page.getLimit() + 1 + NEARBY_TIES))
+                        .add(new JsonObject()
+                            .put("$match", page.apply(new JsonObject())))
+                        .add(new JsonObject()
+                            .put("$sort", NEARBY_KEYSET_SORT))
+                        .add(new JsonObject()
+                            .put("$limit", page.getLimit() + 1));
+
+                    this.joinListingReferences()
+                        .onSuccess(join -> this.aggregatePage(
+                            Collections.LISTINGS.toString(),
+                            pipeline, page, join, resp))
+                        .onFailure(e -> this.failRequest(e, resp));
+                } catch (final Exception e) {
+                    this.logger.error(e.getMessage(), e);
+                    resp.end(this.getUtils().getResponse(
+                        Utils.ERR_502, e.getMessage()).encode());
+                }
+        }, "longitude", "latitude");
+    }
+
+    /**
+     * Gets the effective prices of a page of listings in one query.
+     * @param rc The routing context.
+     */
+    @SystemTasks(task = MODULE + "getListingsEffectivePrices")
+    private void getListingsEffectivePrices(final RoutingContext rc) {
+        this.getUtils().execute3(MODULE + "getListingsEffectivePrices", rc,
+            (xusr, body, params, headers, resp) -> {
+                JsonArray ids = body.getValue("listingIds")
+                    instanceof JsonArray ? body.getJsonArray("listingIds")
+                    : null;
+                if (ids == null || ids.size() > KeysetPage.MAX_PAGE_SIZE
+                    || !ids.stream().allMatch(id -> id instanceof String)) {
+                    resp.end(this.getUtils().getResponse(Utils.ERR_502,
+                        "Expected listingIds as an array of at most "
+                        + KeysetPage.MAX_PAGE_SIZE + " ids").encode());
+                    return;
+                }
+
+                JsonObject match = new JsonObject().put("_id",
+                    new JsonObject().put("$in", ids));
+                if (this.isVirtualThreadMode()) {
+                    this.runOnVirtualThread(v ->
+                        this.awaitEffectivePrices(match, resp));
+                    return;
+                }
+
+                this.findEffectivePrices(match)
+                    .onSuccess(prices -> resp.end(this.getUtils()
+                        .getResponse(new JsonArray(prices)).encode()))
+                    .onFailure(e -> {
+                        this.logger.error(e.getMessage(), e);
+                        resp.end(this.getUtils().getResponse(
+                            Utils.ERR_502, e.getMessage()).encode());
+                    });
+        }, "listingIds");
+    }
+
+    /**
+     * Answers the effective prices with a blocking style await, on a
+     * virtual thread.
+     * @param match The listings to price.
+     * @param resp The server response.
+     */
+    private void awaitEffectivePrices(final JsonObject match,
+        final HttpServerResponse resp) {
+        try {
+            List<JsonObject> prices = BlockingDB.await(
+                this.findEffectivePrices(match));
+            resp.end(this.getUtils().getResponse(new JsonArray(prices))
+                .encode());
+        } catch (final Exception e) {
+            this.logger.error(e.getMessage(), e);
+            resp.end(this.getUtils().getResponse(
+                Utils.ERR_502, e.getMessage()).encode());
+        }
+    }
+
+    /**
+     * Finds the effective prices of the listings, see EffectivePrice.
+     * @param match The listings to price.
+     * @return the prices, one per listing found.
+     */
+    protected Future<List<JsonObject>> findEffectivePrices(
+        final JsonObject match) {
+        JsonArray pipeline = EffectivePrice.pipeline(match);
+        return QueryStats.getInstance().track("aggregate",
+            Collections.LISTINGS.toString(), pipeline,
+            this.getDbUtils().getDBClient()
+                .aggregate(Collections.LISTINGS.toString(), pipeline)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Creates the aggregate query for listing, see ListingQuery.
+     * @param query The query compiled from the body by the FE
+     * @param page The keyset page, null for the page of the query
      * @return pipeline for the query sent
      */
-    private JsonArray createAggregateQueryListListings(final JsonObject body) {
+    private JsonArray createAggregateQueryListListings(
+        final QueryCompiler.Query query, final KeysetPage page) {
         this.logger.info("createAggregateQueryListListings -> ()");
-        // Add search functionality for custom fields
-        this.getUtils().addFieldsToSearchQuery(body);
-
-        JsonObject listingTypeLookUp = new JsonObject()
-            .put("from", Collections.LISTING_TYPES.toString())
-            .put("localField", "listingType")
-            .put("foreignField", "_id")
-            .put("as", "listingType");
-
-        return new JsonArray()
-            .add(new JsonObject()
-                .put("$match", body))
-            .add(new JsonObject()
-                .put("$lookup", listingTypeLookUp))
-            .add(new JsonObject()
-                .put("$unwind", "$listingType"));
+        // The listing type is joined in process, see joinListingReferences
+        return ListingQuery.pipeline(query, page);
+    }
+
+    /**
+     * Copies the listing type name and icon into the listing.
+     * Only done when DENORMALISE_LISTING_TYPES is set, readers that can
+     * not join, e.g exports and text search, then get them for free.
+     * @param listing The listing being saved.
+     */
+    protected void denormaliseListingType(final JsonObject listing) {
+        if (!DENORMALISE_LISTING_TYPES) {
+            return;
+        }
+
+        JsonObject type = this.getReferenceCache(
+            Collections.LISTING_TYPES.toString())
+                .get(listing.getValue("listingType"));
+        if (type != null) {
+            listing.put("listingTypeName", type.getValue("name"));
+            listing.put("listingTypeIcon", type.getValue("icon"));
+        }
+    }
+
+    /**
+     * Reloads the listing types and rewrites the denormalised copies of a
+     * listing type in the background.
+     * @param listingTypeId The changed listing type id.
+     */
+    protected void reconcileListingType(final String listingTypeId) {
+        ReferenceCache types = this.getReferenceCache(
+            Collections.LISTING_TYPES.toString());
+        types.refresh().onSuccess(v -> {
+            JsonObject type = types.get(listingTypeId);
+            if (!DENORMALISE_LISTING_TYPES || type == null) {
+                return;
+            }
+
+            String listings = Collections.LISTINGS.toString();
+            JsonObject query = new JsonObject()
+                .put("listingType", listingTypeId);
+            CachedDBUtils.invalidate(listings, query);
+            this.getDbUtils().getDBClient().updateCollectionWithOptions(
+                listings, query,
+                new JsonObject().put("$set", new JsonObject()
+                    .put("listingTypeName", type.getValue("name"))
+                    .put("listingTypeIcon", type.getValue("icon"))),
+                new UpdateOptions().setMulti(true))
+                .onComplete(res -> CachedDBUtils.invalidate(listings, query))
+                .onSuccess(res -> {
+                    this.logger.info("Reconciled " + res.getDocModified()
+                        + " listings of type " + listingTypeId);
+                })
+                .onFailure(e -> this.logger.error(
+                    "Failed to reconcile listing type " + listingTypeId, e));
+        });
+    }
+
+    /**
+     * Gets the in process join of the listing references.
+     * The listing type id is replaced with the listing type and the
+     * embedded amenities are completed from the amenities collection.
+     * @return a future completed with the join once the caches are loaded.
+     */
+    protected Future<UnaryOperator<JsonObject>> joinListingReferences() {
+        Future<ReferenceCache> types = this.getReferenceCache(
+            Collections.LISTING_TYPES.toString()).ready();
+        Future<ReferenceCache> amenities = this.getReferenceCache(
+            Collections.AMENITIES.toString()).ready();
+
+        return Future.all(types, amenities).map(all -> listing -> {
+            types.result().join(listing, "listingType", "listingType");
+            JsonObject premium = listing.getJsonObject("premium");
+            if (premium != null) {
+                amenities.result().fill(premium.getJsonArray("amenities"));
+            }
+            return listing;
+        });
     }
 }
@@ -1,16 +1,43 @@
 package org.core.backend.views;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.http.RequestOptions;
 import io.vertx.core.http.ServerWebSocket;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.healthchecks.HealthCheckHandler;
 import io.vertx.ext.healthchecks.Status;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.kafka.client.consumer.KafkaConsumerRecord;
+import io.vertx.micrometer.PrometheusScrapingHandler;
+import io.vertx.micrometer.backends.BackendRegistries;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.core.backend.ServerLauncher;
+import org.core.backend.models.Domain;
+import org.core.backend.utils.EmailOutbox;
+import org.core.backend.utils.EntityCache;
+import org.core.backend.utils.HealthProbe;
+import org.core.backend.utils.IndexCatalogue;
+import org.core.backend.utils.QueryStats;
+import org.core.backend.utils.RbacMatrix;
+import org.core.backend.utils.ReferenceCache;
+import org.core.backend.utils.ResultCache;
+import org.core.backend.utils.ViewCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.utils.backend.models.Collections;
@@ -22,7 +49,6 @@ import io.vertx.core.Vertx;
 
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
-import io.vertx.core.VertxOptions;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServer;
 // import io.vertx.core.http.HttpServerOptions;
@@ -31,11 +57,10 @@ import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.CorsHandler;
 import io.vertx.grpc.VertxServer;
 import io.vertx.grpc.VertxServerBuilder;
-import io.vertx.micrometer.MicrometerMetricsOptions;
-import io.vertx.micrometer.VertxPrometheusOptions;
 
 import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
+import io.vertx.core.Promise;
 
 /**
  * The premium service.
@@ -60,6 +85,13 @@ public class MainService extends AuthService {
     private int webSocketPort = Integer.parseInt(
         System.getenv("WEBSOCKET_PORT"));
 
+    /**
+     * The port of the metrics, apart from the api so they are not public.
+     */
+    private int metricsPort = System.getenv("METRICS_PORT") == null
+        ? DEFAULT_METRICS_PORT
+        : Integer.parseInt(System.getenv("METRICS_PORT"));
+
     /**
      * The logger instance that is used to log.
      */
@@ -76,6 +108,44 @@ public class MainService extends AuthService {
      */
     public static final int WAIT_TIME = 2000;
 
+    /**
+     * The port of the metrics when METRICS_PORT is not set.
+     */
+    public static final int DEFAULT_METRICS_PORT = 9464;
+
+    /**
+     * The headers of a single connection, not forwarded to the domains.
+     */
+    private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<>(
+        Arrays.asList("connection", "keep-alive", "proxy-authenticate",
+            "proxy-authorization", "te", "trailer", "transfer-encoding",
+            "upgrade", "host", "content-length"));
+
+    /**
+     * The client address header of a forwarded request.
+     */
+    private static final String FORWARDED_FOR = "X-Forwarded-For";
+
+    /**
+     * The client scheme header of a forwarded request.
+     */
+    private static final String FORWARDED_PROTO = "X-Forwarded-Proto";
+
+    /**
+     * The client host header of a forwarded request.
+     */
+    private static final String FORWARDED_HOST = "X-Forwarded-Host";
+
+    /**
+     * The client forwarding the requests to the domain verticles.
+     */
+    private HttpClient domainClient;
+
+    /**
+     * The check of the indexes the start waits for, in strict mode.
+     */
+    private Future<Void> indexes = Future.succeededFuture();
+
     /**
      * The main vertx microservice callback.
      */
@@ -96,6 +166,20 @@ public class MainService extends AuthService {
                             wsEcent.cause());
                     }
                 });
+            this.createIndexes();
+            this.loadReferenceCaches();
+            this.loadRbacMatrix();
+            this.syncSystemTasks();
+            EmailOutbox.getInstance().start(this.vertx,
+                this.getDbUtils().getDBClient(), this.getUtils());
+            HealthProbe.getInstance().start(this.vertx,
+                this.getDbUtils().getDBClient());
+            QueryStats.getInstance().start(this.vertx,
+                this.getDbUtils().getDBClient());
+            EntityCache.getInstance().start(this.vertx,
+                this.getDbUtils().getDBClient());
+            ResultCache.getInstance().start(this.vertx,
+                this.getDbUtils().getDBClient(), LISTING_SOURCES);
         } catch (Exception e) {
             this.logger.error(e.getMessage(), e);
         }
@@ -103,6 +187,78 @@ public class MainService extends AuthService {
         this.logger.info("Starting laxnit-auth Service <-");
     }
 
+    /**
+     * Starts the service.
+     * In strict mode the deployment fails if a required index is missing.
+     * @param startPromise The promise completed once started.
+     */
+    @Override
+    public void start(final Promise<Void> startPromise) throws Exception {
+        this.start();
+        this.indexes.onComplete(startPromise);
+    }
+
+    /**
+     * Stops the service.
+     * The pending listing views are written before the verticle goes away.
+     * @param stopPromise The promise completed once stopped.
+     */
+    @Override
+    public void stop(final Promise<Void> stopPromise) throws Exception {
+        this.stop();
+        ViewCounter.flushAll().onComplete(res -> stopPromise.complete());
+    }
+
+    /**
+     * Loads the reference collections joined in process, so the first
+     * listing requests do not wait for them.
+     */
+    private void loadReferenceCaches() {
+        ReferenceCache types = this.getReferenceCache(
+            org.core.backend.models.Collections.LISTING_TYPES.toString());
+        ReferenceCache amenities = this.getReferenceCache(
+            org.core.backend.models.Collections.AMENITIES.toString());
+        HealthProbe.getInstance().awaitStartup("listingTypes",
+            types::isLoaded);
+        HealthProbe.getInstance().awaitStartup("amenities",
+            amenities::isLoaded);
+    }
+
+    /**
+     * Compiles the rbac tasks checked on the cached auth path.
+     */
+    private void loadRbacMatrix() {
+        JsonObject sample = new JsonObject();
+        this.getUtils().setUserRoles(sample, RbacMatrix.SAMPLE_ROLE);
+        RbacMatrix.getInstance().start(this.vertx,
+            this.getDbUtils().getDBClient(),
+            Collections.RBAC_TASKS.toString(), sample);
+        HealthProbe.getInstance().awaitStartup("rbac",
+            RbacMatrix.getInstance()::isLoaded);
+    }
+
+    /**
+     * Records the tasks of the services in the system tasks, the rbac
+     * tasks are left alone.
+     */
+    private void syncSystemTasks() {
+        this.getTaskRegistry().sync(this.getDbUtils().getDBClient(),
+            org.core.backend.models.Collections.SYSTEM_TASKS.toString());
+    }
+
+    /**
+     * Creates the indexes of the IndexCatalogue, in the background.
+     * In strict mode nothing is built, the catalogue is only checked.
+     */
+    private void createIndexes() {
+        if (IndexCatalogue.isStrict()) {
+            this.indexes = IndexCatalogue.verify(
+                this.getDbUtils().getDBClient());
+            return;
+        }
+        IndexCatalogue.ensure(this.getDbUtils().getDBClient());
+    }
+
     /**
      * Starts blocking processes.
      */
@@ -120,6 +276,17 @@ public class MainService extends AuthService {
         });
     }
 
+    /**
+     * Initialises vertx when the service is not deployed by the launcher.
+     * A deployed verticle reuses the vertx instance it was deployed on, so
+     * that all instances share the same event loops and server ports.
+     */
+    private void initVertx() {
+        if (this.vertx == null) {
+            this.vertx = Vertx.vertx(ServerLauncher.createVertxOptions());
+        }
+    }
+
     /**
      * Start http server.
      *
@@ -128,17 +295,12 @@ public class MainService extends AuthService {
      */
     protected void startHttpServer(final int customport,
             final Handler<AsyncResult<HttpServer>> handler) {
-        this.vertx = Vertx.vertx(new VertxOptions()
-                .setMetricsOptions(new MicrometerMetricsOptions()
-                        .setPrometheusOptions(new VertxPrometheusOptions()
-                                .setEnabled(true))
-                        .setEnabled(true)));
+        this.initVertx();
 
         Router router = Router.router(this.vertx);
         this.setRoutes(router);
         this.setDBUtils(this.vertx);
-        this.setUtils(new Utils(() -> {
-        })); //this.vertx);
+        this.setSharedUtils();
 
         this.vertx.createHttpServer()
             .requestHandler(router)
@@ -161,17 +323,12 @@ public class MainService extends AuthService {
         final Handler<AsyncResult<HttpServer>> handler,
         final Handler<AsyncResult<HttpServer>> wshandler) {
 
-        this.vertx = Vertx.vertx(new VertxOptions()
-            .setMetricsOptions(new MicrometerMetricsOptions()
-                .setPrometheusOptions(new VertxPrometheusOptions()
-                        .setEnabled(true))
-                .setEnabled(true)));
+        this.initVertx();
 
         Router router = Router.router(this.vertx);
         this.setRoutes(router);
         this.setDBUtils(this.vertx);
-        this.setUtils(new Utils(() -> {
-        }));
+        this.setSharedUtils();
         // this.setKafkaUtils(this.vertx);
 
         this.vertx.createHttpServer()
@@ -184,6 +341,7 @@ public class MainService extends AuthService {
 
         // Health check
         this.setHealthCheck(router);
+        this.startMetricsServer();
 
         // Start web socket processes.
         createWebSocket(custowsmport, null, wshandler);
@@ -270,29 +428,30 @@ public class MainService extends AuthService {
         // Process...
     }
 
+    /**
+     * Serves /metrics on the metrics port, for the scraper only.
+     */
+    private void startMetricsServer() {
+        Router router = Router.router(this.vertx);
+        router.get("/metrics").handler(PrometheusScrapingHandler.create());
+        this.vertx.createHttpServer()
+            .requestHandler(router)
+            .listen(this.metricsPort)
+            .onFailure(e -> this.logger.error(
+                "Failed to serve the metrics", e));
+    }
+
     /**
      * Sets the system health check.
+     * The checks read the results of the background probe, see
+     * HealthProbe, /ready holds traffic back until the caches are warm.
      * @param router The router used to set paths.
      */
     private void setHealthCheck(final Router router) {
+        HealthProbe probe = HealthProbe.getInstance();
         HealthCheckHandler health = HealthCheckHandler.create(this.vertx);
         health.register("ws", WAIT_TIME, f -> f.complete(Status.OK()));
-        health.register("db", WAIT_TIME, f -> {
-            if (this.getDbUtils().getDBClient() == null) {
-                f.fail("MongoClient (mongoClient) is null!");
-            } else {
-                this.getDbUtils().getDBClient().find(
-                    Collections.USERS.toString(),
-                        new JsonObject().put("_id",
-                            UUID.randomUUID().toString()), res -> {
-                            if (res.succeeded()) {
-                                f.complete(Status.OK());
-                            } else {
-                                f.fail(res.cause().getMessage());
-                            }
-                        });
-            }
-        });
+        probe.register(health, WAIT_TIME);
 
         router.get("/health").handler(health);
 
@@ -301,6 +460,18 @@ public class MainService extends AuthService {
             f -> f.complete(Status.OK()));
 
         router.get("/healthz").handler(healthz);
+
+        HealthCheckHandler ready = HealthCheckHandler.create(this.vertx);
+        probe.registerReady(ready, WAIT_TIME);
+        router.get("/ready").handler(ready);
+
+        HealthCheckHandler live = HealthCheckHandler.create(this.vertx);
+        probe.registerLive(live, WAIT_TIME);
+        router.get("/live").handler(live);
+
+        HealthCheckHandler startup = HealthCheckHandler.create(this.vertx);
+        probe.registerStartup(startup, WAIT_TIME);
+        router.get("/startup").handler(startup);
     }
 
     /**
@@ -434,6 +605,7 @@ public class MainService extends AuthService {
 
         // Enable multipart form data parsing for all POST API requests.
         router.route().handler(BodyHandler.create());
+        this.dropLoadersOnEnd(router);
 
         router.post("/searchusers").handler(this::searchUsers);
         router.post("/searchorganisations")
@@ -442,7 +614,144 @@ public class MainService extends AuthService {
             .handler(this::searchSMS);
         router.post("/searchtemplates")
             .handler(this::searchTemplates);
-        this.setAuthRoutes(router);
+
+        if (DomainRegistry.isEnabled()) {
+            // The domain routes are served by the domain verticles.
+            router.route().handler(this::dispatchToDomain);
+            this.setBaseRoutes(router);
+        } else {
+            this.setAuthRoutes(router);
+        }
+    }
+
+    /**
+     * Forwards the request to the verticles of its domain, through their
+     * local http server. The routing context stays on this verticle, the
+     * domain answer is piped back to the client. The client address, scheme
+     * and host go along as X-Forwarded headers. The time until the domain
+     * answers is recorded as api.domain.forward, less the task duration
+     * the domain records, it is the cost of the extra hop.
+     * @param rc The routing context.
+     */
+    private void dispatchToDomain(final RoutingContext rc) {
+        Domain domain = DomainRegistry.getDomain(rc.normalizedPath());
+        if (domain == null) {
+            rc.next();
+            return;
+        }
+
+        HttpServerResponse resp = rc.response();
+        Integer port = DomainRegistry.getPort(domain);
+        if (port == null) {
+            resp.end(this.getUtils().getResponse(Utils.ERR_503,
+                domain + " service is not available").encode());
+            return;
+        }
+
+        HttpServerRequest req = rc.request();
+        long startedAt = System.nanoTime();
+        this.getDomainClient().request(new RequestOptions()
+                .setMethod(req.method())
+                .setHost(DomainRegistry.HOST)
+                .setPort(port)
+                .setURI(req.uri())
+                .setIdleTimeout(DomainRegistry.getTimeout()))
+            .compose(request -> {
+                copyHeaders(req.headers(), request.headers());
+                addForwardedHeaders(req, request.headers());
+                Buffer body = rc.body().buffer();
+                return body == null ? request.send() : request.send(body);
+            })
+            .onSuccess(res -> {
+                recordForward(domain, System.nanoTime() - startedAt);
+                resp.setStatusCode(res.statusCode());
+                copyHeaders(res.headers(), resp.headers());
+                if (!resp.headers().contains(HttpHeaders.CONTENT_LENGTH)) {
+                    resp.setChunked(true);
+                }
+                res.pipeTo(resp);
+            })
+            .onFailure(e -> {
+                this.logger.error(e.getMessage(), e);
+                if (!resp.ended()) {
+                    resp.end(this.getUtils().getResponse(Utils.ERR_503,
+                        domain + " service is not available").encode());
+                }
+            });
+    }
+
+    /**
+     * Gets the client forwarding the requests to the domain verticles.
+     * Every domain listens on its own port, the pool is per domain.
+     * @return the http client of this verticle.
+     */
+    private HttpClient getDomainClient() {
+        if (this.domainClient == null) {
+            this.domainClient = this.vertx.createHttpClient(
+                new HttpClientOptions()
+                    .setKeepAlive(true)
+                    .setConnectTimeout(DomainRegistry.getTimeout()),
+                new PoolOptions()
+                    .setHttp1MaxSize(DomainRegistry.getPoolSize())
+                    .setMaxWaitQueueSize(DomainRegistry.getQueueSize()));
+        }
+        return this.domainClient;
+    }
+
+    /**
+     * Adds the X-Forwarded headers of a forwarded request, after those of
+     * the proxies in front of this service.
+     * @param req The request received.
+     * @param to The headers sent.
+     */
+    private static void addForwardedHeaders(final HttpServerRequest req,
+        final MultiMap to) {
+        if (req.remoteAddress() != null) {
+            String forwarded = req.getHeader(FORWARDED_FOR);
+            String address = req.remoteAddress().hostAddress();
+            to.set(FORWARDED_FOR, forwarded == null ? address
+                : forwarded + ", " + address);
+        }
+        if (req.getHeader(FORWARDED_PROTO) == null) {
+            to.set(FORWARDED_PROTO, req.scheme());
+        }
+        if (req.getHeader(FORWARDED_HOST) == null
+            && req.authority() != null) {
+            to.set(FORWARDED_HOST, req.authority().toString());
+        }
+    }
+
+    /**
+     * Records the time a domain took to answer a forwarded request.
+     * @param domain The domain.
+     * @param nanos The time until the answer, in nanoseconds.
+     */
+    private static void recordForward(final Domain domain,
+        final long nanos) {
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        if (registry != null) {
+            Timer.builder("api.domain.forward")
+                .tag("domain", domain.name())
+                .description("Time until a domain answers a forwarded"
+                    + " request")
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Copies the end to end headers of a forwarded request or response.
+     * The hop by hop headers and the length are set by each connection.
+     * @param from The headers received.
+     * @param to The headers sent.
+     */
+    private static void copyHeaders(final MultiMap from, final MultiMap to) {
+        for (Map.Entry<String, String> header : from) {
+            if (!HOP_BY_HOP_HEADERS.contains(
+                header.getKey().toLowerCase())) {
+                to.add(header.getKey(), header.getValue());
+            }
+        }
     }
 
     /**
@@ -8,6 +8,7 @@ import io.vertx.ext.web.RoutingContext;
 import java.util.UUID;
 import org.core.backend.models.Status;
 import org.core.backend.models.Collections;
+import org.core.backend.utils.EmailOutbox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.utils.backend.utils.IDBJsonObject;
@@ -33,7 +34,16 @@ public class OrganisationService extends AdminService {
      */
     protected void serOrganisationService(final Router router) {
         this.logger.info("set organistion routes -> ()");
+        this.addOrganisationRoutes(router);
 
+        this.setAdminRoutes(router);
+    }
+
+    /**
+     * Adds the organisation routes.
+     * @param router The router used to set paths.
+     */
+    protected void addOrganisationRoutes(final Router router) {
         router.post("/createorganisation")
             .handler(this::createOrganisation);
         router.post("/getorganisation")
@@ -50,9 +60,6 @@ public class OrganisationService extends AdminService {
             .handler(this::approveOrganisation);
         router.post("/approveUser")
             .handler(this::approveUser);
-
-        this.setAdminRoutes(router);
-
     }
 
     /**
@@ -93,11 +100,11 @@ public class OrganisationService extends AdminService {
                                             founder, headers);
                                         resp.end(this.getUtils().getResponse(
                                             body).encode());
-                                        this.getUtils().sendEmailToUser(
+                                        this.queueEmail(EmailOutbox.template(
                                             founder, "Your documents are now "
                                             + "Under Review",
                                             "documents under review",
-                                        new JsonObject());
+                                        new JsonObject()));
                                 // create default rbac tasks
                                 this.createOrganisationDefaultRbacTasks(orgID);
                                     }, fail -> {
@@ -131,23 +138,16 @@ public class OrganisationService extends AdminService {
      */
     protected void getUser(final String userId, final IDBJsonObject success,
             final IDBSuccess failed, final HttpServerResponse resp) {
-        JsonObject qry = new JsonObject()
-                .put("_id", userId);
-
         if (this.getUtils().isValid(userId)) {
-            this.getDbUtils().findOne(
-                Collections.USERS.toString(), qry, res -> {
+            this.findById(
+                Collections.USERS.toString(), userId, res -> {
                     if (res == null || res.isEmpty()) {
                         failed.run();
                     } else {
                         success.run(res);
                     }
 
-                }, fail -> {
-                    this.logger.error(fail.getMessage(), fail);
-                    resp.end(this.getUtils().getResponse(
-                            Utils.ERR_502, fail.getMessage()).encode());
-                });
+                }, resp);
         } else {
             failed.run();
         }
@@ -247,8 +247,8 @@ public class OrganisationService extends AdminService {
 
                 if (res != null && !res.isEmpty()) {
 
-                    this.getUtils().sendEmailToUser(
-                        res, subject, template, params);
+                    this.queueEmail(EmailOutbox.template(
+                        res, subject, template, params));
                 }
 
             }, fail -> { });
@@ -291,7 +291,7 @@ public class OrganisationService extends AdminService {
             (xusr, body, params, headers, resp) -> {
                 this.getUtils().assignRoleQueryFilters(xusr, body, true);
                 System.out.println(body.encode());
-                this.getDbUtils().find(Collections.ORGANISATION.toString(),
+                this.findOrStream(Collections.ORGANISATION.toString(),
                         body, resp);
             });
     }
@@ -30,12 +30,19 @@ public class PaymentsService extends BaseService {
      */
     protected void setPaymentsRoutes(final Router router) {
         this.logger.info("set Payments routes -> ()");
+        this.addPaymentsRoutes(router);
 
+        this.setBaseRoutes(router);
+    }
+
+    /**
+     * Adds the payments routes.
+     * @param router The router used to set paths.
+     */
+    protected void addPaymentsRoutes(final Router router) {
         router.post("/testKafka").handler(this::testKafkaProducer);
         // router.post("/testKafkaConsumer")
         //     .handler(this::testKafkaConsumer);
-
-        this.setBaseRoutes(router);
     }
 
     /**
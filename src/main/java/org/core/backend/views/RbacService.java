@@ -29,15 +29,22 @@ public class RbacService extends PaymentsService {
      */
     protected void setRbacRoutes(final Router router) {
         this.logger.info("set Rbac service routes -> ()");
+        this.addRbacRoutes(router);
 
+        this.setPaymentsRoutes(router);
+    }
+
+    /**
+     * Adds the rbac task routes.
+     * @param router The router used to set paths.
+     */
+    protected void addRbacRoutes(final Router router) {
         router.post("/adminlistrbactasks")
             .handler(this::adminFetchRbacTasks);
         router.post("/adminaddrbactask")
             .handler(this::adminAddNewRbacTask);
         router.post("/adminDeleteRbacTask")
             .handler(this::adminDeleteRbacTask);
-
-        this.setPaymentsRoutes(router);
     }
 
     /**